@@ -0,0 +1,128 @@
+package plugins.Spider.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.keys.FreenetURI;
+import plugins.Spider.db.URIKey;
+import plugins.Spider.org.garret.perst.FieldIndex;
+import plugins.Spider.org.garret.perst.Persistent;
+import plugins.Spider.org.garret.perst.Storage;
+import plugins.Spider.org.garret.perst.StorageFactory;
+
+/**
+ * Building a URI index like PerstRoot.uriPage from {@link #keys} URIs already
+ * sorted by key, as when importing a seed list or rebuilding the index: one
+ * {@link FieldIndex#put} per key, or a single {@link FieldIndex#bulkLoad}.
+ * Each invocation fills a new database file and commits it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class BulkLoadBenchmark {
+
+	@Param({"1000000"})
+	public int keys;
+
+	/** Stands in for Page, whose constructor isn't visible here; only the indexed field matters. */
+	public static class Entry extends Persistent {
+		public byte[] uriKey;
+
+		public Entry() {
+		}
+	}
+
+	private byte[][] sortedKeys;
+
+	private File dbFile;
+	private Storage db;
+	private FieldIndex<Entry> index;
+	private Entry[] entries;
+
+	@Setup(Level.Trial)
+	public void makeKeys() throws IOException {
+		sortedKeys = new byte[keys][];
+		for(int i = 0; i < keys; i++)
+			sortedKeys[i] = URIKey.encode(uri(i));
+		// Unsigned, the order of the prefix compressed index
+		Arrays.sort(sortedKeys, new Comparator<byte[]>() {
+			public int compare(byte[] a, byte[] b) {
+				int n = Math.min(a.length, b.length);
+				for(int i = 0; i < n; i++) {
+					int diff = (a[i] & 0xff) - (b[i] & 0xff);
+					if(diff != 0) return diff;
+				}
+				return a.length - b.length;
+			}
+		});
+	}
+
+	private static FreenetURI uri(int i) throws IOException {
+		// Same URIs as PerstBenchmark
+		String key = Integer.toHexString(i * 0x9E3779B1);
+		StringBuilder sb = new StringBuilder("CHK@");
+		while(sb.length() < 47) sb.append(key);
+		sb.setLength(47);
+		sb.append(",dEeXC1VhI9mRcQ3hWQZUEsaVaw7lB8iSzE4yhOGtRdc,AAMC--8/page").append(i).append(".html");
+		return new FreenetURI(sb.toString());
+	}
+
+	@Setup(Level.Invocation)
+	public void open() throws IOException {
+		dbFile = File.createTempFile("perst-bulk", ".dbs");
+		dbFile.delete();
+		db = StorageFactory.getInstance().createStorage();
+		db.setProperty("perst.object.cache.kind", "pinned");
+		db.open(dbFile.getPath(), Storage.DEFAULT_PAGE_POOL_SIZE);
+		index = db.createPrefixCompressedFieldIndex(Entry.class, "uriKey", true);
+		db.setRoot(index);
+		entries = new Entry[keys];
+		for(int i = 0; i < keys; i++) {
+			entries[i] = new Entry();
+			entries[i].uriKey = sortedKeys[i];
+		}
+	}
+
+	@TearDown(Level.Invocation)
+	public void close() {
+		db.close();
+		dbFile.delete();
+	}
+
+	@Benchmark
+	public int put() {
+		int n = 0;
+		for(Entry entry : entries) {
+			if(index.put(entry)) n++;
+		}
+		db.commit();
+		return n;
+	}
+
+	@Benchmark
+	public int bulkLoad() {
+		int n = index.bulkLoad(Arrays.asList(entries).iterator());
+		db.commit();
+		return n;
+	}
+}
@@ -0,0 +1,143 @@
+package plugins.Spider.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The benchmark corpus: the HTML and plain text pages listed in corpus/index.txt,
+ * split up into the text blocks the content filter would pass to
+ * {@link plugins.Spider.Spider.PageCallBack#onText}.
+ */
+public class Corpus {
+
+	/** One page of the corpus. */
+	public static class Document {
+		public final String name;
+		/** Text blocks, in order */
+		public final List<String> text = new ArrayList<String>();
+		/** The type of each text block, "title" or null */
+		public final List<String> types = new ArrayList<String>();
+
+		Document(String name) {
+			this.name = name;
+		}
+
+		void addText(String s, String type) {
+			if(s.trim().length() == 0) return;
+			text.add(s);
+			types.add(type);
+		}
+	}
+
+	public static List<Document> load() throws IOException {
+		List<Document> docs = new ArrayList<Document>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(open("index.txt"), "UTF-8"));
+		try {
+			String name;
+			while((name = br.readLine()) != null) {
+				name = name.trim();
+				if(name.length() == 0 || name.charAt(0) == '#') continue;
+				String content = read(name);
+				if(name.endsWith(".html"))
+					docs.add(parseHTML(name, content));
+				else
+					docs.add(parseText(name, content));
+			}
+		} finally {
+			br.close();
+		}
+		return docs;
+	}
+
+	private static InputStream open(String name) throws IOException {
+		InputStream is = Corpus.class.getResourceAsStream("corpus/" + name);
+		if(is == null) throw new IOException("Missing corpus file " + name);
+		return is;
+	}
+
+	private static String read(String name) throws IOException {
+		InputStreamReader r = new InputStreamReader(open(name), "UTF-8");
+		try {
+			StringBuilder sb = new StringBuilder();
+			char[] buf = new char[4096];
+			int n;
+			while((n = r.read(buf)) > 0)
+				sb.append(buf, 0, n);
+			return sb.toString();
+		} finally {
+			r.close();
+		}
+	}
+
+	/** Plain text is passed to onText() a line at a time. */
+	static Document parseText(String name, String content) {
+		Document doc = new Document(name);
+		for(String line : content.split("\n"))
+			doc.addText(line, null);
+		return doc;
+	}
+
+	/**
+	 * A crude HTML scanner: the text between tags, except in script and style,
+	 * with the common entities decoded. Good enough to give the tokenizer the
+	 * same kind of input as the content filter does.
+	 */
+	static Document parseHTML(String name, String content) {
+		Document doc = new Document(name);
+		String skipUntil = null;
+		boolean inTitle = false;
+		int i = 0;
+		while(i < content.length()) {
+			int lt = content.indexOf('<', i);
+			if(lt < 0) lt = content.length();
+			if(lt > i && skipUntil == null)
+				doc.addText(decode(content.substring(i, lt)), inTitle ? "title" : null);
+			if(lt == content.length()) break;
+			int gt = content.indexOf('>', lt);
+			if(gt < 0) break;
+			String tag = content.substring(lt + 1, gt).trim().toLowerCase();
+			int space = tag.indexOf(' ');
+			if(space >= 0) tag = tag.substring(0, space);
+			if(skipUntil != null) {
+				if(tag.equals(skipUntil)) skipUntil = null;
+			} else if(tag.equals("script") || tag.equals("style")) {
+				skipUntil = "/" + tag;
+			} else if(tag.equals("title")) {
+				inTitle = true;
+			} else if(tag.equals("/title")) {
+				inTitle = false;
+			}
+			i = gt + 1;
+		}
+		return doc;
+	}
+
+	private static String decode(String s) {
+		if(s.indexOf('&') < 0) return s;
+		StringBuilder sb = new StringBuilder(s.length());
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			int semi;
+			if(c == '&' && (semi = s.indexOf(';', i)) > i && semi - i < 10) {
+				String entity = s.substring(i + 1, semi);
+				i = semi;
+				if(entity.equals("amp")) sb.append('&');
+				else if(entity.equals("lt")) sb.append('<');
+				else if(entity.equals("gt")) sb.append('>');
+				else if(entity.equals("quot")) sb.append('"');
+				else if(entity.equals("apos")) sb.append('\'');
+				else if(entity.equals("nbsp")) sb.append(' ');
+				else if(entity.startsWith("#x")) sb.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+				else if(entity.startsWith("#")) sb.appendCodePoint(Integer.parseInt(entity.substring(1)));
+				else sb.append(' ');
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
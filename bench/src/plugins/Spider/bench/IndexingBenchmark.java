@@ -0,0 +1,153 @@
+package plugins.Spider.bench;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.keys.FreenetURI;
+import plugins.Spider.PageIndexer;
+import plugins.Spider.SearchTokenizer;
+import plugins.Spider.index.TermEntryWriter;
+import plugins.Spider.index.TermPageBuffer;
+
+/**
+ * Benchmarks of the indexing path, over the bundled corpus: tokenizing, turning
+ * a page's text into its term entries ({@link PageIndexer}, as PageCallBack
+ * does), merging pages into a buffer the way LibraryBuffer.addAll() does and
+ * starting a new one when it is full, and writing the buffer in each push format.
+ * The handover between the LibraryBuffer generations needs a node and isn't
+ * included, only the merging and size estimates which decide when it happens.
+ *
+ * Each benchmark goes through the whole corpus once, so the scores are in
+ * corpus passes per second. Run with "ant benchmark".
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexingBenchmark {
+
+	/** How many times each corpus page is indexed, under different URIs. */
+	@Param({"20"})
+	public int copies;
+
+	/** Buffer size at which a new buffer is started, as LibraryBuffer.maybeSend() would, in bytes. */
+	@Param({"4194304"})
+	public int bufferMax;
+
+	private List<Corpus.Document> docs;
+	private FreenetURI[] uris;
+	/** The term entries of each page, as produced by parse() */
+	private TermPageBuffer[] parsed;
+	/** All of the above merged, as sent to Library */
+	private TermPageBuffer merged;
+
+	private final SearchTokenizer.TokenHandler counter = new SearchTokenizer.TokenHandler() {
+		public void onToken(CharSequence token) {
+			tokenChars += token.length();
+		}
+	};
+	private int tokenChars;
+
+	@Setup
+	public void setup() throws IOException {
+		docs = Corpus.load();
+		uris = new FreenetURI[docs.size() * copies];
+		for(int i = 0; i < uris.length; i++)
+			uris[i] = new FreenetURI("CHK@bench" + i + ",AAAA,AAIC--8/" + docs.get(i % docs.size()).name);
+		parsed = new TermPageBuffer[uris.length];
+		merged = new TermPageBuffer();
+		for(int i = 0; i < uris.length; i++) {
+			parsed[i] = index(docs.get(i % docs.size()), uris[i]);
+			merged.addAll(parsed[i]);
+		}
+	}
+
+	private static TermPageBuffer index(Corpus.Document doc, FreenetURI uri) {
+		PageIndexer indexer = new PageIndexer(uri);
+		for(int i = 0; i < doc.text.size(); i++)
+			indexer.onText(doc.text.get(i), doc.types.get(i));
+		return indexer.finish();
+	}
+
+	@Benchmark
+	public int tokenize() {
+		tokenChars = 0;
+		for(Corpus.Document doc : docs)
+			for(String s : doc.text)
+				SearchTokenizer.tokenize(s, false, counter);
+		return tokenChars;
+	}
+
+	@Benchmark
+	public int parse() {
+		int entries = 0;
+		for(int i = 0; i < uris.length; i++)
+			entries += index(docs.get(i % docs.size()), uris[i]).size();
+		return entries;
+	}
+
+	@Benchmark
+	public List<TermPageBuffer> buffer() {
+		List<TermPageBuffer> sent = new ArrayList<TermPageBuffer>();
+		TermPageBuffer buffer = new TermPageBuffer();
+		for(TermPageBuffer page : parsed) {
+			buffer.addAll(page);
+			if(buffer.sizeEstimate() > bufferMax) {
+				sent.add(buffer);
+				buffer = new TermPageBuffer();
+			}
+		}
+		sent.add(buffer);
+		return sent;
+	}
+
+	@Benchmark
+	public long writeLegacy() throws IOException {
+		return write(TermEntryWriter.FORMAT_LEGACY);
+	}
+
+	@Benchmark
+	public long writeCompact() throws IOException {
+		return write(TermEntryWriter.FORMAT_COMPACT);
+	}
+
+	private long write(int format) throws IOException {
+		CountingOutputStream os = new CountingOutputStream();
+		DataOutputStream dos = new DataOutputStream(os);
+		TermEntryWriter.getInstance().writeBuffer(merged, dos, format);
+		dos.flush();
+		return os.count;
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] buf, int off, int len) {
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package plugins.Spider.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.keys.FreenetURI;
+import plugins.Spider.db.Page;
+import plugins.Spider.db.PerstRoot;
+import plugins.Spider.db.Status;
+import plugins.Spider.org.garret.perst.IFile;
+import plugins.Spider.org.garret.perst.MappedFile;
+import plugins.Spider.org.garret.perst.NullFile;
+import plugins.Spider.org.garret.perst.Storage;
+import plugins.Spider.org.garret.perst.StorageFactory;
+import plugins.Spider.org.garret.perst.impl.ChannelFile;
+
+/**
+ * Benchmarks of the Perst database as the Spider uses it: a database with the
+ * Spider's schema and settings, holding {@link #pages} queued pages, on a plain
+ * file, a memory mapped file, or in memory only.
+ *
+ * Reports both throughput and the distribution of the time per operation (p99
+ * etc.), in the JSON file written by "ant benchmark".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PerstBenchmark {
+
+	/**
+	 * "channel" for ChannelFile, the file the Spider opens its database with, "mapped" for
+	 * MappedFile, "null" for NullFile with an infinite page pool
+	 */
+	@Param({"channel", "mapped", "null"})
+	public String file;
+
+	@Param({"1000000"})
+	public int pages;
+
+	/** Pages created per transaction while filling the database */
+	private static final int FILL_BATCH = 10000;
+	/** Pages read per iterateQueued(), like the frontier refilling itself */
+	private static final int ITERATE_BATCH = 1000;
+
+	private File dbFile;
+	private Storage db;
+	private PerstRoot root;
+	private FreenetURI[] uris;
+	private long[] ids;
+
+	private int next;
+	private Iterator<Page> queued;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dbFile = File.createTempFile("perst-bench", ".dbs");
+		dbFile.delete();
+
+		IFile f;
+		int pagePoolSize = Storage.DEFAULT_PAGE_POOL_SIZE;
+		if(file.equals("channel"))
+			f = new ChannelFile(dbFile.getPath(), false, false);
+		else if(file.equals("mapped"))
+			f = new MappedFile(dbFile.getPath(), 64 * 1024 * 1024, false);
+		else if(file.equals("null")) {
+			f = new NullFile();
+			pagePoolSize = Storage.INFINITE_PAGE_POOL;
+		} else
+			throw new IllegalArgumentException("Unknown file kind " + file);
+
+		db = StorageFactory.getInstance().createStorage();
+		PerstRoot.setStorageProperties(db);
+		db.open(f, pagePoolSize);
+		root = PerstRoot.createRoot(db);
+
+		uris = new FreenetURI[pages];
+		ids = new long[pages];
+		for(int i = 0; i < pages; i += FILL_BATCH) {
+			List<FreenetURI> batch = new ArrayList<FreenetURI>(FILL_BATCH);
+			for(int j = i; j < Math.min(pages, i + FILL_BATCH); j++) {
+				uris[j] = uri(j);
+				batch.add(uris[j]);
+			}
+			db.beginThreadTransaction(Storage.EXCLUSIVE_TRANSACTION);
+			List<Page> created = root.getPagesByURI(batch, true, "bench");
+			db.endThreadTransaction();
+			for(int j = 0; j < created.size(); j++)
+				ids[i + j] = created.get(j).getId();
+		}
+	}
+
+	private static FreenetURI uri(int i) throws MalformedURLException {
+		// Realistic lengths: a 43 character routing key, crypto key and extra, and a path.
+		String key = Integer.toHexString(i * 0x9E3779B1);
+		StringBuilder sb = new StringBuilder("CHK@");
+		while(sb.length() < 47) sb.append(key);
+		sb.setLength(47);
+		sb.append(",dEeXC1VhI9mRcQ3hWQZUEsaVaw7lB8iSzE4yhOGtRdc,AAMC--8/page").append(i).append(".html");
+		return new FreenetURI(sb.toString());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		db.close();
+		dbFile.delete();
+	}
+
+	/** The changes made by setStatus() are committed between iterations, outside the measurement. */
+	@TearDown(Level.Iteration)
+	public void commit() {
+		db.commit();
+	}
+
+	private int nextPage() {
+		int i = next;
+		next = (next * 1103515245 + 12345) & 0x7fffffff;
+		return i % pages;
+	}
+
+	/** A transaction which changes one page, and commits. */
+	@Benchmark
+	public void commitTransaction() {
+		Page page = root.getPageById(ids[nextPage()]);
+		db.beginThreadTransaction(Storage.EXCLUSIVE_TRANSACTION);
+		try {
+			page.setComment("bench " + next);
+		} finally {
+			db.endThreadTransaction();
+		}
+	}
+
+	/** Look up a page by URI, in PerstRoot.uriPage. */
+	@Benchmark
+	public Page lookupURI() {
+		return root.getPageByURI(uris[nextPage()], false, null);
+	}
+
+	/** Read the next {@link #ITERATE_BATCH} queued pages, in lastChange order, starting again at the end. */
+	@Benchmark
+	public long iterateQueued() {
+		db.beginThreadTransaction(Storage.COOPERATIVE_TRANSACTION);
+		try {
+			long sum = 0;
+			for(int count = 0; count < ITERATE_BATCH; count++) {
+				if(queued == null || !queued.hasNext())
+					queued = root.getPages(Status.QUEUED);
+				sum += queued.next().getLastChange();
+			}
+			return sum;
+		} finally {
+			db.endThreadTransaction();
+		}
+	}
+
+	/** Move a page to another status, and back next time, without committing. */
+	@Benchmark
+	public void setStatus() {
+		Page page = root.getPageById(ids[nextPage()]);
+		page.setStatus(page.getStatus() == Status.QUEUED ? Status.SUCCEEDED : Status.QUEUED);
+	}
+}
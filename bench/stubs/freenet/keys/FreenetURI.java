@@ -0,0 +1,105 @@
+package freenet.keys;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+
+/**
+ * Benchmark stand-in for the node's FreenetURI, so the benchmarks run without
+ * freenet.jar. Only what the indexing classes use; the binary key is the URI
+ * string, which is close enough in length to a real CHK or SSK. Likewise the
+ * routing key, crypto key and extra are the bytes of their text, not decoded
+ * base64, and there are no meta strings.
+ */
+public class FreenetURI {
+	private final String uri;
+
+	public FreenetURI(String uri) throws MalformedURLException {
+		if(uri.indexOf('@') < 0) throw new MalformedURLException("No key type: " + uri);
+		this.uri = uri;
+	}
+
+	public FreenetURI(String keyType, String docName, String[] metaStr, byte[] routingKey, byte[] cryptoKey,
+			byte[] extra2, long suggestedEdition) {
+		StringBuilder sb = new StringBuilder(keyType).append('@');
+		if(routingKey != null) sb.append(text(routingKey));
+		if(cryptoKey != null) sb.append(',').append(text(cryptoKey));
+		if(extra2 != null) sb.append(',').append(text(extra2));
+		if(docName != null) sb.append('/').append(docName);
+		uri = sb.toString();
+	}
+
+	public FreenetURI intern() {
+		return this;
+	}
+
+	public void writeFullBinaryKeyWithLength(DataOutputStream dos) throws IOException {
+		byte[] buf = uri.getBytes("UTF-8");
+		dos.writeShort(buf.length);
+		dos.write(buf);
+	}
+
+	public String getKeyType() {
+		return uri.substring(0, uri.indexOf('@'));
+	}
+
+	public byte[] getRoutingKey() {
+		return keyPart(0);
+	}
+
+	public byte[] getCryptoKey() {
+		return keyPart(1);
+	}
+
+	public byte[] getExtra() {
+		return keyPart(2);
+	}
+
+	public long getSuggestedEdition() {
+		return -1;
+	}
+
+	public String getDocName() {
+		int slash = uri.indexOf('/');
+		return slash < 0 ? null : uri.substring(slash + 1);
+	}
+
+	public String[] getAllMetaStrings() {
+		return new String[0];
+	}
+
+	private byte[] keyPart(int n) {
+		int slash = uri.indexOf('/');
+		String[] parts = uri.substring(uri.indexOf('@') + 1, slash < 0 ? uri.length() : slash).split(",");
+		if(n >= parts.length || parts[n].length() == 0) return null;
+		try {
+			return parts[n].getBytes("UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new Error(e);
+		}
+	}
+
+	private static String text(byte[] b) {
+		try {
+			return new String(b, "UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new Error(e);
+		}
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof FreenetURI && uri.equals(((FreenetURI) o).uri);
+	}
+
+	@Override
+	public int hashCode() {
+		return uri.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return uri;
+	}
+}
@@ -0,0 +1,12 @@
+package freenet.node;
+
+/** Benchmark stand-in for the node's RequestStarter: just the priority classes. */
+public class RequestStarter {
+	public static final short MAXIMUM_PRIORITY_CLASS = 0;
+	public static final short INTERACTIVE_PRIORITY_CLASS = 1;
+	public static final short IMMEDIATE_SPLITFILE_PRIORITY_CLASS = 2;
+	public static final short UPDATE_PRIORITY_CLASS = 3;
+	public static final short BULK_SPLITFILE_PRIORITY_CLASS = 4;
+	public static final short PREFETCH_PRIORITY_CLASS = 5;
+	public static final short MINIMUM_PRIORITY_CLASS = 6;
+}
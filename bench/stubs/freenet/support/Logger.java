@@ -0,0 +1,31 @@
+package freenet.support;
+
+/** Benchmark stand-in for the node's Logger: errors go to stderr, everything else is dropped. */
+public class Logger {
+	public static final int DEBUG = 2;
+	public static final int MINOR = 3;
+	public static final int NORMAL = 4;
+	public static final int ERROR = 16;
+
+	public static boolean shouldLog(int priority, Object o) {
+		return priority >= ERROR;
+	}
+
+	public static void error(Object o, String s) {
+		System.err.println(s);
+	}
+
+	public static void error(Object o, String s, Throwable t) {
+		System.err.println(s);
+		t.printStackTrace();
+	}
+
+	public static void normal(Object o, String s) {
+	}
+
+	public static void minor(Object o, String s) {
+	}
+
+	public static void debug(Object o, String s) {
+	}
+}
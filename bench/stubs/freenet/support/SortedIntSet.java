@@ -0,0 +1,42 @@
+package freenet.support;
+
+import java.util.Arrays;
+
+/** Benchmark stand-in for the node's SortedIntSet. */
+public class SortedIntSet {
+	private int[] data;
+	private int length;
+
+	public SortedIntSet() {
+		data = new int[4];
+	}
+
+	public SortedIntSet(int[] sorted) {
+		data = sorted.clone();
+		length = sorted.length;
+	}
+
+	public synchronized int size() {
+		return length;
+	}
+
+	public synchronized boolean contains(int num) {
+		return Arrays.binarySearch(data, 0, length, num) >= 0;
+	}
+
+	public synchronized boolean add(int num) {
+		int x = Arrays.binarySearch(data, 0, length, num);
+		if(x >= 0) return false;
+		x = -x - 1;
+		if(length == data.length) data = Arrays.copyOf(data, length * 2);
+		System.arraycopy(data, x, data, x + 1, length - x);
+		data[x] = num;
+		length++;
+		return true;
+	}
+
+	public synchronized int[] toArrayRaw() {
+		if(length != data.length) data = Arrays.copyOf(data, length);
+		return data;
+	}
+}
@@ -0,0 +1,105 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Spider;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import plugins.Spider.db.Page;
+import plugins.Spider.db.PerstRoot;
+import plugins.Spider.db.Status;
+
+/**
+ * In-memory frontier of queued pages, in front of {@link PerstRoot}'s QUEUED index.
+ *
+ * Pages are sharded by the routing key of their URI, and handed out round-robin across the
+ * shards, so one big site does not monopolise the running requests. Picking the next page is a
+ * lock-free poll; the database is only touched by {@link #refill}, which loads a whole batch at
+ * once and resumes its scan of the index where the previous refill stopped instead of walking
+ * the same prefix again.
+ */
+public class Frontier {
+	static final int SHARDS = 16;
+
+	private final ConcurrentLinkedQueue<Page>[] shards;
+	/** Pages currently in one of the shards, to avoid loading a page twice */
+	private final Map<Page, Boolean> members = new ConcurrentHashMap<Page, Boolean>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicInteger nextShard = new AtomicInteger();
+
+	/** lastChange of the last page loaded, the next refill continues from here. -1 means from the start. */
+	private long cursor = -1;
+
+	@SuppressWarnings("unchecked")
+	Frontier() {
+		shards = new ConcurrentLinkedQueue[SHARDS];
+		for (int i = 0; i < SHARDS; i++)
+			shards[i] = new ConcurrentLinkedQueue<Page>();
+	}
+
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Take the next page, rotating between the shards.
+	 * @return a page, or null if the frontier is empty
+	 */
+	public Page poll() {
+		int start = nextShard.getAndIncrement();
+		for (int i = 0; i < SHARDS; i++) {
+			ConcurrentLinkedQueue<Page> shard = shards[((start + i) & 0x7fffffff) % SHARDS];
+			Page page = shard.poll();
+			if (page != null) {
+				members.remove(page);
+				size.decrementAndGet();
+				return page;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Load queued pages from the database until the frontier holds {@code target} pages or the
+	 * index has been scanned once. Caller must hold a transaction and a shared lock on the QUEUED
+	 * pages.
+	 * @param running pages already being fetched, which are skipped
+	 * @return the number of pages added
+	 */
+	synchronized int refill(PerstRoot root, Map<Page, ?> running, int target) {
+		int added = 0;
+		boolean wrapped = cursor < 0;
+		Iterator<Page> it = wrapped ? root.getPages(Status.QUEUED) : root.getPages(Status.QUEUED, cursor);
+		while (size.get() < target) {
+			if (!it.hasNext()) {
+				if (wrapped) {
+					cursor = -1;
+					break;
+				}
+				// Reached the end, go round once more to pick up anything before the cursor.
+				wrapped = true;
+				it = root.getPages(Status.QUEUED);
+				continue;
+			}
+			Page page = it.next();
+			cursor = page.getLastChange();
+			if (running.containsKey(page)) continue;
+			if (members.put(page, Boolean.TRUE) != null) continue;
+			shards[shardOf(page)].add(page);
+			size.incrementAndGet();
+			added++;
+		}
+		return added;
+	}
+
+	/** Shard by the routing key of the page's URI. */
+	static int shardOf(Page page) {
+		int hash = page.getRoutingKeyHash();
+		hash ^= (hash >>> 16);
+		return (hash & 0x7fffffff) % SHARDS;
+	}
+}
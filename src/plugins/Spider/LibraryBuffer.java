@@ -10,22 +10,28 @@ import freenet.support.Logger;
 import freenet.support.SimpleFieldSet;
 import freenet.support.api.Bucket;
 import freenet.support.io.FileBucket;
+import freenet.support.io.NativeThread;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
-import java.util.Collection;
-import java.util.TreeMap;
+import java.util.ArrayList;
+
 import plugins.Spider.index.TermEntryWriter;
-import plugins.Spider.index.TermPageEntry;
+import plugins.Spider.index.TermPageBuffer;
+import plugins.Spider.db.Page;
 import plugins.Spider.db.Status;
 import plugins.Spider.org.garret.perst.Storage;
 
 /**
  * Buffer which stores TermPageEntrys as they are found by the Spider. When the
- * buffer's estimated size gets up to bufferMax, the buffer is serialized into a
- * Bucket and sent to the Library
+ * buffer's estimated size gets up to bufferMax, the buffer is handed to a sender
+ * thread which serializes it into a Bucket and sends it to the Library, while the
+ * Spider carries on filling a new buffer. The Spider only stalls if the new buffer
+ * fills up before the previous one has been sent.
  * 
  *
  * @author MikeB
@@ -39,11 +45,19 @@ public class LibraryBuffer implements FredPluginTalker {
 	private FreenetURI lastURI;
 	private boolean badURI;
 
-	private TreeMap<TermPageEntry, TermPageEntry> termPageBuffer = new TreeMap();
+	private TermPageBuffer termPageBuffer = new TermPageBuffer();
+	/** Ids of the pages in termPageBuffer */
+	private ArrayList<Long> termPageBufferPages = new ArrayList<Long>();
 	// Garbage collection behaving perversely. Lets try moving stuff into instance members.
-	private Collection<TermPageEntry> pushing = null;
+	/** The previous generation, waiting for or being sent by the sender thread. */
+	private TermPageBuffer pushing = null;
+	private ArrayList<Long> pushingPages = null;
+	private boolean sending;
+	private Thread sender;
+
+	/** How long terminate() waits for a generation being sent to the Library */
+	private static final long SENDER_JOIN_TIMEOUT = 60 * 1000;
 
-	private int bufferUsageEstimate = 0;
 	private int bufferMax;
 
 	static final File SAVE_FILE = new File("spider.saved.data");
@@ -58,32 +72,34 @@ public class LibraryBuffer implements FredPluginTalker {
 
 	/** We only consider sending the data after a file has been parsed, not mid way through. */
 	public void maybeSend() {
-		boolean push = false;
 		synchronized(this) {
 			if (bufferMax == 0) return;
-			if (bufferUsageEstimate > bufferMax) {
-				if(pushing != null) {
-					throw new IllegalStateException("Still pushing?!");
+			if (termPageBuffer.sizeEstimate() > bufferMax) {
+				long tStart = System.currentTimeMillis();
+				// If both generations are full, wait for the sender.
+				while(pushing != null && !shutdown) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
 				}
-				pushing = termPageBuffer.values();
-				push = true;
-				termPageBuffer = new TreeMap();
-				bufferUsageEstimate = 0;
+				long tEnd = System.currentTimeMillis();
+				timeNotStalled += (tStart - timeLastNotStalled);
+				timeLastNotStalled = tEnd;
+				timeStalled += (tEnd - tStart);
+				if(shutdown) return;
+				pushing = termPageBuffer;
+				pushingPages = termPageBufferPages;
+				termPageBuffer = new TermPageBuffer();
+				termPageBufferPages = new ArrayList<Long>();
+				notifyAll();
 			}
 		}
-		if(push) sendBuffer();
-	}
-	
-	/**
-	 * Increments the estimate by specified amount.
-	 * @param increment
-	 */
-	private synchronized void increaseEstimate(int increment) {
-		bufferUsageEstimate += increment;
 	}
 	
 	public synchronized int bufferUsageEstimate() {
-		return bufferUsageEstimate;
+		return termPageBuffer.sizeEstimate();
 	}
 	
 
@@ -97,16 +113,20 @@ public class LibraryBuffer implements FredPluginTalker {
 		spider.db.beginThreadTransaction(Storage.EXCLUSIVE_TRANSACTION);
 		spider.resetPages(Status.NOT_PUSHED, Status.QUEUED);
 		spider.db.endThreadTransaction();
+
+		sender = new NativeThread(new Sender(), "Spider buffer sender", NativeThread.NORM_PRIORITY - 1, true);
+		sender.setDaemon(true);
+		sender.setContextClassLoader(Spider.class.getClassLoader());
+		sender.start();
 	}
 
 	/**
-	 * Takes a TermPageEntry and either returns a TPE of the same term & page
-	 * from the buffer or adds the TPE to the buffer and returns it.
-	 *
-	 * @param newTPE
-	 * @return
+	 * Adds the entries of a parsed page, merging the positions into any entry
+	 * of the same term & page already in the buffer.
+	 * @param page
+	 * @param entries
 	 */
-	private synchronized TermPageEntry get(TermPageEntry newTPE) {
+	synchronized void addAll(Page page, TermPageBuffer entries) {
 		if(shutdown) {
 			while(true)
 				try {
@@ -116,64 +136,66 @@ public class LibraryBuffer implements FredPluginTalker {
 					// Ignore
 				} 
 		}
-		TermPageEntry exTPE = termPageBuffer.get(newTPE);
-		if(exTPE==null) {	// TPE is new
-			increaseEstimate(newTPE.sizeEstimate());
-			termPageBuffer.put(newTPE, newTPE);
-			return newTPE;
-		} else
-			return exTPE;
-	}
-
-	/**
-	 * Set the title of the
-	 * @param termPageEntry
-	 * @param s
-	 */
-	synchronized void setTitle(TermPageEntry termPageEntry, String s) {
-		get(termPageEntry).title = s;
-	}
-	
-	synchronized void setRelevance(TermPageEntry termPageEntry, float f) {
-		get(termPageEntry).rel = f;
+		termPageBuffer.addAll(entries);
+		termPageBufferPages.add(page.getId());
 	}
 
 	/**
-	 * Puts a term position in the TermPageEntry and increments the bufferUsageEstimate
-	 * @param tp
-	 * @param position
+	 * Sends each generation handed over by maybeSend().
 	 */
-	synchronized void addPos(TermPageEntry tp, int position) {
-		//Logger.normal(this, "length : "+bufferUsageEstimate+", adding to "+tp);
-		get(tp).putPosition(position);
-		//Logger.normal(this, "length : "+bufferUsageEstimate+", increasing length "+tp);
-		increaseEstimate(4);
+	private class Sender implements Runnable {
+		public void run() {
+			while(true) {
+				TermPageBuffer buffer;
+				ArrayList<Long> pages;
+				synchronized(LibraryBuffer.this) {
+					while(pushing == null && !shutdown) {
+						try {
+							LibraryBuffer.this.wait();
+						} catch (InterruptedException e) {
+							// Ignore
+						}
+					}
+					if(shutdown) return;
+					buffer = pushing;
+					pages = pushingPages;
+					sending = true;
+				}
+				try {
+					sendBuffer(buffer, pages);
+				} catch (RuntimeException e) {
+					Logger.error(this, "Failed to send buffer: " + e, e);
+				} finally {
+					synchronized(LibraryBuffer.this) {
+						pushing = null;
+						pushingPages = null;
+						sending = false;
+						LibraryBuffer.this.notifyAll();
+					}
+				}
+			}
+		}
 	}
 
 	/**
-	 * Emptys the buffer into a bucket and sends it to the Library plugin with the command "pushBuffer"
+	 * Emptys the buffer into a bucket and sends it to the Library plugin with the command "pushBuffer",
+	 * then marks its pages as indexed.
 	 *
 	 * FIXME : I think there is something wrong with the way it writes to the bucket, I may be using the wrong kind of buffer
 	 */
-	private void sendBuffer() {
-		long tStart = System.currentTimeMillis();
+	private void sendBuffer(TermPageBuffer buffer, ArrayList<Long> pages) {
 		try {
-			Logger.normal(this, "Sending buffer of estimated size "+bufferUsageEstimate+" bytes to Library");
+			Logger.normal(this, "Sending buffer of estimated size "+buffer.sizeEstimate()+" bytes to Library");
 			long totalPagesIndexed = spider.getRoot().getPageCount(Status.INDEXED);
 			Bucket bucket = pr.getNode().clientCore.tempBucketFactory.makeBucket(3000000);
-			writeToPush(totalPagesIndexed, bucket);
+			writeToPush(totalPagesIndexed, buffer, bucket);
 			innerSend(bucket);
 			Logger.normal(this, "Buffer successfully sent to Library, size = "+bucket.size());
-			// Not a separate transaction, commit with the index updates.
-			spider.resetPages(Status.NOT_PUSHED, Status.INDEXED);
+			markIndexed(pages);
 		} catch (IOException ex) {
 			Logger.error(this, "Could not make bucket to transfer buffer", ex);
 		}
-		long tEnd = System.currentTimeMillis();
 		synchronized(this) {
-			timeNotStalled += (tStart - timeLastNotStalled);
-			timeLastNotStalled = tEnd;
-			timeStalled += (tEnd - tStart);
 			if(shutdown) return;
 		}
 		// Robustness: Send SAVE_FILE *after* sending new data, because *it is already on disk*, whereas the new data is not.
@@ -184,8 +206,22 @@ public class LibraryBuffer implements FredPluginTalker {
 			System.out.println("Restored data from last time from "+SAVE_FILE);
 		}
 	}
+
+	/** Move the pages that were in a sent buffer from NOT_PUSHED to INDEXED. */
+	private void markIndexed(ArrayList<Long> pages) {
+		spider.db.beginThreadTransaction(Storage.EXCLUSIVE_TRANSACTION);
+		try {
+			for (long id : pages) {
+				Page page = spider.getRoot().getPageById(id);
+				if (page != null && page.getStatus() == Status.NOT_PUSHED)
+					page.setStatus(Status.INDEXED);
+			}
+		} finally {
+			spider.endCrawlTransaction();
+		}
+	}
 	
-	private synchronized Bucket writeToPush(long totalPagesIndexed, Bucket bucket) throws IOException {
+	private Bucket writeToPush(long totalPagesIndexed, TermPageBuffer buffer, Bucket bucket) throws IOException {
 		OutputStream os = bucket.getOutputStream();
 		SimpleFieldSet meta = new SimpleFieldSet(true); // Stored with data to make things easier.
 		String indexTitle = spider.getConfig().getIndexTitle();
@@ -198,12 +234,13 @@ public class LibraryBuffer implements FredPluginTalker {
 		if(indexOwnerEmail != null)
 			meta.putSingle("index.owner.email", indexOwnerEmail);
 		meta.put("totalPages", totalPagesIndexed);
+		int format = spider.getConfig().isCompactPushFormat() ? TermEntryWriter.FORMAT_COMPACT : TermEntryWriter.FORMAT_LEGACY;
+		if(format != TermEntryWriter.FORMAT_LEGACY)
+			meta.put("entryFormat", format);
 		meta.writeTo(os);
-		for (TermPageEntry termPageEntry : pushing) {
-			TermEntryWriter.getInstance().writeObject(termPageEntry, os);
-		}
-		pushing = null;
-		os.close();
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
+		TermEntryWriter.getInstance().writeBuffer(buffer, dos, format);
+		dos.close();
 		bucket.setReadOnly();
 		return bucket;
 	}
@@ -222,11 +259,11 @@ public class LibraryBuffer implements FredPluginTalker {
 
 	}
 	
-	public long getTimeStalled() {
+	public synchronized long getTimeStalled() {
 		return timeStalled;
 	}
 	
-	public long getTimeNotStalled() {
+	public synchronized long getTimeNotStalled() {
 		return timeNotStalled;
 	}
 
@@ -255,15 +292,32 @@ public class LibraryBuffer implements FredPluginTalker {
 	}
 
 	public void terminate() {
+		TermPageBuffer saving;
 		synchronized(this) {
 			if(shutdown) {
 				Logger.error(this, "Shutdown called twice", new Exception("error"));
 				return;
 			}
 			shutdown = true;
-			pushing = termPageBuffer.values();
-			termPageBuffer = new TreeMap();
-			bufferUsageEstimate = 0;
+			if(pushing != null && !sending) {
+				// Never got to the sender, save it with the rest.
+				pushing.addAll(termPageBuffer);
+				termPageBuffer = pushing;
+			}
+			saving = termPageBuffer;
+			termPageBuffer = new TermPageBuffer();
+			notifyAll();
+		}
+		// Wait for a generation already being sent, so its pages are marked indexed before the
+		// database is closed rather than pushed again on the next start.
+		if(sender != null) {
+			try {
+				sender.join(SENDER_JOIN_TIMEOUT);
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+			if(sender.isAlive())
+				Logger.error(this, "Buffer sender still running after "+SENDER_JOIN_TIMEOUT+"ms, its pages will be pushed again");
 		}
 		System.out.println("Writing pending data to "+SAVE_FILE);
 		FileBucket bucket = new FileBucket(SAVE_FILE, false, false, false, false);
@@ -277,7 +331,7 @@ public class LibraryBuffer implements FredPluginTalker {
 			t.printStackTrace();
 		}
 		try {
-			writeToPush(totalPagesIndexed, bucket);
+			writeToPush(totalPagesIndexed, saving, bucket);
 		} catch (IOException e) {
 			System.err.println("Failed to write pending data: "+e); // Hopefully no data loss due to NOT_PUSHED vs INDEXED.
 			e.printStackTrace();
@@ -0,0 +1,122 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Spider;
+
+import static plugins.Spider.SearchUtil.isStopWord;
+
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+import plugins.Spider.index.TermPageBuffer;
+
+/**
+ * Turns the text of one page into its term entries: each piece of text is tokenized, stop words
+ * are dropped and the other words are added at their positions, the title's words before all the
+ * others. Used by {@link Spider.PageCallBack} on the parser thread; it doesn't need a node or the
+ * database.
+ */
+public class PageIndexer {
+	private final FreenetURI uri;
+	private String title;
+	private int totalWords;
+	private Integer lastPosition = null;
+	private boolean inTitle;
+	private int wordIndex;
+
+	protected final boolean logDEBUG = Logger.shouldLog(Logger.DEBUG, this); // per instance, allow changing on the fly
+
+	/** Words and positions on this page */
+	private final TermPageBuffer entries = new TermPageBuffer();
+
+	/** Receives the words of the text being tokenized by onText() */
+	private final SearchTokenizer.TokenHandler tokenHandler = new SearchTokenizer.TokenHandler() {
+		public void onToken(CharSequence word) {
+			totalWords++;
+			try {
+				if(!inTitle)
+					addWord(word, lastPosition + wordIndex);
+				else
+					addWord(word, Integer.MIN_VALUE + wordIndex); // Put title words in the right order starting at Min_Value
+			} catch (Exception e) {
+				// If a word fails continue
+				Logger.error(this, "Word '" + word + "' failed: "+e, e);
+			}
+			wordIndex++;
+		}
+	};
+
+	/**
+	 * @param uri the page's URI, or null if it can't be parsed, in which case the words are
+	 * still counted but the entries are of no use
+	 */
+	public PageIndexer(FreenetURI uri) {
+		this.uri = uri;
+	}
+
+	/**
+	 * Index a piece of text of the page.
+	 * @param s
+	 * @param type "title" for the page title, anything else is body text
+	 */
+	public void onText(String s, String type) {
+		if ("title".equalsIgnoreCase(type) && (s != null) && (s.length() != 0) && (s.indexOf('\n') < 0)) {
+			/*
+			 * title of the page
+			 */
+			title = s;
+			type = "title";
+		} else {
+			type = null;
+		}
+		// Tokenise. Do not use the pairs-of-CJK-chars option because we need
+		// accurate word index numbers.
+		if(lastPosition == null) lastPosition = 1;
+		inTitle = (type != null);
+		wordIndex = 0;
+		SearchTokenizer.tokenize(s, false, tokenHandler);
+
+		if (type == null) {
+			lastPosition = lastPosition + wordIndex;
+		}
+	}
+
+	/**
+	 * Add a word to the entries of this page
+	 * @param word only valid during the call
+	 * @param position
+	 */
+	private void addWord(CharSequence word, int position) {
+		if (logDEBUG) Logger.debug(this, "addWord on " + uri + " (" + word + "," + position + ")");
+
+		// Skip word if it is a stop word
+		if (isStopWord(word)) return;
+
+		entries.addPosition(word, uri, position);
+	}
+
+	/**
+	 * Set the title and the relevance of each entry, once the whole page has been indexed.
+	 * @return the entries of the page
+	 */
+	public TermPageBuffer finish() {
+		if(title != null && uri != null)
+			entries.setTitle(uri, title);
+		for (int entry = 0; entry < entries.size(); entry++) {
+			// Crude first approximation to relevance calculation.
+			// Client should multiply by log ( total count of files / count of files with this word in )
+			// Which is equal to log ( total count of files ) - log ( count of files with this word in )
+			entries.setRelevance(entry, ((float)entries.positionsSize(entry)) / ((float)totalWords));
+		}
+		return entries;
+	}
+
+	/** @return the page title, or null if it has none */
+	public String getTitle() {
+		return title;
+	}
+
+	/** @return the entries of the page, complete once {@link #finish()} has been called */
+	public TermPageBuffer getEntries() {
+		return entries;
+	}
+}
@@ -1,6 +1,5 @@
 package plugins.Spider;
 
-import java.lang.Character.UnicodeBlock;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Locale;
@@ -8,112 +7,216 @@ import static plugins.Spider.SearchUtil.*;
 
 /**
  * Search Tokenizer
- * 
+ *
  * Normalize and tokenize text blocks into words (for latin scripts),
- * or single-double-tokens (for CJK). 
- * 
+ * or single-double-tokens (for CJK).
+ *
+ * {@link #tokenize(CharSequence, boolean, TokenHandler)} scans the text once and
+ * passes each token to a handler as a reused {@link CharSequence} view, without
+ * creating any per-token objects. The {@link Iterator} interface is built on top
+ * of it for convenience.
+ *
  * @author SDiZ <sdiz+freenet@gmail.com>
  */
 public class SearchTokenizer implements Iterable<String>, Iterator<String> {
-	private ArrayList<Mode> mode;
-	private ArrayList<String> segments;
+	private final ArrayList<String> tokens;
 	private int nextPos;
-	private final boolean returnPairs;
 	static final int KEEP_NON_LETTER_MIN_CHARS = 3;
 	static final String allowedMidWord = "'";
 	static final String discardIfEndWord = "'";
 
-	private Iterator<String> cjkTokenizer;
-
 	enum Mode {
 		UNDEF, LATIN, CJK
 	};
 
+	/** Receives the tokens. The token is only valid until the method returns. */
+	public interface TokenHandler {
+		void onToken(CharSequence token);
+	}
+
 	public SearchTokenizer(String text, boolean returnPairs) {
-		this.returnPairs = returnPairs;
-		// normalize
-		text = normalize(text);
+		tokens = new ArrayList<String>();
+		tokenize(text, returnPairs, new TokenHandler() {
+			public void onToken(CharSequence token) {
+				tokens.add(token.toString());
+			}
+		});
+	}
 
-		// split code points, filter for letter or digit
+	/**
+	 * Tokenize the text in a single pass.
+	 * @param returnPairs If true, return pairs of CJK characters in between characters:
+	 * C1C2C3C4 -> C1, C1C2, C2, C2C3, C3, C3C4, C4
+	 */
+	public static void tokenize(CharSequence text, boolean returnPairs, TokenHandler handler) {
+		// Only ASCII can be lower cased a char at a time and give the same result as normalize().
+		boolean ascii = true;
 		final int length = text.length();
-		segments = new ArrayList<String>();
-		mode = new ArrayList<Mode>();
-
-		Mode curMode = Mode.UNDEF;
-
-		StringBuilder sb = new StringBuilder();
-		for (int offset = 0; offset < length;) {
-			final int codepoint = text.codePointAt(offset);
-			int charCount = Character.charCount(codepoint);
-			offset += charCount;
-
-			if (Character.isLetterOrDigit(codepoint)) {
-				boolean isCJK = isCJK(codepoint);
-				boolean isNum = Character.isDigit(codepoint);
-
-				// add seperator across CJK/latin margin
-				if (isCJK) {
-					if (curMode == Mode.LATIN && sb.length() != 0) {
-						segments.add(sb.toString());
-						mode.add(curMode);
-						sb = new StringBuilder();
-					}
-					curMode = Mode.CJK;
-				} else if (!isNum) {
-					if (curMode == Mode.CJK && sb.length() != 0) {
-						segments.add(sb.toString());
-						mode.add(curMode);
-						sb = new StringBuilder();
-					}
-					curMode = Mode.LATIN;
-				}
+		for (int i = 0; i < length; i++) {
+			if (text.charAt(i) >= 0x80) {
+				ascii = false;
+				break;
+			}
+		}
+		if (!ascii) text = normalize(text.toString());
+
+		new Scanner(handler, returnPairs).scan(text, ascii);
+	}
+
+	/** The state of one tokenize() call. The current segment is built up in a reused char array. */
+	private static final class Scanner {
+		private final TokenHandler handler;
+		private final boolean returnPairs;
+		private final Token token = new Token();
+		private char[] buf = new char[32];
+		private int len;
+
+		Scanner(TokenHandler handler, boolean returnPairs) {
+			this.handler = handler;
+			this.returnPairs = returnPairs;
+		}
 
-				sb.append(Character.toChars(codepoint));
-			} else if (sb.length() != 0) {
-				boolean passed = false;
-				if(charCount == 1) {
-					// Allow apostrophes mid-word.
-					char c = text.charAt(offset-1);
-					if(allowedMidWord.indexOf(c) != -1) {
-						sb.append(c);
-						passed = true;
+		void scan(CharSequence text, boolean lowerCase) {
+			final int length = text.length();
+			Mode curMode = Mode.UNDEF;
+
+			for (int offset = 0; offset < length;) {
+				int codepoint = Character.codePointAt(text, offset);
+				int charCount = Character.charCount(codepoint);
+				offset += charCount;
+
+				if (Character.isLetterOrDigit(codepoint)) {
+					boolean isCJK = isCJK(codepoint);
+					boolean isNum = Character.isDigit(codepoint);
+
+					// add seperator across CJK/latin margin
+					if (isCJK) {
+						if (curMode == Mode.LATIN && len != 0) {
+							emitSegment(curMode, false);
+						}
+						curMode = Mode.CJK;
+					} else if (!isNum) {
+						if (curMode == Mode.CJK && len != 0) {
+							emitSegment(curMode, false);
+						}
+						curMode = Mode.LATIN;
 					}
-				}
-				if(!passed) {
-					// last code point is not 0, add a separator
-					if(curMode != Mode.UNDEF || sb.length() >= KEEP_NON_LETTER_MIN_CHARS) {
-						// Words can't end in an apostrophe.
-						while(sb.length() > 0 && discardIfEndWord.indexOf(sb.charAt(sb.length()-1)) != -1) {
-							sb.setLength(sb.length()-1);
+
+					if (lowerCase && codepoint >= 'A' && codepoint <= 'Z')
+						codepoint += 'a' - 'A';
+					append(codepoint);
+				} else if (len != 0) {
+					boolean passed = false;
+					if(charCount == 1) {
+						// Allow apostrophes mid-word.
+						char c = text.charAt(offset-1);
+						if(allowedMidWord.indexOf(c) != -1) {
+							append(c);
+							passed = true;
 						}
-						if(sb.length() > 0) {
-							segments.add(sb.toString());
-							mode.add(curMode);
+					}
+					if(!passed) {
+						// last code point is not 0, add a separator
+						if(curMode != Mode.UNDEF || len >= KEEP_NON_LETTER_MIN_CHARS) {
+							emitSegment(curMode, true);
 						}
+						curMode = Mode.UNDEF;
+						len = 0;
 					}
-					curMode = Mode.UNDEF;
-					sb = new StringBuilder();
 				}
 			}
+
+			if (len != 0) {
+				emitSegment(curMode, true);
+			}
+		}
+
+		private void append(int codepoint) {
+			if (len + 2 > buf.length) {
+				char[] newBuf = new char[buf.length * 2];
+				System.arraycopy(buf, 0, newBuf, 0, len);
+				buf = newBuf;
+			}
+			len += Character.toChars(codepoint, buf, len);
 		}
 
-		if (sb.length() != 0) {
+		/**
+		 * Emit the tokens of the current segment, and empty it.
+		 * @param endOfWord false if split at a CJK/latin margin, where apostrophes have always been kept
+		 */
+		private void emitSegment(Mode mode, boolean endOfWord) {
 			// Words can't end in an apostrophe.
-			while(sb.length() > 0 && discardIfEndWord.indexOf(sb.charAt(sb.length()-1)) != -1) {
-				sb.setLength(sb.length()-1);
+			while(endOfWord && len > 0 && discardIfEndWord.indexOf(buf[len-1]) != -1) {
+				len--;
 			}
-			if(sb.length() > 0) {
-				segments.add(sb.toString());
-				mode.add(curMode);
+			if (len > 0) {
+				if (mode == Mode.CJK) {
+					emitCJK();
+				} else {
+					// LATIN, or UNDEF e.g. a number. We do index these. FIXME should we? Probably yes...
+					emit(0, len);
+				}
+			}
+			len = 0;
+		}
+
+		/** Emit CJK characters, and pairs of characters if returnPairs. */
+		private void emitCJK() {
+			int last = -1;
+			for (int offset = 0; offset < len;) {
+				final int codepoint = Character.codePointAt(buf, offset, len);
+				final int next = offset + Character.charCount(codepoint);
+
+				if (last >= 0 && returnPairs)
+					emit(last, next - last);
+				if (isCJK(codepoint)) // skip number embedded in cjk
+					emit(offset, next - offset);
+				last = offset;
+				offset = next;
 			}
 		}
+
+		private void emit(int off, int count) {
+			token.set(buf, off, count);
+			handler.onToken(token);
+		}
+	}
+
+	/** A view of part of a char array. */
+	private static final class Token implements CharSequence {
+		private char[] buf;
+		private int off;
+		private int len;
+
+		void set(char[] buf, int off, int len) {
+			this.buf = buf;
+			this.off = off;
+			this.len = len;
+		}
+
+		public int length() {
+			return len;
+		}
+
+		public char charAt(int index) {
+			if (index < 0 || index >= len) throw new IndexOutOfBoundsException();
+			return buf[off + index];
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			return toString().substring(start, end);
+		}
+
+		public String toString() {
+			return new String(buf, off, len);
+		}
 	}
 
 	public String toString() {
 		StringBuilder str = new StringBuilder();
 		str.append("->[");
 
-		Iterator<String> it = segments.iterator();
+		Iterator<String> it = tokens.iterator();
 		if (it.hasNext())
 			str.append(it.next());
 		while (it.hasNext()) {
@@ -122,11 +225,6 @@ public class SearchTokenizer implements Iterable<String>, Iterator<String> {
 		}
 		str.append("]");
 
-		for (String s : this) {
-			str.append(';');
-			str.append(s);
-		}
-
 		return str.toString();
 	}
 
@@ -135,69 +233,18 @@ public class SearchTokenizer implements Iterable<String>, Iterator<String> {
 	}
 
 	public boolean hasNext() {
-		return (cjkTokenizer != null && cjkTokenizer.hasNext()) ||
-			(nextPos < segments.size());
+		return nextPos < tokens.size();
 	}
 
 	public String next() {
-		if (cjkTokenizer != null) {
-			if (cjkTokenizer.hasNext())
-				return cjkTokenizer.next();
-			cjkTokenizer = null;
-		}
-
-		Mode curMode = mode.get(nextPos);
-		String curSeg = segments.get(nextPos);
-		nextPos++;
-
-		switch (curMode) {
-		case LATIN:
-			return curSeg;
-
-		case CJK:
-			cjkTokenizer = cjkIterator(curSeg, returnPairs);
-			assert cjkTokenizer.hasNext();
-			return cjkTokenizer.next();
-
-		case UNDEF:
-			// E.g. a number. We do index these. FIXME should we? Probably yes...
-			return curSeg;
-			
-		default:
-			assert false; // DOH!
-		}
-		return null;
-	}
-
-	/** Iterate a CJK string. Return characters or characters and pairs of characters.
-	 * @param returnPairs If true, return pairs of characters in between characters: 
-	 * C1C2C3C4 -> C1, C1C2, C2, C2C3, C3, C3C4, C4 */
-	private Iterator<String> cjkIterator(String cjkText, final boolean returnPairs) {
-		ArrayList<String> cjkToken = new ArrayList<String>();
-
-		String lastChar = null;
-		int length = cjkText.length();
-		for (int offset = 0; offset < length;) {
-			final int codepoint = cjkText.codePointAt(offset);
-			offset += Character.charCount(codepoint);
-
-			String curChar = new String(Character.toChars(codepoint));
-
-			if (lastChar != null && returnPairs)
-				cjkToken.add(lastChar + curChar);
-			if (isCJK(codepoint)) // skip number embedded in cjk
-				cjkToken.add(curChar);
-			lastChar = curChar;
-		}
-
-		return cjkToken.iterator();
+		return tokens.get(nextPos++);
 	}
 
 	public void remove() {
 		throw new UnsupportedOperationException();
 	}
 
-	protected String normalize(String text) {
+	protected static String normalize(String text) {
 		// TODO: JAVA6: normalize to NFKC
 		// Do upper case first for Turkish and friends
 		return text.toUpperCase(Locale.US).toLowerCase(Locale.US);
@@ -1,21 +1,44 @@
 package plugins.Spider;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.lang.Character.UnicodeBlock;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
 
+import freenet.support.Logger;
+
 public class SearchUtil {
+	/** One bit per BMP code point, set if it is in one of the CJK blocks below */
+	private static final long[] cjkBMP = new long[0x10000 / 64];
+
+	static {
+		for (int codePoint = 0; codePoint < 0x10000; codePoint++) {
+			if (isCJKBlock(Character.UnicodeBlock.of(codePoint)))
+				cjkBMP[codePoint >>> 6] |= 1L << codePoint;
+		}
+	}
+
 	public static boolean isCJK(int codePoint) {
-		UnicodeBlock block = Character.UnicodeBlock.of(codePoint);
+		if (codePoint < 0x10000)
+			return (cjkBMP[codePoint >>> 6] & (1L << codePoint)) != 0;
+		// The only supplementary blocks in the list.
+		return (codePoint >= 0x20000 && codePoint <= 0x2A6DF) // CJK_UNIFIED_IDEOGRAPHS_EXTENSION_B
+			|| (codePoint >= 0x2F800 && codePoint <= 0x2FA1F); // CJK_COMPATIBILITY_IDEOGRAPHS_SUPPLEMENT
+	}
+
+	private static boolean isCJKBlock(UnicodeBlock block) {
 		return block == UnicodeBlock.CJK_COMPATIBILITY // CJK
-			|| block == UnicodeBlock.CJK_COMPATIBILITY_FORMS // 
-			|| block == UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS // 
-			|| block == UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS_SUPPLEMENT // 
-			|| block == UnicodeBlock.CJK_RADICALS_SUPPLEMENT // 
-			|| block == UnicodeBlock.CJK_SYMBOLS_AND_PUNCTUATION // 
-			|| block == UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS // 
-			|| block == UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A // 
-			|| block == UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_B // 
+			|| block == UnicodeBlock.CJK_COMPATIBILITY_FORMS //
+			|| block == UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS //
+			|| block == UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS_SUPPLEMENT //
+			|| block == UnicodeBlock.CJK_RADICALS_SUPPLEMENT //
+			|| block == UnicodeBlock.CJK_SYMBOLS_AND_PUNCTUATION //
+			|| block == UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS //
+			|| block == UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A //
+			|| block == UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_B //
 			|| block == UnicodeBlock.BOPOMOFO // Chinese
 			|| block == UnicodeBlock.BOPOMOFO_EXTENDED //
 			|| block == UnicodeBlock.HANGUL_COMPATIBILITY_JAMO // Korean
@@ -28,28 +51,103 @@ public class SearchUtil {
 			|| block == UnicodeBlock.KATAKANA //
 			|| block == UnicodeBlock.KATAKANA_PHONETIC_EXTENSIONS;
 	}
-	
-	private static List<String> stopWords = Arrays.asList(new String[]{
+
+	private static volatile WordSet stopWords = new WordSet(new String[] {
 		"the", "and", "that", "have", "for"		// English stop words
 	});
-	
-	public static boolean isStopWord(String word) {
+
+	/**
+	 * Load the stop words for the given languages, from the stopwords/<language>.txt
+	 * resources. One word per line, lines starting with # are ignored.
+	 */
+	public static void setStopWordLanguages(String[] languages) {
+		List<String> words = new ArrayList<String>();
+		for (String language : languages) {
+			InputStream is = SearchUtil.class.getResourceAsStream("stopwords/" + language + ".txt");
+			if (is == null) {
+				Logger.error(SearchUtil.class, "No stop words for language " + language);
+				continue;
+			}
+			try {
+				BufferedReader br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+				String line;
+				while ((line = br.readLine()) != null) {
+					line = line.trim();
+					if (line.length() != 0 && line.charAt(0) != '#')
+						words.add(SearchTokenizer.normalize(line));
+				}
+			} catch (IOException e) {
+				Logger.error(SearchUtil.class, "Failed to read stop words for language " + language, e);
+			} finally {
+				try {
+					is.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+			}
+		}
+		stopWords = new WordSet(words.toArray(new String[words.size()]));
+	}
+
+	public static boolean isStopWord(CharSequence word) {
 		if (stopWords.contains(word))
 			return true;
-		
-		int len = word.codePointCount(0, word.length());
+
+		int len = Character.codePointCount(word, 0, word.length());
 		if (len < 3 ) {
 			// too short, is this CJK?
-			int cp1 = word.codePointAt(0);
+			int cp1 = Character.codePointAt(word, 0);
 			if (isCJK(cp1))
 				return false;
 			if (len == 2) {
 				// maybe digit+CJK, check the second char
-				int cp2 = word.codePointAt(Character.charCount(cp1));
+				int cp2 = Character.codePointAt(word, Character.charCount(cp1));
 				return !isCJK(cp2);
-			} 
+			}
 			return true;
-		} 
+		}
 		return false;
 	}
+
+	/**
+	 * Open-addressed hash set of words, which can be queried with any CharSequence
+	 * (e.g. the tokenizer's reused token) without converting it to a String.
+	 */
+	private static final class WordSet {
+		private final String[] table;
+		private final int maxLength;
+
+		WordSet(String[] words) {
+			int size = 16;
+			while (size < words.length * 2)
+				size <<= 1;
+			table = new String[size];
+			int max = 0;
+			for (String word : words) {
+				int slot = hash(word) & (size - 1);
+				while (table[slot] != null && !table[slot].equals(word))
+					slot = (slot + 1) & (size - 1);
+				if (table[slot] != null) continue; // duplicate
+				table[slot] = word;
+				max = Math.max(max, word.length());
+			}
+			maxLength = max;
+		}
+
+		boolean contains(CharSequence word) {
+			if (word.length() > maxLength) return false;
+			int mask = table.length - 1;
+			for (int slot = hash(word) & mask; table[slot] != null; slot = (slot + 1) & mask) {
+				if (table[slot].contentEquals(word)) return true;
+			}
+			return false;
+		}
+
+		private static int hash(CharSequence s) {
+			int h = 0;
+			for (int i = 0; i < s.length(); i++)
+				h = 31 * h + s.charAt(i);
+			return h ^ (h >>> 16);
+		}
+	}
 }
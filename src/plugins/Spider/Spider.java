@@ -4,7 +4,6 @@
 package plugins.Spider;
 
 import static java.lang.System.currentTimeMillis;
-import static plugins.Spider.SearchUtil.isStopWord;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -14,28 +13,33 @@ import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
-import plugins.Spider.index.TermPageEntry;
 import plugins.Spider.db.Config;
 import plugins.Spider.db.Page;
 import plugins.Spider.db.PerstRoot;
 import plugins.Spider.db.Status;
 import plugins.Spider.org.garret.perst.Storage;
 import plugins.Spider.org.garret.perst.StorageFactory;
+import plugins.Spider.org.garret.perst.StorageListener;
 import plugins.Spider.web.WebInterface;
 
 import freenet.client.ClientMetadata;
@@ -118,6 +122,10 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 
 	private final AtomicLong lastRequestFinishedAt = new AtomicLong();
 
+	public int getParseQueueSize() {
+		return parseExecutor.getQueue().size();
+	}
+
 	public int getLibraryBufferSize() {
 		return librarybuffer.bufferUsageEstimate();
 	}
@@ -138,6 +146,45 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 		return getRoot().getConfig();
 	}
 
+	/** Transactions ended with a delayed commit since the last immediate commit */
+	private final AtomicInteger delayedCommits = new AtomicInteger();
+
+	/**
+	 * Ends a transaction which only changes the crawl state (page status, queued pages).
+	 * Following the commit policy of the config, its commit may be delayed and shared with
+	 * other transactions. A crash may then lose the last few seconds of changes, which only
+	 * means some pages are fetched again: NOT_PUSHED pages are requeued at startup anyway.
+	 * Only for the outermost transaction: a nested one would be counted but commit nothing.
+	 * A crawl transaction which fails is ended as well, with its page marked FAILED, rather than
+	 * rolled back: a rollback would also throw away the changes of the transactions ended before
+	 * it whose commit was delayed.
+	 */
+	void endCrawlTransaction() {
+		Config config = getConfig();
+		int delay = config.getCommitDelay();
+		if (delay > 0 && delayedCommits.incrementAndGet() < config.getCommitTransactions()) {
+			db.endThreadTransaction(delay);
+		} else {
+			delayedCommits.set(0);
+			db.endThreadTransaction();
+		}
+	}
+
+	/**
+	 * Adds a slice of the URI index to the URI filter being grown, if the index has outgrown the
+	 * filter, in a transaction of its own rather than in the one of a page.
+	 */
+	private void growURIFilter() {
+		PerstRoot root = getRoot();
+		if (!root.isURIFilterFull()) return;
+		db.beginThreadTransaction(Storage.EXCLUSIVE_TRANSACTION);
+		try {
+			root.growURIFilter();
+		} finally {
+			endCrawlTransaction();
+		}
+	}
+
 	public boolean isGarbageCollecting() {
 		return garbageCollecting;
 	}
@@ -153,17 +200,78 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 	 * @param uri the new uri that needs to be fetched for further indexing
 	 */
 	public void queueURI(FreenetURI uri, String comment, boolean force) {
+		queueURIs(Collections.singletonList(uri), comment, force);
+	}
+
+	/**
+	 * Adds a batch of found uris to the list of to-be-retrieved uris, in a single transaction.
+	 * Links found on a page are queued this way so that a link-heavy page costs one commit and
+	 * one round of index locking rather than one per link.
+	 * @param uris the new uris that need to be fetched for further indexing
+	 */
+	public void queueURIs(Collection<FreenetURI> uris, String comment, boolean force) {
+		List<FreenetURI> toQueue = urisToQueue(uris, force);
+		if (toQueue.isEmpty()) return;
+
+		db.beginThreadTransaction(Storage.EXCLUSIVE_TRANSACTION);
+		try {
+			List<Page> pages = getRoot().getPagesByURI(toQueue, true, comment);
+			if (force) {
+				for (Page page : pages) {
+					if (page.getStatus() != Status.QUEUED) {
+						page.setStatus(Status.QUEUED);
+						page.setComment(comment);
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			Logger.error(this, "Runtime Exception: " + e, e);		
+			throw e;
+		} finally {
+			endCrawlTransaction(); // even if it failed, see endCrawlTransaction()
+		}
+	}
+
+	/**
+	 * Queues links found while handling a page, in the caller's transaction, so that it is ended
+	 * (and counted by the commit policy) only once.
+	 */
+	void queueFoundURIs(Collection<FreenetURI> uris, String comment) {
+		List<FreenetURI> toQueue = urisToQueue(uris, false);
+		if (!toQueue.isEmpty()) getRoot().getPagesByURI(toQueue, true, comment);
+	}
+
+	/**
+	 * @return the uris which pass the filter and, unless forced, aren't known yet
+	 */
+	private List<FreenetURI> urisToQueue(Collection<FreenetURI> uris, boolean force) {
+		List<FreenetURI> toQueue = new ArrayList<FreenetURI>(uris.size());
+		for (FreenetURI uri : uris) {
+			uri = filterURI(uri);
+			if (uri != null) toQueue.add(uri);
+		}
+		// Already known pages are left alone unless forced, so only the unknown ones need the
+		// exclusive transaction
+		if (!force) toQueue = getRoot().getUnknownURIs(toQueue);
+		return toQueue;
+	}
+
+	/**
+	 * Applies the badlists and converts USKs to SSKs (subscribing to them).
+	 * @return the uri to queue, or null if it should be ignored
+	 */
+	private FreenetURI filterURI(FreenetURI uri) {
 		String sURI = uri.toString();
 		String lowerCaseURI = sURI.toLowerCase(Locale.US);
 		for (String ext : getRoot().getConfig().getBadlistedExtensions()) {
 			if (lowerCaseURI.endsWith(ext)) {
-				return; // be smart
+				return null; // be smart
 			}
 		}
 		
 		for(String keyword : getRoot().getConfig().getBadlistedKeywords()) {
 			if(lowerCaseURI.indexOf(keyword.toLowerCase()) != -1) {
-				return; // Fascist keyword exclusion feature. Off by default!
+				return null; // Fascist keyword exclusion feature. Off by default!
 			}
 		}
 
@@ -177,73 +285,59 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 			} catch (Exception e) {
 			}
 		}
-
-		db.beginThreadTransaction(Storage.EXCLUSIVE_TRANSACTION);
-		boolean dbTransactionEnded = false;
-		try {
-			Page page = getRoot().getPageByURI(uri, true, comment);
-			if (force && page.getStatus() != Status.QUEUED) {
-				page.setStatus(Status.QUEUED);
-				page.setComment(comment);
-			}
-
-			db.endThreadTransaction();
-			dbTransactionEnded = true;
-		} catch (RuntimeException e) {
-			Logger.error(this, "Runtime Exception: " + e, e);		
-			throw e;
-		} finally {
-			if (!dbTransactionEnded) {
-				Logger.minor(this, "rollback transaction", new Exception("debug"));
-				db.rollbackThreadTransaction();
-			}
-		}
+		return uri;
 	}
 
 	/**
 	 * Start requests from the queue if less than 80% of the max requests are running until the max requests are running.
+	 * Pages are taken from the in-memory {@link Frontier}, the database is only scanned when it needs refilling.
 	 */
 	public void startSomeRequests() {
 		ArrayList<ClientGetter> toStart = null;
+		List<Page> malformed = null;
 		synchronized (this) {
 			if (stopped) return;
 
-			synchronized (runningFetch) {
-				int running = runningFetch.size();
-				int maxParallelRequests = getRoot().getConfig().getMaxParallelRequests();
+			int running = runningFetch.size();
+			int maxParallelRequests = getRoot().getConfig().getMaxParallelRequests();
+
+			if (running >= maxParallelRequests * 0.8) return;
 
-				if (running >= maxParallelRequests * 0.8) return;
+			int wanted = maxParallelRequests - running;
+			if (frontier.size() < wanted) refillFrontier(maxParallelRequests * FRONTIER_BATCH);
+
+			// Prepare to start
+			toStart = new ArrayList<ClientGetter>(wanted);
+			while (toStart.size() < wanted) {
+				Page page = frontier.poll();
+				if (page == null) break;
+				// Skip if it changed status since it was loaded, or if getting this page already
+				if (page.getStatus() != Status.QUEUED || runningFetch.containsKey(page)) continue;
 
-				// Prepare to start
-				toStart = new ArrayList<ClientGetter>(maxParallelRequests - running);
-				db.beginThreadTransaction(Storage.COOPERATIVE_TRANSACTION);
-				getRoot().sharedLockPages(Status.QUEUED);
 				try {
-					Iterator<Page> it = getRoot().getPages(Status.QUEUED);
-
-					while (running + toStart.size() < maxParallelRequests && it.hasNext()) {
-						Page page = it.next();
-						// Skip if getting this page already
-						if (runningFetch.containsKey(page)) continue;
-						
-						try {
-							ClientGetter getter = makeGetter(page);
-
-							Logger.minor(this, "Starting " + getter + " " + page);
-							toStart.add(getter);
-							runningFetch.put(page, getter);
-						} catch (MalformedURLException e) {
-							Logger.error(this, "IMPOSSIBLE-Malformed URI: " + page, e);
-							page.setStatus(Status.FAILED);
-						}
-					}
-				} finally {
-					getRoot().unlockPages(Status.QUEUED);
-					db.endThreadTransaction();
+					ClientGetter getter = makeGetter(page);
+
+					Logger.minor(this, "Starting " + getter + " " + page);
+					toStart.add(getter);
+					runningFetch.put(page, getter);
+				} catch (MalformedURLException e) {
+					Logger.error(this, "IMPOSSIBLE-Malformed URI: " + page, e);
+					if (malformed == null) malformed = new ArrayList<Page>();
+					malformed.add(page);
 				}
 			}
 		}
 
+		if (malformed != null) {
+			db.beginThreadTransaction(Storage.EXCLUSIVE_TRANSACTION);
+			try {
+				for (Page page : malformed)
+					page.setStatus(Status.FAILED);
+			} finally {
+				endCrawlTransaction();
+			}
+		}
+
 		for (ClientGetter g : toStart) {
 			try {
 				g.start(clientContext);
@@ -276,8 +370,8 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 		public void onSuccess(final FetchResult result, final ClientGetter state) {
 			if (stopped) return;
 
-			callbackExecutor.execute(new OnSuccessCallback(result, state, page));
-			Logger.minor(this, "Queued OnSuccess: " + page + " (q:" + callbackExecutor.getQueue().size() + ")");
+			parseExecutor.execute(new OnSuccessCallback(result, state, page));
+			Logger.minor(this, "Queued OnSuccess: " + page + " (q:" + parseExecutor.getQueue().size() + ")");
 		}
 
 		public String toString() {
@@ -294,9 +388,29 @@ public class Spider implements FredPlugin, FredPluginThreadless,
         }
 	}
 
+	/** How many times maxParallelRequests to load into the frontier at once */
+	static final int FRONTIER_BATCH = 4;
+
+	private final Frontier frontier = new Frontier();
+
+	/**
+	 * Load a batch of queued pages into the frontier.
+	 */
+	private void refillFrontier(int target) {
+		db.beginThreadTransaction(Storage.COOPERATIVE_TRANSACTION);
+		getRoot().sharedLockPages(Status.QUEUED);
+		try {
+			int added = frontier.refill(getRoot(), runningFetch, target);
+			Logger.minor(this, "Loaded " + added + " pages into frontier, now " + frontier.size());
+		} finally {
+			getRoot().unlockPages(Status.QUEUED);
+			db.endThreadTransaction();
+		}
+	}
+
 	private ClientGetter makeGetter(Page page) throws MalformedURLException {
 		ClientGetter getter = new ClientGetter(new ClientGetterCallback(page),
-				new FreenetURI(page.getURI()), ctx,
+				page.getFreenetURI(), ctx,
 				getPollingPriorityProgress(), null);
 		return getter;
 	}
@@ -318,7 +432,7 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 	}
 
 	/**
-	 * Callback for asyncronous handling of a success
+	 * Callback for asyncronous handling of a success. Runs on the {@link #parseExecutor}.
 	 */
 	protected class OnSuccessCallback implements Runnable {
 		private FetchResult result;
@@ -336,6 +450,25 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 		}
 	}
 
+	/**
+	 * Callback for storing a parsed page. Runs on the {@link #callbackExecutor}.
+	 */
+	protected class OnParsedCallback implements Runnable {
+		private PageCallBack pageCallBack;
+		private FreenetURI uri;
+		private Status status;
+
+		OnParsedCallback(PageCallBack pageCallBack, FreenetURI uri, Status status) {
+			this.pageCallBack = pageCallBack;
+			this.uri = uri;
+			this.status = status;
+		}
+
+		public void run() {
+			onParsed(pageCallBack, uri, status);
+		}
+	}
+
 	/**
 	 * Set config asynchronously
 	 */
@@ -349,6 +482,8 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 		public void run() {
 			synchronized (getRoot()) {
 				getRoot().setConfig(config);
+				setParseThreads(config.getParseThreads());
+				SearchUtil.setStopWordLanguages(config.getStopWordLanguages());
 				startSomeRequests();
 			}
 		}
@@ -380,7 +515,7 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 				return 0;
 			} else if (r instanceof OnFailureCallback) {
 				return 2;
-			} else if (r instanceof OnSuccessCallback) {
+			} else if (r instanceof OnParsedCallback) {
 				return 3;
 			} else if (r instanceof StartSomeRequestsCallback) {
 				return 4;
@@ -391,7 +526,8 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 	}
 
 	// this is java.util.concurrent.Executor, not freenet.support.Executor
-	// always run with one thread --> more thread cause contention and slower!
+	// always run with one thread --> this is the single writer to the database and the library buffer,
+	// the expensive filtering and tokenizing is done on the parseExecutor.
 	public ThreadPoolExecutor callbackExecutor = new ThreadPoolExecutor( //
 			1, 1, 600, TimeUnit.SECONDS, //
 	        new PriorityBlockingQueue<Runnable>(5, new CallbackPrioritizer()), //
@@ -404,14 +540,38 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 		        }
 	        });
 
+	// Filters and tokenizes fetched pages, without touching the database. Resized from the config.
+	public ThreadPoolExecutor parseExecutor = new ThreadPoolExecutor( //
+			1, 1, 600, TimeUnit.SECONDS, //
+	        new LinkedBlockingQueue<Runnable>(), //
+	        new ThreadFactory() {
+		        public Thread newThread(Runnable r) {
+			        Thread t = new NativeThread(r, "Spider parser", NativeThread.NORM_PRIORITY - 1, true);
+			        t.setDaemon(true);
+			        t.setContextClassLoader(Spider.this.getClass().getClassLoader());
+			        return t;
+		        }
+	        });
+
+	private synchronized void setParseThreads(int threads) {
+		if (threads > parseExecutor.getMaximumPoolSize()) {
+			parseExecutor.setMaximumPoolSize(threads);
+			parseExecutor.setCorePoolSize(threads);
+		} else {
+			parseExecutor.setCorePoolSize(threads);
+			parseExecutor.setMaximumPoolSize(threads);
+		}
+	}
+
 	/**
-	 * Processes the successfully fetched uri for further outlinks.
+	 * Filters the successfully fetched uri for words and outlinks, then hands the result over to the
+	 * callbackExecutor to be stored. Does not touch the database.
 	 * 
 	 * @param result
 	 * @param state
 	 * @param page
 	 */
-	// single threaded
+	// multi threaded
 	protected void onSuccess(FetchResult result, ClientGetter state, Page page) {
 		synchronized (this) {
 			if (stopped) return;    				
@@ -423,89 +583,101 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 		Bucket data = result.asBucket();
 		String mimeType = cm.getMIMEType();
 
-		boolean dbTransactionEnded = false;
-		db.beginThreadTransaction(Storage.EXCLUSIVE_TRANSACTION);
+		/*
+		 * instead of passing the current object, the pagecallback object for every page is
+		 * passed to the content filter this has many benefits to efficiency, and allows us to
+		 * identify trivially which page is being indexed. (we CANNOT rely on the base href
+		 * provided).
+		 */
+		PageCallBack pageCallBack = new PageCallBack(page);
+		Logger.minor(this, "Successful: " + uri + " : " + page.getId());
+
+		Status status = Status.FAILED;
+		InputStream filterInput = null;
+		OutputStream filterOutput = null;
 		try {
-			librarybuffer.setBufferSize(getConfig().getNewFormatIndexBufferLimit()*1024*1024);
-			/*
-			 * instead of passing the current object, the pagecallback object for every page is
-			 * passed to the content filter this has many benefits to efficiency, and allows us to
-			 * identify trivially which page is being indexed. (we CANNOT rely on the base href
-			 * provided).
-			 */
-			PageCallBack pageCallBack = new PageCallBack(page);
-			Logger.minor(this, "Successful: " + uri + " : " + page.getId());
-
-			InputStream filterInput = null;
-			OutputStream filterOutput = null;
-			try {
-				if (!"text/plain".equals(mimeType)) {
-					filterInput = data.getInputStream();
-					filterOutput = new NullBucket().getOutputStream();
-					ContentFilter.filter(filterInput, filterOutput, mimeType, uri.toURI(ROOT_URI), pageCallBack, 
-					        null, null);
-					filterInput.close();
-					filterOutput.close();
-				} else {
-					BufferedReader br = new BufferedReader(new InputStreamReader(data.getInputStream()));
-					String line;
-					while((line = br.readLine())!=null) {
-						pageCallBack.onText(line, mimeType, uri.toURI(ROOT_URI));
-					}
+			if (!"text/plain".equals(mimeType)) {
+				filterInput = data.getInputStream();
+				filterOutput = new NullBucket().getOutputStream();
+				ContentFilter.filter(filterInput, filterOutput, mimeType, uri.toURI(ROOT_URI), pageCallBack, 
+				        null, null);
+				filterInput.close();
+				filterOutput.close();
+			} else {
+				BufferedReader br = new BufferedReader(new InputStreamReader(data.getInputStream()));
+				String line;
+				while((line = br.readLine())!=null) {
+					pageCallBack.onText(line, mimeType, uri.toURI(ROOT_URI));
 				}
-				pageCallBack.finish();
-				librarybuffer.maybeSend();
-
-			} catch (UnsafeContentTypeException e) {
-				// wrong mime type
-				page.setStatus(Status.SUCCEEDED);
-				db.endThreadTransaction();
-				dbTransactionEnded = true;
-
-				Logger.minor(this, "UnsafeContentTypeException " + uri + " : " + page.getId(), e);
-				return; // Ignore
-			} catch (IOException e) {
-				// ugh?
-				Logger.error(this, "Bucket error?: " + e, e);
-				return;
-			} catch (Exception e) {
-				// we have lots of invalid html on net - just normal, not error
-				Logger.normal(this, "exception on content filter for " + page, e);
-				return;
-			} finally {
-				Closer.close(filterInput);
-				Closer.close(filterOutput);
 			}
+			pageCallBack.finish();
+			status = Status.NOT_PUSHED;
+		} catch (UnsafeContentTypeException e) {
+			// wrong mime type
+			status = Status.SUCCEEDED;
+			Logger.minor(this, "UnsafeContentTypeException " + uri + " : " + page.getId(), e);
+		} catch (IOException e) {
+			// ugh?
+			Logger.error(this, "Bucket error?: " + e, e);
+		} catch (Exception e) {
+			// we have lots of invalid html on net - just normal, not error
+			Logger.normal(this, "exception on content filter for " + page, e);
+		} finally {
+			Closer.close(filterInput);
+			Closer.close(filterOutput);
+			data.free();
+		}
 
-			page.setStatus(Status.NOT_PUSHED);
-			db.endThreadTransaction();
-			dbTransactionEnded  = true;
+		if (stopped) return;
+		callbackExecutor.execute(new OnParsedCallback(pageCallBack, uri, status));
+		Logger.minor(this, "Queued OnParsed: " + page + " (q:" + callbackExecutor.getQueue().size() + ")");
+	}
 
-			Logger.minor(this, "Filtered " + uri + " : " + page.getId());
+	/**
+	 * Stores the words and outlinks of a parsed page and sets its status.
+	 * 
+	 * @param pageCallBack the parsed page
+	 * @param uri
+	 * @param status NOT_PUSHED if the page was indexed, otherwise SUCCEEDED or FAILED
+	 */
+	// single threaded
+	protected void onParsed(PageCallBack pageCallBack, FreenetURI uri, Status status) {
+		synchronized (this) {
+			if (stopped) return;    				
+		}
+
+		Page page = pageCallBack.page;
+		boolean failed = true;
+		db.beginThreadTransaction(Storage.EXCLUSIVE_TRANSACTION);
+		try {
+			if (status == Status.NOT_PUSHED) {
+				librarybuffer.setBufferSize(getConfig().getNewFormatIndexBufferLimit()*1024*1024);
+				pageCallBack.store();
+			}
+
+			page.setStatus(status);
+			failed = false;
 		} catch (RuntimeException e) {
 			// other runtime exceptions
 			Logger.error(this, "Runtime Exception: " + e, e);		
 			throw e;
 		} finally {
 			try {
-				data.free();
-
+				if (failed) page.setStatus(Status.FAILED); // not rolled back, see endCrawlTransaction()
+			} finally {
+				endCrawlTransaction();
 				synchronized (this) {
 					runningFetch.remove(page);
 				}
 				if (!stopped) startSomeRequests();
-			} finally {
-				if (!dbTransactionEnded) {
-					Logger.minor(this, "rollback transaction", new Exception("debug"));
-					db.rollbackThreadTransaction();
-					db.beginThreadTransaction(Storage.EXCLUSIVE_TRANSACTION);
-					// page is now invalidated.
-					page = getRoot().getPageByURI(uri, false, "");
-					if(page != null) page.setStatus(Status.FAILED);
-					db.endThreadTransaction();
-				}
 			}
 		}
+
+		// Outside the transaction: may wait for the previous buffer to be sent, which needs a transaction.
+		if (status == Status.NOT_PUSHED) librarybuffer.maybeSend();
+		growURIFilter();
+
+		Logger.minor(this, "Filtered " + uri + " : " + page.getId());
 	}
 
 	protected void onFailure(FetchException fe, ClientGetter state, Page page) {
@@ -516,13 +688,13 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 		}
 
 		lastRequestFinishedAt.set(currentTimeMillis());
-		boolean dbTransactionEnded = false;
+		boolean failed = true;
 		db.beginThreadTransaction(Storage.EXCLUSIVE_TRANSACTION);
 		try {
 			synchronized (page) {
 				if (fe.newURI != null) {
 					// redirect, mark as succeeded
-					queueURI(fe.newURI, "redirect from " + state.getURI(), false);
+					queueFoundURIs(Collections.singletonList(fe.newURI), "redirect from " + state.getURI());
 					page.setStatus(Status.SUCCEEDED);
 				} else if (fe.isFatal()) {
 					// too many tries or fatal, mark as failed
@@ -532,23 +704,23 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 					page.setStatus(Status.QUEUED);
 				}
 			}
-			db.endThreadTransaction();
-			dbTransactionEnded = true;
+			failed = false;
 		} catch (Exception e) {
 			Logger.error(this, "Unexcepected exception in onFailure(): " + e, e);
 			throw new RuntimeException("Unexcepected exception in onFailure()", e);
 		} finally {
 			runningFetch.remove(page);
-			if (!dbTransactionEnded) {
-				Logger.minor(this, "rollback transaction", new Exception("debug"));
-				db.rollbackThreadTransaction();
+			try {
+				if (failed) page.setStatus(Status.FAILED); // not rolled back, see endCrawlTransaction()
+			} finally {
+				endCrawlTransaction();
 			}
 		}
 
 		startSomeRequests();
 	} 
 
-	private boolean garbageCollecting = false;
+	private volatile boolean garbageCollecting = false;
 
 	/**
 	 * Stop the plugin, pausing any writing which is happening
@@ -565,10 +737,12 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 				getter.cancel(clientContext);
 			}
 			runningFetch.clear();
+			parseExecutor.shutdownNow();
 			callbackExecutor.shutdownNow();
 		}
 		librarybuffer.terminate();
 
+		try { parseExecutor.awaitTermination(30, TimeUnit.SECONDS); } catch (InterruptedException e) {}
 		try { callbackExecutor.awaitTermination(30, TimeUnit.SECONDS); } catch (InterruptedException e) {}
 		try { db.close(); } catch (Exception e) {}
 		
@@ -603,14 +777,14 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 
 		// Initial Database
 		db = initDB();
+		setParseThreads(getConfig().getParseThreads());
+		SearchUtil.setStopWordLanguages(getConfig().getStopWordLanguages());
 
 		webInterface = new WebInterface(this, pr.getHLSimpleClient(), pr.getToadletContainer(), pr.getNode().clientCore);
 		webInterface.load();
 
 		FreenetURI[] initialURIs = core.getBookmarkURIs();
-		for (int i = 0; i < initialURIs.length; i++) {
-			queueURI(initialURIs[i], "bookmark", false);
-		}
+		queueURIs(Arrays.asList(initialURIs), "bookmark", false);
 
 		librarybuffer = new LibraryBuffer(pr, this);
 		librarybuffer.start();
@@ -623,24 +797,30 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 	/**
 	 * creates the callback object for each page.
 	 *<p>Used to create inlinks and outlinks for each page separately.
+	 *<p>Collects the words, title and outlinks of the page without touching the database or the
+	 * library buffer, so pages can be parsed in parallel; {@link #store()} then adds them.
 	 * @author swati
 	 *
 	 */
 	public class PageCallBack implements FoundURICallback{
 		protected final Page page;
 		private FreenetURI uri;
-		private String title;
-		private int totalWords;
+		/** The words of this page */
+		private final PageIndexer indexer;
 
 		protected final boolean logDEBUG = Logger.shouldLog(Logger.DEBUG, this); // per instance, allow changing on the fly
 
+		/** Links found on this page, queued together in {@link #finish()} */
+		private final Set<FreenetURI> foundURIs = new LinkedHashSet<FreenetURI>();
+
 		PageCallBack(Page page) {
 			this.page = page;
 			try {
-				this.uri = new FreenetURI(page.getURI());
+				this.uri = page.getFreenetURI();
 			} catch (MalformedURLException ex) {
 				Logger.error(this, "Error creating uri from '"+page.getURI()+"'", ex);
 			}
+			indexer = new PageIndexer(uri);
 			//Logger.normal(this, "Parsing "+page.getURI());
 		}
 
@@ -658,11 +838,9 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 		public void foundURI(FreenetURI uri, boolean inline) {
 			if (stopped) throw new RuntimeException("plugin stopping");
 			if (logDEBUG) Logger.debug(this, "foundURI " + uri + " on " + page);
-			queueURI(uri, "Added from " + page.getURI(), false);
+			foundURIs.add(uri);
 		}
 
-		protected Integer lastPosition = null;
-
 		/**
 		 * When text is found
 		 * @param s
@@ -674,83 +852,25 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 			if (stopped) throw new RuntimeException("plugin stopping");
 			if (logDEBUG) Logger.debug(this, "onText on " + page.getId() + " (" + baseURI + ")");
 
-			if ("title".equalsIgnoreCase(type) && (s != null) && (s.length() != 0) && (s.indexOf('\n') < 0)) {
-				/*
-				 * title of the page 
-				 */
-				page.setPageTitle(s);
-				title = s;
-				type = "title";
-			} else {
-				type = null;
-			}
-			// Tokenise. Do not use the pairs-of-CJK-chars option because we need
-			// accurate word index numbers.
-			SearchTokenizer tok = new SearchTokenizer(s, false);
-
-			if(lastPosition == null) lastPosition = 1; 
-			int i = 0;
-			for (String word: tok) {
-				totalWords++;
-				try {
-					if(type == null)
-						addWord(word, lastPosition + i);
-					else
-						addWord(word, Integer.MIN_VALUE + i); // Put title words in the right order starting at Min_Value
-				} catch (Exception e) {
-					// If a word fails continue
-					Logger.error(this, "Word '" + word + "' failed: "+e, e);
-				} 
-				i++;
-			}
-
-			if (type == null) {
-				lastPosition = lastPosition + i;
-			}
+			indexer.onText(s, type);
 		}
-		
+
+		/** Called on the parser thread once the whole page has been parsed. */
 		void finish() {
-			for (TermPageEntry termPageEntry : tpes.values()) {
-				if(title != null)
-					librarybuffer.setTitle(termPageEntry, title);
-				// Crude first approximation to relevance calculation.
-				// Client should multiply by log ( total count of files / count of files with this word in )
-				// Which is equal to log ( total count of files ) - log ( count of files with this word in )
-				librarybuffer.setRelevance(termPageEntry, ((float)termPageEntry.positionsSize()) / ((float)totalWords));
-			}
+			indexer.finish();
 		}
 
-		HashMap<String, TermPageEntry> tpes = new HashMap();
+		/** Called on the callback thread, inside the transaction, to store what we found. */
+		void store() {
+			String title = indexer.getTitle();
+			if(title != null)
+				page.setPageTitle(title);
 
-		/**
-		 * Add a word to the database for this page
-		 * @param word
-		 * @param position
-		 * @throws java.lang.Exception
-		 */
-		private void addWord(String word, int position) {
-			if (logDEBUG) Logger.debug(this, "addWord on " + page.getId() + " (" + word + "," + position + ")");
+			// Queue all the links at once, duplicates (navigation etc) are only looked up once.
+			queueFoundURIs(foundURIs, "Added from " + page.getURI());
+			foundURIs.clear();
 
-			// Skip word if it is a stop word
-			if (isStopWord(word)) return;
-
-			// Add to Library buffer
-			TermPageEntry tp = getEntry(word);
-			librarybuffer.addPos(tp, position);
-		}
-
-		/**
-		 * Makes a TermPageEntry for this term
-		 * @param word
-		 * @return
-		 */
-		private TermPageEntry getEntry(String word) {
-			TermPageEntry tp = tpes.get(word);
-			if (tp == null) {
-				tp = new TermPageEntry(word, 0, uri, null);
-				tpes.put(word, tp);
-			}
-			return tp;
+			librarybuffer.addAll(page, indexer.getEntries());
 		}
 
 		@Override
@@ -792,16 +912,33 @@ public class Spider implements FredPlugin, FredPluginThreadless,
 	 */
 	private Storage initDB() {
 		Storage db = StorageFactory.getInstance().createStorage();
-		db.setProperty("perst.object.cache.kind", "pinned");
-		db.setProperty("perst.object.cache.init.size", 65536); //Increasing from 8192 no longer brings my system to it's knees after a few hours.  Does this make sense?
-		db.setProperty("perst.alternative.btree", true);
-		db.setProperty("perst.string.encoding", "UTF-8");
-		db.setProperty("perst.concurrent.iterator", true);
+		PerstRoot.setStorageProperties(db);
 
 		db.open("Spider-" + dbVersion + ".dbs");
+		db.setListener(new StorageListener() {
+			@Override
+			public void gcStarted() {
+				Logger.normal(Spider.this, "Database garbage collection started");
+				garbageCollecting = true;
+			}
+
+			@Override
+			public void gcProgress(int nMarkedObjects, int nSweptObjects, int nObjects) {
+				Logger.minor(Spider.this, "Database garbage collection: " + nMarkedObjects + " marked, "
+				        + nSweptObjects + "/" + nObjects + " swept");
+			}
+
+			@Override
+			public void gcCompleted(int nDeallocatedObjects) {
+				garbageCollecting = false;
+				Logger.normal(Spider.this, "Database garbage collection completed, " + nDeallocatedObjects
+				        + " objects deallocated");
+			}
+		});
 
 		PerstRoot root = (PerstRoot) db.getRoot();
 		if (root == null) PerstRoot.createRoot(db);
+		else root.upgrade();
 
 		return db;
 	}
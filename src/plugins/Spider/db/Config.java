@@ -29,6 +29,15 @@ public class Config extends Persistent implements Cloneable {
 	
 	private int newFormatIndexBufferLimit;
 
+	private int parseThreads;
+
+	private boolean compactPushFormat;
+
+	private String[] stopWordLanguages;
+
+	private int commitDelay;
+	private int commitTransactions;
+
 	public Config() {
 	}
 
@@ -61,6 +70,13 @@ public class Config extends Persistent implements Cloneable {
 		
 		newFormatIndexBufferLimit = 4;
 
+		parseThreads = 2;
+
+		stopWordLanguages = new String[] { "en" };
+
+		commitDelay = 5000;
+		commitTransactions = 1000;
+
 		storage.makePersistent(this);
 	}
 
@@ -216,4 +232,58 @@ public class Config extends Persistent implements Cloneable {
 	public synchronized void setNewFormatIndexBufferLimit(int limit) {
 		newFormatIndexBufferLimit = limit;
 	}
+
+	/** Number of threads filtering and tokenizing fetched pages. At least one, including for older databases. */
+	public synchronized int getParseThreads() {
+		return Math.max(1, parseThreads);
+	}
+
+	public synchronized void setParseThreads(int parseThreads) {
+		assert !isPersistent();
+		this.parseThreads = parseThreads;
+	}
+
+	/** Whether to send buffers to Library in the compact format, which older versions of Library can't read. */
+	public synchronized boolean isCompactPushFormat() {
+		return compactPushFormat;
+	}
+
+	public synchronized void setCompactPushFormat(boolean compactPushFormat) {
+		assert !isPersistent();
+		this.compactPushFormat = compactPushFormat;
+	}
+
+	/** Languages whose stop words are not indexed. English only for older databases. */
+	public synchronized String[] getStopWordLanguages() {
+		if(stopWordLanguages == null) return new String[] { "en" };
+		return stopWordLanguages;
+	}
+
+	public synchronized void setStopWordLanguages(String[] stopWordLanguages) {
+		assert !isPersistent();
+		this.stopWordLanguages = stopWordLanguages;
+	}
+
+	/**
+	 * Maximum time in milliseconds a change of the crawl state may stay uncommitted, so that
+	 * several transactions share one commit. 0, also for older databases, commits every transaction.
+	 */
+	public synchronized int getCommitDelay() {
+		return Math.max(0, commitDelay);
+	}
+
+	public synchronized void setCommitDelay(int commitDelay) {
+		assert !isPersistent();
+		this.commitDelay = commitDelay;
+	}
+
+	/** Maximum number of transactions sharing a delayed commit. */
+	public synchronized int getCommitTransactions() {
+		return Math.max(1, commitTransactions);
+	}
+
+	public synchronized void setCommitTransactions(int commitTransactions) {
+		assert !isPersistent();
+		this.commitTransactions = commitTransactions;
+	}
 }
@@ -3,6 +3,9 @@
  */
 package plugins.Spider.db;
 
+import java.net.MalformedURLException;
+
+import freenet.keys.FreenetURI;
 import freenet.support.Logger;
 import plugins.Spider.org.garret.perst.FieldIndex;
 import plugins.Spider.org.garret.perst.IPersistentMap;
@@ -13,7 +16,9 @@ import plugins.Spider.org.garret.perst.StorageError;
 public class Page extends Persistent implements Comparable<Page> {
 	/** Page Id */
 	protected long id;
-	/** URI of the page */
+	/** URI of the page, as a {@link URIKey} */
+	protected byte[] uriKey;
+	/** URI of the page as a string; only set on pages from before the URI key, until migrated */
 	protected String uri;
 	/** Title */
 	protected String pageTitle;
@@ -27,8 +32,8 @@ public class Page extends Persistent implements Comparable<Page> {
 	public Page() {
 	}
 
-	Page(String uri, String comment, Storage storage) {
-		this.uri = uri;
+	Page(byte[] uriKey, String comment, Storage storage) {
+		this.uriKey = uriKey;
 		this.comment = comment;
 		this.status = Status.QUEUED;
 		this.lastChange = System.currentTimeMillis();
@@ -57,7 +62,33 @@ public class Page extends Persistent implements Comparable<Page> {
 	}
 
 	public String getURI() {
-		return uri;
+		if (uri != null) return uri;
+		try {
+			return URIKey.decode(uriKey).toString();
+		} catch (MalformedURLException e) {
+			Logger.error(this, "Corrupt URI key on page " + id, e);
+			return null;
+		}
+	}
+
+	public FreenetURI getFreenetURI() throws MalformedURLException {
+		return uri != null ? new FreenetURI(uri) : URIKey.decode(uriKey);
+	}
+
+	/** @return a hash of the routing key of the URI, for spreading pages over sites */
+	public int getRoutingKeyHash() {
+		return uri != null ? uri.hashCode() : URIKey.routingKeyHash(uriKey);
+	}
+
+	/**
+	 * Replaces the string URI of a page from an older database by its URI key.
+	 * The caller is responsible for the URI index.
+	 */
+	void migrateURI() throws MalformedURLException {
+		if (uri == null) return;
+		uriKey = URIKey.encode(new FreenetURI(uri));
+		uri = null;
+		modify();
 	}
 	
 	public long getId() {
@@ -74,6 +105,10 @@ public class Page extends Persistent implements Comparable<Page> {
 		return pageTitle;
 	}
 
+	public long getLastChange() {
+		return lastChange;
+	}
+
 	@Override
 	public int hashCode() {
 		return (int) (id ^ (id >>> 32));
@@ -93,7 +128,7 @@ public class Page extends Persistent implements Comparable<Page> {
 
 	@Override
 	public String toString() {
-		return "[PAGE: id=" + id + ", title=" + pageTitle + ", uri=" + uri + ", status=" + status + ", comment="
+		return "[PAGE: id=" + id + ", title=" + pageTitle + ", uri=" + getURI() + ", status=" + status + ", comment="
 		+ comment
 		+ "]";
 	}
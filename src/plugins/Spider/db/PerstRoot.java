@@ -1,19 +1,35 @@
 package plugins.Spider.db;
 
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import plugins.Spider.org.garret.perst.FieldIndex;
+import plugins.Spider.org.garret.perst.GenericIndex;
 import plugins.Spider.org.garret.perst.IterableIterator;
 import plugins.Spider.org.garret.perst.Key;
 import plugins.Spider.org.garret.perst.Persistent;
 import plugins.Spider.org.garret.perst.Storage;
 import freenet.keys.FreenetURI;
+import freenet.support.Logger;
 
 public class PerstRoot extends Persistent {
 
+	/** URI index keys added to a growing URI filter per {@link #growURIFilter()} */
+	private static final int URI_FILTER_SLICE = 16384;
+
 	protected FieldIndex<Page> idPage;
+	/** Pages by {@link URIKey}; a string index in databases from before the URI key, until migrated */
 	protected FieldIndex<Page> uriPage;
+	/** Bloom filter over the keys of {@link #uriPage}; null in databases from before it, until built */
+	protected URIFilter uriFilter;
+	/** Filter replacing {@link #uriFilter} once complete, see {@link #growURIFilter()}; null if none */
+	private transient URIFilter newURIFilter;
+	/** Last key of {@link #uriPage} added to {@link #newURIFilter} */
+	private transient byte[] newURIFilterKey;
 	protected FieldIndex<Page> queuedPages;
 	protected FieldIndex<Page> failedPages;
 	protected FieldIndex<Page> succeededPages;
@@ -29,7 +45,8 @@ public class PerstRoot extends Persistent {
 		PerstRoot root = new PerstRoot();
 
 		root.idPage = storage.createFieldIndex(Page.class, "id", true);
-		root.uriPage = storage.createFieldIndex(Page.class, "uri", true);
+		root.uriPage = storage.createPrefixCompressedFieldIndex(Page.class, "uriKey", true);
+		root.uriFilter = new URIFilter(storage, URIFilter.DEFAULT_CAPACITY);
 		root.queuedPages = storage.createFieldIndex(Page.class, "lastChange", false);
 		root.failedPages = storage.createFieldIndex(Page.class, "lastChange", false);
 		root.succeededPages = storage.createFieldIndex(Page.class, "lastChange", false);
@@ -42,27 +59,228 @@ public class PerstRoot extends Persistent {
 
 		return root;
 	}
-	
+
+	/**
+	 * Sets the properties the Spider's database is opened with. Call before opening it.
+	 * perst.file.channel only applies when it is opened by file name.
+	 */
+	public static void setStorageProperties(Storage storage) {
+		storage.setProperty("perst.object.cache.kind", "striped");
+		storage.setProperty("perst.object.cache.init.size", 65536); //Increasing from 8192 no longer brings my system to it's knees after a few hours.  Does this make sense?
+		storage.setProperty("perst.alternative.btree", true);
+		storage.setProperty("perst.string.encoding", "UTF-8");
+		storage.setProperty("perst.concurrent.iterator", true);
+		storage.setProperty("perst.file.channel", true);
+		storage.setProperty("perst.page.writer.interval", 1000);
+		storage.setProperty("perst.gc.slice", 50); // collect garbage in slices after commits instead of stalling the crawler
+		storage.setProperty("perst.gc.threshold", 256L * 1024 * 1024); // start a collection after this many bytes are allocated
+	}
+
+	/**
+	 * Brings the root of an existing database up to date.
+	 */
+	public void upgrade() {
+		if (uriPage.getKeyType() != byte[].class) migrateURIIndex();
+		if (uriFilter == null) rebuildURIFilter();
+	}
+
+	/**
+	 * Replaces the string URI index of an older database by a {@link URIKey} index, converting the
+	 * pages in place. Commits every few thousand pages so a large database doesn't have to fit in
+	 * the object cache. Different strings may give the same URI key, such as a key type in lower
+	 * case; such pages are merged into one. Pages whose URI can't be parsed are dropped.
+	 */
+	private void migrateURIIndex() {
+		Storage storage = getStorage();
+		FieldIndex<Page> oldIndex = uriPage;
+		FieldIndex<Page> newIndex = storage.createPrefixCompressedFieldIndex(Page.class, "uriKey", true);
+		Logger.normal(this, "Converting " + oldIndex.size() + " page URIs to URI keys");
+
+		int converted = 0;
+		for (Page page : oldIndex) {
+			try {
+				page.migrateURI();
+			} catch (MalformedURLException e) {
+				Logger.error(this, "Dropping page with malformed URI: " + page, e);
+				dropPage(page);
+				continue;
+			}
+			if (!newIndex.put(page)) {
+				Page other = newIndex.get(new Key(page.uriKey));
+				if (isFetched(page.getStatus()) && !isFetched(other.getStatus())) {
+					newIndex.set(page);
+					Page dropped = other;
+					other = page;
+					page = dropped;
+				}
+				Logger.normal(this, "Merging page " + page + " into " + other + " with the same URI key");
+				dropPage(page);
+			}
+			if (++converted % 4096 == 0) storage.commit();
+		}
+
+		uriPage = newIndex;
+		modify();
+		oldIndex.deallocate();
+		storage.commit();
+		Logger.normal(this, "Converted " + converted + " page URIs to URI keys");
+	}
+
+	/** @return whether a page in the status has been fetched, so its URI needn't be again */
+	private static boolean isFetched(Status status) {
+		return status != Status.QUEUED && status != Status.FAILED;
+	}
+
+	/**
+	 * Removes a page which has no place in the URI index from the other indexes, so that it is
+	 * neither fetched nor found again. It isn't deallocated, as the old URI index still holds it,
+	 * and the migration may be run again if it is interrupted; it is garbage once that is gone.
+	 */
+	private void dropPage(Page page) {
+		if (idPage.containsObject(page)) idPage.remove(page);
+		FieldIndex<Page> index = getPageIndex(page.getStatus());
+		if (index.containsObject(page)) index.remove(page);
+	}
+
+	/**
+	 * Replaces the URI filter by one with room for twice the pages there are now, built from the
+	 * keys of the URI index alone, without loading the pages. Caller has the database to itself.
+	 */
+	private void rebuildURIFilter() {
+		URIFilter oldFilter = uriFilter;
+		URIFilter newFilter = new URIFilter(getStorage(),
+				Math.max(URIFilter.DEFAULT_CAPACITY, uriPage.size() * 2));
+		Logger.normal(this, "Building URI filter for " + uriPage.size() + " pages");
+		for (Map.Entry<Object, Page> entry : uriPage.entryIterator())
+			newFilter.add((byte[]) entry.getKey());
+		uriFilter = newFilter;
+		modify();
+		if (oldFilter != null) oldFilter.deallocate();
+	}
+
 	public Page getPageByURI(FreenetURI uri, boolean create, String comment) {
 		idPage.exclusiveLock();
 		uriPage.exclusiveLock();
 		queuedPages.exclusiveLock();
 		try {
-			Page page = uriPage.get(new Key(uri.toString()));
+			return lookupURI(uri, create, comment);
+		} finally {
+			queuedPages.unlock();
+			uriPage.unlock();
+			idPage.unlock();
+		}
+	}
 
-			if (create && page == null) {
-				page = new Page(uri.toString(), comment, getStorage());
+	/**
+	 * Looks up (and optionally creates) the pages for a batch of URIs, taking the index locks once
+	 * for the whole batch rather than once per URI.
+	 * @return the pages in the same order as the URIs; entries are null if not found and !create
+	 */
+	public List<Page> getPagesByURI(Collection<FreenetURI> uris, boolean create, String comment) {
+		List<Page> pages = new ArrayList<Page>(uris.size());
+		idPage.exclusiveLock();
+		uriPage.exclusiveLock();
+		queuedPages.exclusiveLock();
+		try {
+			for (FreenetURI uri : uris)
+				pages.add(lookupURI(uri, create, comment));
+			return pages;
+		} finally {
+			queuedPages.unlock();
+			uriPage.unlock();
+			idPage.unlock();
+		}
+	}
+
+	/**
+	 * Looks up (and optionally creates) the page of a URI. A URI the filter hasn't seen is new, so
+	 * it is created without looking in the index. Caller holds the idPage, uriPage and
+	 * queuedPages locks exclusively.
+	 */
+	private Page lookupURI(FreenetURI uri, boolean create, String comment) {
+		byte[] uriKey = URIKey.encode(uri);
+		Page page = uriFilter.mightContain(uriKey) ? uriPage.get(new Key(uriKey)) : null;
+
+		if (create && page == null) {
+			page = new Page(uriKey, comment, getStorage());
+
+			idPage.append(page);
+			uriPage.put(page);
+			uriFilter.add(uriKey);
+			if (newURIFilter != null) newURIFilter.add(uriKey);
+			queuedPages.put(page);
+		}
+
+		return page;
+	}
+
+	/**
+	 * @return true if the URI index has outgrown the URI filter, and {@link #growURIFilter()} has
+	 * work to do
+	 */
+	public boolean isURIFilterFull() {
+		uriPage.sharedLock();
+		try {
+			return newURIFilter != null || uriPage.size() > uriFilter.getCapacity();
+		} finally {
+			uriPage.unlock();
+		}
+	}
 
-				idPage.append(page);
-				uriPage.put(page);
-				queuedPages.put(page);
+	/**
+	 * Builds a URI filter with room for twice the pages once the URI index has outgrown the
+	 * current one, a slice of the index keys per call, so that no transaction holds the URI index
+	 * lock for a walk of the whole index. The old filter stays in use until the new one is
+	 * complete, and the pages created meanwhile are added to both. The new filter isn't in the
+	 * root until then, so if the database is closed first it is garbage, and the next call starts
+	 * over. Caller is in an exclusive transaction of its own.
+	 */
+	public void growURIFilter() {
+		uriPage.exclusiveLock();
+		try {
+			if (newURIFilter == null) {
+				if (uriPage.size() <= uriFilter.getCapacity()) return;
+				Logger.normal(this, "Growing URI filter for " + uriPage.size() + " pages");
+				newURIFilter = new URIFilter(getStorage(), uriPage.size() * 2);
+			}
+			Key from = newURIFilterKey == null ? null : new Key(newURIFilterKey, false);
+			int added = 0;
+			for (Map.Entry<Object, Page> entry : uriPage.entryIterator(from, null, GenericIndex.ASCENT_ORDER)) {
+				newURIFilterKey = (byte[]) entry.getKey();
+				newURIFilter.add(newURIFilterKey);
+				if (++added == URI_FILTER_SLICE) return;
 			}
 
-			return page;
+			URIFilter oldFilter = uriFilter;
+			uriFilter = newURIFilter;
+			newURIFilter = null;
+			newURIFilterKey = null;
+			modify();
+			oldFilter.deallocate();
+			Logger.normal(this, "Grown URI filter for " + uriPage.size() + " pages");
+		} finally {
+			uriPage.unlock();
+		}
+	}
+
+	/**
+	 * Finds the URIs which have no page yet, taking the URI index lock shared only. Most of the
+	 * links found on a page are already known, and checking them this way costs no exclusive locks
+	 * and, for the ones the filter hasn't seen, no index lookup either. A URI may get its page
+	 * after this returns, so the result still has to go through {@link #getPagesByURI}.
+	 */
+	public List<FreenetURI> getUnknownURIs(Collection<FreenetURI> uris) {
+		List<FreenetURI> unknown = new ArrayList<FreenetURI>();
+		uriPage.sharedLock();
+		try {
+			for (FreenetURI uri : uris) {
+				byte[] uriKey = URIKey.encode(uri);
+				if (!uriFilter.mightContain(uriKey) || uriPage.get(new Key(uriKey)) == null)
+					unknown.add(uri);
+			}
+			return unknown;
 		} finally {
-			queuedPages.unlock();
 			uriPage.unlock();
-			idPage.unlock();
 		}
 	}
 
@@ -118,6 +336,19 @@ public class PerstRoot extends Persistent {
 		}
 	}
 
+	/**
+	 * @param fromLastChange only return pages last changed at or after this time
+	 */
+	public Iterator<Page> getPages(Status status, long fromLastChange) {
+		FieldIndex<Page> index = getPageIndex(status);
+		index.sharedLock();
+		try {
+			return index.iterator(new Key(fromLastChange, true), null, GenericIndex.ASCENT_ORDER);
+		} finally {
+			index.unlock();
+		}
+	}
+
 	public int getPageCount(Status status) {
 		FieldIndex<Page> index = getPageIndex(status);
 		index.sharedLock();
@@ -0,0 +1,115 @@
+package plugins.Spider.db;
+
+import plugins.Spider.org.garret.perst.Persistent;
+import plugins.Spider.org.garret.perst.Storage;
+
+/**
+ * Bloom filter over the {@link URIKey}s in the page URI index, so a URI which certainly has no
+ * page can be told apart without a B-tree lookup. There are no false negatives; about 1% of the
+ * unknown URIs are false positives while the filter holds no more than its capacity.
+ *
+ * All the bits of a key are in the same 4 KiB block, and each block is a separate object, so
+ * adding a key makes the commit write one block rather than the whole filter. Keys can't be
+ * removed; a removed page only adds to the false positives until the filter is rebuilt.
+ *
+ * Not synchronized: PerstRoot only uses it under the URI index lock, shared for
+ * {@link #mightContain(byte[])} and exclusive for {@link #add(byte[])}.
+ */
+public class URIFilter extends Persistent {
+	/** Capacity of the filter of a new database */
+	static final int DEFAULT_CAPACITY = 1 << 20;
+
+	/** About 1% false positives at capacity */
+	private static final int BITS_PER_KEY = 10;
+	private static final int HASHES = 7;
+	private static final int BLOCK_WORDS = 512;
+	private static final int BLOCK_BITS = BLOCK_WORDS * 64;
+
+	public static class Block extends Persistent {
+		private long[] bits;
+
+		public Block() {
+		}
+
+		Block(Storage storage) {
+			bits = new long[BLOCK_WORDS];
+			storage.makePersistent(this);
+		}
+	}
+
+	/** Number of keys the filter is sized for */
+	private int capacity;
+	private Block[] blocks;
+
+	public URIFilter() {
+	}
+
+	URIFilter(Storage storage, int capacity) {
+		this.capacity = capacity;
+		long bits = (long) capacity * BITS_PER_KEY;
+		blocks = new Block[(int) ((bits + BLOCK_BITS - 1) / BLOCK_BITS)];
+		for (int i = 0; i < blocks.length; i++)
+			blocks[i] = new Block(storage);
+		storage.makePersistent(this);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public boolean mightContain(byte[] key) {
+		long h1 = hash(key, 0);
+		long[] bits = block(h1).bits;
+		int a = (int) h1;
+		int b = (int) hash(key, h1) | 1;
+		for (int i = 0; i < HASHES; i++, a += b) {
+			int bit = a & (BLOCK_BITS - 1);
+			if ((bits[bit >>> 6] & (1L << bit)) == 0) return false;
+		}
+		return true;
+	}
+
+	public void add(byte[] key) {
+		long h1 = hash(key, 0);
+		Block block = block(h1);
+		int a = (int) h1;
+		int b = (int) hash(key, h1) | 1;
+		boolean changed = false;
+		for (int i = 0; i < HASHES; i++, a += b) {
+			int bit = a & (BLOCK_BITS - 1);
+			long mask = 1L << bit;
+			if ((block.bits[bit >>> 6] & mask) == 0) {
+				block.bits[bit >>> 6] |= mask;
+				changed = true;
+			}
+		}
+		if (changed) block.modify();
+	}
+
+	/** Chooses the block by the high half of the first hash; the low half is the first bit. */
+	private Block block(long h1) {
+		return blocks[(int) (((h1 >>> 32) * blocks.length) >>> 32)];
+	}
+
+	/** 64 bit FNV-1a of the key and the seed, then the MurmurHash3 finalizer. */
+	private static long hash(byte[] key, long seed) {
+		long h = 0xcbf29ce484222325L ^ seed;
+		for (byte b : key) {
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	@Override
+	public void deallocate() {
+		for (Block block : blocks)
+			block.deallocate();
+		super.deallocate();
+	}
+}
@@ -0,0 +1,152 @@
+package plugins.Spider.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.keys.FreenetURI;
+
+/**
+ * Compact binary form of a {@link FreenetURI}, used as the key of the page URI index.
+ *
+ * Instead of the base64 text of {@link FreenetURI#toString()} the key holds the raw key bytes
+ * followed by the doc name and meta strings:
+ * <pre>
+ *   type(1) routingKey(1+n) cryptoKey(1+n) extra(1+n) [edition(8), USK only] (utf(2+n))*
+ * </pre>
+ * A key byte array is stored as its length followed by the bytes; a missing one has length 0.
+ * The strings are the doc name followed by the meta strings, as written by
+ * {@link DataOutputStream#writeUTF(String)}. Equal URIs always give equal keys, so the keys can
+ * be compared byte by byte.
+ */
+public final class URIKey {
+	private static final byte CHK = 1;
+	private static final byte SSK = 2;
+	private static final byte USK = 3;
+	private static final byte KSK = 4;
+	/** Any other key type, followed by its name */
+	private static final byte OTHER = 0;
+
+	/** Offset of the routing key length */
+	private static final int ROUTING_KEY_OFFSET = 1;
+
+	private URIKey() {
+	}
+
+	public static byte[] encode(FreenetURI uri) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			String keyType = uri.getKeyType();
+			byte type = typeCode(keyType);
+			out.writeByte(type);
+			if (type == OTHER) out.writeUTF(keyType);
+			writeBytes(out, uri.getRoutingKey());
+			writeBytes(out, uri.getCryptoKey());
+			writeBytes(out, uri.getExtra());
+			if (type == USK) out.writeLong(uri.getSuggestedEdition());
+			String docName = uri.getDocName();
+			if (docName != null) {
+				out.writeUTF(docName);
+				String[] metaStrings = uri.getAllMetaStrings();
+				if (metaStrings != null) {
+					for (String meta : metaStrings)
+						out.writeUTF(meta);
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			// ByteArrayOutputStream doesn't throw; only writeUTF of an over-long string can get here
+			throw new IllegalArgumentException("Can't encode " + uri + ": " + e);
+		}
+		return bytes.toByteArray();
+	}
+
+	public static FreenetURI decode(byte[] key) throws MalformedURLException {
+		ByteArrayInputStream bytes = new ByteArrayInputStream(key);
+		DataInputStream in = new DataInputStream(bytes);
+		try {
+			byte type = in.readByte();
+			String keyType = type == OTHER ? in.readUTF() : typeName(type);
+			byte[] routingKey = readBytes(in);
+			byte[] cryptoKey = readBytes(in);
+			byte[] extra = readBytes(in);
+			long edition = type == USK ? in.readLong() : -1;
+			String docName = null;
+			String[] metaStrings = null;
+			if (bytes.available() > 0) {
+				docName = in.readUTF();
+				List<String> meta = new ArrayList<String>();
+				while (bytes.available() > 0)
+					meta.add(in.readUTF());
+				metaStrings = meta.toArray(new String[meta.size()]);
+			}
+			return new FreenetURI(keyType, docName, metaStrings, routingKey, cryptoKey, extra, edition);
+		} catch (IOException e) {
+			throw new MalformedURLException("Corrupt URI key: " + e);
+		}
+	}
+
+	/** Hash of the routing key bytes, or of the whole key if it has none. */
+	public static int routingKeyHash(byte[] key) {
+		int start = 0;
+		int end = key.length;
+		if (key[0] != OTHER) {
+			int len = key[ROUTING_KEY_OFFSET] & 0xff;
+			if (len != 0) {
+				start = ROUTING_KEY_OFFSET + 1;
+				end = start + len;
+			}
+		}
+		int hash = 0;
+		for (int i = start; i < end; i++)
+			hash = 31 * hash + key[i];
+		return hash;
+	}
+
+	private static byte typeCode(String keyType) {
+		if ("CHK".equals(keyType)) return CHK;
+		if ("SSK".equals(keyType)) return SSK;
+		if ("USK".equals(keyType)) return USK;
+		if ("KSK".equals(keyType)) return KSK;
+		return OTHER;
+	}
+
+	private static String typeName(byte type) throws IOException {
+		switch (type) {
+		case CHK:
+			return "CHK";
+		case SSK:
+			return "SSK";
+		case USK:
+			return "USK";
+		case KSK:
+			return "KSK";
+		default:
+			throw new IOException("unknown key type " + type);
+		}
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+		if (b == null) {
+			out.writeByte(0);
+			return;
+		}
+		if (b.length == 0 || b.length > 255) throw new IOException("key part of " + b.length + " bytes");
+		out.writeByte(b.length);
+		out.write(b);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int len = in.readUnsignedByte();
+		if (len == 0) return null;
+		byte[] b = new byte[len];
+		in.readFully(b);
+		return b;
+	}
+}
@@ -14,10 +14,24 @@ import java.io.IOException;
 /**
 ** Reads and writes {@link TermEntry}s in binary form, for performance.
 **
+** A whole {@link TermPageBuffer} can be written in one of two formats:
+**
+** * {@link #FORMAT_LEGACY}: one {@link #writeObject(TermEntry, DataOutputStream)}
+**   record per entry, understood by all versions of Library.
+** * {@link #FORMAT_COMPACT}: {@link TermEntry#serialVersionUID}, the format
+**   byte, then a dictionary of the pages (varint count, then for each page its
+**   binary key and optional title), then the terms (varint count, then for
+**   each term its subject once, a varint count of entries, and for each entry
+**   the varint page number, the relevance, a varint count of positions and the
+**   positions, sorted and delta- and varint-encoded).
+**
 ** @author infinity0
 */
 public class TermEntryWriter {
 
+	final public static int FORMAT_LEGACY = 1;
+	final public static int FORMAT_COMPACT = 2;
+
 	final private static TermEntryWriter instance = new TermEntryWriter();
 
 	protected TermEntryWriter() {}
@@ -67,4 +81,103 @@ public class TermEntryWriter {
 		}
 	}
 
+	/**
+	** Writes all the entries of the buffer, in the order of
+	** {@link TermPageBuffer#sortedEntries()}.
+	**
+	** @param format {@link #FORMAT_LEGACY} or {@link #FORMAT_COMPACT}
+	*/
+	public void writeBuffer(TermPageBuffer buffer, DataOutputStream dos, int format) throws IOException {
+		int[] entries = buffer.sortedEntries();
+		switch (format) {
+		case FORMAT_LEGACY:
+			for (int entry : entries)
+				writeLegacy(buffer, entry, dos);
+			return;
+		case FORMAT_COMPACT:
+			writeCompact(buffer, entries, dos);
+			return;
+		default:
+			throw new IllegalArgumentException("Unknown format " + format);
+		}
+	}
+
+	/** Same bytes as writeObject() of the equivalent TermPageEntry, without creating it. */
+	private void writeLegacy(TermPageBuffer buffer, int entry, DataOutputStream dos) throws IOException {
+		dos.writeLong(TermEntry.serialVersionUID);
+		dos.writeInt(TermEntry.EntryType.PAGE.ordinal());
+		dos.writeUTF(buffer.term(entry));
+		dos.writeFloat(buffer.relevance(entry));
+		buffer.page(entry).writeFullBinaryKeyWithLength(dos);
+		int size = buffer.positionsSize(entry);
+		String title = buffer.title(entry);
+		if(title == null)
+			dos.writeInt(size);
+		else {
+			dos.writeInt(~size); // invert bits to signify title is set
+			dos.writeUTF(title);
+		}
+		int[] pos = buffer.positionsRaw(entry);
+		for(int i = 0; i < size; i++) {
+			dos.writeInt(pos[i]);
+			dos.writeUTF("");
+		}
+	}
+
+	private void writeCompact(TermPageBuffer buffer, int[] entries, DataOutputStream dos) throws IOException {
+		dos.writeLong(TermEntry.serialVersionUID);
+		dos.writeByte(FORMAT_COMPACT);
+
+		int pages = buffer.pageCount();
+		writeVarInt(dos, pages);
+		for(int page = 0; page < pages; page++) {
+			buffer.pageURI(page).writeFullBinaryKeyWithLength(dos);
+			String title = buffer.pageTitle(page);
+			dos.writeBoolean(title != null);
+			if(title != null)
+				dos.writeUTF(title);
+		}
+
+		// Entries are sorted by term, so each term is a run of entries.
+		int terms = 0;
+		for(int i = 0; i < entries.length; i++) {
+			if(i == 0 || buffer.termOf(entries[i]) != buffer.termOf(entries[i-1]))
+				terms++;
+		}
+		writeVarInt(dos, terms);
+		for(int start = 0; start < entries.length;) {
+			int term = buffer.termOf(entries[start]);
+			int end = start + 1;
+			while(end < entries.length && buffer.termOf(entries[end]) == term)
+				end++;
+
+			dos.writeUTF(buffer.term(entries[start]));
+			writeVarInt(dos, end - start);
+			for(int i = start; i < end; i++) {
+				int entry = entries[i];
+				writeVarInt(dos, buffer.pageOf(entry));
+				dos.writeFloat(buffer.relevance(entry));
+				int size = buffer.positionsSize(entry);
+				writeVarInt(dos, size);
+				int[] pos = buffer.positionsRaw(entry);
+				if(size != 0) {
+					// Title positions are negative, so zigzag the first one.
+					writeVarInt(dos, (pos[0] << 1) ^ (pos[0] >> 31));
+					for(int j = 1; j < size; j++)
+						writeVarInt(dos, pos[j] - pos[j-1]);
+				}
+			}
+			start = end;
+		}
+	}
+
+	/** Unsigned LEB128, 7 bits per byte, low bits first. */
+	static void writeVarInt(DataOutputStream dos, int v) throws IOException {
+		while((v & ~0x7F) != 0) {
+			dos.writeByte((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		dos.writeByte(v);
+	}
+
 }
@@ -0,0 +1,420 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Spider.index;
+
+import java.util.Arrays;
+
+import freenet.keys.FreenetURI;
+
+/**
+** Compact buffer of (term, page) -> positions, used instead of a map of
+** {@link TermPageEntry}s while indexing.
+**
+** Terms and pages are interned to int ids in open-addressed hash tables, and
+** each (term, page) pair is an entry number indexing into parallel primitive
+** arrays. Positions are appended unsorted to a growable int array per entry;
+** they are only sorted and deduplicated, and the entries only ordered, once by
+** {@link #sortedEntries()} when the buffer is written out.
+*/
+public class TermPageBuffer {
+
+	/** Rough heap cost of the bookkeeping for one entry, term or page, for {@link #sizeEstimate()} */
+	final static int ENTRY_OVERHEAD = 48;
+	final static int TERM_OVERHEAD = 40;
+	final static int PAGE_OVERHEAD = 32;
+
+	private String[] terms;
+	private int termCount;
+	/** Open-addressed table of term id + 1, 0 is empty */
+	private int[] termTable;
+
+	private FreenetURI[] pages;
+	private String[] titles;
+	private int pageCount;
+	/** Open-addressed table of page id + 1, 0 is empty */
+	private int[] pageTable;
+
+	private int[] entryTerm;
+	private int[] entryPage;
+	private float[] entryRel;
+	private int[][] entryPos;
+	private int[] entryPosCount;
+	private int entryCount;
+	/** Open-addressed table of entry + 1, 0 is empty, keyed by (term id, page id) */
+	private int[] entryTable;
+
+	private int sizeEstimate;
+	private boolean sorted;
+
+	public TermPageBuffer() {
+		this(64);
+	}
+
+	public TermPageBuffer(int expectedEntries) {
+		int cap = tableSize(expectedEntries);
+		terms = new String[cap / 2];
+		termTable = new int[cap];
+		pages = new FreenetURI[4];
+		titles = new String[4];
+		pageTable = new int[8];
+		entryTerm = new int[cap / 2];
+		entryPage = new int[cap / 2];
+		entryRel = new float[cap / 2];
+		entryPos = new int[cap / 2][];
+		entryPosCount = new int[cap / 2];
+		entryTable = new int[cap];
+	}
+
+	/** Number of (term, page) entries */
+	public int size() {
+		return entryCount;
+	}
+
+	public boolean isEmpty() {
+		return entryCount == 0;
+	}
+
+	/** Estimated heap usage in bytes */
+	public int sizeEstimate() {
+		return sizeEstimate;
+	}
+
+	/**
+	** Records that {@code term} occurs on {@code page} at {@code position}.
+	** The term is only copied into a String if it is new to the buffer.
+	**
+	** @return the entry number
+	*/
+	public int addPosition(CharSequence term, FreenetURI page, int position) {
+		int entry = entry(termId(term), pageId(page));
+		appendPosition(entry, position);
+		return entry;
+	}
+
+	public void setTitle(FreenetURI page, String title) {
+		int id = pageId(page);
+		if (titles[id] == null && title != null)
+			sizeEstimate += title.length();
+		titles[id] = title;
+	}
+
+	public void setRelevance(int entry, float rel) {
+		entryRel[entry] = rel;
+	}
+
+	/**
+	** Merges all the entries of {@code other} into this buffer. Positions are
+	** appended to an existing entry for the same term and page, titles and
+	** relevances are overwritten.
+	*/
+	public void addAll(TermPageBuffer other) {
+		int[] termMap = new int[other.termCount];
+		for (int i = 0; i < other.termCount; i++)
+			termMap[i] = termId(other.terms[i]);
+		int[] pageMap = new int[other.pageCount];
+		for (int i = 0; i < other.pageCount; i++) {
+			pageMap[i] = pageId(other.pages[i]);
+			if (other.titles[i] != null)
+				setTitle(other.pages[i], other.titles[i]);
+		}
+		for (int e = 0; e < other.entryCount; e++) {
+			int entry = entry(termMap[other.entryTerm[e]], pageMap[other.entryPage[e]]);
+			int[] pos = other.entryPos[e];
+			for (int i = 0; i < other.entryPosCount[e]; i++)
+				appendPosition(entry, pos[i]);
+			entryRel[entry] = other.entryRel[e];
+		}
+	}
+
+	public String term(int entry) {
+		return terms[entryTerm[entry]];
+	}
+
+	public FreenetURI page(int entry) {
+		return pages[entryPage[entry]];
+	}
+
+	public String title(int entry) {
+		return titles[entryPage[entry]];
+	}
+
+	public float relevance(int entry) {
+		return entryRel[entry];
+	}
+
+	public int termOf(int entry) {
+		return entryTerm[entry];
+	}
+
+	/** @return the page id of the entry, see {@link #pageCount()} */
+	public int pageOf(int entry) {
+		return entryPage[entry];
+	}
+
+	/** Number of distinct pages, page ids run from 0 to pageCount() - 1 */
+	public int pageCount() {
+		return pageCount;
+	}
+
+	public FreenetURI pageURI(int page) {
+		return pages[page];
+	}
+
+	public String pageTitle(int page) {
+		return titles[page];
+	}
+
+	public int positionsSize(int entry) {
+		return entryPosCount[entry];
+	}
+
+	/** The positions of the entry, sorted and unique if {@link #sortedEntries()} has been called */
+	public int[] positions(int entry) {
+		int[] pos = new int[entryPosCount[entry]];
+		System.arraycopy(entryPos[entry], 0, pos, 0, pos.length);
+		return pos;
+	}
+
+	/** The backing array of positions, only the first {@link #positionsSize(int)} are valid */
+	int[] positionsRaw(int entry) {
+		return entryPos[entry];
+	}
+
+	/**
+	** Sorts and deduplicates the positions of every entry, and returns the
+	** entries ordered as {@link TermPageEntry#compareTo} would order them: by
+	** term, then descending relevance, then page. The buffer should not be
+	** added to afterwards.
+	*/
+	public int[] sortedEntries() {
+		if (!sorted) {
+			for (int e = 0; e < entryCount; e++)
+				sortPositions(e);
+			sorted = true;
+		}
+
+		// Rank terms and pages once, so comparing entries doesn't compare strings.
+		final String[] termKeys = new String[termCount];
+		System.arraycopy(terms, 0, termKeys, 0, termCount);
+		final int[] termRank = rank(termKeys);
+		final String[] pageKeys = new String[pageCount];
+		for (int i = 0; i < pageCount; i++)
+			pageKeys[i] = pages[i].toString();
+		final int[] pageRank = rank(pageKeys);
+
+		int[] order = new int[entryCount];
+		for (int e = 0; e < entryCount; e++)
+			order[e] = e;
+		sort(order, new IntComparator() {
+			public int compare(int a, int b) {
+				int c = termRank[entryTerm[a]] - termRank[entryTerm[b]];
+				if (c != 0) return c;
+				float ra = entryRel[a], rb = entryRel[b];
+				if (ra != rb) return (ra > rb) ? -1 : 1;
+				return pageRank[entryPage[a]] - pageRank[entryPage[b]];
+			}
+		});
+		return order;
+	}
+
+	private void sortPositions(int entry) {
+		int n = entryPosCount[entry];
+		if (n < 2) return;
+		int[] pos = entryPos[entry];
+		Arrays.sort(pos, 0, n);
+		int j = 1;
+		for (int i = 1; i < n; i++) {
+			if (pos[i] != pos[j - 1])
+				pos[j++] = pos[i];
+		}
+		sizeEstimate -= 4 * (n - j);
+		entryPosCount[entry] = j;
+	}
+
+	private void appendPosition(int entry, int position) {
+		int[] pos = entryPos[entry];
+		int n = entryPosCount[entry];
+		if (pos == null) {
+			pos = entryPos[entry] = new int[4];
+		} else if (n == pos.length) {
+			int[] newPos = new int[n * 2];
+			System.arraycopy(pos, 0, newPos, 0, n);
+			pos = entryPos[entry] = newPos;
+		}
+		pos[n] = position;
+		entryPosCount[entry] = n + 1;
+		sizeEstimate += 4;
+		sorted = false;
+	}
+
+	private int termId(CharSequence term) {
+		int hash = hash(term);
+		int mask = termTable.length - 1;
+		for (int slot = mix(hash) & mask;; slot = (slot + 1) & mask) {
+			int id = termTable[slot] - 1;
+			if (id < 0) break;
+			if (terms[id].contentEquals(term)) return id;
+		}
+		if (termCount == terms.length)
+			terms = grow(terms);
+		int id = termCount++;
+		terms[id] = term.toString();
+		sizeEstimate += TERM_OVERHEAD + term.length() * 2;
+		if (termCount * 2 > termTable.length) {
+			termTable = new int[termTable.length * 2];
+			for (int i = 0; i < termCount; i++)
+				insert(termTable, mix(terms[i].hashCode()), i);
+		} else {
+			insert(termTable, mix(hash), id);
+		}
+		return id;
+	}
+
+	private int pageId(FreenetURI page) {
+		int mask = pageTable.length - 1;
+		for (int slot = mix(page.hashCode()) & mask;; slot = (slot + 1) & mask) {
+			int id = pageTable[slot] - 1;
+			if (id < 0) break;
+			if (pages[id].equals(page)) return id;
+		}
+		if (pageCount == pages.length) {
+			FreenetURI[] newPages = new FreenetURI[pageCount * 2];
+			System.arraycopy(pages, 0, newPages, 0, pageCount);
+			pages = newPages;
+			titles = grow(titles);
+		}
+		int id = pageCount++;
+		pages[id] = page;
+		sizeEstimate += PAGE_OVERHEAD + page.toString().length();
+		if (pageCount * 2 > pageTable.length) {
+			pageTable = new int[pageTable.length * 2];
+			for (int i = 0; i < pageCount; i++)
+				insert(pageTable, mix(pages[i].hashCode()), i);
+		} else {
+			insert(pageTable, mix(page.hashCode()), id);
+		}
+		return id;
+	}
+
+	private int entry(int term, int page) {
+		int mask = entryTable.length - 1;
+		int hash = entryHash(term, page);
+		for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+			int e = entryTable[slot] - 1;
+			if (e < 0) break;
+			if (entryTerm[e] == term && entryPage[e] == page) return e;
+		}
+		if (entryCount == entryTerm.length) {
+			int n = entryCount * 2;
+			entryTerm = grow(entryTerm, n);
+			entryPage = grow(entryPage, n);
+			entryPosCount = grow(entryPosCount, n);
+			float[] newRel = new float[n];
+			System.arraycopy(entryRel, 0, newRel, 0, entryCount);
+			entryRel = newRel;
+			int[][] newPos = new int[n][];
+			System.arraycopy(entryPos, 0, newPos, 0, entryCount);
+			entryPos = newPos;
+		}
+		int e = entryCount++;
+		entryTerm[e] = term;
+		entryPage[e] = page;
+		sizeEstimate += ENTRY_OVERHEAD;
+		if (entryCount * 2 > entryTable.length) {
+			entryTable = new int[entryTable.length * 2];
+			for (int i = 0; i < entryCount; i++)
+				insert(entryTable, entryHash(entryTerm[i], entryPage[i]), i);
+		} else {
+			insert(entryTable, hash, e);
+		}
+		return e;
+	}
+
+	private static void insert(int[] table, int hash, int id) {
+		int mask = table.length - 1;
+		int slot = hash & mask;
+		while (table[slot] != 0)
+			slot = (slot + 1) & mask;
+		table[slot] = id + 1;
+	}
+
+	/** Same as String.hashCode(), so terms hash the same whatever CharSequence they come in. */
+	private static int hash(CharSequence s) {
+		if (s instanceof String) return s.hashCode();
+		int h = 0;
+		for (int i = 0; i < s.length(); i++)
+			h = 31 * h + s.charAt(i);
+		return h;
+	}
+
+	private static int entryHash(int term, int page) {
+		return mix(term * 0x9E3779B9 + page);
+	}
+
+	/** Spread the bits, hashCode()s of strings cluster in the low bits. */
+	private static int mix(int h) {
+		h ^= (h >>> 16);
+		h *= 0x85EBCA6B;
+		h ^= (h >>> 13);
+		return h;
+	}
+
+	private static int tableSize(int expected) {
+		int size = 16;
+		while (size < expected * 2)
+			size <<= 1;
+		return size;
+	}
+
+	private static int[] grow(int[] a, int n) {
+		int[] b = new int[n];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static String[] grow(String[] a) {
+		String[] b = new String[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	/** @return the rank of each key in sorted order */
+	private static int[] rank(final String[] keys) {
+		int[] order = new int[keys.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		sort(order, new IntComparator() {
+			public int compare(int a, int b) {
+				return keys[a].compareTo(keys[b]);
+			}
+		});
+		int[] rank = new int[keys.length];
+		for (int i = 0; i < order.length; i++)
+			rank[order[i]] = i;
+		return rank;
+	}
+
+	private interface IntComparator {
+		int compare(int a, int b);
+	}
+
+	/** Merge sort, so we don't have to box the entry numbers to use a Comparator. */
+	private static void sort(int[] a, IntComparator c) {
+		int[] tmp = new int[a.length];
+		for (int width = 1; width < a.length; width *= 2) {
+			for (int lo = 0; lo < a.length - width; lo += 2 * width) {
+				int mid = lo + width;
+				int hi = Math.min(lo + 2 * width, a.length);
+				int i = lo, j = mid, k = lo;
+				while (i < mid && j < hi)
+					tmp[k++] = (c.compare(a[i], a[j]) <= 0) ? a[i++] : a[j++];
+				while (i < mid)
+					tmp[k++] = a[i++];
+				while (j < hi)
+					tmp[k++] = a[j++];
+				System.arraycopy(tmp, lo, a, lo, hi - lo);
+			}
+		}
+	}
+}
@@ -37,6 +37,20 @@ public interface FieldIndex<T extends IPersistent> extends GenericIndex<T>
      */
     public T set(T obj);
 
+    /**
+     * Put objects in the index in ascending order of their keys.
+     * If the index is empty, the B-Tree is built bottom-up: each page is written once and completely filled,
+     * so loading is much faster than inserting the objects one by one and the resulting index is more compact.
+     * When the next object has smaller key than the previous one, this and all following objects
+     * are inserted in the usual way, so the result is correct for any order, only slower.
+     * Objects with duplicate keys are skipped if the index is unique.
+     * Objects can be not yet persistent, in this case
+     * they are forced to become persistent by assigning OID to them.
+     * @param objects iterator through the objects sorted by the value of the indexed field
+     * @return number of objects inserted in the index
+     */
+    public int bulkLoad(Iterator<T> objects);
+
     /**
      * Assign to the integer indexed field unique autoicremented value and 
      * insert object in the index. 
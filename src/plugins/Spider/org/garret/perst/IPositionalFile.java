@@ -0,0 +1,17 @@
+package plugins.Spider.org.garret.perst;
+
+/**
+ * File which is accessed only at the positions passed to its methods, without any state
+ * shared between the calls, so that <code>read</code> and <code>write</code> may be called
+ * concurrently: the page pool doesn't serialize the access to such files.
+ * Such file can also write a run of adjacent pages with one call.
+ */
+public interface IPositionalFile extends IFile { 
+    /**
+     * Write adjacent pages to the file
+     * @param pos offset in the file of the first page
+     * @param pages arrays with data of the pages (size of each is equal to database page size)
+     * @param nPages number of pages to be written
+     */
+    void write(long pos, byte[][] pages, int nPages);
+}
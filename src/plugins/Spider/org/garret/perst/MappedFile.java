@@ -3,56 +3,138 @@ package plugins.Spider.org.garret.perst;
 import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
-
-import plugins.Spider.org.garret.perst.impl.OSFile;
+import java.util.ArrayList;
 
 /**
  * Class using NIO mapping file on virtual mapping.
  * Useing this class instead standard OSFile can significantly increase
- * speed of application in some cases. 
+ * speed of application in some cases.<P>
+ * The file is mapped in segments of fixed size (64Mb by default), so it is not limited to 2Gb
+ * and the full segments never have to be remapped when the file grows. The last segment is only
+ * mapped up to the end of the file, which mapping extends the file to, so that a small database
+ * isn't extended to a whole segment; it is remapped twice as large when a write goes past it.
+ * Reads and writes don't change the state of the mapped buffers, so concurrent access
+ * from several threads is safe. <code>sync</code> forces only the segments written
+ * since the previous <code>sync</code>.
  */
-public class MappedFile implements IFile { 
-    private final void checkSize(long size) throws IOException { 
-        if (size > mapSize) { 
-            long newSize = mapSize < Integer.MAX_VALUE/2 ? mapSize*2 : Integer.MAX_VALUE;
-            if (newSize < size) { 
-                newSize = size;
+public class MappedFile implements IPositionalFile { 
+    public static final int DEFAULT_SEGMENT_SIZE = 64*1024*1024;
+
+    /**
+     * Segment <code>i</code>, mapped at least up to offset <code>end</code> in it
+     */
+    private MappedByteBuffer segment(int i, int end) throws IOException { 
+        MappedByteBuffer[] s = segments;
+        return i < s.length && s[i].limit() >= end ? s[i] : map(i, end);
+    }
+
+    private synchronized MappedByteBuffer map(int i, int end) throws IOException { 
+        MappedByteBuffer[] s = segments;
+        if (i >= s.length) { 
+            MappedByteBuffer[] newSegments = new MappedByteBuffer[i+1];
+            boolean[] newDirty = new boolean[i+1];
+            System.arraycopy(s, 0, newSegments, 0, s.length);
+            System.arraycopy(dirty, 0, newDirty, 0, s.length);
+            // the segments before the last one are mapped whole
+            if (s.length != 0 && s[s.length-1].limit() < segmentSize) { 
+                newSegments[s.length-1] = mapSegment(s.length-1, segmentSize);
+            }
+            for (int j = s.length; j < i; j++) { 
+                newSegments[j] = mapSegment(j, segmentSize);
             }
-            mapSize = newSize;
-            map = chan.map(FileChannel.MapMode.READ_WRITE,
-                           0, // position
-                           mapSize);
+            dirty = newDirty;
+            segments = s = newSegments;
         }
+        if (s[i] == null || s[i].limit() < end) { 
+            // buffers of the previous mapping still in use by other threads map the same file pages
+            int size = s[i] == null ? end : Math.max(end, s[i].limit()*2);
+            MappedByteBuffer[] newSegments = (MappedByteBuffer[])s.clone();
+            newSegments[i] = mapSegment(i, Math.min(size, segmentSize));
+            segments = s = newSegments;
+        }
+        return s[i];
+    }
+
+    private MappedByteBuffer mapSegment(int i, int size) throws IOException { 
+        return chan.map(FileChannel.MapMode.READ_WRITE, (long)i << segmentBits, size);
     }
 
-    public void write(long pos, byte[] buf) 
+    private synchronized void setDirty(int i) { 
+        dirty[i] = true;
+    }
+
+    public void write(long pos, byte[] buf)
     {
+        if (readOnly) { 
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, "File is opened in read-only mode");
+        }
         try { 
-            checkSize(pos + buf.length);
-            map.position((int)pos);
-            map.put(buf, 0, buf.length);
+            int done = 0;
+            while (done < buf.length) { 
+                int i = (int)(pos >>> segmentBits);
+                int offs = (int)pos & (segmentSize - 1);
+                int n = Math.min(buf.length - done, segmentSize - offs);
+                ByteBuffer b = segment(i, offs + n).duplicate();
+                b.position(offs);
+                b.put(buf, done, n);
+                setDirty(i);
+                done += n;
+                pos += n;
+            }
         } catch (IOException x) { 
             throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
         }
     }
 
-    public int read(long pos, byte[] buf) 
-    { 
-        if (pos >= mapSize) { 
-            return 0;
+    public void write(long pos, byte[][] pages, int nPages)
+    {
+        for (int i = 0; i < nPages; i++) { 
+            write(pos, pages[i]);
+            pos += pages[i].length;
         }
-        map.position((int)pos);
-        map.get(buf, 0, buf.length);
-        return buf.length;
     }
-        
+
+    public int read(long pos, byte[] buf)
+    {
+        MappedByteBuffer[] s = segments;
+        int done = 0;
+        while (done < buf.length) { 
+            int i = (int)(pos >>> segmentBits);
+            if (i >= s.length) { 
+                break;
+            }
+            int offs = (int)pos & (segmentSize - 1);
+            int n = Math.min(buf.length - done, s[i].limit() - offs);
+            if (n <= 0) { 
+                break;
+            }
+            ByteBuffer b = s[i].duplicate();
+            b.position(offs);
+            b.get(buf, done, n);
+            done += n;
+            pos += n;
+        }
+        return done;
+    }
+
     public void sync()
-    { 
-        map.force();
+    {
+        ArrayList modified = new ArrayList();
+        synchronized (this) { 
+            for (int i = 0; i < dirty.length; i++) { 
+                if (dirty[i]) { 
+                    dirty[i] = false;
+                    modified.add(segments[i]);
+                }
+            }
+        }
+        for (int i = 0, n = modified.size(); i < n; i++) { 
+            ((MappedByteBuffer)modified.get(i)).force();
+        }
     }
-    
-    public void close() 
-    { 
+
+    public void close()
+    {
         try { 
             chan.close();
             f.close();
@@ -61,8 +143,8 @@ public class MappedFile implements IFile {
         }
     }
 
-    public boolean tryLock(boolean shared) 
-    { 
+    public boolean tryLock(boolean shared)
+    {
         try { 
             lck = chan.tryLock(0, Long.MAX_VALUE, shared);
             return lck != null;
@@ -70,8 +152,8 @@ public class MappedFile implements IFile {
             return true;
         }
     }
-    public void lock(boolean shared) 
-    { 
+    public void lock(boolean shared)
+    {
         try { 
             lck = chan.lock(0, Long.MAX_VALUE, shared);
         } catch (IOException x) { 
@@ -79,8 +161,8 @@ public class MappedFile implements IFile {
         }
     }
 
-    public void unlock() 
-    { 
+    public void unlock()
+    {
         try { 
             lck.release();
         } catch (IOException x) { 
@@ -96,24 +178,57 @@ public class MappedFile implements IFile {
         }
     }
 
+    /**
+     * Constructor of mapped file using segments of <code>DEFAULT_SEGMENT_SIZE</code> bytes
+     * @param filePath path to the file
+     * @param initialSize size to which the file is extended when it is smaller
+     * @param readOnly whether the file is opened in read-only mode
+     */
     public MappedFile(String filePath, long initialSize, boolean readOnly) { 
+        this(filePath, initialSize, DEFAULT_SEGMENT_SIZE, readOnly);
+    }
+
+    /**
+     * Constructor of mapped file
+     * @param filePath path to the file
+     * @param initialSize size to which the file is extended when it is smaller
+     * @param segmentSize size of the mapped segments, rounded up to a power of 2.
+     * It should be a multiple of the page size, so that pages don't cross segment boundaries.
+     * @param readOnly whether the file is opened in read-only mode
+     */
+    public MappedFile(String filePath, long initialSize, int segmentSize, boolean readOnly) { 
+        segmentBits = 12;
+        while ((1 << segmentBits) < segmentSize && segmentBits < 30) { 
+            segmentBits += 1;
+        }
+        this.segmentSize = 1 << segmentBits;
+        this.readOnly = readOnly;
         try { 
             f = new RandomAccessFile(filePath, readOnly ? "r" : "rw");
             chan = f.getChannel();
             long size = chan.size();
-            mapSize = (readOnly || size > initialSize) ? size : initialSize;
-            map = chan.map(readOnly
-                           ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
-                           0, // position
-                           mapSize);
+            long mapSize = (readOnly || size > initialSize) ? size : initialSize;
+            int nSegments = (int)((mapSize + this.segmentSize - 1) >>> segmentBits);
+            segments = new MappedByteBuffer[nSegments];
+            dirty = new boolean[nSegments];
+            for (int i = 0; i < nSegments; i++) { 
+                long offs = (long)i << segmentBits;
+                int segSize = (int)Math.min(this.segmentSize, mapSize - offs);
+                segments[i] = readOnly
+                    ? chan.map(FileChannel.MapMode.READ_ONLY, offs, segSize)
+                    : mapSegment(i, segSize);
+            }
         } catch(IOException x) { 
             throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
         }
     }
 
     RandomAccessFile f;
-    MappedByteBuffer map;
     FileChannel      chan;
-    long             mapSize;
     FileLock         lck;
+    boolean          readOnly;
+    int              segmentBits;
+    int              segmentSize;
+    volatile MappedByteBuffer[] segments;
+    boolean[]        dirty;
 }
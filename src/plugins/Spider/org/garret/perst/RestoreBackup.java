@@ -0,0 +1,70 @@
+package plugins.Spider.org.garret.perst;
+
+import java.io.*;
+
+/**
+ * Utility used to restore database from backups made by <code>Storage.backup(OutputStream, long)</code>.
+ * Full backup should be restored first, and then incremental backups in the order they were made.
+ */
+public class RestoreBackup {
+    public static final int MAGIC = 0x50425550;
+
+    /**
+     * This utility accepts path to database file followed by paths to backup files.
+     */
+    public static void main(String[] args) throws IOException { 
+        if (args.length < 2) { 
+            System.err.println("Usage: java plugins.Spider.org.garret.perst.RestoreBackup DATABASE_FILE_PATH FULL_BACKUP_PATH [INCREMENTAL_BACKUP_PATH...]");
+            return;
+        }
+        long transactionId = 0;
+        for (int i = 1; i < args.length; i++) { 
+            InputStream in = new BufferedInputStream(new FileInputStream(args[i]));
+            try { 
+                transactionId = restore(in, args[0], transactionId);
+            } finally { 
+                in.close();
+            }
+            System.out.println("Backup " + args[i] + " of transaction " + transactionId + " is restored");
+        }
+    }
+
+    /**
+     * Write pages of the backup to the database file
+     * @param in input stream with backup
+     * @param filePath path to database file. It is created by full backup.
+     * @param transactionId identifier of transaction of the last backup restored in this file, 0 if none
+     * @return identifier of transaction of the restored backup
+     */
+    public static long restore(InputStream in, String filePath, long transactionId) throws IOException { 
+        DataInputStream din = new DataInputStream(in);
+        if (din.readInt() != MAGIC) { 
+            throw new IOException("Not a database backup");
+        }
+        int pageSize = din.readInt();
+        long sinceTransactionId = din.readLong();
+        long snapshotId = din.readLong();
+        int nPages = din.readInt();
+        if (sinceTransactionId > transactionId || (sinceTransactionId != 0 && transactionId == 0)) { 
+            throw new IOException("Backup contains changes since transaction " + sinceTransactionId 
+                                  + " but database is restored to transaction " + transactionId);
+        }
+        RandomAccessFile f = new RandomAccessFile(filePath, "rw");
+        try { 
+            if (sinceTransactionId == 0) { 
+                f.setLength(0);
+            }
+            byte[] page = new byte[pageSize];
+            long pos;
+            while ((pos = din.readLong()) >= 0) { 
+                din.readFully(page);
+                f.seek(pos);
+                f.write(page);
+            }
+            f.setLength((long)nPages*pageSize);
+        } finally { 
+            f.close();
+        }
+        return snapshotId;
+    }
+}
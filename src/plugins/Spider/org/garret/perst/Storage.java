@@ -108,6 +108,19 @@ public interface Storage {
      */
     public void backup(java.io.OutputStream out) throws java.io.IOException;
 
+    /**
+     * Online backup of the last committed state of database. Unlike <code>backup(OutputStream)</code>,
+     * the storage is locked only to take the snapshot, and pages are written while the application
+     * continues to work: pages changed before they are written are preserved in memory until the backup is completed.
+     * Backup is restored using <code>RestoreBackup</code> utility. It is not supported in multiclient access mode.
+     * @param out output stream to which backup is done
+     * @param sinceTransactionId 0 for full backup, or identifier returned by the previous backup for 
+     * incremental backup, which contains only pages changed after that backup. Changes are only tracked
+     * since the storage was opened, so backup since transaction committed before it contains all pages.
+     * @return identifier of the backed up transaction, to be passed to the next incremental backup
+     */
+    public long backup(java.io.OutputStream out, long sinceTransactionId) throws java.io.IOException;
+
     /**
      * Exclusive per-thread transaction: each thread access database in exclusive mode
      */
@@ -190,7 +203,12 @@ public interface Storage {
      * If system crash happens a large amount of work will be lost in this case. 
      * To prevent such scenario, it is possible to specify maximal delay of pending transaction commit.
      * In this case when such timeout is expired, new cooperative transaction will be blocked until
-     * transaction is committed.
+     * transaction is committed.<br>
+     * The commit is delayed also when there are no other active transactions (this applies to exclusive
+     * transactions too): the work is committed by a background thread when the timeout is expired,
+     * or by a transaction which is ended after that. So several transactions share one commit, but 
+     * a crash can lose the work of transactions ended during the last <code>maxDelay</code> milliseconds, 
+     * and <code>rollbackThreadTransaction</code> rolls back all uncommitted work.
      * @param maxDelay maximal delay in milliseconds of committing transaction.  Please notice, that Perst could 
      * not force other threads to commit their cooperative transactions when this timeout is expired. It will only
      * block new cooperative transactions to make it possible to current transaction to complete their work.
@@ -365,6 +383,20 @@ public interface Storage {
      */
     public <T extends IPersistent> FieldIndex<T> createFieldIndex(Class type, String fieldName, boolean unique, boolean caseInsensitive);
 
+    /**
+     * Create new field index for string or byte array keys which are stored with prefix compression:
+     * each key on the B-Tree page keeps only the part which differs from the previous key.
+     * It significantly increases number of keys per page for long keys with common prefixes (URLs, paths).
+     * This index is always based on the B-Tree pages, regardless of "perst.alternative.btree" property.
+     * @param type objects of which type (or derived from which type) will be included in the index
+     * @param fieldName name of the index field. Field with such name should be present in specified class <code>type</code>
+     * @param unique whether index is unique (duplicate value of keys are not allowed)
+     * @return persistent object implementing field index
+     * @exception StorageError(StorageError.INDEXED_FIELD_NOT_FOUND) if there is no such field in specified class,<BR> 
+     * StorageError(StorageError.UNSUPPORTED_INDEX_TYPE) exception if type of specified field is neither <code>String</code> nor <code>byte[]</code>
+     */
+    public <T extends IPersistent> FieldIndex<T> createPrefixCompressedFieldIndex(Class type, String fieldName, boolean unique);
+
     /**
      * Create new mutlifield index
      * @param type objects of which type (or derived from which type) will be included in the index
@@ -638,7 +670,7 @@ public interface Storage {
      * </TD></TR>
      * <TR><TD><code>perst.object.cache.kind</code></TD><TD>String</TD><TD>"lru"</TD>
      * <TD>Kind of object cache. The following values are supported:
-     * "strong", "weak", "soft",  "pinned", "lru". <B>Strong</B> cache uses strong (normal) 
+     * "strong", "weak", "soft",  "pinned", "lru", "striped", "striped.lru". <B>Strong</B> cache uses strong (normal) 
      * references to refer persistent objects. Thus none of loaded persistent objects
      * can be deallocated by GC. <B>Weak</B> cache use weak references and
      * soft cache - <B>soft</B> references. The main difference between soft and weak references is
@@ -657,6 +689,9 @@ public interface Storage {
      * objects are kept in memory and are flushed to the disk only at the end of transaction. 
      * So the size of transaction is limited by amount of main memory. Non-modified objects are accessed only 
      * through weak references so them are not protected from GC and can be thrown away.    
+     * <B>Striped</B> cache behaves like pinned cache, and <B>striped.lru</B> cache also keeps the most recently 
+     * used objects like lru cache, but they are split in stripes with separate locks, so that threads 
+     * looking up different objects don't wait for each other.
      * </TD></TR>
      * <TR><TD><code>perst.object.index.init.size</code></TD><TD>Integer</TD><TD>1024</TD>
      * <TD>Initial size of object index (specifying large value increase initial size of database, but reduce
@@ -688,6 +723,12 @@ public interface Storage {
      * the problem, because all data which were written to the file, but is not yet saved to the disk is 
      * stored in OS file buffers and sooner or later them will be written to the disk)
      * </TD></TR>
+     * <TR><TD><code>perst.file.channel</code></TD><TD>Boolean</TD><TD>false</TD>
+     * <TD>Database file opened by <code>open(String filePath)</code> is accessed using positional reads 
+     * and writes of its NIO channel (<code>ChannelFile</code>) instead of seek and read/write. 
+     * Pages are then read concurrently by several threads, and adjacent dirty pages are written 
+     * together during commit.
+     * </TD></TR>
      * <TR><TD><code>perst.alternative.btree</code></TD><TD>Boolean</TD><TD>false</TD>
      * <TD>Use aternative implementation of B-Tree (not using direct access to database
      * file pages). This implementation should be used in case of serialized per thread transctions.
@@ -701,6 +742,12 @@ public interface Storage {
      * <TR><TD><code>perst.background.gc</code></TD><TD>Boolean</TD><TD>false</TD>
      * <TD>Perform garbage collection in separate thread without blocking the main application.
      * </TD></TR>
+     * <TR><TD><code>perst.gc.slice</code></TD><TD>Integer</TD><TD>0</TD>
+     * <TD>Perform garbage collection incrementally: objects are marked and deallocated in time slices 
+     * of the specified number of milliseconds, performed after commit of transactions.
+     * Objects stored while collection is in progress are considered to be reachable.
+     * Incremental collection is used instead of background collection when both are enabled.
+     * </TD></TR>
      * <TR><TD><code>perst.string.encoding</code></TD><TD>String</TD><TD>null</TD>
      * <TD>Specifies encoding of storing strings in the database. By default Perst stores 
      * strings as sequence of chars (two bytes per char). If all strings in application are in 
@@ -761,6 +808,28 @@ public interface Storage {
      * methods. For read only access use READ_ONLY_TRANSACTION mode and if transaction may modify database then
      * READ_WRITE_TRANSACTION mode should be used.
      * </TD></TR>
+     * <TR><TD><code>perst.wal</code></TD><TD>Boolean or String</TD><TD>false</TD>
+     * <TD>Commit through a write-ahead log instead of writing and syncing the modified pages and 
+     * the header of the database file. A commit appends the new images of the pages to the log and 
+     * syncs only the log; threads committing at the same time share one sync (group commit).
+     * The pages are written to the database file by a background checkpoint.
+     * If the value is a string, it is the path of the log file, otherwise the log is
+     * the database file path with ".wal" appended (which requires opening the storage by path).
+     * The log is replayed when the storage is opened and deleted when it is closed.
+     * Not supported in multiclient and read-only modes.
+     * </TD></TR>
+     * <TR><TD><code>perst.wal.checkpoint.interval</code></TD><TD>Long</TD><TD>1000</TD>
+     * <TD>Interval in milliseconds between checkpoints of the write-ahead log.
+     * </TD></TR>
+     * <TR><TD><code>perst.wal.max.size</code></TD><TD>Long</TD><TD>64Mb</TD>
+     * <TD>Size of the write-ahead log after which a checkpoint is started without waiting
+     * for the checkpoint interval.
+     * </TD></TR>
+     * <TR><TD><code>perst.page.writer.interval</code></TD><TD>Long</TD><TD>0</TD>
+     * <TD>Interval in milliseconds at which a background thread writes the dirty pages which are not
+     * in use to the database file, so that commit has less to write before syncing the file.
+     * 0 disables the thread. It is not used with the write-ahead log, whose checkpoints do the same.
+     * </TD></TR>
      * </TABLE>
      * @param name name of the property
      * @param value value of the property (for boolean properties pass <code>java.lang.Boolean.TRUE</code>
@@ -38,6 +38,16 @@ public abstract class StorageListener {
      */
     public void gcCompleted(int nDeallocatedObjects) {}
 
+    /**
+     * This method is called after each time slice of incremental garbage collection
+     * (see <code>perst.gc.slice</code> property)
+     * @param nMarkedObjects number of objects marked so far
+     * @param nSweptObjects number of object identifiers checked by sweep so far,
+     * 0 while objects are still marked
+     * @param nObjects number of object identifiers in the database
+     */
+    public void gcProgress(int nMarkedObjects, int nSweptObjects, int nObjects) {}
+
     /**
      * Handle replication error 
      * @param host address of host replication to which is failed (null if error jappens at slave node)
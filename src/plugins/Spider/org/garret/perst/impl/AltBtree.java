@@ -952,51 +952,56 @@ class AltBtree<T extends IPersistent> extends PersistentCollection<T> implements
     }
 
     final void allocateRootPage(BtreeKey ins) { 
+        BtreePage newRoot = newPage();
+        newRoot.insert(ins, 0);
+        newRoot.items.setObject(1, root);
+        newRoot.nItems = 1;
+        root = newRoot;
+    }
+
+    final BtreePage newPage() { 
         Storage s = getStorage();
-        BtreePage newRoot = null;
+        BtreePage pg = null;
         switch (type) { 
         case ClassDescriptor.tpByte:
-            newRoot = new BtreePageOfByte(s);
+            pg = new BtreePageOfByte(s);
             break;
         case ClassDescriptor.tpShort:
-            newRoot = new BtreePageOfShort(s);
+            pg = new BtreePageOfShort(s);
             break;
         case ClassDescriptor.tpChar:
-            newRoot = new BtreePageOfChar(s);
+            pg = new BtreePageOfChar(s);
             break;
         case ClassDescriptor.tpBoolean:
-            newRoot = new BtreePageOfBoolean(s);
+            pg = new BtreePageOfBoolean(s);
             break;
         case ClassDescriptor.tpInt:
         case ClassDescriptor.tpEnum:
-            newRoot = new BtreePageOfInt(s);
+            pg = new BtreePageOfInt(s);
             break;
         case ClassDescriptor.tpLong:
         case ClassDescriptor.tpDate:
-            newRoot = new BtreePageOfLong(s);
+            pg = new BtreePageOfLong(s);
             break;
         case ClassDescriptor.tpFloat:
-            newRoot = new BtreePageOfFloat(s);
+            pg = new BtreePageOfFloat(s);
             break;
         case ClassDescriptor.tpDouble:
-            newRoot = new BtreePageOfDouble(s);
+            pg = new BtreePageOfDouble(s);
             break;
         case ClassDescriptor.tpObject:
-            newRoot = new BtreePageOfObject(s);
+            pg = new BtreePageOfObject(s);
             break;
         case ClassDescriptor.tpString:
-            newRoot = new BtreePageOfString(s);
+            pg = new BtreePageOfString(s);
             break;
         case ClassDescriptor.tpRaw:
-            newRoot = new BtreePageOfRaw(s);
+            pg = new BtreePageOfRaw(s);
             break;
         default:
             Assert.failed("Invalid type");
         }
-        newRoot.insert(ins, 0);
-        newRoot.items.setObject(1, root);
-        newRoot.nItems = 1;
-        root = newRoot;
+        return pg;
     }
 
     final T insert(Key key, T obj, boolean overwrite) {
@@ -1441,11 +1446,14 @@ class AltBtree<T extends IPersistent> extends PersistentCollection<T> implements
                         till = nextKey;
                     }
                     IPersistent next = nextObj;
+                    Key key = nextKey;
                     reset();
-                    while (true) { 
+                    // skip items with the same key preceding the next one; if next item was removed, 
+                    // continue from the first item with another key
+                    while (sp != 0) { 
                         int pos = posStack[sp-1];   
                         BtreePage pg = pageStack[sp-1];
-                        if (!pg.items.getRaw(pos).equals(next)) { 
+                        if (!pg.items.getRaw(pos).equals(next) && pg.compare(key, pos) == 0) { 
                             gotoNextItem(pg, pos);
                         } else { 
                             break;
@@ -1572,5 +1580,65 @@ class AltBtree<T extends IPersistent> extends PersistentCollection<T> implements
     public boolean isUnique() {
         return unique;
     }
+
+    class Loader extends BtreeLoader { 
+        int maxItems;
+
+        Loader() { 
+            super(AltBtree.this.unique);
+            maxItems = newPage().items.size();
+        }
+
+        int compare(Key a, Key b) { 
+            switch (type) { 
+              case ClassDescriptor.tpString:
+                return ((String)a.oval).compareTo((String)b.oval);
+              case ClassDescriptor.tpRaw:
+                return ((Comparable)a.oval).compareTo(b.oval);
+              case ClassDescriptor.tpLong:
+              case ClassDescriptor.tpDate:
+                return a.lval < b.lval ? -1 : a.lval == b.lval ? 0 : 1;
+              case ClassDescriptor.tpFloat:
+              case ClassDescriptor.tpDouble:
+                return a.dval < b.dval ? -1 : a.dval == b.dval ? 0 : 1;
+              default:
+                return a.ival < b.ival ? -1 : a.ival == b.ival ? 0 : 1;
+            }
+        }
+
+        int keySize(Key key, Key prev, int pos) { 
+            return 0;
+        }
+
+        boolean fits(int size, int nItems) { 
+            return nItems <= maxItems;
+        }
+
+        boolean underflow(int size, int nItems) { 
+            return nItems < maxItems/2;
+        }
+
+        Object writeNode(Key[] keys, Object[] refs, int from, int till, int height) { 
+            BtreePage pg = newPage();
+            int n = height == 0 ? till - from : till - from - 1;
+            for (int i = 0; i < n; i++) { 
+                pg.insert(new BtreeKey(keys[from + i], (IPersistent)refs[from + i]), i);
+            }
+            if (height != 0) { 
+                pg.items.setObject(n, (IPersistent)refs[till - 1]);
+            }
+            pg.nItems = n;
+            pg.store();
+            return pg;
+        }
+
+        void setRoot(Object root, int height, int nElems) { 
+            AltBtree.this.root = (BtreePage)root;
+            AltBtree.this.height = height;
+            AltBtree.this.nElems = nElems;
+            updateCounter += 1;
+            modify();
+        }
+    }
 }
 
@@ -109,6 +109,30 @@ class AltBtreeFieldIndex<T extends IPersistent> extends AltBtree<T> implements F
         return super.insert(extractKey(obj), obj, false) == null;
     }
 
+    public int bulkLoad(Iterator<T> objects) {
+        Loader loader = root == null ? new Loader() : null;
+        int n = 0;
+        while (objects.hasNext()) { 
+            T obj = objects.next();
+            Key key = extractKey(obj);
+            if (loader != null) { 
+                int rc = loader.add(checkKey(key), obj);
+                if (rc >= 0) { 
+                    n += rc;
+                    continue;
+                }
+                loader = null;
+            }
+            if (super.insert(key, obj, false) == null) { 
+                n += 1;
+            }
+        }
+        if (loader != null) { 
+            loader.finish();
+        }
+        return n;
+    }
+
     public T set(T obj) {
         return super.set(extractKey(obj), obj);
     }
@@ -12,6 +12,7 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
     boolean   unique;
 
     transient int updateCounter;
+    transient boolean prefixCompressed;
 
     static final int sizeof = ObjectHeader.sizeof + 4*4 + 1;
 
@@ -122,6 +123,9 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
             if (key.oval instanceof String) { 
                 key = new Key(((String)key.oval).toCharArray(), key.inclusion != 0);
             }
+            if (prefixCompressed && key.oval instanceof char[]) { 
+                key = new Key(BtreePrefixPage.encode((char[])key.oval), key.inclusion != 0);
+            }
         }
         return key;
     }            
@@ -148,7 +152,11 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
         }
         ArrayList<T> list = new ArrayList<T>();
         if (root != 0) { 
-            BtreePage.prefixSearch((StorageImpl)getStorage(), root, key.toCharArray(), height, list);
+            if (prefixCompressed) { 
+                BtreePrefixPage.prefixSearch((StorageImpl)getStorage(), root, BtreePrefixPage.encode(key.toCharArray()), height, list);
+            } else { 
+                BtreePage.prefixSearch((StorageImpl)getStorage(), root, key.toCharArray(), height, list);
+            }
         }
         return list;
     }
@@ -203,12 +211,12 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
         }
         BtreeKey ins = new BtreeKey(key, obj.getOid());
         if (root == 0) { 
-            root = BtreePage.allocate(db, 0, type, ins);
+            root = allocateRoot(db, 0, ins);
             height = 1;
         } else { 
             int result = BtreePage.insert(db, root, this, ins, height, unique, overwrite);
             if (result == op_overflow) { 
-                root = BtreePage.allocate(db, root, type, ins);
+                root = allocateRoot(db, root, ins);
                 height += 1;
             } else if (result == op_duplicate) { 
                 return -1;
@@ -222,6 +230,12 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
         return 0;
     }
 
+    final int allocateRoot(StorageImpl db, int root, BtreeKey ins) { 
+        return prefixCompressed 
+            ? BtreePrefixPage.allocate(db, root, ins)
+            : BtreePage.allocate(db, root, type, ins);
+    }
+
     public void remove(Key key, T obj) {
         remove(new BtreeKey(checkKey(key), obj.getOid()));
     }
@@ -263,7 +277,7 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
             }
             db.pool.unfix(pg);
         } else if (result == op_overflow) { 
-            root = BtreePage.allocate(db, root, type, rem);
+            root = allocateRoot(db, root, rem);
             height += 1;
         }
         updateCounter += 1;
@@ -414,7 +428,11 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
     public void export(XMLExporter exporter) throws java.io.IOException 
     { 
         if (root != 0) { 
-            BtreePage.exportPage((StorageImpl)getStorage(), exporter, root, type, height);
+            if (prefixCompressed) { 
+                BtreePrefixPage.exportPage((StorageImpl)getStorage(), exporter, root, type, height);
+            } else { 
+                BtreePage.exportPage((StorageImpl)getStorage(), exporter, root, type, height);
+            }
         }
     }        
 
@@ -487,9 +505,9 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
           case ClassDescriptor.tpEnum:
             return unpackEnum(Bytes.unpack4(data, offs));
           case ClassDescriptor.tpString:
-            return unpackStrKey(pg, pos);
+            return prefixCompressed ? BtreePrefixPage.unpackKey(pg, pos) : unpackStrKey(pg, pos);
           case ClassDescriptor.tpArrayOfByte:
-            return unpackByteArrayKey(pg, pos);
+            return prefixCompressed ? BtreePrefixPage.getKey(pg, pos) : unpackByteArrayKey(pg, pos);
           default:
             Assert.failed("Invalid type");
         }
@@ -526,7 +544,16 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
     }
 
 
+    final int compareStr(Key key, Page pg, int i) { 
+        return prefixCompressed 
+            ? BtreePrefixPage.compare(key, pg, i)
+            : BtreePage.compareStr(key, pg, i);
+    }
+
     final int compareByteArrays(Key key, Page pg, int i) { 
+        if (prefixCompressed) { 
+            return BtreePrefixPage.compare(key, pg, i);
+        }
         return compareByteArrays((byte[])key.oval, 
                                  pg.data, 
                                  BtreePage.getKeyStrOffs(pg, i) + BtreePage.firstKeyOffs, 
@@ -580,7 +607,7 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
                             r = BtreePage.getnItems(pg);
                             while (l < r)  {
                                 i = (l+r) >> 1;
-                                if (BtreePage.compareStr(from, pg, i) >= from.inclusion) {
+                                if (compareStr(from, pg, i) >= from.inclusion) {
                                     l = i + 1; 
                                 } else { 
                                     r = i;
@@ -598,7 +625,7 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
                         end = r = BtreePage.getnItems(pg);
                         while (l < r)  {
                             i = (l+r) >> 1;
-                            if (BtreePage.compareStr(from, pg, i) >= from.inclusion) {
+                            if (compareStr(from, pg, i) >= from.inclusion) {
                                 l = i + 1; 
                             } else { 
                                 r = i;
@@ -615,7 +642,7 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
                     }
                     if (sp != 0 && till != null) { 
                         Page pg = db.getPage(pageStack[sp-1]);
-                        if (-BtreePage.compareStr(till, pg, posStack[sp-1]) >= till.inclusion) { 
+                        if (-compareStr(till, pg, posStack[sp-1]) >= till.inclusion) { 
                             sp = 0;
                         }
                         db.pool.unfix(pg);
@@ -642,7 +669,7 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
                             r = BtreePage.getnItems(pg);
                             while (l < r)  {
                                 i = (l+r) >> 1;
-                                if (BtreePage.compareStr(till, pg, i) >= 1-till.inclusion) {
+                                if (compareStr(till, pg, i) >= 1-till.inclusion) {
                                     l = i + 1; 
                                 } else { 
                                     r = i;
@@ -660,7 +687,7 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
                         r = BtreePage.getnItems(pg);
                         while (l < r)  {
                             i = (l+r) >> 1;
-                            if (BtreePage.compareStr(till, pg, i) >= 1-till.inclusion) {
+                            if (compareStr(till, pg, i) >= 1-till.inclusion) {
                                 l = i + 1; 
                             } else { 
                                 r = i;
@@ -677,7 +704,7 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
                     }
                     if (sp != 0 && from != null) { 
                         Page pg = db.getPage(pageStack[sp-1]);
-                        if (BtreePage.compareStr(from, pg, posStack[sp-1]) >= from.inclusion) { 
+                        if (compareStr(from, pg, posStack[sp-1]) >= from.inclusion) { 
                             sp = 0;
                         }
                         db.pool.unfix(pg);
@@ -1017,7 +1044,7 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
                     } else { 
                         posStack[sp-1] = pos;
                     }
-                    if (sp != 0 && till != null && -BtreePage.compareStr(till, pg, pos) >= till.inclusion) { 
+                    if (sp != 0 && till != null && -compareStr(till, pg, pos) >= till.inclusion) { 
                         sp = 0;
                     }
                 } else { // descent order
@@ -1042,7 +1069,7 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
                     } else { 
                         posStack[sp-1] = pos;
                     }
-                    if (sp != 0 && from != null && BtreePage.compareStr(from, pg, pos) >= from.inclusion) { 
+                    if (sp != 0 && from != null && compareStr(from, pg, pos) >= from.inclusion) { 
                         sp = 0;
                     }                    
                 }
@@ -1168,15 +1195,16 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
                         till = nextKey.key;
                     }
                     int next = nextKey.oid;
+                    Key key = nextKey.key;
                     reset();
                     StorageImpl db = (StorageImpl)getStorage();
-                    while (true) { 
+                    // skip items with the same key preceding the next one; if next item was removed, 
+                    // continue from the first item with another key
+                    while (sp != 0) { 
                         int pos = posStack[sp-1];   
                         Page pg = db.getPage(pageStack[sp-1]);
-                        int oid = type == ClassDescriptor.tpString || type == ClassDescriptor.tpArrayOfByte
-                            ? BtreePage.getKeyStrOid(pg, pos)
-                            : BtreePage.getReference(pg, BtreePage.maxItems-1-pos);
-                        if (oid != next) { 
+                        BtreeKey curr = getCurrentKey(pg, pos);
+                        if (curr.oid != next && compareKeys(curr.key, key) == 0) { 
                             gotoNextItem(pg, pos);
                         } else { 
                             db.pool.unfix(pg);
@@ -1193,11 +1221,19 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
             switch (type) { 
             case ClassDescriptor.tpString:
                 key = new BtreeKey(null, BtreePage.getKeyStrOid(pg, pos));
-                key.getStr(pg, pos);
+                if (prefixCompressed) { 
+                    key.key = new Key(BtreePrefixPage.getKey(pg, pos));
+                } else { 
+                    key.getStr(pg, pos);
+                }
                 break;
             case ClassDescriptor.tpArrayOfByte:
                 key = new BtreeKey(null, BtreePage.getKeyStrOid(pg, pos));
-                key.getByteArray(pg, pos);
+                if (prefixCompressed) { 
+                    key.key = new Key(BtreePrefixPage.getKey(pg, pos));
+                } else { 
+                    key.getByteArray(pg, pos);
+                }
                 break;
             default:
                 key = new BtreeKey(null, BtreePage.getReference(pg, BtreePage.maxItems-1-pos));
@@ -1254,9 +1290,10 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
             StorageImpl db = (StorageImpl)getStorage();
             switch (type) { 
               case ClassDescriptor.tpString:
-                return new BtreeEntry<T>(db, unpackStrKey(pg, pos), BtreePage.getKeyStrOid(pg, pos));
+                return new BtreeEntry<T>(db, unpackKey(db, pg, pos), BtreePage.getKeyStrOid(pg, pos));
               case ClassDescriptor.tpArrayOfByte:
-                return new BtreeEntry<T>(db, unpackByteArrayKey(pg, pos), BtreePage.getKeyStrOid(pg, pos));
+                return new BtreeEntry<T>(db, prefixCompressed ? BtreePrefixPage.getKey(pg, pos) : unpackByteArrayKey(pg, pos), 
+                                         BtreePage.getKeyStrOid(pg, pos));
               default:
                 return new BtreeEntry<T>(db, unpackKey(db, pg, pos), BtreePage.getReference(pg, BtreePage.maxItems-1-pos));
             }
@@ -1334,5 +1371,164 @@ class Btree<T extends IPersistent> extends PersistentCollection<T> implements In
     public boolean isUnique() {
         return unique;
     }
+
+    /**
+     * Compare keys as they are stored in the pages (after <code>checkKey</code>)
+     */
+    final int compareKeys(Key a, Key b) { 
+        if (prefixCompressed) { 
+            // string keys are encoded to bytes
+            byte[] b1 = (byte[])a.oval;
+            byte[] b2 = (byte[])b.oval;
+            return BtreePrefixPage.compareBytes(b1, 0, b2, 0, b2.length);
+        }
+        switch (type) { 
+          case ClassDescriptor.tpString:
+            {
+                char[] s1 = (char[])a.oval;
+                char[] s2 = (char[])b.oval;
+                int n = s1.length < s2.length ? s1.length : s2.length;
+                for (int i = 0; i < n; i++) { 
+                    int diff = s1[i] - s2[i];
+                    if (diff != 0) { 
+                        return diff;
+                    }
+                }
+                return s1.length - s2.length;
+            }
+          case ClassDescriptor.tpArrayOfByte:
+            {
+                byte[] b1 = (byte[])a.oval;
+                byte[] b2 = (byte[])b.oval;
+                return compareByteArrays(b1, b2, 0, b2.length);
+            }
+          case ClassDescriptor.tpBoolean:
+          case ClassDescriptor.tpByte:
+            return (byte)a.ival - (byte)b.ival;
+          case ClassDescriptor.tpShort:
+            return (short)a.ival - (short)b.ival;
+          case ClassDescriptor.tpChar:
+            return (char)a.ival - (char)b.ival;
+          case ClassDescriptor.tpObject:
+          case ClassDescriptor.tpInt:
+          case ClassDescriptor.tpEnum:
+            return a.ival < b.ival ? -1 : a.ival == b.ival ? 0 : 1;
+          case ClassDescriptor.tpLong:
+          case ClassDescriptor.tpDate:
+            return a.lval < b.lval ? -1 : a.lval == b.lval ? 0 : 1;
+          case ClassDescriptor.tpFloat:
+          case ClassDescriptor.tpDouble:
+            return a.dval < b.dval ? -1 : a.dval == b.dval ? 0 : 1;
+          default:
+            Assert.failed("Invalid type");
+            return 0;
+        }
+    }
+
+    /**
+     * Bottom-up construction of the tree from the B-Tree pages (see <code>BtreeLoader</code>).
+     * References to the objects and pages are passed as <code>Integer</code> OIDs.
+     */
+    class Loader extends BtreeLoader { 
+        Loader() { 
+            super(Btree.this.unique);
+        }
+
+        int compare(Key a, Key b) { 
+            return compareKeys(a, b);
+        }
+
+        int keySize(Key key, Key prev, int pos) { 
+            if (prefixCompressed) { 
+                byte[] bval = (byte[])key.oval;
+                return pos % BtreePrefixPage.restartInterval != 0
+                    ? bval.length - BtreePrefixPage.getCommonPrefix(bval, (byte[])prev.oval)
+                    : bval.length;
+            }
+            switch (type) { 
+              case ClassDescriptor.tpString:
+                return ((char[])key.oval).length*2;
+              case ClassDescriptor.tpArrayOfByte:
+                return ((byte[])key.oval).length;
+              default:
+                return 0;
+            }
+        }
+
+        boolean fits(int size, int nItems) { 
+            return (type == ClassDescriptor.tpString || type == ClassDescriptor.tpArrayOfByte)
+                ? size + nItems*BtreePage.strKeySize <= BtreePage.keySpace
+                : nItems <= BtreePage.keySpace / (4 + ClassDescriptor.sizeof[type]);
+        }
+
+        boolean underflow(int size, int nItems) { 
+            return (type == ClassDescriptor.tpString || type == ClassDescriptor.tpArrayOfByte)
+                ? size + nItems*BtreePage.strKeySize < BtreePage.keySpace/2
+                : nItems < BtreePage.keySpace / (4 + ClassDescriptor.sizeof[type]) / 2;
+        }
+
+        Object writeNode(Key[] keys, Object[] refs, int from, int till, int height) { 
+            StorageImpl db = (StorageImpl)getStorage();
+            int pageId = db.allocatePage();
+            Page pg = db.putPage(pageId);
+            int n = height == 0 ? till - from : till - from - 1;
+            if (prefixCompressed) { 
+                byte[][] bkeys = new byte[n][];
+                int[] prefix = new int[n];
+                int[] oids = new int[till - from];
+                for (int i = 0; i < n; i++) { 
+                    bkeys[i] = (byte[])keys[from + i].oval;
+                    BtreePrefixPage.setPrefix(bkeys, prefix, i, n);
+                }
+                for (int i = from; i < till; i++) { 
+                    oids[i - from] = ((Integer)refs[i]).intValue();
+                }
+                BtreePrefixPage.pack(pg, bkeys, prefix, oids, 0, n, height);
+            } else if (type == ClassDescriptor.tpString || type == ClassDescriptor.tpArrayOfByte) { 
+                int size = 0;
+                for (int i = 0; i < n; i++) { 
+                    Object val = keys[from + i].oval;
+                    int len;
+                    if (type == ClassDescriptor.tpString) { 
+                        char[] sval = (char[])val;
+                        len = sval.length;
+                        size += len*2;
+                        BtreePage.setKeyStrChars(pg, BtreePage.keySpace - size, sval);
+                    } else { 
+                        byte[] bval = (byte[])val;
+                        len = bval.length;
+                        size += len;
+                        BtreePage.setKeyBytes(pg, BtreePage.keySpace - size, bval);
+                    }
+                    BtreePage.setKeyStrOffs(pg, i, BtreePage.keySpace - size);
+                    BtreePage.setKeyStrSize(pg, i, len);
+                    BtreePage.setKeyStrOid(pg, i, ((Integer)refs[from + i]).intValue());
+                }
+                if (height != 0) { 
+                    BtreePage.setKeyStrOid(pg, n, ((Integer)refs[till - 1]).intValue());
+                }
+                BtreePage.setnItems(pg, n);
+                BtreePage.setSize(pg, size);
+            } else { 
+                for (int i = 0; i < n; i++) { 
+                    new BtreeKey(keys[from + i], ((Integer)refs[from + i]).intValue()).pack(pg, i);
+                }
+                if (height != 0) { 
+                    BtreePage.setReference(pg, BtreePage.maxItems-n-1, ((Integer)refs[till - 1]).intValue());
+                }
+                BtreePage.setnItems(pg, n);
+            }
+            db.pool.unfix(pg);
+            return new Integer(pageId);
+        }
+
+        void setRoot(Object root, int height, int nElems) { 
+            Btree.this.root = ((Integer)root).intValue();
+            Btree.this.height = height;
+            Btree.this.nElems = nElems;
+            updateCounter += 1;
+            modify();
+        }
+    }
 }
 
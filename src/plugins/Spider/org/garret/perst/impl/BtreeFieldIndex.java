@@ -101,6 +101,9 @@ class BtreeFieldIndex<T extends IPersistent> extends Btree<T> implements FieldIn
               case ClassDescriptor.tpString:
                 key = new Key((String)f.get(obj));
                 break;
+              case ClassDescriptor.tpArrayOfByte:
+                key = new Key((byte[])f.get(obj));
+                break;
               default:
                 Assert.failed("Invalid type");
             }
@@ -118,6 +121,33 @@ class BtreeFieldIndex<T extends IPersistent> extends Btree<T> implements FieldIn
         return super.insert(extractKey(obj), obj, false) >= 0;
     }
 
+    public int bulkLoad(Iterator<T> objects) {
+        Loader loader = root == 0 ? new Loader() : null;
+        int n = 0;
+        while (objects.hasNext()) { 
+            T obj = objects.next();
+            Key key = extractKey(obj);
+            if (loader != null) { 
+                if (!obj.isPersistent()) { 
+                    getStorage().makePersistent(obj);
+                }
+                int rc = loader.add(checkKey(key), new Integer(obj.getOid()));
+                if (rc >= 0) { 
+                    n += rc;
+                    continue;
+                }
+                loader = null;
+            }
+            if (super.insert(key, obj, false) >= 0) { 
+                n += 1;
+            }
+        }
+        if (loader != null) { 
+            loader.finish();
+        }
+        return n;
+    }
+
     public T set(T obj) {
          return super.set(extractKey(obj), obj);
     }
@@ -0,0 +1,169 @@
+package plugins.Spider.org.garret.perst.impl;
+import plugins.Spider.org.garret.perst.*;
+
+import  java.util.ArrayList;
+
+/**
+ * Bottom-up construction of B-Tree from keys given in ascending order.
+ * Items (key and reference to the object or to the child page) are collected level by level:
+ * when the current node of the level can not accept one more item, the previous node of this level
+ * is written and reference to it is passed to the level above together with its largest key.
+ * So each page is written once and completely filled, except two last pages of each level
+ * which are balanced when loading is finished.<P>
+ * Nodes have the same layout as ones created by insertion: leaf node contains <code>n</code> keys
+ * and objects, internal node contains <code>n</code> references to the child pages and
+ * <code>n-1</code> keys (largest key of each child page except the last one).
+ */
+abstract class BtreeLoader {
+    static class Level {
+        Key[]    keys = new Key[256];
+        Object[] refs = new Object[256];
+        int      n;     // number of items at the level
+        int      start; // first item of the current node, items before it belong to the previous node
+        int      size;  // space used by keys of the current node
+    }
+
+    ArrayList<Level> levels = new ArrayList<Level>();
+    Key     lastKey;
+    int     nElems;
+    boolean unique;
+
+    BtreeLoader(boolean unique) {
+        this.unique = unique;
+    }
+
+    /**
+     * Compare keys in the same way as the index does
+     */
+    abstract int compare(Key a, Key b);
+
+    /**
+     * Space occupied by the key stored in the node at position <code>pos</code>
+     * (<code>prev</code> is preceding key in the node or <code>null</code>)
+     */
+    abstract int keySize(Key key, Key prev, int pos);
+
+    /**
+     * Check if node with <code>nItems</code> items and keys of total size <code>size</code> fits in the page
+     */
+    abstract boolean fits(int size, int nItems);
+
+    /**
+     * Check if node is less than half full
+     */
+    abstract boolean underflow(int size, int nItems);
+
+    /**
+     * Write node and return reference to it
+     */
+    abstract Object writeNode(Key[] keys, Object[] refs, int from, int till, int height);
+
+    /**
+     * Make the built tree the content of the index
+     */
+    abstract void setRoot(Object root, int height, int nElems);
+
+    /**
+     * Add next key.
+     * @return 1 if item is added, 0 if item with the same key is already added to the unique index,
+     * -1 if key is less than previous key: in this case loading is finished and this and all following keys
+     * should be inserted in the usual way
+     */
+    int add(Key key, Object ref) {
+        if (lastKey != null) {
+            int diff = compare(key, lastKey);
+            if (diff < 0) {
+                finish();
+                return -1;
+            }
+            if (diff == 0 && unique) {
+                return 0;
+            }
+        }
+        add(0, key, ref);
+        lastKey = key;
+        nElems += 1;
+        return 1;
+    }
+
+    private void add(int height, Key key, Object ref) {
+        if (height == levels.size()) {
+            levels.add(new Level());
+        }
+        Level lev = levels.get(height);
+        int pos = lev.n - lev.start;
+        int size = height == 0
+            ? keySize(key, pos > 0 ? lev.keys[lev.n-1] : null, pos)
+            : pos > 0 ? keySize(lev.keys[lev.n-1], pos > 1 ? lev.keys[lev.n-2] : null, pos-1) : 0;
+        if (pos > 0 && !fits(lev.size + size, pos + 1)) {
+            if (lev.start > 0) {
+                Object node = writeNode(lev.keys, lev.refs, 0, lev.start, height);
+                add(height+1, lev.keys[lev.start-1], node);
+                System.arraycopy(lev.keys, lev.start, lev.keys, 0, pos);
+                System.arraycopy(lev.refs, lev.start, lev.refs, 0, pos);
+                for (int i = pos; i < lev.n; i++) {
+                    lev.keys[i] = null;
+                    lev.refs[i] = null;
+                }
+                lev.n = pos;
+            }
+            lev.start = lev.n;
+            lev.size = height == 0 ? keySize(key, null, 0) : 0;
+        } else {
+            lev.size += size;
+        }
+        if (lev.n == lev.keys.length) {
+            Key[] newKeys = new Key[lev.n*2];
+            Object[] newRefs = new Object[lev.n*2];
+            System.arraycopy(lev.keys, 0, newKeys, 0, lev.n);
+            System.arraycopy(lev.refs, 0, newRefs, 0, lev.n);
+            lev.keys = newKeys;
+            lev.refs = newRefs;
+        }
+        lev.keys[lev.n] = key;
+        lev.refs[lev.n] = ref;
+        lev.n += 1;
+    }
+
+    private int sizeOf(Level lev, int from, int till, int height) {
+        int size = 0;
+        int stored = height == 0 ? till : till - 1;
+        for (int i = from; i < stored; i++) {
+            size += keySize(lev.keys[i], i > from ? lev.keys[i-1] : null, i - from);
+        }
+        return size;
+    }
+
+    /**
+     * Write nodes which are not written yet and set root of the tree
+     */
+    void finish() {
+        for (int height = 0; height < levels.size(); height++) {
+            Level lev = levels.get(height);
+            if (lev.start == 0) {
+                // the only node of the top level
+                setRoot(writeNode(lev.keys, lev.refs, 0, lev.n, height), height+1, nElems);
+                break;
+            }
+            int m = lev.start;
+            if (underflow(lev.size, lev.n - m)) {
+                int bestDelta = Integer.MAX_VALUE;
+                for (int i = 1; i < lev.n; i++) {
+                    int leftSize = sizeOf(lev, 0, i, height);
+                    int rightSize = sizeOf(lev, i, lev.n, height);
+                    if (fits(leftSize, i) && fits(rightSize, lev.n - i)) {
+                        int delta = leftSize > rightSize ? leftSize - rightSize : rightSize - leftSize;
+                        delta += i > lev.n - i ? i - (lev.n - i) : lev.n - i - i;
+                        if (delta < bestDelta) {
+                            bestDelta = delta;
+                            m = i;
+                        }
+                    }
+                }
+            }
+            add(height+1, lev.keys[m-1], writeNode(lev.keys, lev.refs, 0, m, height));
+            add(height+1, lev.keys[lev.n-1], writeNode(lev.keys, lev.refs, m, lev.n, height));
+        }
+        levels = null;
+    }
+}
@@ -131,6 +131,9 @@ class BtreePage {
     static boolean find(StorageImpl db, int pageId, Key firstKey, Key lastKey, 
                         Btree tree, int height, ArrayList result)
     {
+        if (tree.prefixCompressed) { 
+            return BtreePrefixPage.find(db, pageId, firstKey, lastKey, height, result);
+        }
         Page pg = db.getPage(pageId);
         int l = 0, n = getnItems(pg), r = n;
         int oid;
@@ -374,6 +377,9 @@ class BtreePage {
     static int insert(StorageImpl db, int pageId, Btree tree, BtreeKey ins, int height, 
                       boolean unique, boolean overwrite)
     {
+        if (tree.prefixCompressed) { 
+            return BtreePrefixPage.insert(db, pageId, tree, ins, height, unique, overwrite);
+        }
         Page pg = db.getPage(pageId);
         int result;
         int l = 0, n = getnItems(pg), r = n;
@@ -1466,6 +1472,9 @@ class BtreePage {
    
     static int remove(StorageImpl db, int pageId, Btree tree, BtreeKey rem, int height)
     {
+        if (tree.prefixCompressed) { 
+            return BtreePrefixPage.remove(db, pageId, tree, rem, height);
+        }
         Page pg = db.getPage(pageId);
         try { 
             int i, n = getnItems(pg), l = 0, r = n;
@@ -0,0 +1,29 @@
+package plugins.Spider.org.garret.perst.impl;
+import plugins.Spider.org.garret.perst.*;
+
+/**
+ * Field index for string or byte array keys stored in the B-Tree pages with prefix compressed keys
+ * (see <code>BtreePrefixPage</code>). Such index should be used for long keys
+ * with common prefixes, like URLs or file paths.
+ */
+class BtreePrefixFieldIndex<T extends IPersistent>  extends BtreeFieldIndex<T> {    
+    BtreePrefixFieldIndex() {}
+
+    BtreePrefixFieldIndex(Class cls, String fieldName, boolean unique) {
+        this(cls, fieldName, unique, 0);
+    }
+
+    BtreePrefixFieldIndex(Class cls, String fieldName, boolean unique, long autoincCount) {
+        super(cls, fieldName, unique, autoincCount);
+        if (type != ClassDescriptor.tpString && type != ClassDescriptor.tpArrayOfByte) { 
+            throw new StorageError(StorageError.UNSUPPORTED_INDEX_TYPE, fld.getType());
+        }
+        prefixCompressed = true;
+    }
+
+    public void onLoad()
+    {
+        super.onLoad();
+        prefixCompressed = true;
+    }
+}
@@ -0,0 +1,655 @@
+package plugins.Spider.org.garret.perst.impl;
+import plugins.Spider.org.garret.perst.*;
+
+import  java.util.ArrayList;
+
+/**
+ * B-Tree page with front coded (prefix compressed) string or byte array keys.
+ * String keys are stored as byte strings preserving order of the original strings: each character is
+ * encoded in one, two or three bytes in the same way as in UTF-8. Byte array keys are stored as is
+ * and compared as unsigned bytes. Only the part of the key which differs
+ * from the previous key on the page is stored. Each <code>restartInterval</code>-th key is stored completely,
+ * so search is done by binary search among these keys followed by scan of the short run of the
+ * following keys, in which the prefix shared with the previous key is not compared once again.<P>
+ * Page directory has the same layout as for the pages of strings: item <code>i</code> contains
+ * object (child page) identifier, length of the prefix shared with key <code>i-1</code> and offset of the
+ * rest of the key. Keys are placed one after another from the end of the page, so length of the stored part
+ * of the key is determined by offset of the previous key. So methods of <code>BtreePage</code> which
+ * only traverse references (purge, markPage, traverseForward) can be used for both kinds of pages.
+ */
+class BtreePrefixPage {
+    static final int restartInterval = 16;
+    static final int keySpace = BtreePage.keySpace;
+    static final int itemSize = BtreePage.strKeySize;
+
+    static int getShared(Page pg, int index) {
+        return BtreePage.getKeyStrSize(pg, index);
+    }
+
+    static int getSuffixOffs(Page pg, int index) {
+        return BtreePage.firstKeyOffs + BtreePage.getKeyStrOffs(pg, index);
+    }
+
+    static int getSuffixLength(Page pg, int index) {
+        return (index == 0 ? keySpace : BtreePage.getKeyStrOffs(pg, index-1)) - BtreePage.getKeyStrOffs(pg, index);
+    }
+
+    /**
+     * Convert string to the sequence of bytes. Unsigned comparison of the produced
+     * byte arrays gives the same result as comparison of the strings.
+     */
+    static byte[] encode(char[] str) {
+        int len = 0;
+        for (int i = 0; i < str.length; i++) {
+            char ch = str[i];
+            len += ch < 0x80 ? 1 : ch < 0x800 ? 2 : 3;
+        }
+        byte[] buf = new byte[len];
+        for (int i = 0, j = 0; i < str.length; i++) {
+            char ch = str[i];
+            if (ch < 0x80) {
+                buf[j++] = (byte)ch;
+            } else if (ch < 0x800) {
+                buf[j++] = (byte)(0xC0 | (ch >>> 6));
+                buf[j++] = (byte)(0x80 | (ch & 0x3F));
+            } else {
+                buf[j++] = (byte)(0xE0 | (ch >>> 12));
+                buf[j++] = (byte)(0x80 | ((ch >>> 6) & 0x3F));
+                buf[j++] = (byte)(0x80 | (ch & 0x3F));
+            }
+        }
+        return buf;
+    }
+
+    static String decode(byte[] buf) {
+        char[] chars = new char[buf.length];
+        int len = 0;
+        for (int i = 0; i < buf.length; ) {
+            int b = buf[i++] & 0xFF;
+            if (b < 0x80) {
+                chars[len++] = (char)b;
+            } else if (b < 0xE0) {
+                chars[len++] = (char)(((b & 0x1F) << 6) | (buf[i++] & 0x3F));
+            } else {
+                int b2 = buf[i++] & 0x3F;
+                chars[len++] = (char)(((b & 0x0F) << 12) | (b2 << 6) | (buf[i++] & 0x3F));
+            }
+        }
+        return new String(chars, 0, len);
+    }
+
+    /**
+     * Restore complete value of the key. Parts of the key shared with the previous keys
+     * are collected by moving backward till the closest key stored completely.
+     */
+    static byte[] getKey(Page pg, int i) {
+        int shared = getShared(pg, i);
+        int len = getSuffixLength(pg, i);
+        byte[] key = new byte[shared + len];
+        System.arraycopy(pg.data, getSuffixOffs(pg, i), key, shared, len);
+        while (shared != 0) {
+            int prefix = getShared(pg, --i);
+            if (prefix < shared) {
+                System.arraycopy(pg.data, getSuffixOffs(pg, i), key, prefix, shared - prefix);
+                shared = prefix;
+            }
+        }
+        return key;
+    }
+
+    static String unpackKey(Page pg, int i) {
+        return decode(getKey(pg, i));
+    }
+
+    static int compareBytes(byte[] key, int from, byte[] data, int offs, int len) {
+        int n = key.length - from < len ? key.length - from : len;
+        for (int i = 0; i < n; i++) {
+            int diff = (key[from + i] & 0xFF) - (data[offs + i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return (key.length - from) - len;
+    }
+
+    static int getCommonPrefix(byte[] key, int from, byte[] data, int offs, int len) {
+        int n = key.length - from < len ? key.length - from : len;
+        int i = 0;
+        while (i < n && key[from + i] == data[offs + i]) {
+            i += 1;
+        }
+        return i;
+    }
+
+    final static int compare(Key key, Page pg, int i) {
+        return compare((byte[])key.oval, pg, i);
+    }
+
+    /**
+     * Compare key with i-th key of the page. Keys starting from the closest completely
+     * stored key are scanned, but only bytes following the prefix matched so far are compared.
+     */
+    static int compare(byte[] key, Page pg, int i) {
+        byte[] data = pg.data;
+        int diff = 0, matched = 0;
+        for (int j = i - i % restartInterval; j <= i; j++) {
+            int shared = getShared(pg, j);
+            if (shared == matched) {
+                int offs = getSuffixOffs(pg, j);
+                int len = getSuffixLength(pg, j);
+                int common = getCommonPrefix(key, matched, data, offs, len);
+                diff = compareBytes(key, matched + common, data, offs + common, len - common);
+                matched += common;
+            } else if (shared < matched) {
+                // key j is greater than key j-1 in the position where key j-1 is equal to the searched key
+                diff = -1;
+                matched = shared;
+            }
+            // otherwise key j is related with the searched key in the same way as key j-1
+        }
+        return diff;
+    }
+
+    /**
+     * Locate first key on the page for which <code>compare(key, pg, i) &lt; inclusion</code>
+     */
+    static int search(byte[] key, Page pg, int n, int inclusion) {
+        byte[] data = pg.data;
+        int l = 0, r = (n + restartInterval - 1) / restartInterval;
+        while (l < r) {
+            int m = (l + r) >> 1;
+            int i = m*restartInterval;
+            if (compareBytes(key, 0, data, getSuffixOffs(pg, i), getSuffixLength(pg, i)) >= inclusion) {
+                l = m + 1;
+            } else {
+                r = m;
+            }
+        }
+        if (r == 0) {
+            return 0;
+        }
+        int i = (r - 1)*restartInterval;
+        int end = r*restartInterval < n ? r*restartInterval : n;
+        int offs = getSuffixOffs(pg, i);
+        int matched = getCommonPrefix(key, 0, data, offs, getSuffixLength(pg, i));
+        while (++i < end) {
+            int shared = getShared(pg, i);
+            if (shared == matched) {
+                offs = getSuffixOffs(pg, i);
+                int len = getSuffixLength(pg, i);
+                int common = getCommonPrefix(key, matched, data, offs, len);
+                if (compareBytes(key, matched + common, data, offs + common, len - common) < inclusion) {
+                    return i;
+                }
+                matched += common;
+            } else if (shared < matched) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    static int comparePrefix(byte[] key, Page pg, int i) {
+        byte[] item = getKey(pg, i);
+        int n = key.length < item.length ? key.length : item.length;
+        for (int j = 0; j < n; j++) {
+            int diff = (key[j] & 0xFF) - (item[j] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return n - item.length;
+    }
+
+    static boolean find(StorageImpl db, int pageId, Key firstKey, Key lastKey,
+                        int height, ArrayList result)
+    {
+        Page pg = db.getPage(pageId);
+        int l = 0, n = BtreePage.getnItems(pg);
+        height -= 1;
+        try {
+            if (firstKey != null) {
+                l = search((byte[])firstKey.oval, pg, n, firstKey.inclusion);
+            }
+            if (lastKey != null) {
+                if (height == 0) {
+                    int end = search((byte[])lastKey.oval, pg, n, 1 - lastKey.inclusion);
+                    while (l < end) {
+                        result.add(db.lookupObject(BtreePage.getKeyStrOid(pg, l), null));
+                        l += 1;
+                    }
+                    return end == n;
+                } else {
+                    int end = search((byte[])lastKey.oval, pg, n, 0);
+                    do {
+                        if (!find(db, BtreePage.getKeyStrOid(pg, l), firstKey, lastKey, height, result)) {
+                            return false;
+                        }
+                        if (l == n) {
+                            return true;
+                        }
+                    } while (l++ < end);
+                    return false;
+                }
+            } else {
+                if (height == 0) {
+                    while (l < n) {
+                        result.add(db.lookupObject(BtreePage.getKeyStrOid(pg, l), null));
+                        l += 1;
+                    }
+                } else {
+                    do {
+                        if (!find(db, BtreePage.getKeyStrOid(pg, l), firstKey, lastKey, height, result)) {
+                            return false;
+                        }
+                    } while (++l <= n);
+                }
+            }
+        } finally {
+            db.pool.unfix(pg);
+        }
+        return true;
+    }
+
+    static boolean prefixSearch(StorageImpl db, int pageId, byte[] key,
+                                int height, ArrayList result)
+    {
+        Page pg = db.getPage(pageId);
+        int l = 0, n = BtreePage.getnItems(pg), r = n;
+        height -= 1;
+        try {
+            while (l < r)  {
+                int i = (l+r) >> 1;
+                if (comparePrefix(key, pg, i) > 0) {
+                    l = i + 1;
+                } else {
+                    r = i;
+                }
+            }
+            if (height == 0) {
+                while (l < n) {
+                    if (comparePrefix(key, pg, l) < 0) {
+                        return false;
+                    }
+                    result.add(db.lookupObject(BtreePage.getKeyStrOid(pg, l), null));
+                    l += 1;
+                }
+            } else {
+                do {
+                    if (!prefixSearch(db, BtreePage.getKeyStrOid(pg, l), key, height, result)) {
+                        return false;
+                    }
+                    if (l == n) {
+                        return true;
+                    }
+                } while (comparePrefix(key, pg, l++) >= 0);
+                return false;
+            }
+        } finally {
+            db.pool.unfix(pg);
+        }
+        return true;
+    }
+
+    /**
+     * Unpack keys and references of the page to the arrays starting from the specified position.
+     * Length of the prefix shared with the previous key is stored in <code>prefix</code> array,
+     * it is not known only for the first key (at position <code>pos</code>).
+     * @return number of keys at the page
+     */
+    static int unpack(Page pg, byte[][] keys, int[] prefix, int[] oids, int pos, int height)
+    {
+        int n = BtreePage.getnItems(pg);
+        byte[] prev = null;
+        for (int i = 0; i < n; i++) {
+            int shared = getShared(pg, i);
+            int len = getSuffixLength(pg, i);
+            byte[] key = new byte[shared + len];
+            if (shared != 0) {
+                System.arraycopy(prev, 0, key, 0, shared);
+            }
+            System.arraycopy(pg.data, getSuffixOffs(pg, i), key, shared, len);
+            keys[pos + i] = key;
+            prefix[pos + i] = i % restartInterval != 0 || i == 0 ? shared : getCommonPrefix(key, prev);
+            oids[pos + i] = BtreePage.getKeyStrOid(pg, i);
+            prev = key;
+        }
+        if (height != 0) {
+            oids[pos + n] = BtreePage.getKeyStrOid(pg, n);
+        }
+        return n;
+    }
+
+    static int getCommonPrefix(byte[] a, byte[] b) {
+        return getCommonPrefix(a, 0, b, 0, b.length);
+    }
+
+    static void setPrefix(byte[][] keys, int[] prefix, int i, int n) {
+        if (i < n) {
+            prefix[i] = i == 0 ? 0 : getCommonPrefix(keys[i], keys[i-1]);
+        }
+    }
+
+    /**
+     * Space needed to store keys with the specified indices at the page (without directory)
+     */
+    static int sizeOf(byte[][] keys, int[] prefix, int from, int till) {
+        int size = 0;
+        for (int i = from; i < till; i++) {
+            size += keys[i].length;
+            if ((i - from) % restartInterval != 0) {
+                size -= prefix[i];
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Store keys with the specified indices at the page
+     */
+    static void pack(Page pg, byte[][] keys, int[] prefix, int[] oids, int from, int till, int height)
+    {
+        int size = 0;
+        int nRefs = height == 0 ? till - from : till - from + 1;
+        for (int i = from; i < till; i++) {
+            byte[] key = keys[i];
+            int shared = (i - from) % restartInterval != 0 ? prefix[i] : 0;
+            size += key.length - shared;
+            Assert.that("String fits in the B-Tree page", size + nRefs*itemSize <= keySpace);
+            BtreePage.setKeyStrOid(pg, i - from, oids[i]);
+            BtreePage.setKeyStrSize(pg, i - from, shared);
+            BtreePage.setKeyStrOffs(pg, i - from, keySpace - size);
+            System.arraycopy(key, shared, pg.data, BtreePage.firstKeyOffs + keySpace - size, key.length - shared);
+        }
+        if (height != 0) {
+            BtreePage.setKeyStrOid(pg, till - from, oids[till]);
+        }
+        BtreePage.setnItems(pg, till - from);
+        BtreePage.setSize(pg, size);
+    }
+
+    /**
+     * Find position of the key at which set of keys should be divided between two pages,
+     * so that both pages are filled approximately in the same degree
+     */
+    static int split(byte[][] keys, int[] prefix, int n, int height)
+    {
+        int[] rest = new int[n + 1];
+        for (int i = n; --i >= 0; ) {
+            rest[i] = rest[i+1] + keys[i].length - prefix[i];
+        }
+        int best = 0;
+        int bestDelta = Integer.MAX_VALUE;
+        int left = 0;
+        for (int m = 1; m < n; m++) {
+            left += keys[m-1].length - ((m-1) % restartInterval != 0 ? prefix[m-1] : 0);
+            int start = height == 0 ? m : m + 1;
+            if (start >= n) {
+                break;
+            }
+            int right = rest[start];
+            for (int i = start; i < n; i += restartInterval) {
+                right += prefix[i];
+            }
+            int leftSize = left + (height == 0 ? m : m + 1)*itemSize;
+            int rightSize = right + (height == 0 ? n - start : n - start + 1)*itemSize;
+            if (leftSize <= keySpace && rightSize <= keySpace) {
+                int delta = leftSize > rightSize ? leftSize - rightSize : rightSize - leftSize;
+                if (delta < bestDelta) {
+                    best = m;
+                    bestDelta = delta;
+                }
+            }
+        }
+        Assert.that("String fits in the B-Tree page", best != 0);
+        return best;
+    }
+
+    /**
+     * Store keys at the page. If they do not fit in the page, lower half of them is moved
+     * to the new page, and separating key and identifier of the new page are returned in <code>ins</code>
+     */
+    static int store(StorageImpl db, Page pg, byte[][] keys, int[] prefix, int[] oids, int n, int height, BtreeKey ins)
+    {
+        int size = sizeOf(keys, prefix, 0, n) + (height == 0 ? n : n + 1)*itemSize;
+        if (size <= keySpace) {
+            pack(pg, keys, prefix, oids, 0, n, height);
+            return size < keySpace/2 ? Btree.op_underflow : Btree.op_done;
+        }
+        int m = split(keys, prefix, n, height);
+        int pageId = db.allocatePage();
+        Page b = db.putPage(pageId);
+        pack(b, keys, prefix, oids, 0, m, height);
+        if (height == 0) {
+            pack(pg, keys, prefix, oids, m, n, height);
+            ins.key = new Key(keys[m-1]);
+        } else {
+            pack(pg, keys, prefix, oids, m+1, n, height);
+            ins.key = new Key(keys[m]);
+        }
+        ins.oid = pageId;
+        db.pool.unfix(b);
+        return Btree.op_overflow;
+    }
+
+    static int allocate(StorageImpl db, int root, BtreeKey ins)
+    {
+        int pageId = db.allocatePage();
+        Page pg = db.putPage(pageId);
+        pack(pg, new byte[][]{(byte[])ins.key.oval}, new int[1], new int[]{ins.oid, root}, 0, 1, root);
+        db.pool.unfix(pg);
+        return pageId;
+    }
+
+    static int insert(StorageImpl db, int pageId, Btree tree, BtreeKey ins, int height,
+                      boolean unique, boolean overwrite)
+    {
+        Page pg = db.getPage(pageId);
+        int result;
+        int n = BtreePage.getnItems(pg);
+        byte[] key = (byte[])ins.key.oval;
+        try {
+            int r = search(key, pg, n, unique ? 1 : 0);
+            if (--height != 0) {
+                result = insert(db, BtreePage.getKeyStrOid(pg, r), tree, ins, height, unique, overwrite);
+                Assert.that(result != Btree.op_not_found);
+                if (result != Btree.op_overflow) {
+                    return result;
+                }
+            } else if (r < n && compare(key, pg, r) == 0) {
+                if (overwrite) {
+                    db.pool.unfix(pg);
+                    pg = null;
+                    pg = db.putPage(pageId);
+                    ins.oldOid = BtreePage.getKeyStrOid(pg, r);
+                    BtreePage.setKeyStrOid(pg, r, ins.oid);
+                    return Btree.op_overwrite;
+                } else if (unique) {
+                    return Btree.op_duplicate;
+                }
+            }
+            db.pool.unfix(pg);
+            pg = null;
+            pg = db.putPage(pageId);
+            return insertKey(db, pg, r, ins, height);
+        } finally {
+            if (pg != null) {
+                db.pool.unfix(pg);
+            }
+        }
+    }
+
+    static int insertKey(StorageImpl db, Page pg, int r, BtreeKey ins, int height)
+    {
+        int n = BtreePage.getnItems(pg);
+        byte[][] keys = new byte[n + 1][];
+        int[] prefix = new int[n + 1];
+        int[] oids = new int[n + 2];
+        unpack(pg, keys, prefix, oids, 0, height);
+        // insert before e[r]
+        System.arraycopy(keys, r, keys, r + 1, n - r);
+        System.arraycopy(prefix, r, prefix, r + 1, n - r);
+        System.arraycopy(oids, r, oids, r + 1, (height == 0 ? n : n + 1) - r);
+        keys[r] = (byte[])ins.key.oval;
+        oids[r] = ins.oid;
+        setPrefix(keys, prefix, r, n + 1);
+        setPrefix(keys, prefix, r + 1, n + 1);
+        return store(db, pg, keys, prefix, oids, n + 1, height, ins);
+    }
+
+    static int removeKey(StorageImpl db, Page pg, int r, BtreeKey rem)
+    {
+        int n = BtreePage.getnItems(pg);
+        byte[][] keys = new byte[n][];
+        int[] prefix = new int[n];
+        int[] oids = new int[n];
+        unpack(pg, keys, prefix, oids, 0, 0);
+        System.arraycopy(keys, r + 1, keys, r, n - r - 1);
+        System.arraycopy(prefix, r + 1, prefix, r, n - r - 1);
+        System.arraycopy(oids, r + 1, oids, r, n - r - 1);
+        setPrefix(keys, prefix, r, n - 1);
+        return store(db, pg, keys, prefix, oids, n - 1, 0, rem);
+    }
+
+    static int handlePageUnderflow(StorageImpl db, Page pg, int r, BtreeKey rem, int height)
+    {
+        int n = BtreePage.getnItems(pg);
+        if (r == n) { // merge with the previous page
+            r -= 1;
+        }
+        int aId = BtreePage.getKeyStrOid(pg, r);
+        int bId = BtreePage.getKeyStrOid(pg, r + 1);
+        Page a = db.putPage(aId);
+        Page b = db.putPage(bId);
+        int childHeight = height - 1;
+        int an = BtreePage.getnItems(a);
+        int bn = BtreePage.getnItems(b);
+        int m = an + bn + (childHeight == 0 ? 0 : 1);
+        byte[][] keys = new byte[m][];
+        int[] prefix = new int[m];
+        int[] oids = new int[m + 1];
+        unpack(a, keys, prefix, oids, 0, childHeight);
+        if (childHeight != 0) {
+            keys[an] = getKey(pg, r);
+            setPrefix(keys, prefix, an++, m);
+        }
+        unpack(b, keys, prefix, oids, an, childHeight);
+        setPrefix(keys, prefix, an, m);
+
+        byte[][] parentKeys = new byte[n][];
+        int[] parentPrefix = new int[n];
+        int[] parentOids = new int[n + 1];
+        unpack(pg, parentKeys, parentPrefix, parentOids, 0, height);
+        int result;
+        if (sizeOf(keys, prefix, 0, m) + (childHeight == 0 ? m : m + 1)*itemSize <= keySpace) {
+            // merge page b to a
+            pack(a, keys, prefix, oids, 0, m, childHeight);
+            db.pool.unfix(a);
+            db.pool.unfix(b);
+            db.freePage(bId);
+            System.arraycopy(parentKeys, r + 1, parentKeys, r, n - r - 1);
+            System.arraycopy(parentPrefix, r + 1, parentPrefix, r, n - r - 1);
+            System.arraycopy(parentOids, r + 2, parentOids, r + 1, n - r - 1);
+            setPrefix(parentKeys, parentPrefix, r, n - 1);
+            result = store(db, pg, parentKeys, parentPrefix, parentOids, n - 1, height, rem);
+        } else {
+            // reallocation of keys between pages a and b
+            int i = split(keys, prefix, m, childHeight);
+            pack(a, keys, prefix, oids, 0, i, childHeight);
+            if (childHeight == 0) {
+                pack(b, keys, prefix, oids, i, m, childHeight);
+                parentKeys[r] = keys[i-1];
+            } else {
+                pack(b, keys, prefix, oids, i + 1, m, childHeight);
+                parentKeys[r] = keys[i];
+            }
+            db.pool.unfix(a);
+            db.pool.unfix(b);
+            setPrefix(parentKeys, parentPrefix, r, n);
+            setPrefix(parentKeys, parentPrefix, r + 1, n);
+            result = store(db, pg, parentKeys, parentPrefix, parentOids, n, height, rem);
+        }
+        return result;
+    }
+
+    static int remove(StorageImpl db, int pageId, Btree tree, BtreeKey rem, int height)
+    {
+        Page pg = db.getPage(pageId);
+        try {
+            int n = BtreePage.getnItems(pg);
+            byte[] key = (byte[])rem.key.oval;
+            int r = search(key, pg, n, 1);
+            if (--height != 0) {
+                do {
+                    switch (remove(db, BtreePage.getKeyStrOid(pg, r), tree, rem, height)) {
+                      case Btree.op_underflow:
+                        db.pool.unfix(pg);
+                        pg = null;
+                        pg = db.putPage(pageId);
+                        return handlePageUnderflow(db, pg, r, rem, height);
+                      case Btree.op_done:
+                        return Btree.op_done;
+                      case Btree.op_overflow:
+                        db.pool.unfix(pg);
+                        pg = null;
+                        pg = db.putPage(pageId);
+                        return insertKey(db, pg, r, rem, height);
+                    }
+                } while (++r <= n);
+            } else {
+                while (r < n) {
+                    if (compare(key, pg, r) == 0) {
+                        int oid = BtreePage.getKeyStrOid(pg, r);
+                        if (oid == rem.oid || rem.oid == 0) {
+                            rem.oldOid = oid;
+                            db.pool.unfix(pg);
+                            pg = null;
+                            pg = db.putPage(pageId);
+                            return removeKey(db, pg, r, rem);
+                        }
+                    } else {
+                        break;
+                    }
+                    r += 1;
+                }
+            }
+            return Btree.op_not_found;
+        } finally {
+            if (pg != null) {
+                db.pool.unfix(pg);
+            }
+        }
+    }
+
+    static void exportPage(StorageImpl db, XMLExporter exporter, int pageId, int type, int height)
+      throws java.io.IOException
+    {
+        Page pg = db.getPage(pageId);
+        try {
+            int i, n = BtreePage.getnItems(pg);
+            if (--height != 0) {
+                for (i = 0; i <= n; i++) {
+                    exportPage(db, exporter, BtreePage.getKeyStrOid(pg, i), type, height);
+                }
+            } else if (type == ClassDescriptor.tpArrayOfByte) {
+                for (i = 0; i < n; i++) {
+                    byte[] key = getKey(pg, i);
+                    exporter.exportAssoc(BtreePage.getKeyStrOid(pg, i), key, 0, key.length,
+                                         ClassDescriptor.tpArrayOfByte);
+                }
+            } else {
+                for (i = 0; i < n; i++) {
+                    String key = unpackKey(pg, i);
+                    byte[] chars = new byte[key.length()*2];
+                    for (int j = 0; j < key.length(); j++) {
+                        Bytes.pack2(chars, j*2, (short)key.charAt(j));
+                    }
+                    exporter.exportAssoc(BtreePage.getKeyStrOid(pg, i), chars, 0, key.length(),
+                                         ClassDescriptor.tpString);
+                }
+            }
+        } finally {
+            db.pool.unfix(pg);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package plugins.Spider.org.garret.perst.impl;
+import plugins.Spider.org.garret.perst.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+ * OSFile using positional reads and writes of the file channel instead of
+ * seek followed by read or write, so it can be accessed by several threads at once
+ * and each access is a single system call. The data is transferred through pooled direct buffers,
+ * and a run of adjacent pages is written with one call per <code>bufferSize</code> bytes.
+ */
+public class ChannelFile extends OSFile implements IPositionalFile { 
+    static final int bufferSize = 64*Page.pageSize;
+    static final int maxFreeBuffers = 16;
+
+    private ByteBuffer getBuffer() { 
+        synchronized (freeBuffers) { 
+            int n = freeBuffers.size();
+            if (n != 0) { 
+                return (ByteBuffer)freeBuffers.remove(n-1);
+            }
+        }
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    private void releaseBuffer(ByteBuffer buf) { 
+        synchronized (freeBuffers) { 
+            if (freeBuffers.size() < maxFreeBuffers) { 
+                buf.clear();
+                freeBuffers.add(buf);
+            }
+        }
+    }
+
+    private void write(long pos, ByteBuffer buf) throws IOException { 
+        buf.flip();
+        while (buf.hasRemaining()) { 
+            pos += chan.write(buf, pos);
+        }
+        buf.clear();
+    }
+
+    public void write(long pos, byte[] buf) 
+    {
+        write(pos, new byte[][]{buf}, 1);
+    }
+
+    public void write(long pos, byte[][] pages, int nPages) 
+    {
+        ByteBuffer buf = getBuffer();
+        try { 
+            for (int i = 0; i < nPages; i++) { 
+                if (buf.remaining() < pages[i].length) { 
+                    long size = buf.position();
+                    write(pos, buf);
+                    pos += size;
+                }
+                buf.put(pages[i]);
+            }
+            write(pos, buf);
+        } catch(IOException x) { 
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+        } finally { 
+            releaseBuffer(buf);
+        }
+    }
+
+    public int read(long pos, byte[] buf) 
+    { 
+        ByteBuffer bb = getBuffer();
+        try { 
+            bb.limit(buf.length);
+            int rc;
+            while (bb.hasRemaining() && (rc = chan.read(bb, pos + bb.position())) >= 0) { 
+                if (rc == 0) { 
+                    break;
+                }
+            }
+            int size = bb.position();
+            bb.flip();
+            bb.get(buf, 0, size);
+            return size;
+        } catch(IOException x) { 
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+        } finally { 
+            releaseBuffer(bb);
+        }
+    }
+
+    public ChannelFile(String filePath, boolean readOnly, boolean noFlush) { 
+        super(filePath, readOnly, noFlush);
+        chan = file.getChannel();
+    }
+
+    protected FileChannel chan;
+    private   ArrayList   freeBuffers = new ArrayList();
+}
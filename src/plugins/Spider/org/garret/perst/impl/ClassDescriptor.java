@@ -17,6 +17,20 @@ public final class ClassDescriptor extends Persistent {
         int             type;
         ClassDescriptor valueDesc;
         transient Field field;
+        transient FieldAccessor accessor;
+        transient Object[] enumConstants;
+
+        void setField(Field f) { 
+            field = f;
+            try { 
+                accessor = getReflectionProvider().getFieldAccessor(f);
+            } catch (Exception x) { 
+                throw new StorageError(StorageError.ACCESS_VIOLATION, x);
+            }
+            if (f.getType().isEnum()) { 
+                enumConstants = f.getType().getEnumConstants();
+            }
+        }
 
         public int compareTo(Object o) { 
             return fieldName.compareTo(((FieldDescriptor)o).fieldName);
@@ -207,7 +221,7 @@ public final class ClassDescriptor extends Persistent {
                     f.setAccessible(true);
                 } catch (Exception x) {}
                 FieldDescriptor fd = new FieldDescriptor();
-                fd.field = f;
+                fd.setField(f);
                 fd.fieldName = f.getName();
                 fd.className = cls.getName();
                 int type = getTypeCode(f.getType());
@@ -404,7 +418,7 @@ public final class ClassDescriptor extends Persistent {
                         try { 
                             f.setAccessible(true);
                         } catch (Exception e) {}
-                        fd.field = f;
+                        fd.setField(f);
                     }
                 } catch (NoSuchFieldException x) {}
             } else { 
@@ -427,7 +441,7 @@ public final class ClassDescriptor extends Persistent {
                             try { 
                                 f.setAccessible(true);
                             } catch (Exception e) {}
-                            fd.field = f;
+                            fd.setField(f);
                             break;
                         }
                     } catch (NoSuchFieldException x) {}
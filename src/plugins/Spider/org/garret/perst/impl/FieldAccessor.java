@@ -0,0 +1,43 @@
+package plugins.Spider.org.garret.perst.impl;
+
+/**
+ * Access to a field of persistent objects, created by <code>ReflectionProvider</code> once for each 
+ * field of a class descriptor and used to pack and unpack objects.
+ */
+public interface FieldAccessor { 
+    boolean getBoolean(Object object) throws Exception;
+
+    byte getByte(Object object) throws Exception;
+
+    char getChar(Object object) throws Exception;
+
+    short getShort(Object object) throws Exception;
+
+    int getInt(Object object) throws Exception;
+
+    long getLong(Object object) throws Exception;
+
+    float getFloat(Object object) throws Exception;
+
+    double getDouble(Object object) throws Exception;
+
+    Object get(Object object) throws Exception;
+
+    void setBoolean(Object object, boolean value) throws Exception;
+
+    void setByte(Object object, byte value) throws Exception;
+
+    void setChar(Object object, char value) throws Exception;
+
+    void setShort(Object object, short value) throws Exception;
+
+    void setInt(Object object, int value) throws Exception;
+
+    void setLong(Object object, long value) throws Exception;
+
+    void setFloat(Object object, float value) throws Exception;
+
+    void setDouble(Object object, double value) throws Exception;
+
+    void set(Object object, Object value) throws Exception;
+}
@@ -0,0 +1,145 @@
+package plugins.Spider.org.garret.perst.impl;
+import plugins.Spider.org.garret.perst.*;
+
+/**
+ * State of the incremental garbage collection. Instead of traversing the whole database at once,
+ * objects are marked and then swept in time slices performed after commit of transactions,
+ * so the application is never blocked for a longer time.<P>
+ * Objects are marked by OID, so an object keeps its mark when it is moved by a transaction.
+ * Objects stored while the collection is in progress are made grey again, so that references
+ * added to them are also traversed, and such objects are never deallocated by this collection.
+ * The bitmaps are only as large as the object index, not the whole database.
+ */
+final class IncrementalGc {
+    StorageImpl db;
+    int[]       greyBitmap;  // objects which have to be traversed
+    int[]       blackBitmap; // traversed objects
+    int         nGrey;
+    int         cursor;      // position in the grey bitmap where search of grey objects is continued
+    int         nMarked;
+    int         sweepOid;    // next object to be checked by sweep, 0 while objects are marked
+    int         sweepEnd;
+    int         nDeallocated;
+
+    IncrementalGc(StorageImpl db, int rootOid, int nObjects) {
+        this.db = db;
+        int bitmapSize = (nObjects >>> 5) + 1;
+        greyBitmap = new int[bitmapSize];
+        blackBitmap = new int[bitmapSize];
+        if (db.listener != null) {
+            db.listener.gcStarted();
+        }
+        if (rootOid != 0) {
+            markOid(rootOid);
+        }
+    }
+
+    private void extend(int oid) {
+        int bitmapSize = greyBitmap.length;
+        if ((oid >>> 5) >= bitmapSize) {
+            int newSize = Math.max(bitmapSize*2, (oid >>> 5) + 1);
+            int[] newGrey = new int[newSize];
+            int[] newBlack = new int[newSize];
+            System.arraycopy(greyBitmap, 0, newGrey, 0, bitmapSize);
+            System.arraycopy(blackBitmap, 0, newBlack, 0, bitmapSize);
+            greyBitmap = newGrey;
+            blackBitmap = newBlack;
+        }
+    }
+
+    /**
+     * Mark object referenced from traversed object
+     */
+    void markOid(int oid) {
+        extend(oid);
+        int mask = 1 << (oid & 31);
+        if (((greyBitmap[oid >>> 5] | blackBitmap[oid >>> 5]) & mask) == 0) {
+            greyBitmap[oid >>> 5] |= mask;
+            nGrey += 1;
+        }
+    }
+
+    /**
+     * Write barrier: object is stored by the application, so it has to be traversed (once again)
+     */
+    void objectStored(int oid) {
+        extend(oid);
+        int mask = 1 << (oid & 31);
+        if ((greyBitmap[oid >>> 5] & mask) == 0) {
+            greyBitmap[oid >>> 5] |= mask;
+            nGrey += 1;
+        }
+    }
+
+    /**
+     * Perform one time slice of the collection
+     * @param deadline time (in milliseconds) when the slice should be finished
+     * @return <code>true</code> if the collection is completed
+     */
+    boolean step(long deadline) {
+        boolean completed = false;
+        if (sweepOid == 0) {
+            if (mark(deadline)) {
+                sweepOid = StorageImpl.dbFirstUserId;
+                sweepEnd = db.committedIndexSize;
+                completed = sweep(deadline);
+            }
+        } else {
+            completed = sweep(deadline);
+        }
+        if (db.listener != null) {
+            db.listener.gcProgress(nMarked, sweepOid == 0 ? 0 : sweepOid - StorageImpl.dbFirstUserId,
+                                   db.committedIndexSize - StorageImpl.dbFirstUserId);
+        }
+        return completed;
+    }
+
+    private boolean mark(long deadline) {
+        int n = 0;
+        while (nGrey != 0) {
+            int i = cursor >>> 5;
+            while (greyBitmap[i] == 0) {
+                if (++i == greyBitmap.length) {
+                    i = 0;
+                }
+            }
+            int j = Integer.numberOfTrailingZeros(greyBitmap[i]);
+            int oid = (i << 5) + j;
+            greyBitmap[i] &= ~(1 << j);
+            blackBitmap[i] |= 1 << j;
+            nGrey -= 1;
+            nMarked += 1;
+            cursor = oid;
+            if (oid < db.committedIndexSize) {
+                long pos = db.getGCPos(oid);
+                if (pos != 0 && (pos & (StorageImpl.dbFreeHandleFlag|StorageImpl.dbPageObjectFlag)) == 0) {
+                    db.markReferences(pos & ~StorageImpl.dbFlagsMask);
+                }
+            }
+            if ((++n & 63) == 0 && System.currentTimeMillis() >= deadline) {
+                return nGrey == 0;
+            }
+        }
+        return true;
+    }
+
+    private boolean sweep(long deadline) {
+        while (sweepOid < sweepEnd) {
+            int oid = sweepOid++;
+            int mask = 1 << (oid & 31);
+            if (((greyBitmap[oid >>> 5] | blackBitmap[oid >>> 5]) & mask) == 0) {
+                // object is not accessible
+                long pos = db.getPos(oid);
+                if (pos != 0 && (pos & (StorageImpl.dbFreeHandleFlag|StorageImpl.dbPageObjectFlag)) == 0
+                    && db.deallocateGarbage(oid, pos))
+                {
+                    nDeallocated += 1;
+                }
+            }
+            if ((oid & 255) == 0 && System.currentTimeMillis() >= deadline) {
+                break;
+            }
+        }
+        return sweepOid >= sweepEnd;
+    }
+}
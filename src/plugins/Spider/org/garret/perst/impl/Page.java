@@ -1,7 +1,9 @@
 package plugins.Spider.org.garret.perst.impl;
 
-public class Page extends LRU implements Comparable {
+public class Page implements Comparable {
     Page collisionChain;
+    Page next;      // in the list of free pages
+    boolean referenced; // for the clock replacement algorithm
     int  accessCount;
     int  writeQueueIndex;
     int  state;
@@ -10,7 +12,10 @@ public class Page extends LRU implements Comparable {
 
     static final int psDirty = 0x01;// page has been modified
     static final int psRaw   = 0x02;// page is loaded from the disk
-    static final int psWait  = 0x04;// other thread(s) wait load operation completion
+    static final int psWait  = 0x04;// some thread is loading the page from the disk
+    static final int psLogged= 0x08;// current image of dirty page is in the write-ahead log
+    static final int psWriting=0x10;// image of dirty page is being written by the page writer or checkpoint
+    static final int psCheckpoint=0x20;// image of dirty page is taken by the checkpoint, cleared when evicted
 
     public static final int pageSizeLog = 12;
     public static final int pageSize = 1 << pageSizeLog;
@@ -1,119 +1,588 @@
 package plugins.Spider.org.garret.perst.impl;
 import plugins.Spider.org.garret.perst.*;
+import java.util.*;
 
+/**
+ * Pool of database pages.<P>
+ * Looking up a page only locks the stripe of the hash table containing it, so threads
+ * accessing cached pages don't wait for each other. A page which is not in the pool is read
+ * from the file without holding the pool or stripe locks; other threads needing the same page wait for it.<P>
+ * Pages are replaced using the CLOCK algorithm: unfixing a page sets its reference bit, and
+ * the clock hand clears the reference bits of the pages it passes until it finds an unfixed
+ * page with a clear bit. Pages above <code>lruLimit</code> don't get the bit, so they are replaced first.
+ * The image of a dirty page is copied when it is replaced, and written by the replacing thread after it
+ * has released the locks; a thread needing the page again waits for the write.<P>
+ * Locks are always taken in this order: clock, one stripe, pool (list of dirty pages), page, file.
+ * Files implementing <code>IPositionalFile</code> are accessed without locking them, and flush writes
+ * runs of adjacent dirty pages to them with one call.
+ */
 class PagePool { 
-    LRU     lru;
-    Page    freePages;
+    static final int nStripes = 64; // power of 2
+
     Page    hashTable[];
+    Object  stripes[];
+    Page    frames[];    // pages of a pool of fixed size, scanned by the clock hand
+    int     clockHand;
+    Page    freePages;
+    final Object clock = new Object();
     int     poolSize;
     boolean autoExtended;
     IFile   file;
+    boolean positionalFile;
     long    lruLimit;
+    int     nPages;      // number of pages in the hash table, guarded by clock
 
     int     nDirtyPages;
     Page    dirtyPages[];
-    
+
     boolean flushing;
+    final Object writer = new Object(); // orders writeDirtyPages against flush, clear and close
+
+    HashMap evicted[];   // dirty pages replaced and being written, by address, guarded by their stripe
+
+    WriteAheadLog wal;
+    HashMap stolen = new HashMap(); // images of dirty pages written to the file before being logged
+
+    long    transactionId;        // transaction which is changing the pages, set by the storage
+    long    trackedTransactionId; // changes made after this transaction are tracked
+    long[]  pageTransactions = new long[0]; // last transaction which changed each page, guarded by pool
+    BackupSnapshot backup;        // online backup in progress, guarded by pool
 
     static final int INFINITE_POOL_INITIAL_SIZE = 8;
+    static final int MAX_RUN_PAGES = 64;
+
+    static final int NOT_EVICTED   = 0;
+    static final int EVICTED       = 1;
+    static final int EVICTED_DIRTY = 2; // the caller should write the page with writeEvicted
 
     PagePool(int poolSize, long lruLimit) { 
         if (poolSize == 0) { 
             autoExtended = true;
             poolSize = INFINITE_POOL_INITIAL_SIZE;
-        }            
+        }
         this.poolSize = poolSize;
         this.lruLimit = lruLimit;
+        stripes = new Object[nStripes];
+        evicted = new HashMap[nStripes];
+        for (int i = 0; i < nStripes; i++) { 
+            stripes[i] = new Object();
+            evicted[i] = new HashMap();
+        }
+    }
+
+    static final int hash(long addr) { 
+        long pageNo = addr >>> Page.pageSizeLog;
+        return (int)(pageNo ^ (pageNo >>> 32));
+    }
+
+    final Object stripe(long addr) { 
+        return stripes[hash(addr) & (nStripes-1)];
     }
 
     final Page find(long addr, int state) {     
         //Assert.that((addr & (Page.pageSize-1)) == 0);
         Page pg;
-        int pageNo = (int)(addr >>> Page.pageSizeLog);
-        int hashCode = pageNo % poolSize;
+        int h = hash(addr);
+        Object stripe = stripes[h & (nStripes-1)];
 
-        synchronized (this) {           
-            for (pg = hashTable[hashCode]; pg != null; pg = pg.collisionChain) 
-            { 
-                if (pg.offs == addr) {
-                    if (pg.accessCount++ == 0) { 
-                        pg.unlink();
+        boolean loaded = false;
+        synchronized (stripe) { 
+            pg = lookup(addr, h);
+            if (pg != null) { 
+                // psRaw is cleared with the stripe locked
+                loaded = (pg.state & Page.psRaw) == 0;
+            }
+        }
+        if (pg == null) { 
+            Page frame = allocate();
+            synchronized (stripe) { 
+                pg = lookup(addr, h);
+                if (pg == null) { 
+                    pg = frame;
+                    synchronized (pg) { 
+                        pg.accessCount = 1;
+                        pg.offs = addr;
+                        pg.state = Page.psRaw;
                     }
+                    Page[] table = hashTable;
+                    int i = h & (table.length-1);
+                    pg.collisionChain = table[i];
+                    table[i] = pg;
+                }
+            }
+            if (pg != frame) { 
+                release(frame);
+            } else if (autoExtended) { 
+                int n;
+                synchronized (clock) { 
+                    n = ++nPages;
+                }
+                if (n > hashTable.length*2) { 
+                    resize(0);
+                }
+            }
+        }
+        if (!loaded) { 
+            try { 
+                load(pg, stripe);
+            } catch (StorageError x) { 
+                unfix(pg);
+                throw x;
+            }
+        }
+        if ((state & Page.psDirty) != 0) { 
+            setDirty(pg);
+        }
+        return pg;
+    }
+
+    /**
+     * Find the page in the hash table and fix it. Should be called with the stripe locked.
+     */
+    private final Page lookup(long addr, int h) { 
+        Page[] table = hashTable;
+        for (Page pg = table[h & (table.length-1)]; pg != null; pg = pg.collisionChain) { 
+            if (pg.offs == addr) { 
+                pg.accessCount += 1;
+                return pg;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read the page from the file if it is not loaded yet. The first thread finding the page
+     * not loaded reads it, the others wait for it.
+     */
+    private final void load(Page pg, Object stripe) { 
+        synchronized (pg) { 
+            while ((pg.state & Page.psRaw) != 0) { 
+                if ((pg.state & Page.psWait) == 0) { 
+                    pg.state |= Page.psWait;
                     break;
                 }
+                try { 
+                    pg.wait();
+                } catch (InterruptedException x) {}
             }
-            if (pg == null) { 
-                pg = freePages;
-                if (pg != null) { 
-                    freePages = (Page)pg.next;
-                } else if (autoExtended) { 
-                    if (pageNo >= poolSize) {
-                        int newPoolSize = pageNo >= poolSize*2 ? pageNo+1 : poolSize*2;
-                        Page[] newHashTable = new Page[newPoolSize];
-                        System.arraycopy(hashTable, 0, newHashTable, 0, hashTable.length);
-                        hashTable = newHashTable;
-                        poolSize = newPoolSize;
+            if ((pg.state & Page.psRaw) == 0) { 
+                return;
+            }
+        }
+        waitForEvicted(pg.offs);
+        boolean loaded = false;
+        try { 
+            if (readPage(pg.offs, pg.data) < Page.pageSize) { 
+                for (int i = 0; i < Page.pageSize; i++) { 
+                    pg.data[i] = 0;
+                }
+            }
+            loaded = true;
+        } finally { 
+            synchronized (stripe) { 
+                synchronized (pg) { 
+                    pg.state &= ~Page.psWait;
+                    if (loaded) { 
+                        pg.state &= ~Page.psRaw;
                     }
-                    pg = new Page();
-                    hashCode = pageNo;
-                } else { 
-                    Assert.that("unfixed page available", lru.prev != lru);
-                    pg = (Page)lru.prev;
-                    pg.unlink();
-                    synchronized (pg) { 
-                        if ((pg.state & Page.psDirty) != 0) { 
-                            pg.state = 0;
-                            file.write(pg.offs, pg.data);
-                            if (!flushing) { 
-                                dirtyPages[pg.writeQueueIndex] = dirtyPages[--nDirtyPages];
-                                dirtyPages[pg.writeQueueIndex].writeQueueIndex = pg.writeQueueIndex;
+                    pg.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * IFile implementations needn't be thread safe, so the pool doesn't access the file
+     * concurrently, but threads finding their pages in the pool don't wait for it.
+     */
+    private final int readPage(long pos, byte[] buf) { 
+        if (positionalFile) { 
+            return file.read(pos, buf);
+        }
+        synchronized (file) { 
+            return file.read(pos, buf);
+        }
+    }
+
+    private final void writePage(long pos, byte[] buf) { 
+        if (positionalFile) { 
+            file.write(pos, buf);
+            return;
+        }
+        synchronized (file) { 
+            file.write(pos, buf);
+        }
+    }
+
+    /**
+     * Get a page which is not in the hash table, replacing an unfixed page if the pool is full.
+     * A replaced dirty page is written after the locks are released.
+     */
+    private final Page allocate() { 
+        Page pg = null;
+        long dirtyAddr = -1;
+        synchronized (clock) { 
+            pg = freePages;
+            if (pg != null) { 
+                freePages = pg.next;
+                return pg;
+            }
+            if (autoExtended) { 
+                return new Page();
+            }
+            for (int n = 3*poolSize; --n >= 0;) { 
+                Page victim = frames[clockHand];
+                if (++clockHand == poolSize) { 
+                    clockHand = 0;
+                }
+                if (victim.referenced) { 
+                    victim.referenced = false;
+                } else if (victim.offs >= 0) { 
+                    long addr = victim.offs;
+                    int rc = evict(victim, addr);
+                    if (rc != NOT_EVICTED) { 
+                        victim.offs = -1;
+                        if (rc == EVICTED_DIRTY) { 
+                            dirtyAddr = addr;
+                        }
+                        pg = victim;
+                        break;
+                    }
+                }
+            }
+            Assert.that("unfixed page available", pg != null);
+        }
+        if (dirtyAddr >= 0) { 
+            try { 
+                writeEvicted(dirtyAddr);
+            } catch (StorageError x) { 
+                release(pg);
+                throw x;
+            }
+        }
+        return pg;
+    }
+
+    private final void release(Page pg) { 
+        synchronized (clock) { 
+            pg.offs = -1;
+            pg.next = freePages;
+            freePages = pg;
+        }
+    }
+
+    /**
+     * Image of a replaced dirty page which is being written to the file
+     */
+    static class EvictedPage { 
+        byte[] image;
+        long   lsn; // the log is synced up to this position before the image is written
+
+        EvictedPage(byte[] image) { 
+            this.image = image;
+        }
+    }
+
+    /**
+     * Remove an unfixed page from the hash table. The image of a dirty page is copied and
+     * registered as being written, the caller writes it with <code>writeEvicted</code> once it
+     * has released the locks. Should be called with the clock locked.
+     * @return <code>NOT_EVICTED</code>, <code>EVICTED</code> or <code>EVICTED_DIRTY</code>
+     */
+    private final int evict(Page pg, long addr) { 
+        int h = hash(addr);
+        int s = h & (nStripes-1);
+        synchronized (stripes[s]) { 
+            if (pg.offs != addr || pg.accessCount != 0) { 
+                return NOT_EVICTED;
+            }
+            int rc = EVICTED;
+            // nobody can make an unfixed page dirty while its stripe is locked
+            Object lock = (pg.state & Page.psDirty) != 0 ? this : (Object)pg;
+            synchronized (lock) { 
+                synchronized (pg) { 
+                    if ((pg.state & Page.psDirty) != 0) { 
+                        EvictedPage e = new EvictedPage(pg.data.clone());
+                        if (wal != null) { 
+                            e.lsn = wal.getEnd();
+                            if ((pg.state & Page.psLogged) == 0) { 
+                                stolen.put(new Long(addr), e.image);
                             }
                         }
+                        evicted[s].put(new Long(addr), e);
+                        if (!flushing) { 
+                            dirtyPages[pg.writeQueueIndex] = dirtyPages[--nDirtyPages];
+                            dirtyPages[pg.writeQueueIndex].writeQueueIndex = pg.writeQueueIndex;
+                        }
+                        rc = EVICTED_DIRTY;
                     }
-                    int h = (int)(pg.offs >> Page.pageSizeLog) % poolSize;
-                    Page curr = hashTable[h], prev = null;
-                    while (curr != pg) { 
-                        prev = curr;
-                        curr = curr.collisionChain;
+                    pg.state = 0;
+                }
+            }
+            Page[] table = hashTable;
+            int i = h & (table.length-1);
+            Page curr = table[i], prev = null;
+            while (curr != pg) { 
+                prev = curr;
+                curr = curr.collisionChain;
+            }
+            if (prev == null) { 
+                table[i] = pg.collisionChain;
+            } else { 
+                prev.collisionChain = pg.collisionChain;
+            }
+            return rc;
+        }
+    }
+
+    /**
+     * Write the image of a dirty page evicted by this thread, without holding any lock, and
+     * wake up the threads waiting to read the page.
+     */
+    private final void writeEvicted(long addr) { 
+        int s = hash(addr) & (nStripes-1);
+        Long key = new Long(addr);
+        EvictedPage e;
+        synchronized (stripes[s]) { 
+            e = (EvictedPage)evicted[s].get(key);
+        }
+        try { 
+            WriteAheadLog log = wal;
+            if (log != null) { 
+                // the log should be on disk before the file is changed
+                log.sync(e.lsn);
+            }
+            writePage(addr, e.image);
+        } finally { 
+            synchronized (stripes[s]) { 
+                evicted[s].remove(key);
+                stripes[s].notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait until the evicted image of the page is written, so that the file is up to date.
+     * Nobody can evict the page again while it is being loaded, since it is fixed.
+     */
+    private final void waitForEvicted(long addr) { 
+        int s = hash(addr) & (nStripes-1);
+        synchronized (stripes[s]) { 
+            HashMap pages = evicted[s];
+            if (!pages.isEmpty()) { 
+                Long key = new Long(addr);
+                while (pages.containsKey(key)) { 
+                    try { 
+                        stripes[s].wait();
+                    } catch (InterruptedException x) {}
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until the dirty pages evicted so far are written, before the file is synced.
+     */
+    final void waitForEvictedPages() { 
+        for (int s = 0; s < nStripes; s++) { 
+            synchronized (stripes[s]) { 
+                HashMap pages = evicted[s];
+                if (pages.isEmpty()) { 
+                    continue;
+                }
+                Object[] keys = pages.keySet().toArray();
+                Object[] images = new Object[keys.length];
+                for (int i = 0; i < keys.length; i++) { 
+                    images[i] = pages.get(keys[i]);
+                }
+                for (int i = 0; i < keys.length; i++) { 
+                    while (pages.get(keys[i]) == images[i]) { 
+                        try { 
+                            stripes[s].wait();
+                        } catch (InterruptedException x) {}
                     }
-                    if (prev == null) { 
-                        hashTable[h] = pg.collisionChain;
-                    } else { 
-                        prev.collisionChain = pg.collisionChain;
+                }
+            }
+        }
+    }
+
+    /**
+     * Double the hash table of an infinite pool, locking all stripes starting from <code>i</code>.
+     */
+    private final void resize(int i) { 
+        if (i < nStripes) { 
+            synchronized (stripes[i]) { 
+                resize(i+1);
+            }
+            return;
+        }
+        Page[] table = hashTable;
+        if (nPages <= table.length*2) { 
+            return;
+        }
+        Page[] newTable = new Page[table.length*2];
+        for (int j = 0; j < table.length; j++) { 
+            Page pg = table[j];
+            while (pg != null) { 
+                Page next = pg.collisionChain;
+                int k = hash(pg.offs) & (newTable.length-1);
+                pg.collisionChain = newTable[k];
+                newTable[k] = pg;
+                pg = next;
+            }
+        }
+        hashTable = newTable;
+    }
+
+    private final void setDirty(Page pg) { 
+        synchronized (this) {           
+            synchronized (pg) { 
+                if ((pg.state & Page.psDirty) == 0) { 
+                    Assert.that(!flushing);
+                    if (nDirtyPages >= dirtyPages.length) { 
+                        Page[] newDirtyPages = new Page[nDirtyPages*2];
+                        System.arraycopy(dirtyPages, 0, newDirtyPages, 0, dirtyPages.length);
+                        dirtyPages = newDirtyPages;
                     }
+                    dirtyPages[nDirtyPages] = pg;
+                    pg.writeQueueIndex = nDirtyPages++;
+                    pg.state |= Page.psDirty;
                 }
-                pg.accessCount = 1;
-                pg.offs = addr;
-                pg.state = Page.psRaw;
-                pg.collisionChain = hashTable[hashCode];
-                hashTable[hashCode] = pg;
-            }
-            if ((pg.state & Page.psDirty) == 0 && (state & Page.psDirty) != 0)
-            {
-                Assert.that(!flushing);
-                if (nDirtyPages >= dirtyPages.length) {                     
-                    Page[] newDirtyPages = new Page[nDirtyPages*2];
-                    System.arraycopy(dirtyPages, 0, newDirtyPages, 0, dirtyPages.length);
-                    dirtyPages = newDirtyPages;
+                pg.state &= ~(Page.psLogged|Page.psWriting);
+                trackChange(pg);
+            }
+        }
+    }
+
+    /**
+     * Remember the transaction changing the page and preserve the image of the page for the online
+     * backup if it is not copied yet. Should be called with the pool and page locked, before the page is changed.
+     */
+    private final void trackChange(Page pg) { 
+        int pageNo = (int)(pg.offs >>> Page.pageSizeLog);
+        if (pageNo >= pageTransactions.length) { 
+            long[] newPageTransactions = new long[Math.max(pageNo + 1, pageTransactions.length*2)];
+            System.arraycopy(pageTransactions, 0, newPageTransactions, 0, pageTransactions.length);
+            pageTransactions = newPageTransactions;
+        }
+        pageTransactions[pageNo] = transactionId;
+        BackupSnapshot b = backup;
+        if (b != null && pageNo < b.nPages && !b.isCopied(pageNo)) { 
+            b.setCopied(pageNo);
+            b.preserved.put(new Long(pg.offs), pg.data.clone());
+        }
+    }
+
+    /**
+     * Start tracking of the changed pages, all pages are considered to be changed by the transactions
+     * before the specified one.
+     */
+    final synchronized void trackChanges(long transactionId) { 
+        trackedTransactionId = transactionId;
+        this.transactionId = transactionId + 1;
+        pageTransactions = new long[1024];
+    }
+
+    final synchronized void setTransactionId(long transactionId) { 
+        this.transactionId = transactionId;
+    }
+
+    /**
+     * Start online backup of the pages in the current state, which is kept for the backup 
+     * until <code>endBackup</code> is called: images of the pages are preserved before they are changed.
+     * Should be called with the storage locked.
+     * @param nPages number of pages in the snapshot
+     * @param sinceTransactionId only pages changed after this transaction are included in the backup
+     * @return bitmap of the pages included in the backup
+     */
+    final synchronized int[] startBackup(int nPages, long sinceTransactionId) { 
+        Assert.that(backup == null);
+        BackupSnapshot b = new BackupSnapshot(nPages);
+        int[] included = new int[(nPages + 31) >>> 5];
+        boolean all = sinceTransactionId < trackedTransactionId;
+        for (int i = 0; i < nPages; i++) { 
+            if (all || (i < pageTransactions.length && pageTransactions[i] > sinceTransactionId)) { 
+                included[i >>> 5] |= 1 << (i & 31);
+            } else { 
+                b.setCopied(i); // no need to preserve the page
+            }
+        }
+        b.setCopied(0); // header is taken by the storage
+        backup = b;
+        return included;
+    }
+
+    final synchronized void endBackup() { 
+        backup = null;
+    }
+
+    /**
+     * Read image of the page of the online backup snapshot. The page is not loaded in the pool, 
+     * so that reading the whole database doesn't replace the pages used by the application.
+     */
+    final void readBackupPage(long addr, byte[] buf) { 
+        int h = hash(addr);
+        Object stripe = stripes[h & (nStripes-1)];
+        Page pg;
+        boolean loaded = false;
+        synchronized (stripe) { 
+            pg = lookup(addr, h);
+            if (pg != null) { 
+                loaded = (pg.state & Page.psRaw) == 0;
+            }
+        }
+        try { 
+            if (pg == null) { 
+                // the file is up to date once the page is written after being removed from the pool
+                waitForEvicted(addr);
+                if (readPage(addr, buf) < Page.pageSize) { 
+                    Arrays.fill(buf, (byte)0);
                 }
-                dirtyPages[nDirtyPages] = pg;
-                pg.writeQueueIndex = nDirtyPages++;
-                pg.state |= Page.psDirty;
-            }
-            if ((pg.state & Page.psRaw) != 0) {
-                if (file.read(pg.offs, pg.data) < Page.pageSize) {
-                    for (int i = 0; i < Page.pageSize; i++) { 
-                        pg.data[i] = 0;
+            } else if (!loaded) { 
+                load(pg, stripe);
+            }
+            synchronized (this) { 
+                BackupSnapshot b = backup;
+                int pageNo = (int)(addr >>> Page.pageSizeLog);
+                if (b.isCopied(pageNo)) { 
+                    byte[] image = (byte[])b.preserved.remove(new Long(addr));
+                    System.arraycopy(image, 0, buf, 0, Page.pageSize);
+                } else { 
+                    // the page was not changed since the snapshot, so it can't be being changed now
+                    b.setCopied(pageNo);
+                    if (pg != null) { 
+                        System.arraycopy(pg.data, 0, buf, 0, Page.pageSize);
                     }
                 }
-                pg.state &= ~Page.psRaw;
-            }           
+            }
+        } finally { 
+            if (pg != null) { 
+                unfix(pg);
+            }
         }
-        return pg;
     }
 
+    static class BackupSnapshot { 
+        int     nPages;
+        int[]   copied;   // pages which are copied by the backup or preserved
+        HashMap preserved = new HashMap(); // images of pages changed before being copied
+
+        BackupSnapshot(int nPages) { 
+            this.nPages = nPages;
+            copied = new int[(nPages + 31) >>> 5];
+        }
 
-    final synchronized void copy(long dst, long src, long size) 
+        final boolean isCopied(int pageNo) { 
+            return (copied[pageNo >>> 5] & (1 << (pageNo & 31))) != 0;
+        }
+
+        final void setCopied(int pageNo) { 
+            copied[pageNo >>> 5] |= 1 << (pageNo & 31);
+        }
+    }
+
+
+    final void copy(long dst, long src, long size)
     {
         int dstOffs = (int)dst & (Page.pageSize-1);
         int srcOffs = (int)src & (Page.pageSize-1);
@@ -136,10 +605,10 @@ class PagePool {
             }
             long len = size;
             if (len > Page.pageSize - srcOffs) { 
-                len = Page.pageSize - srcOffs; 
+                len = Page.pageSize - srcOffs;
             }
             if (len > Page.pageSize - dstOffs) { 
-                len = Page.pageSize - dstOffs; 
+                len = Page.pageSize - dstOffs;
             }
             System.arraycopy(srcPage.data, srcOffs, dstPage.data, dstOffs, (int)len);
             srcOffs += len;
@@ -150,7 +619,7 @@ class PagePool {
         unfix(srcPage);
     }
 
-    final void write(long dstPos, byte[] src) 
+    final void write(long dstPos, byte[] src)
     {
         Assert.that((dstPos & (Page.pageSize-1)) == 0);
         Assert.that((src.length & (Page.pageSize-1)) == 0);
@@ -165,74 +634,81 @@ class PagePool {
         }
     }
 
-    final void open(IFile f) 
+    final void open(IFile f)
     {
         file = f;
+        positionalFile = f instanceof IPositionalFile;
         reset();
     }
 
     final void reset() { 
-        lru = new LRU();
-        freePages = null;
-        hashTable = new Page[poolSize];
+        int tableSize = nStripes;
+        while (tableSize < poolSize) { 
+            tableSize <<= 1;
+        }
+        hashTable = new Page[tableSize];
         dirtyPages = new Page[poolSize];
         nDirtyPages = 0;
-        if (!autoExtended) { 
-            for (int i = poolSize; --i >= 0; ) { 
-                Page pg = new Page();
-                pg.next = freePages;
-                freePages = pg;
+        synchronized (clock) { 
+            freePages = null;
+            frames = null;
+            clockHand = 0;
+            nPages = 0;
+            if (!autoExtended) { 
+                frames = new Page[poolSize];
+                for (int i = poolSize; --i >= 0; ) { 
+                    Page pg = new Page();
+                    frames[i] = pg;
+                    pg.offs = -1;
+                    pg.next = freePages;
+                    freePages = pg;
+                }
             }
         }
     }
 
     final void clear() { 
-        Assert.that(nDirtyPages == 0);
-        reset();
+        synchronized (writer) { 
+            Assert.that(nDirtyPages == 0);
+            waitForEvictedPages();
+            reset();
+        }
     }
 
-    final synchronized void close() {
-        file.close();
-        hashTable = null;
-        dirtyPages = null;
-        lru = null;
-        freePages = null;
+    final void close() {
+        synchronized (writer) { 
+            waitForEvictedPages();
+            synchronized (this) { 
+                file.close();
+                hashTable = null;
+                dirtyPages = null;
+                frames = null;
+                freePages = null;
+            }
+        }
     }
 
-    final synchronized void unfix(Page pg) { 
-        Assert.that(pg.accessCount > 0);
-        if (--pg.accessCount == 0) { 
-            if (pg.offs <= lruLimit) { 
-                lru.link(pg);
-            } else { 
-                lru.prev.link(pg);
-            }
+    final void unfix(Page pg) { 
+        synchronized (stripe(pg.offs)) { 
+            Assert.that(pg.accessCount > 0);
+            pg.accessCount -= 1;
+            pg.referenced = pg.offs <= lruLimit;
         }
     }
 
-    final synchronized void modify(Page pg) { 
+    final void modify(Page pg) { 
         Assert.that(pg.accessCount > 0);
-        if ((pg.state & Page.psDirty) == 0) { 
-            Assert.that(!flushing);
-            pg.state |= Page.psDirty;
-            if (nDirtyPages >= dirtyPages.length) {                     
-                Page[] newDirtyPages = new Page[nDirtyPages*2];
-                System.arraycopy(dirtyPages, 0, newDirtyPages, 0, dirtyPages.length);
-                dirtyPages = newDirtyPages;
-            }
-            dirtyPages[nDirtyPages] = pg;
-            pg.writeQueueIndex = nDirtyPages++;
-        }
+        setDirty(pg);
     }
-    
+
     final Page getPage(long addr) { 
         return find(addr, 0);
     }
-    
+
     final Page putPage(long addr) { 
         return find(addr, Page.psDirty);
     }
-    
+
     final byte[] get(long pos) { 
         Assert.that(pos != 0);
         int offs = (int)pos & (Page.pageSize-1);
@@ -276,29 +752,306 @@ class PagePool {
         unfix(pg);
     }
 
-    void flush() { 
-        synchronized (this) { 
-            flushing = true;
-            java.util.Arrays.sort(dirtyPages, 0, nDirtyPages); 
-        }
+    /**
+     * Append the images of the dirty pages which are not logged yet, and of the pages
+     * evicted before being logged, to the write-ahead log. The log is not synced.
+     * @return position of the end of the log
+     */
+    final synchronized long log() { 
+        Page[] pages = new Page[nDirtyPages];
+        int nPages = 0;
         for (int i = 0; i < nDirtyPages; i++) { 
-            Page pg = dirtyPages[i];
+            if ((dirtyPages[i].state & Page.psLogged) == 0) { 
+                pages[nPages++] = dirtyPages[i];
+            }
+        }
+        int n = stolen.size();
+        if (n + nPages != 0) { 
+            Arrays.sort(pages, 0, nPages);
+            long[] offs = new long[n + nPages];
+            byte[][] images = new byte[n + nPages][];
+            Iterator iterator = stolen.entrySet().iterator();
+            for (int i = 0; i < n; i++) { 
+                Map.Entry e = (Map.Entry)iterator.next();
+                offs[i] = ((Long)e.getKey()).longValue();
+                images[i] = (byte[])e.getValue();
+            }
+            for (int i = 0; i < nPages; i++) { 
+                offs[n + i] = pages[i].offs;
+                images[n + i] = pages[i].data;
+            }
+            wal.append(offs, images, n + nPages);
+            for (int i = 0; i < nPages; i++) { 
+                synchronized (pages[i]) { 
+                    pages[i].state |= Page.psLogged;
+                }
+            }
+            stolen.clear();
+        }
+        return wal.getEnd();
+    }
+
+    /**
+     * Images of the dirty pages taken by <code>startCheckpoint</code>
+     */
+    static class Checkpoint { 
+        long     lsn;    // position of the end of the log
+        int      nPages;
+        Page[]   pages;
+        long[]   offs;
+        byte[][] images;
+        byte[]   header; // header page as of the last logged record
+    }
+
+    /**
+     * Take the images of all dirty pages and of the header page for <code>writeCheckpoint</code>.
+     * Should be called with the storage locked, so that no page is being changed; the images
+     * are written without the lock.
+     */
+    final synchronized Checkpoint startCheckpoint() { 
+        Checkpoint cp = new Checkpoint();
+        cp.lsn = wal.getEnd();
+        Page[] pages = new Page[nDirtyPages];
+        System.arraycopy(dirtyPages, 0, pages, 0, nDirtyPages);
+        Arrays.sort(pages);
+        cp.pages = new Page[pages.length];
+        cp.offs = new long[pages.length];
+        cp.images = new byte[pages.length][];
+        for (int i = 0; i < pages.length; i++) { 
+            Page pg = pages[i];
             synchronized (pg) { 
-                if ((pg.state & Page.psDirty) != 0) { 
-                    file.write(pg.offs, pg.data);
-                    pg.state &= ~Page.psDirty;
+                if (pg.offs != 0) { 
+                    cp.pages[cp.nPages] = pg;
+                    cp.offs[cp.nPages] = pg.offs;
+                    cp.images[cp.nPages] = pg.data.clone();
+                    cp.nPages += 1;
+                    pg.state |= Page.psWriting|Page.psCheckpoint;
                 }
             }
-        }           
-        file.sync();
-        nDirtyPages = 0;
-        flushing = false;
+        }
+        cp.header = wal.getHeaderImage();
+        return cp;
     }
-}
 
+    /**
+     * Write the images taken by <code>startCheckpoint</code> and wait for the evicted pages, so that
+     * the log before the checkpoint is no longer needed once the file is synced. A page is fixed while
+     * its image is written, so that it is not evicted and written at the same time; a page evicted
+     * since its image was taken is skipped, as the eviction wrote a newer image. Pages which are
+     * logged and not changed since their image was taken are no longer dirty.
+     */
+    final void writeCheckpoint(Checkpoint cp) { 
+        wal.sync(cp.lsn);
+        for (int i = 0; i < cp.nPages; i++) { 
+            Page pg = cp.pages[i];
+            long addr = cp.offs[i];
+            synchronized (stripe(addr)) { 
+                synchronized (pg) { 
+                    if (pg.offs != addr || (pg.state & Page.psCheckpoint) == 0) { 
+                        continue;
+                    }
+                }
+                pg.accessCount += 1;
+            }
+            try { 
+                writePage(addr, cp.images[i]);
+            } finally { 
+                unfix(pg);
+            }
+        }
+        if (cp.header != null) { 
+            writePage(0, cp.header);
+        }
+        waitForEvictedPages();
+        synchronized (this) { 
+            int written = Page.psCheckpoint|Page.psWriting|Page.psLogged;
+            for (int i = 0; i < cp.nPages; i++) { 
+                Page pg = cp.pages[i];
+                synchronized (pg) { 
+                    if (pg.offs != cp.offs[i]) { 
+                        continue;
+                    }
+                    // setDirty clears psWriting when the page is changed again
+                    if ((pg.state & written) == written) { 
+                        pg.state &= ~(Page.psDirty|written);
+                        dirtyPages[pg.writeQueueIndex] = dirtyPages[--nDirtyPages];
+                        dirtyPages[pg.writeQueueIndex].writeQueueIndex = pg.writeQueueIndex;
+                    } else { 
+                        pg.state &= ~(Page.psCheckpoint|Page.psWriting);
+                    }
+                }
+            }
+        }
+    }
+
+    void flush() { 
+        if (wal != null) { 
+            wal.sync(log());
+            return;
+        }
+        synchronized (writer) { 
+            Page[] pages;
+            synchronized (this) {           
+                flushing = true;
+                java.util.Arrays.sort(dirtyPages, 0, nDirtyPages);
+                pages = dirtyPages;
+            }
+            writeRuns(pages, nDirtyPages, false);
+            waitForEvictedPages();
+            file.sync();
+            synchronized (this) {           
+                nDirtyPages = 0;
+                flushing = false;
+            }
+        }
+    }
 
+    /**
+     * Write the unfixed dirty pages to the file, without syncing it, so that the next
+     * flush has less to write. A page which is modified after its image was taken stays dirty.
+     * The header page is only written by flush. It doesn't run concurrently with flush,
+     * clear or close, but needs no lock of the storage: pages fixed by a transaction
+     * are skipped, and the others could be evicted and written at any time anyway.
+     * @return number of pages written
+     */
+    final int writeDirtyPages() { 
+        synchronized (writer) { 
+            Page[] pages;
+            synchronized (this) { 
+                if (flushing || wal != null || dirtyPages == null || nDirtyPages == 0) { 
+                    return 0;
+                }
+                // dirty pages are only replaced with the pool locked, so their offsets don't change here
+                pages = new Page[nDirtyPages];
+                System.arraycopy(dirtyPages, 0, pages, 0, nDirtyPages);
+                Arrays.sort(pages);
+            }
+            return writeRuns(pages, pages.length, true);
+        }
+    }
 
+    /**
+     * Write the sorted dirty pages in runs of adjacent pages, one call per run for
+     * <code>IPositionalFile</code>. The images are copied with the page locked, since an
+     * unfixed frame can be reused for another page, and the pages stay dirty until they are
+     * written, so that they are not replaced and read back from the file before that.
+     * In the background, pages may be changed meanwhile: they are fixed while their image
+     * is written, so that a newer image is not evicted and written before it, and the runs
+     * are shorter in a small pool, so that there are unfixed pages left to replace.
+     */
+    private final int writeRuns(Page[] dirty, int nDirty, boolean background) { 
+        byte[][] images = new byte[MAX_RUN_PAGES+1][];
+        long[] offs = new long[MAX_RUN_PAGES+1];
+        Page[] pages = new Page[MAX_RUN_PAGES+1];
+        int maxRun = background && !autoExtended ? Math.max(1, Math.min(MAX_RUN_PAGES, poolSize/4)) : MAX_RUN_PAGES;
+        int nRun = 0;
+        int nWritten = 0;
+        for (int i = 0; i < nDirty; i++) { 
+            Page pg = dirty[i];
+            if (images[nRun] == null) { 
+                images[nRun] = new byte[Page.pageSize];
+            }
+            long addr = pg.offs;
+            if (!(background ? takeUnfixedImage(pg, addr, images[nRun]) : takeImage(pg, addr, images[nRun]))) { 
+                continue;
+            }
+            offs[nRun] = addr;
+            pages[nRun] = pg;
+            if (nRun != 0 && (nRun == maxRun || offs[nRun] != offs[nRun-1] + Page.pageSize)) { 
+                // the page starts a new run
+                writeRun(pages, offs, images, nRun, background);
+                nWritten += nRun;
+                byte[] image = images[0];
+                images[0] = images[nRun];
+                images[nRun] = image;
+                offs[0] = offs[nRun];
+                pages[0] = pages[nRun];
+                nRun = 0;
+            }
+            nRun += 1;
+        }
+        if (nRun != 0) { 
+            writeRun(pages, offs, images, nRun, background);
+            nWritten += nRun;
+        }
+        return nWritten;
+    }
 
+    private final boolean takeImage(Page pg, long addr, byte[] image) { 
+        synchronized (pg) { 
+            if (pg.offs != addr || (pg.state & Page.psDirty) == 0) { 
+                return false;
+            }
+            System.arraycopy(pg.data, 0, image, 0, Page.pageSize);
+            return true;
+        }
+    }
 
+    private final boolean takeUnfixedImage(Page pg, long addr, byte[] image) { 
+        if (addr == 0) { 
+            return false;
+        }
+        // pages are only fixed with their stripe locked, and a fixed page may be being changed
+        synchronized (stripe(addr)) { 
+            if (pg.offs != addr || pg.accessCount != 0) { 
+                return false;
+            }
+            synchronized (pg) { 
+                if ((pg.state & Page.psDirty) == 0) { 
+                    return false;
+                }
+                System.arraycopy(pg.data, 0, image, 0, Page.pageSize);
+                pg.state |= Page.psWriting;
+                pg.accessCount += 1;
+                return true;
+            }
+        }
+    }
 
+    private final void writeRun(Page[] pages, long[] offs, byte[][] images, int nPages, boolean background) { 
+        if (!background) { 
+            writeImages(offs, images, nPages);
+            for (int i = 0; i < nPages; i++) { 
+                Page pg = pages[i];
+                synchronized (pg) { 
+                    if (pg.offs == offs[i]) { 
+                        pg.state &= ~(Page.psDirty|Page.psLogged);
+                    }
+                }
+            }
+            return;
+        }
+        try { 
+            writeImages(offs, images, nPages);
+            synchronized (this) { 
+                for (int i = 0; i < nPages; i++) { 
+                    Page pg = pages[i];
+                    synchronized (pg) { 
+                        // setDirty clears psWriting when the page is changed again
+                        if ((pg.state & Page.psWriting) != 0) { 
+                            pg.state &= ~(Page.psDirty|Page.psWriting);
+                            if (!flushing) { 
+                                dirtyPages[pg.writeQueueIndex] = dirtyPages[--nDirtyPages];
+                                dirtyPages[pg.writeQueueIndex].writeQueueIndex = pg.writeQueueIndex;
+                            }
+                        }
+                    }
+                }
+            }
+        } finally { 
+            for (int i = 0; i < nPages; i++) { 
+                unfix(pages[i]);
+            }
+        }
+    }
 
+    private final void writeImages(long[] offs, byte[][] images, int nPages) { 
+        if (positionalFile) { 
+            ((IPositionalFile)file).write(offs[0], images, nPages);
+        } else { 
+            for (int i = 0; i < nPages; i++) { 
+                writePage(offs[i], images[i]);
+            }
+        }
+    }
+}
@@ -22,4 +22,6 @@ public interface ReflectionProvider {
     void setBoolean(Field field, Object object, boolean value) throws Exception;
 
     void set(Field field, Object object, Object value) throws Exception;
+
+    FieldAccessor getFieldAccessor(Field field) throws Exception;
 }
\ No newline at end of file
@@ -109,6 +109,16 @@ class RndBtreeFieldIndex<T extends IPersistent> extends RndBtree<T> implements F
         return super.insert(extractKey(obj), obj, false) == null;
     }
 
+    public int bulkLoad(Iterator<T> objects) {
+        int n = 0;
+        while (objects.hasNext()) { 
+            if (put(objects.next())) { 
+                n += 1;
+            }
+        }
+        return n;
+    }
+
     public T set(T obj) {
         return super.set(extractKey(obj), obj);
     }
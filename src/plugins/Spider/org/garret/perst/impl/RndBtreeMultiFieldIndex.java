@@ -100,6 +100,16 @@ class RndBtreeMultiFieldIndex<T extends IPersistent> extends RndBtree<T> impleme
         return super.put(extractKey(obj), obj);
     }
 
+    public int bulkLoad(Iterator<T> objects) {
+        int n = 0;
+        while (objects.hasNext()) { 
+            if (put(objects.next())) { 
+                n += 1;
+            }
+        }
+        return n;
+    }
+
     public T set(T obj) {
         return super.set(extractKey(obj), obj);
     }
@@ -44,4 +44,88 @@ public class StandardReflectionProvider implements ReflectionProvider {
     public void set(Field field, Object object, Object value) throws Exception { 
         field.set(object, value);
     }
+
+    public FieldAccessor getFieldAccessor(Field field) throws Exception { 
+        return new ReflectionFieldAccessor(field);
+    }
+
+    static class ReflectionFieldAccessor implements FieldAccessor { 
+        private final Field field;
+
+        ReflectionFieldAccessor(Field field) { 
+            this.field = field;
+        }
+
+        public boolean getBoolean(Object object) throws Exception { 
+            return field.getBoolean(object);
+        }
+
+        public byte getByte(Object object) throws Exception { 
+            return field.getByte(object);
+        }
+
+        public char getChar(Object object) throws Exception { 
+            return field.getChar(object);
+        }
+
+        public short getShort(Object object) throws Exception { 
+            return field.getShort(object);
+        }
+
+        public int getInt(Object object) throws Exception { 
+            return field.getInt(object);
+        }
+
+        public long getLong(Object object) throws Exception { 
+            return field.getLong(object);
+        }
+
+        public float getFloat(Object object) throws Exception { 
+            return field.getFloat(object);
+        }
+
+        public double getDouble(Object object) throws Exception { 
+            return field.getDouble(object);
+        }
+
+        public Object get(Object object) throws Exception { 
+            return field.get(object);
+        }
+
+        public void setBoolean(Object object, boolean value) throws Exception { 
+            field.setBoolean(object, value);
+        }
+
+        public void setByte(Object object, byte value) throws Exception { 
+            field.setByte(object, value);
+        }
+
+        public void setChar(Object object, char value) throws Exception { 
+            field.setChar(object, value);
+        }
+
+        public void setShort(Object object, short value) throws Exception { 
+            field.setShort(object, value);
+        }
+
+        public void setInt(Object object, int value) throws Exception { 
+            field.setInt(object, value);
+        }
+
+        public void setLong(Object object, long value) throws Exception { 
+            field.setLong(object, value);
+        }
+
+        public void setFloat(Object object, float value) throws Exception { 
+            field.setFloat(object, value);
+        }
+
+        public void setDouble(Object object, double value) throws Exception { 
+            field.setDouble(object, value);
+        }
+
+        public void set(Object object, Object value) throws Exception { 
+            field.set(object, value);
+        }
+    }
 }
\ No newline at end of file
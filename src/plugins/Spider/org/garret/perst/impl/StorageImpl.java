@@ -84,6 +84,9 @@ public class StorageImpl implements Storage {
                                    + ((long)(oid >>> dbHandlesPerPageBits) << Page.pageSizeLog));
             Bytes.pack8(pg.data, (oid & (dbHandlesPerPage-1)) << 3, pos);
             pool.unfix(pg);
+            if (incrementalGc != null && (pos & (dbFreeHandleFlag|dbPageObjectFlag)) == 0) { 
+                incrementalGc.objectStored(oid);
+            }
         }
     }
 
@@ -810,7 +813,10 @@ public class StorageImpl implements Storage {
     public synchronized void open(String filePath, int pagePoolSize) {
         IFile file = filePath.startsWith("@") 
             ? (IFile)new MultiFile(filePath.substring(1), readOnly, noFlush)
+            : channelFile 
+            ? (IFile)new ChannelFile(filePath, readOnly, noFlush)
             : (IFile)new OSFile(filePath, readOnly, noFlush);      
+        defaultWalPath = (filePath.startsWith("@") ? filePath.substring(1) : filePath) + ".wal";
         try {
             open(file, pagePoolSize);
         } catch (StorageError ex) {
@@ -821,6 +827,7 @@ public class StorageImpl implements Storage {
 
     public synchronized void open(String filePath, int pagePoolSize, String cryptKey) {
         Rc4File file = new Rc4File(filePath, readOnly, noFlush, cryptKey);      
+        defaultWalPath = filePath + ".wal";
         try {
             open(file, pagePoolSize);
         } catch (StorageError ex) {
@@ -848,6 +855,12 @@ public class StorageImpl implements Storage {
         if ("pinned".equals(kind)) { 
             return new PinWeakHashTable(objectCacheSize);
         }
+        if ("striped".equals(kind)) { 
+            return new StripedObjectCache(objectCacheSize, 0);
+        }
+        if ("striped.lru".equals(kind)) { 
+            return new StripedObjectCache(objectCacheSize, objectCacheSize);
+        }
         return new LruObjectCache(objectCacheSize);
     }
         
@@ -864,6 +877,7 @@ public class StorageImpl implements Storage {
         backgroundGcMonitor = new Object();
         backgroundGcStartMonitor = new Object();
         gcThread = null;
+        incrementalGc = null;
         gcActive = false;
         gcDone = false;
         allocatedDelta = 0;
@@ -877,6 +891,7 @@ public class StorageImpl implements Storage {
         nCommittedTransactions = 0;
         scheduledCommitTime = Long.MAX_VALUE;
         transactionMonitor = new Object();
+        commitThread = null;
         transactionLock = new PersistentResource();
 
         modified = false; 
@@ -900,6 +915,13 @@ public class StorageImpl implements Storage {
         }
         initialize(file, pagePoolSize);
 
+        wal = null;
+        walPosition = 0;
+        walCheckpointer = null;
+        pageWriter = null;
+        if (useWal) { 
+            openWriteAheadLog();
+        }
         if (multiclientSupport) { 
             beginThreadTransaction(READ_WRITE_TRANSACTION);
         }            
@@ -913,6 +935,7 @@ public class StorageImpl implements Storage {
             throw new StorageError(StorageError.DATABASE_CORRUPTED);
         }
         transactionId = header.transactionId;
+        pool.trackChanges(transactionId);
         if (header.databaseFormatVersion == 0) { // database not initialized
             int indexSize = initIndexSize;
             if (indexSize < dbFirstUserId) { 
@@ -1043,6 +1066,27 @@ public class StorageImpl implements Storage {
         if (multiclientSupport) { 
             endThreadTransaction();
         }            
+        if (wal != null) { 
+            walCheckpointer = new WalCheckpointer();
+        } else if (pageWriterInterval > 0 && !readOnly) { 
+            pageWriter = new PageWriter();
+        }
+    }
+
+    private void openWriteAheadLog() { 
+        if (multiclientSupport || readOnly) { 
+            throw new StorageError(StorageError.BAD_PROPERTY_VALUE, "perst.wal");
+        }
+        String path = walPath != null ? walPath : defaultWalPath;
+        if (path == null) { 
+            throw new StorageError(StorageError.BAD_PROPERTY_VALUE, "perst.wal");
+        }
+        wal = new WriteAheadLog(path);
+        int nRecords = wal.recover(file);
+        if (nRecords != 0) { 
+            System.err.println("Redo " + nRecords + " commits from the write-ahead log");
+        }
+        pool.wal = wal;
     }
 
     public boolean isOpened() { 
@@ -1153,6 +1197,16 @@ public class StorageImpl implements Storage {
     }
  
     public void commit() {
+        syncLog(commitWithoutSync());
+    }
+
+    /**
+     * Commit the transaction. With the write-ahead log, the commit is only durable when 
+     * <code>syncLog</code> has been called with the returned position, which should be 
+     * done after releasing the locks so that concurrent commits can share one log sync.
+     * @return position of the end of the commit record in the log, or 0
+     */
+    private long commitWithoutSync() {
         synchronized (backgroundGcMonitor) { 
             synchronized (this) { 
                 if (!opened) {
@@ -1169,15 +1223,31 @@ public class StorageImpl implements Storage {
                         alloc.commit();
                     }
                 }
-                if (!modified) { 
-                    return;
+                boolean idle = !modified;
+                if (idle) { 
+                    // the collection goes on when nothing else is committed, its deallocations are committed now
+                    incrementalGcStep();
+                    if (!modified) { 
+                        return 0;
+                    }
                 }
                 commit0();
                 modified = false;
+                if (!idle) { 
+                    incrementalGcStep();
+                }
+                return walPosition;
             }
         }
     }
 
+    final void syncLog(long pos) { 
+        WriteAheadLog log = wal;
+        if (log != null && pos != 0) { 
+            log.sync(pos);
+        }
+    }
+
     private final void commit0() 
     {
         int i, j, n;
@@ -1277,15 +1347,26 @@ public class StorageImpl implements Storage {
         header.root[1-curr].usedSize = usedSize;
         pg = pool.putPage(0);
         header.pack(pg.data);
-        pool.flush();
+        if (wal == null) { 
+            pool.flush();
+        }
         pool.modify(pg);
         Assert.that(header.transactionId == transactionId);
         header.transactionId = ++transactionId;
+        pool.setTransactionId(transactionId + 1);
         header.curr = curr ^= 1;
         header.dirty = true;
         header.pack(pg.data);
         pool.unfix(pg);
-        pool.flush();
+        if (wal != null) { 
+            // data pages and header are in one log record, so no ordering of writes is needed 
+            walPosition = pool.log();
+            if (wal.getSize() > walMaxSize && walCheckpointer != null) { 
+                walCheckpointer.activate();
+            }
+        } else { 
+            pool.flush();
+        }
         header.root[1-curr].size = header.root[curr].size;
         header.root[1-curr].indexUsed = currIndexSize; 
         header.root[1-curr].freeList  = header.root[curr].freeList; 
@@ -1388,6 +1469,56 @@ public class StorageImpl implements Storage {
         reloadScheme();
     }
 
+    public long backup(OutputStream out, long sinceTransactionId) throws java.io.IOException
+    {
+        byte[] page = new byte[Page.pageSize];
+        long snapshotId;
+        int nPages;
+        int[] included;
+        synchronized (this) { 
+            synchronized (objectCache) { 
+                if (!opened) { 
+                    throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+                }
+                if (multiclientSupport) { 
+                    throw new StorageError(StorageError.FILE_ACCESS_ERROR, "Online backup is not supported in multiclient access mode");
+                }
+                // pages of the last committed state are not changed until the next commit, 
+                // and the pool preserves them if they are changed before being copied
+                nPages = (int)((header.root[currIndex].size + Page.pageSize - 1) >>> Page.pageSizeLog);
+                included = pool.startBackup(nPages, sinceTransactionId);
+                boolean dirty = header.dirty;
+                header.dirty = true; // shadow root is restored from the committed one when the backup is opened
+                header.pack(page);
+                header.dirty = dirty;
+                snapshotId = header.transactionId;
+            }
+        }
+        try { 
+            DataOutputStream dout = new DataOutputStream(out);
+            dout.writeInt(RestoreBackup.MAGIC);
+            dout.writeInt(Page.pageSize);
+            dout.writeLong(sinceTransactionId);
+            dout.writeLong(snapshotId);
+            dout.writeInt(nPages);
+            dout.writeLong(0);
+            dout.write(page);
+            for (int i = 1; i < nPages; i++) { 
+                if ((included[i >>> 5] & (1 << (i & 31))) != 0) { 
+                    long addr = (long)i << Page.pageSizeLog;
+                    pool.readBackupPage(addr, page);
+                    dout.writeLong(addr);
+                    dout.write(page);
+                }
+            }
+            dout.writeLong(-1);
+            dout.flush();
+        } finally { 
+            pool.endBackup();
+        }
+        return snapshotId;
+    }
+
     public synchronized void backup(OutputStream out) throws java.io.IOException
     {
         if (!opened) { 
@@ -1701,6 +1832,15 @@ public class StorageImpl implements Storage {
         return index;
     }
 
+    public synchronized <T extends IPersistent> FieldIndex<T> createPrefixCompressedFieldIndex(Class type, String fieldName, boolean unique) {
+        if (!opened) { 
+            throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+        }        
+        FieldIndex<T> index = new BtreePrefixFieldIndex<T>(type, fieldName, unique);
+        index.assignOid(this, 0, false);
+        return index;
+    }
+
     public <T extends IPersistent> FieldIndex<T> createFieldIndex(Class type, String[] fieldNames, boolean unique) {
         return this.<T>createFieldIndex(type, fieldNames, unique, false);
     }
@@ -1833,7 +1973,10 @@ public class StorageImpl implements Storage {
             if ((pos & (dbFreeHandleFlag|dbPageObjectFlag)) != 0) { 
                 throw new StorageError(StorageError.INVALID_OID);
             }
-            if (pos < header.root[currIndex].size) { 
+            if (greyBitmap == null) { 
+                // incremental GC marks objects by OID
+                incrementalGc.markOid(oid);
+            } else if (pos < header.root[currIndex].size) { 
                 // object was not allocated by custom allocator
                 int bit = (int)(pos >>> dbAllocationQuantumBits);
                 if ((blackBitmap[bit >>> 5] & (1 << (bit & 31))) == 0) { 
@@ -1876,20 +2019,7 @@ public class StorageImpl implements Storage {
                                 pos = (((long)i << 5) + j) << dbAllocationQuantumBits;
                                 greyBitmap[i] &= ~(1 << j);
                                 blackBitmap[i] |= 1 << j;
-                                int offs = (int)pos & (Page.pageSize-1);
-                                Page pg = pool.getPage(pos - offs);
-                                int typeOid = ObjectHeader.getType(pg.data, offs);
-                                if (typeOid != 0) { 
-                                    ClassDescriptor desc = findClassDescriptor(typeOid);
-                                    if (Btree.class.isAssignableFrom(desc.cls)) { 
-                                        Btree btree = new Btree(pg.data, ObjectHeader.sizeof + offs);
-                                        btree.assignOid(this, 0, false);
-                                        btree.markTree();
-                                    } else if (desc.hasReferences) { 
-                                        markObject(pool.get(pos), ObjectHeader.sizeof, desc);
-                                    }
-                                }
-                                pool.unfix(pg);                                
+                                markReferences(pos);
                             }
                         }
                     }
@@ -1898,6 +2028,26 @@ public class StorageImpl implements Storage {
         }    
     }
 
+    /**
+     * Mark objects referenced by the object at the specified position
+     */
+    final void markReferences(long pos) { 
+        int offs = (int)pos & (Page.pageSize-1);
+        Page pg = pool.getPage(pos - offs);
+        int typeOid = ObjectHeader.getType(pg.data, offs);
+        if (typeOid != 0) { 
+            ClassDescriptor desc = findClassDescriptor(typeOid);
+            if (Btree.class.isAssignableFrom(desc.cls)) { 
+                Btree btree = new Btree(pg.data, ObjectHeader.sizeof + offs);
+                btree.assignOid(this, 0, false);
+                btree.markTree();
+            } else if (desc.hasReferences) { 
+                markObject(pool.get(pos), ObjectHeader.sizeof, desc);
+            }
+        }
+        pool.unfix(pg);                                
+    }
+
     private int sweep() { 
         int nDeallocated = 0;
         long pos;
@@ -1908,29 +2058,8 @@ public class StorageImpl implements Storage {
                 int bit = (int)(pos >>> dbAllocationQuantumBits);
                 if ((blackBitmap[bit >>> 5] & (1 << (bit & 31))) == 0) { 
                     // object is not accessible
-                    if (getPos(i) == pos) { 
-                        int offs = (int)pos & (Page.pageSize-1);
-                        Page pg = pool.getPage(pos - offs);
-                        int typeOid = ObjectHeader.getType(pg.data, offs);
-                        if (typeOid != 0) { 
-                            ClassDescriptor desc = findClassDescriptor(typeOid);
-                            nDeallocated += 1;
-                            if (Btree.class.isAssignableFrom(desc.cls)) { 
-                                Btree btree = new Btree(pg.data, ObjectHeader.sizeof + offs);
-                                pool.unfix(pg);
-                                btree.assignOid(this, i, false);
-                                btree.deallocate();
-                            } else { 
-                                int size = ObjectHeader.getSize(pg.data, offs);
-                                pool.unfix(pg);
-                                freeId(i);
-                                objectCache.remove(i);                        
-                                cloneBitmap(pos, size);
-                            }
-                            if (listener != null) { 
-                                listener.deallocateObject(desc.cls, i);
-                            }
-                        }
+                    if (getPos(i) == pos && deallocateGarbage(i, pos)) { 
+                        nDeallocated += 1;
                     }
                 }
             }   
@@ -1946,6 +2075,57 @@ public class StorageImpl implements Storage {
         }
         return nDeallocated;
     }   
+
+    /**
+     * Deallocate object which is not accessible from the root
+     * @return <code>false</code> if there is no object at the specified position
+     */
+    final boolean deallocateGarbage(int oid, long pos) { 
+        int offs = (int)pos & (Page.pageSize-1);
+        Page pg = pool.getPage(pos - offs);
+        int typeOid = ObjectHeader.getType(pg.data, offs);
+        if (typeOid == 0) { 
+            pool.unfix(pg);
+            return false;
+        }
+        ClassDescriptor desc = findClassDescriptor(typeOid);
+        if (Btree.class.isAssignableFrom(desc.cls)) { 
+            Btree btree = new Btree(pg.data, ObjectHeader.sizeof + offs);
+            pool.unfix(pg);
+            btree.assignOid(this, oid, false);
+            btree.deallocate();
+        } else { 
+            int size = ObjectHeader.getSize(pg.data, offs);
+            pool.unfix(pg);
+            freeId(oid);
+            objectCache.remove(oid);                        
+            cloneBitmap(pos, size);
+        }
+        if (listener != null) { 
+            listener.deallocateObject(desc.cls, oid);
+        }
+        return true;
+    }
+
+    /**
+     * Perform next time slice of the incremental garbage collection if it is in progress.
+     * It is called after commit, when all modified objects are stored, or by a commit
+     * with nothing to commit.
+     */
+    private void incrementalGcStep() { 
+        synchronized (objectCache) { 
+            IncrementalGc igc = incrementalGc;
+            if (igc != null && igc.step(System.currentTimeMillis() + gcSliceTime)) { 
+                incrementalGc = null;
+                allocatedDelta = 0;
+                gcActive = false;
+                gcDone = true;
+                if (listener != null) {
+                    listener.gcCompleted(igc.nDeallocated);
+                }
+            }
+        }
+    }
      
     class GcThread extends Thread { 
         private boolean go;
@@ -1990,6 +2170,89 @@ public class StorageImpl implements Storage {
         }
     }
 
+    class WalCheckpointer extends Thread { 
+        private boolean go;
+        private boolean done;
+
+        WalCheckpointer() { 
+            start();
+        }
+
+        synchronized void activate() { 
+            go = true;
+            notify();
+        }
+
+        synchronized void shutdown() { 
+            done = true;
+            notify();
+        }
+
+        public void run() { 
+            try { 
+                while (true) { 
+                    synchronized (this) { 
+                        if (!go && !done) { 
+                            wait(walCheckpointInterval);
+                        }
+                        if (done) { 
+                            return;
+                        }
+                        go = false;
+                    }
+                    if (wal.getSize() == WriteAheadLog.headerSize) { 
+                        continue;
+                    }
+                    PagePool.Checkpoint cp;
+                    synchronized (StorageImpl.this) { 
+                        cp = pool.startCheckpoint();
+                    }
+                    // the pages are written without the storage lock, so that commits go on meanwhile
+                    pool.writeCheckpoint(cp);
+                    file.sync();
+                    wal.checkpointed(cp.lsn);
+                }
+            } catch (InterruptedException x) { 
+            }
+        }
+    }
+
+    /**
+     * Thread writing dirty pages to the file between commits, so that commit has less to write
+     * before syncing the file
+     */
+    class PageWriter extends Thread { 
+        private boolean done;
+
+        PageWriter() { 
+            setDaemon(true);
+            start();
+        }
+
+        synchronized void shutdown() { 
+            done = true;
+            notify();
+        }
+
+        public void run() { 
+            try { 
+                while (true) { 
+                    synchronized (this) { 
+                        if (!done) { 
+                            wait(pageWriterInterval);
+                        }
+                        if (done) { 
+                            return;
+                        }
+                    }
+                    // not with the storage locked, which would block transactions while writing
+                    pool.writeDirtyPages();
+                }
+            } catch (InterruptedException x) { 
+            }
+        }
+    }
+
     public synchronized int gc() { 
         return gc0();
     }
@@ -2003,6 +2266,10 @@ public class StorageImpl implements Storage {
                 return 0;
             }
             gcActive = true;
+            if (gcSliceTime > 0) { 
+                incrementalGc = new IncrementalGc(this, header.root[currIndex].rootObject, currIndexSize);
+                return 0;
+            }
             if (backgroundGc) { 
                 if (gcThread == null) { 
                     gcThread = new GcThread();
@@ -2379,6 +2646,7 @@ public class StorageImpl implements Storage {
                             objectCache.clear();
                             pool.clear();
                             transactionId = header.transactionId;
+                            pool.trackChanges(transactionId);
                         }
                     }
                 }
@@ -2435,6 +2703,7 @@ public class StorageImpl implements Storage {
                 ArrayList modified = ctx.modified;
                 ArrayList deleted = ctx.deleted;
                 Map locked = ctx.locked;
+                long logPosition = 0;
                 synchronized (backgroundGcMonitor) { 
                     synchronized(this) { 
                         synchronized (objectCache) { 
@@ -2446,10 +2715,13 @@ public class StorageImpl implements Storage {
                             } 
                             if (modified.size() + deleted.size() > 0) { 
                                 commit0();
+                                logPosition = walPosition;
+                                incrementalGcStep();
                             }
                         }
                     }
                 }
+                syncLog(logPosition);
                 Iterator iterator = locked.values().iterator();
                 while (iterator.hasNext()) { 
                     ((IResource)iterator.next()).reset();
@@ -2459,13 +2731,17 @@ public class StorageImpl implements Storage {
                 locked.clear();
             } 
         } else { // exclusive or cooperative transaction        
+            long logPosition = 0;
             synchronized (transactionMonitor) { 
                 transactionLock.unlock();
                 
                 if (nNestedTransactions != 0) { // may be everything is already aborted
                     if (--nNestedTransactions == 0) { 
+                        if (maxDelay != Integer.MAX_VALUE && maxDelay != 0 && delayCommit(maxDelay)) { 
+                            return;
+                        }
                         nCommittedTransactions += 1;
-                        commit();
+                        logPosition = commitWithoutSync();
                         scheduledCommitTime = Long.MAX_VALUE;
                         if (nBlockedTransactions != 0) { 
                             transactionMonitor.notifyAll();
@@ -2485,11 +2761,69 @@ public class StorageImpl implements Storage {
                                 } catch (InterruptedException x) {}
                                 } while (nCommittedTransactions == n);
                                 nBlockedTransactions -= 1;
+                                logPosition = walPosition;
                             }                                   
                         }
                     }
                 }
             }
+            syncLog(logPosition);
+        }
+    }
+
+    /**
+     * Leave the work of the ended transactions uncommitted if the first of them was ended 
+     * less than <code>maxDelay</code> milliseconds ago. The commit thread commits it when the 
+     * delay expires, unless a transaction ending later does it first.
+     * Should be called with transactionMonitor locked.
+     */
+    private boolean delayCommit(int maxDelay) { 
+        long now = System.currentTimeMillis();
+        if (scheduledCommitTime == Long.MAX_VALUE) { 
+            scheduledCommitTime = now + maxDelay;
+        }
+        if (commitThread == null) { 
+            commitThread = new CommitThread();
+        }
+        transactionMonitor.notifyAll();
+        return now < scheduledCommitTime;
+    }
+
+    class CommitThread extends Thread { 
+        private boolean done;
+
+        CommitThread() { 
+            setDaemon(true);
+            start();
+        }
+
+        void shutdown() { 
+            synchronized (transactionMonitor) { 
+                done = true;
+                transactionMonitor.notifyAll();
+            }
+        }
+
+        public void run() { 
+            try { 
+                synchronized (transactionMonitor) { 
+                    while (!done) { 
+                        long now = System.currentTimeMillis();
+                        if (scheduledCommitTime == Long.MAX_VALUE || nNestedTransactions != 0) { 
+                            // nothing delayed, or the last active transaction will commit
+                            transactionMonitor.wait();
+                        } else if (now < scheduledCommitTime) { 
+                            transactionMonitor.wait(scheduledCommitTime - now);
+                        } else { 
+                            nCommittedTransactions += 1;
+                            commit();
+                            scheduledCommitTime = Long.MAX_VALUE;
+                            transactionMonitor.notifyAll();
+                        }
+                    }
+                }
+            } catch (InterruptedException x) { 
+            }
         }
     }
 
@@ -2535,6 +2869,7 @@ public class StorageImpl implements Storage {
             synchronized (transactionMonitor) { 
                 transactionLock.reset();
                 nNestedTransactions = 0;
+                scheduledCommitTime = Long.MAX_VALUE;
                 if (nBlockedTransactions != 0) { 
                     transactionMonitor.notifyAll();
                 }
@@ -2555,7 +2890,25 @@ public class StorageImpl implements Storage {
          
     public void close() 
     {
+        if (pageWriter != null) { 
+            pageWriter.shutdown();
+            try { 
+                pageWriter.join();
+            } catch (InterruptedException x) {}
+            pageWriter = null;
+        }
+        if (commitThread != null) { 
+            commitThread.shutdown();
+            try { 
+                commitThread.join();
+            } catch (InterruptedException x) {}
+            commitThread = null;
+        }
         synchronized (backgroundGcMonitor) { 
+            // finish the incremental collection in progress, a slice per commit, rather than lose it
+            while (incrementalGc != null) { 
+                commit();
+            }
             commit();
             opened = false;
         }
@@ -2565,6 +2918,19 @@ public class StorageImpl implements Storage {
                 gcThread.join();
             } catch (InterruptedException x) {}
         }
+        if (walCheckpointer != null) { 
+            walCheckpointer.shutdown();
+            try { 
+                walCheckpointer.join();
+            } catch (InterruptedException x) {}
+            walCheckpointer = null;
+        }
+        if (wal != null) { 
+            // write all pages to the file, after which the log is not needed
+            wal.sync(wal.getEnd());
+            pool.wal = null;
+            pool.flush();
+        }
         if (isDirty()) { 
             Page pg = pool.putPage(0);
             header.pack(pg.data);
@@ -2576,6 +2942,10 @@ public class StorageImpl implements Storage {
             pool.flush();
         }
         pool.close();
+        if (wal != null) { 
+            wal.close(true);
+            wal = null;
+        }
         // make GC easier
         pool = null;
         objectCache = null;
@@ -2632,6 +3002,18 @@ public class StorageImpl implements Storage {
         throw new StorageError(StorageError.BAD_PROPERTY_VALUE);
     }
 
+    private void setWalProperty(Object value) { 
+        walPath = null;
+        if (value instanceof String) { 
+            String s = (String)value;
+            if (s.length() > 1 && !"true".equalsIgnoreCase(s) && !"false".equalsIgnoreCase(s)) { 
+                walPath = s;
+                useWal = true;
+                return;
+            }
+        }
+        useWal = getBooleanValue(value);
+    }
      
     public void setProperties(Properties props) 
     {
@@ -2667,12 +3049,18 @@ public class StorageImpl implements Storage {
         if ((value = props.getProperty("perst.file.noflush")) != null) { 
             noFlush = getBooleanValue(value);
         }
+        if ((value = props.getProperty("perst.file.channel")) != null) { 
+            channelFile = getBooleanValue(value);
+        }
         if ((value = props.getProperty("perst.alternative.btree")) != null) { 
             alternativeBtree = getBooleanValue(value);
         }
         if ((value = props.getProperty("perst.background.gc")) != null) { 
             backgroundGc = getBooleanValue(value);
         }
+        if ((value = props.getProperty("perst.gc.slice")) != null) { 
+            gcSliceTime = getIntegerValue(value);
+        }
         if ((value = props.getProperty("perst.string.encoding")) != null) { 
             encoding = value;
         }
@@ -2697,7 +3085,19 @@ public class StorageImpl implements Storage {
         if ((value = props.getProperty("perst.multiclient.support")) != null) { 
             multiclientSupport = getBooleanValue(value);
         }
-        if (multiclientSupport && backgroundGc) { 
+        if ((value = props.getProperty("perst.wal")) != null) { 
+            setWalProperty(value);
+        }
+        if ((value = props.getProperty("perst.wal.checkpoint.interval")) != null) { 
+            walCheckpointInterval = getIntegerValue(value);
+        }
+        if ((value = props.getProperty("perst.wal.max.size")) != null) { 
+            walMaxSize = getIntegerValue(value);
+        }
+        if ((value = props.getProperty("perst.page.writer.interval")) != null) { 
+            pageWriterInterval = getIntegerValue(value);
+        }
+        if (multiclientSupport && (backgroundGc || gcSliceTime > 0)) { 
             throw new IllegalArgumentException("In mutliclient access mode bachround GC is not supported");
         }
     }
@@ -2726,10 +3126,14 @@ public class StorageImpl implements Storage {
             readOnly = getBooleanValue(value);
         } else if (name.equals("perst.file.noflush")) { 
             noFlush = getBooleanValue(value);
+        } else if (name.equals("perst.file.channel")) { 
+            channelFile = getBooleanValue(value);
         } else if (name.equals("perst.alternative.btree")) { 
             alternativeBtree = getBooleanValue(value);
         } else if (name.equals("perst.background.gc")) {
             backgroundGc = getBooleanValue(value);
+        } else if (name.equals("perst.gc.slice")) { 
+            gcSliceTime = getIntegerValue(value);
         } else if (name.equals("perst.string.encoding")) { 
             encoding = (value == null) ? null : value.toString();
         } else if (name.equals("perst.lock.file")) { 
@@ -2746,10 +3150,18 @@ public class StorageImpl implements Storage {
             pagePoolLruLimit = getIntegerValue(value);
         } else if (name.equals("perst.multiclient.support")) { 
             multiclientSupport = getBooleanValue(value);
+        } else if (name.equals("perst.wal")) { 
+            setWalProperty(value);
+        } else if (name.equals("perst.wal.checkpoint.interval")) { 
+            walCheckpointInterval = getIntegerValue(value);
+        } else if (name.equals("perst.wal.max.size")) { 
+            walMaxSize = getIntegerValue(value);
+        } else if (name.equals("perst.page.writer.interval")) { 
+            pageWriterInterval = getIntegerValue(value);
         } else { 
             throw new StorageError(StorageError.NO_SUCH_PROPERTY);
         }
-        if (multiclientSupport && backgroundGc) { 
+        if (multiclientSupport && (backgroundGc || gcSliceTime > 0)) { 
             throw new IllegalArgumentException("In mutliclient access mode bachround GC is not supported");
         }
     }
@@ -3088,12 +3500,12 @@ public class StorageImpl implements Storage {
       throws Exception
     {
         ClassDescriptor.FieldDescriptor[] all = desc.allFields;
-        ReflectionProvider provider = ClassDescriptor.getReflectionProvider();
         int len;
 
         for (int i = 0, n = all.length; i < n; i++) { 
             ClassDescriptor.FieldDescriptor fd = all[i];
             Field f = fd.field;
+            FieldAccessor fa = fd.accessor;
 
             if (f == null || obj == null) { 
                 switch (fd.type) { 
@@ -3218,42 +3630,42 @@ public class StorageImpl implements Storage {
             } else if (offs < body.length) {                 
                 switch (fd.type) { 
                 case ClassDescriptor.tpBoolean:
-                    provider.setBoolean(f, obj, body[offs++] != 0);
+                    fa.setBoolean(obj, body[offs++] != 0);
                     continue;
                 case ClassDescriptor.tpByte:
-                    provider.setByte(f, obj, body[offs++]);
+                    fa.setByte(obj, body[offs++]);
                     continue;
                 case ClassDescriptor.tpChar:
-                    provider.setChar(f, obj, (char)Bytes.unpack2(body, offs));
+                    fa.setChar(obj, (char)Bytes.unpack2(body, offs));
                     offs += 2;
                     continue;
                 case ClassDescriptor.tpShort:
-                    provider.setShort(f, obj, Bytes.unpack2(body, offs));
+                    fa.setShort(obj, Bytes.unpack2(body, offs));
                     offs += 2;
                     continue;
                 case ClassDescriptor.tpInt:
-                    provider.setInt(f, obj, Bytes.unpack4(body, offs));
+                    fa.setInt(obj, Bytes.unpack4(body, offs));
                     offs += 4;
                     continue;
                 case ClassDescriptor.tpLong:
-                    provider.setLong(f, obj, Bytes.unpack8(body, offs));
+                    fa.setLong(obj, Bytes.unpack8(body, offs));
                     offs += 8;
                     continue;
                 case ClassDescriptor.tpFloat:
-                    provider.setFloat(f, obj, Float.intBitsToFloat(Bytes.unpack4(body, offs)));
+                    fa.setFloat(obj, Float.intBitsToFloat(Bytes.unpack4(body, offs)));
                     offs += 4;
                     continue;
                 case ClassDescriptor.tpDouble:
-                    provider.setDouble(f, obj, Double.longBitsToDouble(Bytes.unpack8(body, offs)));
+                    fa.setDouble(obj, Double.longBitsToDouble(Bytes.unpack8(body, offs)));
                     offs += 8;
                     continue;
                 case ClassDescriptor.tpEnum:
                 {
                     int index = Bytes.unpack4(body, offs);
                     if (index >= 0) {
-                        provider.set(f, obj, fd.field.getType().getEnumConstants()[index]);
+                        fa.set(obj, fd.enumConstants[index]);
                     } else {
-                        provider.set(f, obj, null);
+                        fa.set(obj, null);
                     }
                     offs += 4;
                     continue;
@@ -3278,7 +3690,7 @@ public class StorageImpl implements Storage {
                         }
                         offs -= 2+len;
                     } 
-                    provider.set(f, obj, str);
+                    fa.set(obj, str);
                     continue;
                 }
                 case ClassDescriptor.tpDate:
@@ -3289,12 +3701,12 @@ public class StorageImpl implements Storage {
                     if (msec >= 0) { 
                         date = new Date(msec);
                     }
-                    provider.set(f, obj, date);
+                    fa.set(obj, date);
                     continue;
                 }
                 case ClassDescriptor.tpObject:
                 {
-                    provider.set(f, obj, unswizzle(Bytes.unpack4(body, offs), f.getType(), recursiveLoading));
+                    fa.set(obj, unswizzle(Bytes.unpack4(body, offs), f.getType(), recursiveLoading));
                     offs += 4;
                     continue;
                 }
@@ -3302,7 +3714,7 @@ public class StorageImpl implements Storage {
                 {
                     Object value = fd.valueDesc.newInstance();
                     offs = unpackObject(value, fd.valueDesc, recursiveLoading, body, offs ,po);
-                    provider.set(f, obj, value);
+                    fa.set(obj, value);
                     continue;
                 }
                 case ClassDescriptor.tpRaw:
@@ -3311,7 +3723,7 @@ public class StorageImpl implements Storage {
                     if (len >= 0) { 
                         ByteArrayInputStream bin = new ByteArrayInputStream(body, offs, len);
                         ObjectInputStream in = new PersistentObjectInputStream(bin);
-                        provider.set(f, obj, in.readObject());
+                        fa.set(obj, in.readObject());
                         in.close();
                         offs += len;
                     } else if (len < 0) { 
@@ -3355,13 +3767,13 @@ public class StorageImpl implements Storage {
                             val = unswizzle(Bytes.unpack4(body, offs), Persistent.class, recursiveLoading);
                             offs += 4;
                         }
-                        provider.set(f, obj, val);
+                        fa.set(obj, val);
                     }
                     continue;
                 case ClassDescriptor.tpCustom:
                 {
                     ByteArrayInputStream in = new ByteArrayInputStream(body, offs, body.length - offs);
-                    provider.set(f, obj, serializer.unpack(in));
+                    fa.set(obj, serializer.unpack(in));
                     offs = body.length - in.available();
                     continue;
                 }
@@ -3369,67 +3781,67 @@ public class StorageImpl implements Storage {
                     len = Bytes.unpack4(body, offs);
                     offs += 4;
                     if (len < 0) { 
-                        provider.set(f, obj, null);
+                        fa.set(obj, null);
                     } else {
                         byte[] arr = new byte[len];
                         System.arraycopy(body, offs, arr, 0, len);
                         offs += len;
-                        provider.set(f, obj, arr);
+                        fa.set(obj, arr);
                     }
                     continue;
                 case ClassDescriptor.tpArrayOfBoolean:
                     len = Bytes.unpack4(body, offs);
                     offs += 4;
                     if (len < 0) { 
-                        provider.set(f, obj, null);
+                        fa.set(obj, null);
                     } else {
                         boolean[] arr = new boolean[len];
                         for (int j = 0; j < len; j++) { 
                             arr[j] = body[offs++] != 0;
                         }
-                        provider.set(f, obj, arr);
+                        fa.set(obj, arr);
                     }
                     continue;
                 case ClassDescriptor.tpArrayOfShort:
                     len = Bytes.unpack4(body, offs);
                     offs += 4;
                     if (len < 0) { 
-                        provider.set(f, obj, null);
+                        fa.set(obj, null);
                     } else {
                         short[] arr = new short[len];
                         for (int j = 0; j < len; j++) { 
                             arr[j] = Bytes.unpack2(body, offs);
                             offs += 2;
                         }
-                        provider.set(f, obj, arr);
+                        fa.set(obj, arr);
                     }
                     continue;
                 case ClassDescriptor.tpArrayOfChar:
                     len = Bytes.unpack4(body, offs);
                     offs += 4;
                     if (len < 0) { 
-                        provider.set(f, obj, null);
+                        fa.set(obj, null);
                     } else {
                         char[] arr = new char[len];
                         for (int j = 0; j < len; j++) { 
                             arr[j] = (char)Bytes.unpack2(body, offs);
                             offs += 2;
                         }
-                        provider.set(f, obj, arr);
+                        fa.set(obj, arr);
                     }
                     continue;
                 case ClassDescriptor.tpArrayOfInt:
                     len = Bytes.unpack4(body, offs);
                     offs += 4;
                     if (len < 0) { 
-                        provider.set(f, obj, null);
+                        fa.set(obj, null);
                     } else {
                         int[] arr = new int[len];
                         for (int j = 0; j < len; j++) { 
                             arr[j] = Bytes.unpack4(body, offs);
                             offs += 4;
                         }
-                        provider.set(f, obj, arr);
+                        fa.set(obj, arr);
                     }
                     continue;
                 case ClassDescriptor.tpArrayOfEnum:
@@ -3455,49 +3867,49 @@ public class StorageImpl implements Storage {
                     len = Bytes.unpack4(body, offs);
                     offs += 4;
                     if (len < 0) { 
-                        provider.set(f, obj, null);
+                        fa.set(obj, null);
                     } else {
                         long[] arr = new long[len];
                         for (int j = 0; j < len; j++) { 
                             arr[j] = Bytes.unpack8(body, offs);
                             offs += 8;
                         }
-                        provider.set(f, obj, arr);
+                        fa.set(obj, arr);
                     }
                     continue;
                 case ClassDescriptor.tpArrayOfFloat:
                     len = Bytes.unpack4(body, offs);
                     offs += 4;
                     if (len < 0) { 
-                        provider.set(f, obj, null);
+                        fa.set(obj, null);
                     } else {
                         float[] arr = new float[len];
                         for (int j = 0; j < len; j++) { 
                             arr[j] = Float.intBitsToFloat(Bytes.unpack4(body, offs));
                             offs += 4;
                         }
-                        provider.set(f, obj, arr);
+                        fa.set(obj, arr);
                     }
                     continue;
                 case ClassDescriptor.tpArrayOfDouble:
                     len = Bytes.unpack4(body, offs);
                     offs += 4;
                     if (len < 0) { 
-                        provider.set(f, obj, null);
+                        fa.set(obj, null);
                     } else {
                         double[] arr = new double[len];
                         for (int j = 0; j < len; j++) { 
                             arr[j] = Double.longBitsToDouble(Bytes.unpack8(body, offs));
                             offs += 8;
                         }
-                        provider.set(f, obj, arr);
+                        fa.set(obj, arr);
                     }
                     continue;
                 case ClassDescriptor.tpArrayOfDate:
                     len = Bytes.unpack4(body, offs);
                     offs += 4;
                     if (len < 0) { 
-                        provider.set(f, obj, null);
+                        fa.set(obj, null);
                     } else {
                         Date[] arr = new Date[len];
                         for (int j = 0; j < len; j++) { 
@@ -3507,14 +3919,14 @@ public class StorageImpl implements Storage {
                                 arr[j] = new Date(msec);
                             }
                         }
-                        provider.set(f, obj, arr);
+                        fa.set(obj, arr);
                     }
                     continue;
                 case ClassDescriptor.tpArrayOfString:
                     len = Bytes.unpack4(body, offs);
                     offs += 4;
                     if (len < 0) { 
-                        provider.set(f, obj, null);
+                        fa.set(obj, null);
                     } else {
                         String[] arr = new String[len];
                         for (int j = 0; j < len; j++) {
@@ -3536,14 +3948,14 @@ public class StorageImpl implements Storage {
                                 offs -= 2+strlen;
                             }
                         }
-                        provider.set(f, obj, arr);
+                        fa.set(obj, arr);
                     }
                     continue;
                 case ClassDescriptor.tpArrayOfObject:
                     len = Bytes.unpack4(body, offs);
                     offs += 4;
                     if (len < 0) { 
-                        provider.set(f, obj, null);
+                        fa.set(obj, null);
                     } else {
                         Class elemType = f.getType().getComponentType();
                         IPersistent[] arr = (IPersistent[])Array.newInstance(elemType, len);
@@ -3551,14 +3963,14 @@ public class StorageImpl implements Storage {
                             arr[j] = unswizzle(Bytes.unpack4(body, offs), elemType, recursiveLoading);
                             offs += 4;
                         }
-                        provider.set(f, obj, arr);
+                        fa.set(obj, arr);
                     }
                     continue;
                 case ClassDescriptor.tpArrayOfValue:
                     len = Bytes.unpack4(body, offs);
                     offs += 4;
                     if (len < 0) { 
-                        provider.set(f, obj, null);
+                        fa.set(obj, null);
                     } else {
                         Class elemType = f.getType().getComponentType();
                         Object[] arr = (Object[])Array.newInstance(elemType, len);
@@ -3568,14 +3980,14 @@ public class StorageImpl implements Storage {
                             offs = unpackObject(value, valueDesc, recursiveLoading, body, offs, po);
                             arr[j] = value;
                         }
-                        provider.set(f, obj, arr);
+                        fa.set(obj, arr);
                     }
                     continue;
                 case ClassDescriptor.tpArrayOfRaw:
                     len = Bytes.unpack4(body, offs);
                     offs += 4;
                     if (len < 0) { 
-                        provider.set(f, obj, null);
+                        fa.set(obj, null);
                     } else {
                         Class elemType = f.getType().getComponentType();
                         Object[] arr = (Object[])Array.newInstance(elemType, len);
@@ -3632,14 +4044,14 @@ public class StorageImpl implements Storage {
                                 arr[j] = val;
                             }
                         }
-                        provider.set(f, obj, arr);
+                        fa.set(obj, arr);
                     }
                     continue;
                 case ClassDescriptor.tpLink:
                     len = Bytes.unpack4(body, offs);
                     offs += 4;
                     if (len < 0) { 
-                        provider.set(f, obj, null);
+                        fa.set(obj, null);
                     } else {
                         IPersistent[] arr = new IPersistent[len];
                         for (int j = 0; j < len; j++) { 
@@ -3649,7 +4061,7 @@ public class StorageImpl implements Storage {
                                 arr[j] = new PersistentStub(this, elemOid);
                             }
                         }
-                        provider.set(f, obj, new LinkImpl(arr, po));
+                        fa.set(obj, new LinkImpl(arr, po));
                     }
                 }
             }
@@ -3760,49 +4172,49 @@ public class StorageImpl implements Storage {
         ClassDescriptor.FieldDescriptor[] flds = desc.allFields;
         for (int i = 0, n = flds.length; i < n; i++) {
             ClassDescriptor.FieldDescriptor fd = flds[i];
-            Field f = fd.field;
+            FieldAccessor fa = fd.accessor;
             switch(fd.type) {
                 case ClassDescriptor.tpByte:
                     buf.extend(offs + 1);
-                    buf.arr[offs++] = f.getByte(obj);
+                    buf.arr[offs++] = fa.getByte(obj);
                     continue;
                 case ClassDescriptor.tpBoolean:
                     buf.extend(offs + 1);
-                    buf.arr[offs++] = (byte)(f.getBoolean(obj) ? 1 : 0);
+                    buf.arr[offs++] = (byte)(fa.getBoolean(obj) ? 1 : 0);
                     continue;
                 case ClassDescriptor.tpShort:
                     buf.extend(offs + 2);
-                    Bytes.pack2(buf.arr, offs, f.getShort(obj));
+                    Bytes.pack2(buf.arr, offs, fa.getShort(obj));
                     offs += 2;
                     continue;
                 case ClassDescriptor.tpChar:
                     buf.extend(offs + 2);
-                    Bytes.pack2(buf.arr, offs, (short)f.getChar(obj));
+                    Bytes.pack2(buf.arr, offs, (short)fa.getChar(obj));
                     offs += 2;
                     continue;
                 case ClassDescriptor.tpInt:
                     buf.extend(offs + 4);
-                    Bytes.pack4(buf.arr, offs, f.getInt(obj));
+                    Bytes.pack4(buf.arr, offs, fa.getInt(obj));
                     offs += 4;
                     continue;
                 case ClassDescriptor.tpLong:
                     buf.extend(offs + 8);
-                    Bytes.pack8(buf.arr, offs, f.getLong(obj));
+                    Bytes.pack8(buf.arr, offs, fa.getLong(obj));
                     offs += 8;
                     continue;
                 case ClassDescriptor.tpFloat:
                     buf.extend(offs + 4);
-                    Bytes.pack4(buf.arr, offs, Float.floatToIntBits(f.getFloat(obj)));
+                    Bytes.pack4(buf.arr, offs, Float.floatToIntBits(fa.getFloat(obj)));
                     offs += 4;
                     continue;
                 case ClassDescriptor.tpDouble:
                     buf.extend(offs + 8);
-                    Bytes.pack8(buf.arr, offs, Double.doubleToLongBits(f.getDouble(obj)));
+                    Bytes.pack8(buf.arr, offs, Double.doubleToLongBits(fa.getDouble(obj)));
                     offs += 8;
                     continue;
                 case ClassDescriptor.tpEnum:
 		{
-                    Enum e = (Enum)f.get(obj);
+                    Enum e = (Enum)fa.get(obj);
                     buf.extend(offs + 4);
                     if (e == null) {
                         Bytes.pack4(buf.arr, offs, -1);
@@ -3815,25 +4227,25 @@ public class StorageImpl implements Storage {
                 case ClassDescriptor.tpDate:
                 {
                     buf.extend(offs + 8);
-                    Date d = (Date)f.get(obj);
+                    Date d = (Date)fa.get(obj);
                     long msec = (d == null) ? -1 : d.getTime();                
                     Bytes.pack8(buf.arr, offs, msec);
                     offs += 8;
                     continue;
                 }
                 case ClassDescriptor.tpString:
-                    offs = buf.packString(offs, (String)f.get(obj), encoding);
+                    offs = buf.packString(offs, (String)fa.get(obj), encoding);
                     continue;
                 case ClassDescriptor.tpObject:
                 {
                     buf.extend(offs + 4);
-                    Bytes.pack4(buf.arr, offs, swizzle((IPersistent)f.get(obj), finalized));
+                    Bytes.pack4(buf.arr, offs, swizzle((IPersistent)fa.get(obj), finalized));
                     offs += 4;
                     continue;
                 }
                 case ClassDescriptor.tpValue:
                 {
-                    Object value = f.get(obj);
+                    Object value = fa.get(obj);
                     if (value == null) { 
                         throw new StorageError(StorageError.NULL_VALUE, fd.fieldName);
                     } else if (value instanceof IPersistent) { 
@@ -3843,17 +4255,17 @@ public class StorageImpl implements Storage {
                     continue;
                 }
                 case ClassDescriptor.tpRaw:
-                    offs = packValue(f.get(obj), offs, buf, finalized);
+                    offs = packValue(fa.get(obj), offs, buf, finalized);
                     continue;
                 case ClassDescriptor.tpCustom:
                 {
-                    serializer.pack((CustomSerializable)f.get(obj), buf.getOutputStream());
+                    serializer.pack((CustomSerializable)fa.get(obj), buf.getOutputStream());
                     offs = buf.size();
                     continue;
                 }
                 case ClassDescriptor.tpArrayOfByte:
                 {
-                    byte[] arr = (byte[])f.get(obj);
+                    byte[] arr = (byte[])fa.get(obj);
                     if (arr == null) { 
                         buf.extend(offs + 4);
                         Bytes.pack4(buf.arr, offs, -1);
@@ -3870,7 +4282,7 @@ public class StorageImpl implements Storage {
                 }
                 case ClassDescriptor.tpArrayOfBoolean:
                 {
-                    boolean[] arr = (boolean[])f.get(obj);
+                    boolean[] arr = (boolean[])fa.get(obj);
                     if (arr == null) { 
                         buf.extend(offs + 4);
                         Bytes.pack4(buf.arr, offs, -1);
@@ -3888,7 +4300,7 @@ public class StorageImpl implements Storage {
                 }
                 case ClassDescriptor.tpArrayOfShort:
                 {
-                    short[] arr = (short[])f.get(obj);
+                    short[] arr = (short[])fa.get(obj);
                     if (arr == null) { 
                         buf.extend(offs + 4);
                         Bytes.pack4(buf.arr, offs, -1);
@@ -3907,7 +4319,7 @@ public class StorageImpl implements Storage {
                 }
                 case ClassDescriptor.tpArrayOfChar:
                 {
-                    char[] arr = (char[])f.get(obj);
+                    char[] arr = (char[])fa.get(obj);
                     if (arr == null) { 
                         buf.extend(offs + 4);
                         Bytes.pack4(buf.arr, offs, -1);
@@ -3926,7 +4338,7 @@ public class StorageImpl implements Storage {
                 }
                 case ClassDescriptor.tpArrayOfInt:
                 {
-                    int[] arr = (int[])f.get(obj);
+                    int[] arr = (int[])fa.get(obj);
                     if (arr == null) { 
                         buf.extend(offs + 4);
                         Bytes.pack4(buf.arr, offs, -1);
@@ -3945,7 +4357,7 @@ public class StorageImpl implements Storage {
                 }
                 case ClassDescriptor.tpArrayOfEnum:
                 {
-                    Enum[] arr = (Enum[])f.get(obj);
+                    Enum[] arr = (Enum[])fa.get(obj);
                     if (arr == null) { 
                         buf.extend(offs + 4);
                         Bytes.pack4(buf.arr, offs, -1);
@@ -3968,7 +4380,7 @@ public class StorageImpl implements Storage {
                 }
                 case ClassDescriptor.tpArrayOfLong:
                 {
-                    long[] arr = (long[])f.get(obj);
+                    long[] arr = (long[])fa.get(obj);
                     if (arr == null) { 
                         buf.extend(offs + 4);
                         Bytes.pack4(buf.arr, offs, -1);
@@ -3987,7 +4399,7 @@ public class StorageImpl implements Storage {
                 }
                 case ClassDescriptor.tpArrayOfFloat:
                 {
-                    float[] arr = (float[])f.get(obj);
+                    float[] arr = (float[])fa.get(obj);
                     if (arr == null) { 
                         buf.extend(offs + 4);
                         Bytes.pack4(buf.arr, offs, -1);
@@ -4006,7 +4418,7 @@ public class StorageImpl implements Storage {
                 }
                 case ClassDescriptor.tpArrayOfDouble:
                 {
-                    double[] arr = (double[])f.get(obj);
+                    double[] arr = (double[])fa.get(obj);
                     if (arr == null) { 
                         buf.extend(offs + 4);
                         Bytes.pack4(buf.arr, offs, -1);
@@ -4025,7 +4437,7 @@ public class StorageImpl implements Storage {
                 }
                 case ClassDescriptor.tpArrayOfDate:
                 {
-                    Date[] arr = (Date[])f.get(obj);
+                    Date[] arr = (Date[])fa.get(obj);
                     if (arr == null) { 
                         buf.extend(offs + 4);
                         Bytes.pack4(buf.arr, offs, -1);
@@ -4046,7 +4458,7 @@ public class StorageImpl implements Storage {
                 }
                 case ClassDescriptor.tpArrayOfString:
                 {
-                    String[] arr = (String[])f.get(obj);
+                    String[] arr = (String[])fa.get(obj);
                     if (arr == null) { 
                         buf.extend(offs + 4);
                         Bytes.pack4(buf.arr, offs, -1);
@@ -4064,7 +4476,7 @@ public class StorageImpl implements Storage {
                 }
                 case ClassDescriptor.tpArrayOfObject:
                 {
-                    IPersistent[] arr = (IPersistent[])f.get(obj);
+                    IPersistent[] arr = (IPersistent[])fa.get(obj);
                     if (arr == null) { 
                         buf.extend(offs + 4);
                         Bytes.pack4(buf.arr, offs, -1);
@@ -4083,7 +4495,7 @@ public class StorageImpl implements Storage {
                 }
                 case ClassDescriptor.tpArrayOfValue:
                 {
-                    Object[] arr = (Object[])f.get(obj);
+                    Object[] arr = (Object[])fa.get(obj);
                     if (arr == null) { 
                         buf.extend(offs + 4);
                         Bytes.pack4(buf.arr, offs, -1);
@@ -4106,7 +4518,7 @@ public class StorageImpl implements Storage {
                 }
                 case ClassDescriptor.tpArrayOfRaw:
                 {
-                    Object[] arr = (Object[])f.get(obj);
+                    Object[] arr = (Object[])fa.get(obj);
                     if (arr == null) { 
                         buf.extend(offs + 4);
                         Bytes.pack4(buf.arr, offs, -1);
@@ -4124,7 +4536,7 @@ public class StorageImpl implements Storage {
                 }
                 case ClassDescriptor.tpLink:
                 {
-                    LinkImpl link = (LinkImpl)f.get(obj);
+                    LinkImpl link = (LinkImpl)fa.get(obj);
                     if (link == null) { 
                         buf.extend(offs + 4);
                         Bytes.pack4(buf.arr, offs, -1);
@@ -4268,12 +4680,19 @@ public class StorageImpl implements Storage {
     private String  cacheKind = "lru";
     private boolean readOnly = false;
     private boolean noFlush = false;
+    private boolean channelFile = false;
     private boolean lockFile = false;
     private boolean multiclientSupport = false;
     private boolean alternativeBtree = false;
     private boolean backgroundGc = false;
+    private long    gcSliceTime = 0; // milliseconds
     private boolean forceStore = true;
     private long    pagePoolLruLimit = dbDefaultPagePoolLruLimit;
+    private boolean useWal = false;
+    private String  walPath;
+    private long    walCheckpointInterval = 1000; // milliseconds
+    private long    walMaxSize = 64*1024*1024;
+    private long    pageWriterInterval = 0;
     
     private HashMap   customAllocatorMap;
     private ArrayList customAllocatorList;
@@ -4320,6 +4739,13 @@ public class StorageImpl implements Storage {
     Object    backgroundGcMonitor;
     Object    backgroundGcStartMonitor;
     GcThread  gcThread;
+    IncrementalGc incrementalGc;
+
+    WriteAheadLog   wal;
+    String          defaultWalPath;
+    volatile long   walPosition; // end of the log after the last commit
+    WalCheckpointer walCheckpointer;
+    PageWriter      pageWriter;
 
     int       bitmapExtentBase;
 
@@ -4339,6 +4765,7 @@ public class StorageImpl implements Storage {
     long      scheduledCommitTime;
     Object    transactionMonitor;
     PersistentResource transactionLock;
+    CommitThread commitThread;
 
     final ThreadLocal transactionContext = new ThreadLocal() {
          protected synchronized Object initialValue() {
@@ -0,0 +1,315 @@
+package plugins.Spider.org.garret.perst.impl;
+import plugins.Spider.org.garret.perst.*;
+
+import  java.lang.ref.*;
+import  java.util.ArrayList;
+
+/**
+ * Object cache split into stripes selected by OID, each of them a separate hash table with its
+ * own lock, so that threads accessing different objects don't wait for each other.
+ * Objects are referenced weakly, modified objects are pinned until they are stored, like in
+ * <code>PinWeakHashTable</code>. Optionally each stripe also keeps strong references to its most
+ * recently used objects, like <code>LruObjectCache</code>, without any lock shared by the stripes.
+ */
+public class StripedObjectCache implements OidHashTable {
+    static final int nStripes = 32; // power of 2
+    static final float loadFactor = 0.75f;
+
+    Stripe stripes[];
+
+    /**
+     * @param initialCapacity initial number of entries of the whole cache
+     * @param lruLimit number of recently used objects which are strongly referenced, 0 to keep none
+     */
+    public StripedObjectCache(int initialCapacity, int lruLimit) {
+        stripes = new Stripe[nStripes];
+        int capacity = initialCapacity / nStripes + 1;
+        int limit = (lruLimit + nStripes - 1) / nStripes;
+        for (int i = 0; i < nStripes; i++) {
+            stripes[i] = new Stripe(capacity, limit);
+        }
+    }
+
+    final Stripe stripe(int oid) {
+        return stripes[(oid ^ (oid >>> 16)) & (nStripes-1)];
+    }
+
+    public boolean remove(int oid) {
+        return stripe(oid).remove(oid);
+    }
+
+    public void put(int oid, IPersistent obj) {
+        stripe(oid).put(oid, obj);
+    }
+
+    public IPersistent get(int oid) {
+        return stripe(oid).get(oid);
+    }
+
+    public void flush() {
+        // store the objects without holding the stripe locks, since storing can put new objects in the cache
+        ArrayList modified = new ArrayList();
+        for (int i = 0; i < nStripes; i++) {
+            stripes[i].unpinAll(modified, false);
+        }
+        for (int i = 0, n = modified.size(); i < n; i++) {
+            ((IPersistent)modified.get(i)).store();
+        }
+    }
+
+    public void invalidate() {
+        ArrayList modified = new ArrayList();
+        for (int i = 0; i < nStripes; i++) {
+            stripes[i].unpinAll(modified, true);
+        }
+        for (int i = 0, n = modified.size(); i < n; i++) {
+            ((IPersistent)modified.get(i)).invalidate();
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < nStripes; i++) {
+            stripes[i].clear();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < nStripes; i++) {
+            size += stripes[i].count;
+        }
+        return size;
+    }
+
+    public void setDirty(IPersistent obj) {
+        int oid = obj.getOid();
+        stripe(oid).setPin(oid, obj);
+    }
+
+    public void clearDirty(IPersistent obj) {
+        int oid = obj.getOid();
+        stripe(oid).setPin(oid, null);
+    }
+
+    static class Stripe {
+        Entry table[];
+        int count;
+        int threshold;
+        int lruLimit;
+        int nUsed;
+        Entry lruList; // head of the list of recently used entries, most recent first
+
+        Stripe(int initialCapacity, int lruLimit) {
+            threshold = (int)(initialCapacity * loadFactor);
+            table = new Entry[initialCapacity];
+            this.lruLimit = lruLimit;
+            lruList = new Entry(0, null, null);
+            lruList.lru = lruList.mru = lruList;
+        }
+
+        synchronized boolean remove(int oid) {
+            Entry tab[] = table;
+            int index = (oid & 0x7FFFFFFF) % tab.length;
+            for (Entry e = tab[index], prev = null; e != null; prev = e, e = e.next) {
+                if (e.oid == oid) {
+                    if (prev != null) {
+                        prev.next = e.next;
+                    } else {
+                        tab[index] = e.next;
+                    }
+                    unuse(e);
+                    e.clear();
+                    count -= 1;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized void put(int oid, IPersistent obj) {
+            Reference ref = new WeakReference(obj);
+            Entry tab[] = table;
+            int index = (oid & 0x7FFFFFFF) % tab.length;
+            for (Entry e = tab[index]; e != null; e = e.next) {
+                if (e.oid == oid) {
+                    e.ref = ref;
+                    use(e, obj);
+                    return;
+                }
+            }
+            if (count >= threshold) {
+                // Rehash the table if the threshold is exceeded
+                rehash();
+                tab = table;
+                index = (oid & 0x7FFFFFFF) % tab.length;
+            }
+            Entry e = new Entry(oid, ref, tab[index]);
+            tab[index] = e;
+            use(e, obj);
+            count += 1;
+        }
+
+        synchronized IPersistent get(int oid) {
+            Entry tab[] = table;
+            int index = (oid & 0x7FFFFFFF) % tab.length;
+            for (Entry e = tab[index]; e != null; e = e.next) {
+                if (e.oid == oid) {
+                    IPersistent obj = e.pin != null ? e.pin : (IPersistent)e.ref.get();
+                    if (obj != null) {
+                        use(e, obj);
+                    }
+                    return obj;
+                }
+            }
+            return null;
+        }
+
+        synchronized void setPin(int oid, IPersistent obj) {
+            Entry tab[] = table;
+            int index = (oid & 0x7FFFFFFF) % tab.length;
+            for (Entry e = tab[index]; e != null ; e = e.next) {
+                if (e.oid == oid) {
+                    e.pin = obj;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Unpin all modified objects, adding them to the list.
+         * If <code>invalidate</code> is true, the stripe is also cleared.
+         */
+        synchronized void unpinAll(ArrayList modified, boolean invalidate) {
+            Entry tab[] = table;
+            for (int i = 0; i < tab.length; i++) {
+                for (Entry e = tab[i]; e != null; e = e.next) {
+                    if (e.pin != null) {
+                        modified.add(e.pin);
+                        e.pin = null;
+                    }
+                }
+            }
+            if (invalidate) {
+                clear();
+            }
+        }
+
+        synchronized void clear() {
+            Entry tab[] = table;
+            for (int i = 0; i < tab.length; i++) {
+                tab[i] = null;
+            }
+            lruList.lru = lruList.mru = lruList;
+            nUsed = 0;
+            count = 0;
+        }
+
+        /**
+         * Make the entry the most recently used one
+         */
+        private final void use(Entry e, IPersistent obj) {
+            if (lruLimit != 0) {
+                if (e.used != null) {
+                    e.unlink();
+                } else if (nUsed == lruLimit) {
+                    Entry lru = lruList.lru;
+                    lru.unlink();
+                    lru.used = null;
+                } else {
+                    nUsed += 1;
+                }
+                e.linkAfter(lruList, obj);
+            }
+        }
+
+        private final void unuse(Entry e) {
+            if (e.used != null) {
+                e.unlink();
+                e.used = null;
+                nUsed -= 1;
+            }
+        }
+
+        void rehash() {
+            int oldCapacity = table.length;
+            Entry oldMap[] = table;
+            int i;
+
+            for (i = oldCapacity; --i >= 0;) {
+                Entry e, next, prev;
+                for (prev = null, e = oldMap[i]; e != null; e = next) {
+                    next = e.next;
+                    IPersistent obj = (IPersistent)e.ref.get();
+                    if ((obj == null || obj.isDeleted()) && e.pin == null) {
+                        count -= 1;
+                        unuse(e);
+                        e.clear();
+                        if (prev == null) {
+                            oldMap[i] = next;
+                        } else {
+                            prev.next = next;
+                        }
+                    } else {
+                        prev = e;
+                    }
+                }
+            }
+            if (count <= (threshold >>> 1)) {
+                return;
+            }
+            int newCapacity = oldCapacity * 2 + 1;
+            Entry newMap[] = new Entry[newCapacity];
+
+            threshold = (int)(newCapacity * loadFactor);
+            table = newMap;
+
+            for (i = oldCapacity; --i >= 0 ;) {
+                for (Entry old = oldMap[i]; old != null; ) {
+                    Entry e = old;
+                    old = old.next;
+
+                    int index = (e.oid & 0x7FFFFFFF) % newCapacity;
+                    e.next = newMap[index];
+                    newMap[index] = e;
+                }
+            }
+        }
+    }
+
+    static class Entry {
+        Entry       next;
+        Reference   ref;
+        int         oid;
+        IPersistent pin;  // modified object, referenced until it is stored
+        IPersistent used; // recently used object
+        Entry       lru;
+        Entry       mru;
+
+        void unlink() {
+            lru.mru = mru;
+            mru.lru = lru;
+        }
+
+        void linkAfter(Entry head, IPersistent obj) {
+            mru = head.mru;
+            mru.lru = this;
+            head.mru = this;
+            lru = head;
+            used = obj;
+        }
+
+        void clear() {
+            ref.clear();
+            ref = null;
+            pin = null;
+            used = null;
+            next = null;
+        }
+
+        Entry(int oid, Reference ref, Entry chain) {
+            next = chain;
+            this.oid = oid;
+            this.ref = ref;
+        }
+    }
+}
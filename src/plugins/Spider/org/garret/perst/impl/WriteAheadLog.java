@@ -0,0 +1,269 @@
+package plugins.Spider.org.garret.perst.impl;
+import plugins.Spider.org.garret.perst.*;
+
+import java.io.*;
+import java.util.zip.CRC32;
+
+/**
+ * Redo log of page images, used instead of synchronous writes to the database file
+ * when the <code>perst.wal</code> property is set.<P>
+ * Each commit appends one record holding the new images of all pages it changed,
+ * including the header page, and only the log is synced. The pages are written to the
+ * database file later, by a checkpoint, after which the records before the checkpoint are
+ * no longer needed. When the database is opened, the complete records are applied to the
+ * database file before anything else is read from it.<P>
+ * Callers which only need their record to be on disk call <code>sync(pos)</code>; concurrent
+ * callers are served by a single fsync (group commit).<P>
+ * Positions (LSNs) are the offset of a record in the stream of all records ever appended
+ * since the log was opened, so they keep increasing when the log file is truncated.<P>
+ * File format: a header of <code>headerSize</code> bytes (magic, version, offset of the first
+ * record needed for recovery, CRC), followed by records: sequence number (8 bytes), number of
+ * pages (4), CRC of the rest of the record (4), offsets of the pages (8 each), page images.
+ */
+class WriteAheadLog {
+    static final int magic = 0x5057414c; // "PWAL"
+    static final int version = 1;
+    static final int headerSize = 512;
+    static final int recordHeaderSize = 16;
+
+    RandomAccessFile log;
+    String  path;
+    long    start;   // file offset of the first record needed for recovery
+    long    end;     // file offset after the last record
+    long    base;    // LSN of file offset headerSize
+    long    seq;     // sequence number of the next record
+    byte[]  buf = new byte[recordHeaderSize];
+    byte[]  header0; // image of page 0 in the last record containing it
+
+    final Object syncMonitor = new Object();
+    long    synced;  // records before this LSN are on disk
+    boolean syncing;
+
+    WriteAheadLog(String path) {
+        this.path = path;
+        try {
+            log = new RandomAccessFile(path, "rw");
+        } catch (IOException x) {
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+        }
+        start = end = headerSize;
+        seq = System.currentTimeMillis() << 10;
+    }
+
+    /**
+     * Apply the complete records in the log to the database file, sync it, and empty the log.
+     * @return number of records applied
+     */
+    int recover(IFile file) {
+        int nRecords = 0;
+        try {
+            long length = log.length();
+            byte[] hdr = new byte[20];
+            long pos = headerSize;
+            if (length >= headerSize) {
+                log.seek(0);
+                log.readFully(hdr);
+                CRC32 crc = new CRC32();
+                crc.update(hdr, 0, 16);
+                if (Bytes.unpack4(hdr, 0) == magic && Bytes.unpack4(hdr, 4) == version
+                    && Bytes.unpack4(hdr, 16) == (int)crc.getValue())
+                {
+                    long s = Bytes.unpack8(hdr, 8);
+                    if (s >= headerSize && s <= length) {
+                        pos = s;
+                    }
+                }
+            }
+            long prevSeq = 0;
+            byte[] page = new byte[Page.pageSize];
+            byte[] recHdr = new byte[recordHeaderSize];
+            while (pos + recordHeaderSize <= length) {
+                log.seek(pos);
+                log.readFully(recHdr);
+                long recSeq = Bytes.unpack8(recHdr, 0);
+                int nPages = Bytes.unpack4(recHdr, 8);
+                if ((nRecords != 0 && recSeq != prevSeq + 1) || nPages <= 0
+                    || nPages > (length - pos - recordHeaderSize) / (8 + Page.pageSize))
+                {
+                    break;
+                }
+                byte[] body = new byte[nPages*(8 + Page.pageSize)];
+                log.readFully(body);
+                CRC32 crc = new CRC32();
+                crc.update(recHdr, 0, 12);
+                crc.update(body);
+                if (Bytes.unpack4(recHdr, 12) != (int)crc.getValue()) {
+                    break;
+                }
+                for (int i = 0; i < nPages; i++) {
+                    System.arraycopy(body, nPages*8 + i*Page.pageSize, page, 0, Page.pageSize);
+                    file.write(Bytes.unpack8(body, i*8), page);
+                }
+                prevSeq = recSeq;
+                nRecords += 1;
+                pos += recordHeaderSize + body.length;
+            }
+            if (nRecords != 0) {
+                file.sync();
+                if (prevSeq >= seq) {
+                    seq = prevSeq + 1;
+                }
+            }
+            log.setLength(headerSize);
+            writeHeader();
+            log.getFD().sync();
+        } catch (IOException x) {
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+        }
+        return nRecords;
+    }
+
+    private void writeHeader() throws IOException {
+        byte[] hdr = new byte[20];
+        Bytes.pack4(hdr, 0, magic);
+        Bytes.pack4(hdr, 4, version);
+        Bytes.pack8(hdr, 8, start);
+        CRC32 crc = new CRC32();
+        crc.update(hdr, 0, 16);
+        Bytes.pack4(hdr, 16, (int)crc.getValue());
+        log.seek(0);
+        log.write(hdr);
+    }
+
+    /**
+     * Append a record, without waiting for it to reach the disk.
+     * The images are copied, so the pages may be changed as soon as this method returns.
+     * @return LSN of the start of the record
+     */
+    synchronized long append(long[] offs, byte[][] images, int nPages) {
+        int size = recordHeaderSize + nPages*(8 + Page.pageSize);
+        if (buf.length < size) {
+            buf = new byte[size];
+        }
+        Bytes.pack8(buf, 0, seq);
+        Bytes.pack4(buf, 8, nPages);
+        int pos = recordHeaderSize;
+        for (int i = 0; i < nPages; i++, pos += 8) {
+            Bytes.pack8(buf, pos, offs[i]);
+        }
+        for (int i = 0; i < nPages; i++, pos += Page.pageSize) {
+            System.arraycopy(images[i], 0, buf, pos, Page.pageSize);
+            if (offs[i] == 0) {
+                header0 = new byte[Page.pageSize];
+                System.arraycopy(images[i], 0, header0, 0, Page.pageSize);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf, 0, 12);
+        crc.update(buf, recordHeaderSize, size - recordHeaderSize);
+        Bytes.pack4(buf, 12, (int)crc.getValue());
+        long lsn = getEnd();
+        try {
+            log.seek(end);
+            log.write(buf, 0, size);
+        } catch (IOException x) {
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+        }
+        seq += 1;
+        end += size;
+        return lsn;
+    }
+
+    /**
+     * LSN after the last appended record
+     */
+    synchronized long getEnd() {
+        return base + end - headerSize;
+    }
+
+    /**
+     * Size of the log file
+     */
+    synchronized long getSize() {
+        return end;
+    }
+
+    /**
+     * Image of page 0 in the last appended record which contains it, or <code>null</code>
+     */
+    synchronized byte[] getHeaderImage() {
+        return header0;
+    }
+
+    /**
+     * Wait until all records before <code>lsn</code> are on disk. One thread syncs the log
+     * for all the records appended so far, the others wait for it.
+     */
+    void sync(long lsn) {
+        while (true) {
+            synchronized (syncMonitor) {
+                while (syncing && synced < lsn) {
+                    try {
+                        syncMonitor.wait();
+                    } catch (InterruptedException x) {}
+                }
+                if (synced >= lsn) {
+                    return;
+                }
+                syncing = true;
+            }
+            long target = getEnd();
+            boolean done = false;
+            try {
+                log.getFD().sync();
+                done = true;
+            } catch (IOException x) {
+                throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+            } finally {
+                synchronized (syncMonitor) {
+                    syncing = false;
+                    if (done && target > synced) {
+                        synced = target;
+                    }
+                    syncMonitor.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * The database file has been synced with all pages of the records before <code>lsn</code>,
+     * so recovery can start from there. If there are no records after it, the log is truncated.
+     * The header isn't synced: if it is lost, recovery just applies more records than needed.
+     */
+    synchronized void checkpointed(long lsn) {
+        try {
+            if (lsn >= getEnd()) {
+                base = getEnd();
+                start = end = headerSize;
+                log.setLength(headerSize);
+                synchronized (syncMonitor) {
+                    if (synced < base) {
+                        synced = base;
+                    }
+                }
+            } else if (lsn > base + start - headerSize) {
+                start = headerSize + lsn - base;
+            } else {
+                return;
+            }
+            writeHeader();
+        } catch (IOException x) {
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+        }
+    }
+
+    /**
+     * Close the log. It should only be deleted when the database file is complete and synced.
+     */
+    void close(boolean delete) {
+        try {
+            log.close();
+        } catch (IOException x) {
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+        }
+        if (delete) {
+            new File(path).delete();
+        }
+    }
+}
@@ -48,6 +48,8 @@ public class XMLExporter {
                                     exportFieldIndex(oid, obj, "plugins.Spider.org.garret.perst.impl.BtreeFieldIndex");
                                 } else if (desc.cls == BtreeCaseInsensitiveFieldIndex.class) { 
                                     exportFieldIndex(oid, obj, "plugins.Spider.org.garret.perst.impl.BtreeCaseInsensitiveFieldIndex");
+                                } else if (desc.cls == BtreePrefixFieldIndex.class) { 
+                                    exportFieldIndex(oid, obj, "plugins.Spider.org.garret.perst.impl.BtreePrefixFieldIndex");
                                 } else if (desc.cls == BtreeMultiFieldIndex.class) { 
                                     exportMultiFieldIndex(oid, obj, "plugins.Spider.org.garret.perst.impl.BtreeMultiFieldIndex");
                                 } else if (desc.cls == BtreeCaseInsensitiveMultiFieldIndex.class) { 
@@ -103,6 +105,7 @@ public class XMLExporter {
     final void exportFieldIndex(int oid,  byte[] data, String name) throws IOException
     { 
         Btree btree = new Btree(data, ObjectHeader.sizeof);
+        btree.prefixCompressed = name.equals("plugins.Spider.org.garret.perst.impl.BtreePrefixFieldIndex");
         storage.assignOid(btree, oid);
         writer.write(" <" + name + " id=\"" + oid + "\" unique=\"" + (btree.unique ? '1' : '0') + "\"");
         int offs = Btree.sizeof;
@@ -54,6 +54,7 @@ public class XMLImporter {
                 || elemName.equals("plugins.Spider.org.garret.perst.impl.PersistentSet") 
                 || elemName.equals("plugins.Spider.org.garret.perst.impl.BtreeFieldIndex") 
                 || elemName.equals("plugins.Spider.org.garret.perst.impl.BtreeCaseInsensitiveFieldIndex") 
+                || elemName.equals("plugins.Spider.org.garret.perst.impl.BtreePrefixFieldIndex") 
                 || elemName.equals("plugins.Spider.org.garret.perst.impl.BtreeCompoundIndex") 
                 || elemName.equals("plugins.Spider.org.garret.perst.impl.BtreeMultiFieldIndex")
                 || elemName.equals("plugins.Spider.org.garret.perst.impl.BtreeCaseInsensitiveMultiFieldIndex")) 
@@ -446,6 +447,8 @@ public class XMLImporter {
             if (fieldName != null) { 
                 if (indexType.equals("plugins.Spider.org.garret.perst.impl.BtreeCaseInsensitiveFieldIndex")) {
                     btree = new BtreeCaseInsensitiveFieldIndex(cls, fieldName, unique, autoinc);
+                } else if (indexType.equals("plugins.Spider.org.garret.perst.impl.BtreePrefixFieldIndex")) {
+                    btree = new BtreePrefixFieldIndex(cls, fieldName, unique, autoinc);
                 } else { 
                     btree = new BtreeFieldIndex(cls, fieldName, unique, autoinc);
                 }
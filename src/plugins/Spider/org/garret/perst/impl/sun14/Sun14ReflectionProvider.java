@@ -3,6 +3,7 @@ package plugins.Spider.org.garret.perst.impl.sun14;
 import java.lang.reflect.*;
 
 import plugins.Spider.org.garret.perst.impl.ReflectionProvider;
+import plugins.Spider.org.garret.perst.impl.FieldAccessor;
 
 import java.util.*;
 import sun.reflect.*;
@@ -19,8 +20,13 @@ public class Sun14ReflectionProvider implements ReflectionProvider {
 
     public Sun14ReflectionProvider() { 
         try { 
-            Class objectStreamClass = Class.forName("java.io.ObjectStreamClass$FieldReflector");
-            Field unsafeField = objectStreamClass.getDeclaredField("unsafe");
+            Field unsafeField;
+            try { 
+                unsafeField = Unsafe.class.getDeclaredField("theUnsafe");
+            } catch (NoSuchFieldException x) { 
+                Class objectStreamClass = Class.forName("java.io.ObjectStreamClass$FieldReflector");
+                unsafeField = objectStreamClass.getDeclaredField("unsafe");
+            }
             unsafeField.setAccessible(true);
             unsafe = (Unsafe) unsafeField.get(null);
             javaLangObjectConstructor = Object.class.getDeclaredConstructor(new Class[0]);;
@@ -79,4 +85,94 @@ public class Sun14ReflectionProvider implements ReflectionProvider {
     public void set(Field field, Object object, Object value) throws Exception { 
         unsafe.putObject(object, unsafe.objectFieldOffset(field), value);
     }
+
+    public FieldAccessor getFieldAccessor(Field field) throws Exception { 
+        return new UnsafeFieldAccessor(unsafe, unsafe.objectFieldOffset(field));
+    }
+
+    /**
+     * Accessor using the offset of the field, without the checks done by 
+     * <code>java.lang.reflect.Field</code>: the persistent objects are always of the class declaring the field.
+     */
+    static class UnsafeFieldAccessor implements FieldAccessor { 
+        private final Unsafe unsafe;
+        private final long   offset;
+
+        UnsafeFieldAccessor(Unsafe unsafe, long offset) { 
+            this.unsafe = unsafe;
+            this.offset = offset;
+        }
+
+        public boolean getBoolean(Object object) { 
+            return unsafe.getBoolean(object, offset);
+        }
+
+        public byte getByte(Object object) { 
+            return unsafe.getByte(object, offset);
+        }
+
+        public char getChar(Object object) { 
+            return unsafe.getChar(object, offset);
+        }
+
+        public short getShort(Object object) { 
+            return unsafe.getShort(object, offset);
+        }
+
+        public int getInt(Object object) { 
+            return unsafe.getInt(object, offset);
+        }
+
+        public long getLong(Object object) { 
+            return unsafe.getLong(object, offset);
+        }
+
+        public float getFloat(Object object) { 
+            return unsafe.getFloat(object, offset);
+        }
+
+        public double getDouble(Object object) { 
+            return unsafe.getDouble(object, offset);
+        }
+
+        public Object get(Object object) { 
+            return unsafe.getObject(object, offset);
+        }
+
+        public void setBoolean(Object object, boolean value) { 
+            unsafe.putBoolean(object, offset, value);
+        }
+
+        public void setByte(Object object, byte value) { 
+            unsafe.putByte(object, offset, value);
+        }
+
+        public void setChar(Object object, char value) { 
+            unsafe.putChar(object, offset, value);
+        }
+
+        public void setShort(Object object, short value) { 
+            unsafe.putShort(object, offset, value);
+        }
+
+        public void setInt(Object object, int value) { 
+            unsafe.putInt(object, offset, value);
+        }
+
+        public void setLong(Object object, long value) { 
+            unsafe.putLong(object, offset, value);
+        }
+
+        public void setFloat(Object object, float value) { 
+            unsafe.putFloat(object, offset, value);
+        }
+
+        public void setDouble(Object object, double value) { 
+            unsafe.putDouble(object, offset, value);
+        }
+
+        public void set(Object object, Object value) { 
+            unsafe.putObject(object, offset, value);
+        }
+    }
 }
\ No newline at end of file
@@ -50,6 +50,18 @@ class ConfigPage implements WebPage {
 			int v = request.getIntPart("endWorkingPeriod", config.getEndWorkingPeriod());
 			config.setEndWorkingPeriod(v);
 		}
+		if (request.isPartSet("parseThreads")) {
+			int v = request.getIntPart("parseThreads", config.getParseThreads());
+			if (v > 0) config.setParseThreads(v);
+		}
+		if (request.isPartSet("commitDelay")) {
+			int v = request.getIntPart("commitDelay", config.getCommitDelay());
+			if (v >= 0) config.setCommitDelay(v);
+		}
+		if (request.isPartSet("commitTransactions")) {
+			int v = request.getIntPart("commitTransactions", config.getCommitTransactions());
+			if (v > 0) config.setCommitTransactions(v);
+		}
 		if (request.isPartSet("badListedExtensions")) {
 			String v = request.getPartAsString("badListedExtensions", 32768);
 			String[] v0 = v.split(",");
@@ -78,6 +90,19 @@ class ConfigPage implements WebPage {
 				config.setBadlistedKeywords(new String[0]);
 			}
 		}
+		if(request.isPartSet("stopWordLanguages")) {
+			String v = request.getPartAsString("stopWordLanguages", 1024);
+			v = v.trim();
+			if(v.length() > 0) {
+				String[] v0 = v.split(",");
+				for (int i = 0; i < v0.length; i++) {
+					v0[i] = v0[i].trim();
+				}
+				config.setStopWordLanguages(v0);
+			} else {
+				config.setStopWordLanguages(new String[0]);
+			}
+		}
 		if (request.isPartSet("indexTitle")) {
 			String v = request.getPartAsString("indexTitle", 256);
 			config.setIndexTitle(v);
@@ -94,6 +119,10 @@ class ConfigPage implements WebPage {
 			String v = request.getPartAsString("debug", 10);
 			config.debug(Boolean.valueOf(v));
 		}
+		if (request.isPartSet("compactPushFormat")) {
+			String v = request.getPartAsString("compactPushFormat", 10);
+			config.setCompactPushFormat(Boolean.valueOf(v));
+		}
 		if(request.isPartSet("newFormatBufferSize")) {
 			String v = request.getPartAsString("newFormatBufferSize", 10);
 			config.setNewFormatIndexBufferLimit(Integer.valueOf(v));
@@ -139,6 +168,23 @@ class ConfigPage implements WebPage {
 			"12", "13", "14", "15", "16", "17", "18", "19", "20", "21", "22", "23" }, //
 		        Integer.toString(config.getEndWorkingPeriod()));
 
+		addConfig(spiderConfig, //
+		        "Parser threads", "Number of threads filtering and tokenizing fetched pages.", //
+		        "parseThreads", //
+		        new String[] { "1", "2", "3", "4", "6", "8", "12", "16" }, //
+		        Integer.toString(config.getParseThreads()));
+
+		addConfig(spiderConfig, //
+		        "Commit delay (ms)", "Maximum time a change of the crawl state (queued, fetched, failed pages) may wait to be committed together with others. 0 commits every change immediately. After a crash, the changes of the last few seconds may be lost and the pages fetched again.", //
+		        "commitDelay", //
+		        new String[] { "0", "1000", "2000", "5000", "10000", "30000", "60000" }, //
+		        Integer.toString(config.getCommitDelay()));
+		addConfig(spiderConfig, //
+		        "Transactions per commit", "Maximum number of crawl state changes committed together when the commit delay is not 0.", //
+		        "commitTransactions", //
+		        new String[] { "1", "10", "100", "1000", "10000" }, //
+		        Integer.toString(config.getCommitTransactions()));
+
 		addConfig(spiderConfig, //
 		        "Bad Listed Extensions", "Comma seprated list of banned URI suffix.", // 
 		        "badListedExtensions", //
@@ -148,6 +194,11 @@ class ConfigPage implements WebPage {
 		        "Bad Listed Keywords", "Comma seprated list of banned URI keywords.", // 
 		        "badListedKeywords", //
 		        config.getBadlistedKeywords());
+
+		addConfig(spiderConfig, //
+		        "Stop word languages", "Comma seprated list of languages whose stop words are not indexed (en, de, fr).", // 
+		        "stopWordLanguages", //
+		        config.getStopWordLanguages());
 		
 		configForm.addChild("div", "class", "configprefix", "Index Writer Options");
 		
@@ -171,6 +222,11 @@ class ConfigPage implements WebPage {
 		        "newFormatBufferSize", //
 		        new String[] { "0", "1", "2", "4", "8", "16", "32", "64", "128" }, //
 		        Integer.toString(config.getNewFormatIndexBufferLimit()));		
+		addConfig(indexConfig, //
+		        "Compact buffer format", "Send buffers to Library in the smaller compact format. Needs a version of Library that understands it.", // 
+		        "compactPushFormat", //
+		        new String[] { "false", "true" }, //
+		        Boolean.toString(config.isCompactPushFormat()));
 		
 		configForm.addChild("input", //
 		        new String[] { "type", "value" }, //
@@ -106,6 +106,8 @@ class MainPage implements WebPage {
 		statusContent.addChild("br");
 		statusContent.addChild("#", "Queued Event: " + spider.callbackExecutor.getQueue().size());
 		statusContent.addChild("br");
+		statusContent.addChild("#", "Queued for parsing: " + spider.getParseQueueSize());
+		statusContent.addChild("br");
 		statusContent.addChild("#", "Library buffer size: "+spider.getLibraryBufferSize());
 		long lastRequestFinishedAt = spider.getLastRequestFinishedAt();
 		long tStalled = spider.getStalledTime();
@@ -0,0 +1,176 @@
+package plugins.Spider.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import freenet.keys.FreenetURI;
+import junit.framework.TestCase;
+import plugins.Spider.org.garret.perst.Storage;
+import plugins.Spider.org.garret.perst.StorageFactory;
+
+public class PerstRootTest extends TestCase {
+	private File file;
+	private Storage db;
+
+	@Override
+	protected void setUp() throws IOException {
+		file = File.createTempFile("perstroot", ".dbs");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() {
+		if (db != null && db.isOpened()) db.close();
+		file.delete();
+	}
+
+	/**
+	 * The URI index is ordered by the unsigned bytes of the URI keys, and a page created for a URI
+	 * is found again by it, after reopening the database too.
+	 */
+	public void testLookupByURIKey() throws Exception {
+		List<FreenetURI> uris = URIKeyTest.uris(new Random(1));
+		PerstRoot root = PerstRoot.createRoot(open());
+		assertEquals(uris, root.getUnknownURIs(uris));
+		List<Page> pages = root.getPagesByURI(uris, true, "test");
+		db.commit();
+		assertEquals(uris.size(), root.uriPage.size());
+		assertEquals(uris.size(), root.getPageCount(Status.QUEUED));
+		assertTrue(root.getUnknownURIs(uris).isEmpty());
+		for (int i = 0; i < uris.size(); i++)
+			assertSame(pages.get(i), root.getPageByURI(uris.get(i), false, null));
+		db.close();
+
+		root = (PerstRoot) open().getRoot();
+		assertTrue(root.getUnknownURIs(uris).isEmpty());
+		for (FreenetURI uri : uris)
+			assertEquals(uri.toString(), root.getPageByURI(uri, false, null).getURI());
+
+		List<byte[]> keys = new ArrayList<byte[]>();
+		for (FreenetURI uri : uris)
+			keys.add(URIKey.encode(uri));
+		Collections.sort(keys, new Comparator<byte[]>() {
+			public int compare(byte[] a, byte[] b) {
+				return compareUnsigned(a, b);
+			}
+		});
+		Iterator<byte[]> expected = keys.iterator();
+		for (Map.Entry<Object, Page> entry : root.uriPage.entryIterator()) {
+			byte[] key = expected.next();
+			assertTrue(Arrays.equals(key, (byte[]) entry.getKey()));
+			assertTrue(Arrays.equals(key, entry.getValue().uriKey));
+		}
+		assertFalse(expected.hasNext());
+
+		// another edition of a USK, and a URI sharing only a prefix of a key, are new
+		Random random = new Random(2);
+		FreenetURI uri = uris.get(uris.size() - 2);
+		List<FreenetURI> others = new ArrayList<FreenetURI>();
+		others.add(new FreenetURI("USK", "site", uri.getAllMetaStrings(), uri.getRoutingKey(),
+				uri.getCryptoKey(), uri.getExtra(), uri.getSuggestedEdition() + 1));
+		others.add(new FreenetURI("USK", "site", new String[] { uri.getAllMetaStrings()[0] },
+				uri.getRoutingKey(), uri.getCryptoKey(), uri.getExtra(), uri.getSuggestedEdition()));
+		others.add(new FreenetURI("CHK", null, null, URIKeyTest.bytes(random, 32),
+				URIKeyTest.bytes(random, 32), URIKeyTest.bytes(random, 5), -1));
+		assertEquals(others, root.getUnknownURIs(others));
+		for (FreenetURI other : others)
+			assertNull(root.getPageByURI(other, false, null));
+	}
+
+	/**
+	 * An older database with a string URI index is converted to URI keys. Pages whose URIs give
+	 * the same key are merged, keeping a fetched one, and pages with malformed URIs are dropped,
+	 * from the id and status indexes as well.
+	 */
+	public void testMigrateURIIndex() throws Exception {
+		List<FreenetURI> uris = URIKeyTest.uris(new Random(3));
+		PerstRoot root = PerstRoot.createRoot(open());
+		root.uriPage = db.createFieldIndex(Page.class, "uri", true);
+		root.uriFilter = null;
+		root.modify();
+		List<Page> pages = new ArrayList<Page>();
+		for (FreenetURI uri : uris)
+			pages.add(addOldPage(root, uri.toString(), Status.QUEUED));
+		// the same keys with the key type in lower case
+		FreenetURI fetched = uris.get(0);
+		Page fetchedCopy = addOldPage(root, lowerKeyType(fetched), Status.INDEXED);
+		FreenetURI queued = uris.get(1);
+		addOldPage(root, lowerKeyType(queued), Status.FAILED);
+		Page malformed = addOldPage(root, "nonsense", Status.QUEUED);
+		db.commit();
+		db.close();
+
+		root = (PerstRoot) open().getRoot();
+		root.upgrade();
+		db.commit();
+		db.close();
+
+		root = (PerstRoot) open().getRoot();
+		assertEquals(byte[].class, root.uriPage.getKeyType());
+		assertNotNull(root.uriFilter);
+		assertEquals(uris.size(), root.uriPage.size());
+		assertEquals(uris.size(), root.idPage.size());
+		assertEquals(uris.size() - 1, root.getPageCount(Status.QUEUED));
+		assertEquals(1, root.getPageCount(Status.INDEXED));
+		assertEquals(0, root.getPageCount(Status.FAILED));
+		assertTrue(root.getUnknownURIs(uris).isEmpty());
+
+		Page page = root.getPageByURI(fetched, false, null);
+		assertEquals(fetchedCopy.getId(), page.getId());
+		assertEquals(Status.INDEXED, page.getStatus());
+		assertNull(root.getPageById(pages.get(0).getId()));
+		page = root.getPageByURI(queued, false, null);
+		assertEquals(pages.get(1).getId(), page.getId());
+		assertEquals(Status.QUEUED, page.getStatus());
+		assertNull(root.getPageById(malformed.getId()));
+
+		for (int i = 2; i < uris.size(); i++) {
+			page = root.getPageByURI(uris.get(i), false, null);
+			assertEquals(pages.get(i).getId(), page.getId());
+			assertSame(page, root.getPageById(page.getId()));
+			assertEquals(uris.get(i).toString(), page.getURI());
+			assertNull(page.uri);
+		}
+	}
+
+	private Storage open() {
+		db = StorageFactory.getInstance().createStorage();
+		PerstRoot.setStorageProperties(db);
+		db.open(file.getPath());
+		return db;
+	}
+
+	/** Adds a page as a database from before the URI key held it, by its URI string. */
+	private Page addOldPage(PerstRoot root, String uri, Status status) {
+		Page page = new Page(null, "old", db);
+		page.uri = uri;
+		page.status = status;
+		root.idPage.append(page);
+		assertTrue(root.uriPage.put(page));
+		root.getPageIndex(status).put(page);
+		return page;
+	}
+
+	private static String lowerKeyType(FreenetURI uri) {
+		String s = uri.toString();
+		int at = s.indexOf('@');
+		return s.substring(0, at).toLowerCase() + s.substring(at);
+	}
+
+	private static int compareUnsigned(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (diff != 0) return diff;
+		}
+		return a.length - b.length;
+	}
+}
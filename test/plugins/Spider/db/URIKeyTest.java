@@ -0,0 +1,62 @@
+package plugins.Spider.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import freenet.keys.FreenetURI;
+import junit.framework.TestCase;
+
+public class URIKeyTest extends TestCase {
+	public void testRoundTrip() throws Exception {
+		for (FreenetURI uri : uris(new Random(1))) {
+			byte[] key = URIKey.encode(uri);
+			FreenetURI decoded = URIKey.decode(key);
+			assertEquals(uri.toString(), decoded.toString());
+			assertTrue(Arrays.equals(key, URIKey.encode(decoded)));
+			// the same URI parsed from its text gives the same key
+			assertTrue(Arrays.equals(key, URIKey.encode(new FreenetURI(uri.toString()))));
+		}
+	}
+
+	/** Only the routing key is hashed, so that the pages of a site hash alike. */
+	public void testRoutingKeyHash() {
+		Random random = new Random(2);
+		byte[] routingKey = bytes(random, 32);
+		byte[] cryptoKey = bytes(random, 32);
+		byte[] extra = bytes(random, 5);
+		FreenetURI a = new FreenetURI("SSK", "site-1", new String[] { "a.html" }, routingKey, cryptoKey, extra, -1);
+		FreenetURI b = new FreenetURI("USK", "site", new String[] { "b.html" }, routingKey, cryptoKey, extra, 7);
+		assertEquals(URIKey.routingKeyHash(URIKey.encode(a)), URIKey.routingKeyHash(URIKey.encode(b)));
+	}
+
+	/**
+	 * CHK, SSK and USK URIs with and without doc names and meta strings, editions and non-ASCII
+	 * names. Several share their routing keys, as the pages of a site do.
+	 */
+	static List<FreenetURI> uris(Random random) {
+		List<FreenetURI> uris = new ArrayList<FreenetURI>();
+		String[] names = { "index.html", "a b", "\u00FCber", "\u4E2D\u6587.html", "a.png" };
+		for (int site = 0; site < 20; site++) {
+			byte[] routingKey = bytes(random, 32);
+			byte[] cryptoKey = bytes(random, 32);
+			uris.add(new FreenetURI("CHK", null, null, routingKey, cryptoKey, bytes(random, 5), -1));
+			uris.add(new FreenetURI("CHK", names[site % 4], new String[0], routingKey, cryptoKey, bytes(random, 5), -1));
+			byte[] extra = bytes(random, 5);
+			for (int page = 0; page < 5; page++) {
+				String[] meta = { names[page], "p" + page };
+				uris.add(new FreenetURI("SSK", "site-" + site, meta, routingKey, cryptoKey, extra, -1));
+				uris.add(new FreenetURI("USK", "site", meta, routingKey, cryptoKey, extra, page * 1000L));
+			}
+			uris.add(new FreenetURI("USK", "site", new String[0], routingKey, cryptoKey, extra, Long.MAX_VALUE));
+		}
+		return uris;
+	}
+
+	static byte[] bytes(Random random, int n) {
+		byte[] b = new byte[n];
+		random.nextBytes(b);
+		return b;
+	}
+}
@@ -0,0 +1,150 @@
+package plugins.Spider.index;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import freenet.keys.FreenetURI;
+import junit.framework.TestCase;
+
+/**
+ * Decodes both push formats the way a consumer would, and checks that the compact format carries
+ * the same entries as the legacy one.
+ */
+public class TermEntryWriterTest extends TestCase {
+	public void testCompactMatchesLegacy() throws Exception {
+		FreenetURI a = new FreenetURI("CHK@a");
+		FreenetURI b = new FreenetURI("SSK@b/site-3/page.html");
+		FreenetURI c = new FreenetURI("USK@c/site/7/");
+
+		TermPageBuffer buffer = new TermPageBuffer();
+		buffer.addPosition("hello", a, Integer.MIN_VALUE);
+		buffer.addPosition("hello", a, 5);
+		buffer.addPosition("world", a, Integer.MIN_VALUE + 1);
+		buffer.addPosition("world", a, 1 << 20);
+		buffer.addPosition("world", b, 0);
+		buffer.addPosition("world", b, 127);
+		buffer.addPosition("world", b, 128);
+		buffer.addPosition("\u4E00\u4E8C", c, 16384);
+		buffer.addPosition("zero", c, 3);
+		buffer.setTitle(a, "Title of a");
+		buffer.setTitle(c, "\u00DCber");
+		for (int entry = 0; entry < buffer.size(); entry++)
+			buffer.setRelevance(entry, 1.0f / (entry + 1));
+
+		List<TermPageEntry> legacy = readLegacy(write(buffer, TermEntryWriter.FORMAT_LEGACY));
+		List<TermPageEntry> compact = readCompact(write(buffer, TermEntryWriter.FORMAT_COMPACT));
+
+		assertEquals(buffer.size(), legacy.size());
+		assertEquals(legacy.size(), compact.size());
+		for (int i = 0; i < legacy.size(); i++) {
+			TermPageEntry l = legacy.get(i);
+			TermPageEntry m = compact.get(i);
+			assertEquals(l.subj, m.subj);
+			assertEquals(l.rel, m.rel);
+			assertEquals(l.page, m.page);
+			assertEquals(l.title, m.title);
+			assertTrue(Arrays.equals(l.positionsRaw(), m.positionsRaw()));
+		}
+
+		TermPageEntry first = legacy.get(0);
+		assertEquals("hello", first.subj);
+		assertEquals(a, first.page);
+		assertEquals("Title of a", first.title);
+		assertTrue(Arrays.equals(new int[] { Integer.MIN_VALUE, 5 }, first.positionsRaw()));
+	}
+
+	public void testEmpty() throws Exception {
+		TermPageBuffer buffer = new TermPageBuffer();
+		assertEquals(0, readLegacy(write(buffer, TermEntryWriter.FORMAT_LEGACY)).size());
+		assertEquals(0, readCompact(write(buffer, TermEntryWriter.FORMAT_COMPACT)).size());
+	}
+
+	private static byte[] write(TermPageBuffer buffer, int format) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bos);
+		TermEntryWriter.getInstance().writeBuffer(buffer, dos, format);
+		dos.close();
+		return bos.toByteArray();
+	}
+
+	/** Reads records of TermEntryWriter.writeObject() until the end, as Library does. */
+	private static List<TermPageEntry> readLegacy(byte[] data) throws IOException {
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		List<TermPageEntry> entries = new ArrayList<TermPageEntry>();
+		while (dis.available() > 0) {
+			assertEquals(TermEntry.serialVersionUID, dis.readLong());
+			assertEquals(TermEntry.EntryType.PAGE.ordinal(), dis.readInt());
+			String subj = dis.readUTF();
+			float rel = dis.readFloat();
+			FreenetURI page = FreenetURI.readFullBinaryKeyWithLength(dis);
+			int size = dis.readInt();
+			String title = null;
+			if (size < 0) {
+				size = ~size;
+				title = dis.readUTF();
+			}
+			Map<Integer, String> pos = new HashMap<Integer, String>();
+			for (int i = 0; i < size; i++) {
+				int p = dis.readInt();
+				assertEquals("", dis.readUTF());
+				pos.put(p, null);
+			}
+			entries.add(new TermPageEntry(subj, rel, page, title, pos));
+		}
+		return entries;
+	}
+
+	/** Reads a {@link TermEntryWriter#FORMAT_COMPACT} entry set. */
+	private static List<TermPageEntry> readCompact(byte[] data) throws IOException {
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		assertEquals(TermEntry.serialVersionUID, dis.readLong());
+		assertEquals(TermEntryWriter.FORMAT_COMPACT, dis.readByte());
+
+		int pageCount = readVarInt(dis);
+		FreenetURI[] pages = new FreenetURI[pageCount];
+		String[] titles = new String[pageCount];
+		for (int i = 0; i < pageCount; i++) {
+			pages[i] = FreenetURI.readFullBinaryKeyWithLength(dis);
+			if (dis.readBoolean()) titles[i] = dis.readUTF();
+		}
+
+		List<TermPageEntry> entries = new ArrayList<TermPageEntry>();
+		int terms = readVarInt(dis);
+		for (int t = 0; t < terms; t++) {
+			String subj = dis.readUTF();
+			int count = readVarInt(dis);
+			for (int e = 0; e < count; e++) {
+				int page = readVarInt(dis);
+				float rel = dis.readFloat();
+				int size = readVarInt(dis);
+				Map<Integer, String> pos = new HashMap<Integer, String>();
+				int p = 0;
+				for (int i = 0; i < size; i++) {
+					int v = readVarInt(dis);
+					p = i == 0 ? (v >>> 1) ^ -(v & 1) : p + v;
+					pos.put(p, null);
+				}
+				entries.add(new TermPageEntry(subj, rel, pages[page], titles[page], pos));
+			}
+		}
+		assertEquals(-1, dis.read());
+		return entries;
+	}
+
+	private static int readVarInt(DataInputStream dis) throws IOException {
+		int v = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = dis.readUnsignedByte();
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return v;
+		}
+	}
+}
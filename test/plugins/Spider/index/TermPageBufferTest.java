@@ -0,0 +1,57 @@
+package plugins.Spider.index;
+
+import freenet.keys.FreenetURI;
+import junit.framework.TestCase;
+
+public class TermPageBufferTest extends TestCase {
+	public void testMerge() throws Exception {
+		FreenetURI a = new FreenetURI("CHK@a");
+		FreenetURI b = new FreenetURI("CHK@b");
+
+		TermPageBuffer page = new TermPageBuffer();
+		page.addPosition("world", a, 3);
+		page.addPosition("hello", a, 2);
+		page.addPosition("world", a, 1);
+		page.addPosition("world", a, 3);
+		page.setTitle(a, "Title");
+
+		TermPageBuffer buffer = new TermPageBuffer();
+		buffer.addPosition("hello", b, 7);
+		buffer.addAll(page);
+		assertEquals(3, buffer.size());
+
+		int[] sorted = buffer.sortedEntries();
+		assertEquals(3, sorted.length);
+		assertEquals("hello", buffer.term(sorted[0]));
+		assertEquals("hello", buffer.term(sorted[1]));
+		assertEquals("world", buffer.term(sorted[2]));
+		assertEquals(a, buffer.page(sorted[2]));
+		assertEquals("Title", buffer.title(sorted[2]));
+		assertEquals(null, buffer.title(buffer.addPosition("hello", b, 8)));
+
+		int[] pos = buffer.positions(sorted[2]);
+		assertEquals(2, pos.length);
+		assertEquals(1, pos[0]);
+		assertEquals(3, pos[1]);
+	}
+
+	public void testGrow() throws Exception {
+		FreenetURI[] uris = new FreenetURI[50];
+		for (int i = 0; i < uris.length; i++)
+			uris[i] = new FreenetURI("CHK@" + i);
+
+		TermPageBuffer buffer = new TermPageBuffer();
+		for (int i = 0; i < 1000; i++)
+			buffer.addPosition("t" + (i % 100), uris[i % uris.length], i);
+		assertEquals(100, buffer.size());
+
+		int positions = 0;
+		String last = "";
+		for (int entry : buffer.sortedEntries()) {
+			assertTrue(last.compareTo(buffer.term(entry)) <= 0);
+			last = buffer.term(entry);
+			positions += buffer.positionsSize(entry);
+		}
+		assertEquals(1000, positions);
+	}
+}
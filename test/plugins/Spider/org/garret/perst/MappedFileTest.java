@@ -0,0 +1,88 @@
+package plugins.Spider.org.garret.perst;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class MappedFileTest extends TestCase {
+	private static final int SEGMENT_SIZE = 64 * 1024;
+
+	private File file;
+
+	@Override
+	protected void setUp() throws IOException {
+		file = File.createTempFile("mappedfile", ".dbs");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() {
+		file.delete();
+	}
+
+	/** A new file is only extended to its initial size, then doubled, not to whole segments. */
+	public void testGrowth() {
+		MappedFile f = new MappedFile(file.getPath(), 1024 * 1024, false);
+		assertEquals(1024 * 1024, f.length());
+		f.write(1024 * 1024, data(4096, 1));
+		assertEquals(2 * 1024 * 1024, f.length());
+		f.write(2 * 1024 * 1024 + 100, data(4096, 2));
+		assertEquals(4 * 1024 * 1024, f.length());
+		f.close();
+
+		f = new MappedFile(file.getPath(), 1024 * 1024, false);
+		assertEquals(4 * 1024 * 1024, f.length());
+		assertData(f, 1024 * 1024, 4096, 1);
+		assertData(f, 2 * 1024 * 1024 + 100, 4096, 2);
+		f.close();
+	}
+
+	/** Writes and reads across segment boundaries, in segments mapped whole and partially. */
+	public void testSegmentBoundaries() {
+		MappedFile f = new MappedFile(file.getPath(), 4096, SEGMENT_SIZE, false);
+		f.write(SEGMENT_SIZE - 100, data(200, 1));
+		f.write(3 * SEGMENT_SIZE - 1000, data(3 * SEGMENT_SIZE, 2));
+		assertEquals(6 * SEGMENT_SIZE - 1000, f.length());
+		assertData(f, SEGMENT_SIZE - 100, 200, 1);
+		assertData(f, 3 * SEGMENT_SIZE - 1000, 3 * SEGMENT_SIZE, 2);
+		byte[] buf = new byte[2000];
+		assertEquals(1000, f.read(6 * SEGMENT_SIZE - 2000, buf));
+		f.sync();
+		f.close();
+
+		f = new MappedFile(file.getPath(), 4096, SEGMENT_SIZE, true);
+		assertData(f, SEGMENT_SIZE - 100, 200, 1);
+		assertData(f, 3 * SEGMENT_SIZE - 1000, 3 * SEGMENT_SIZE, 2);
+		f.close();
+	}
+
+	/** Positions past 2Gb, which a single mapped buffer can't address. */
+	public void testLargeFile() {
+		long pos = 3L << 30;
+		MappedFile f = new MappedFile(file.getPath(), 4096, false);
+		f.write(pos - 10, data(4096, 3));
+		assertEquals(pos - 10 + 4096, f.length());
+		assertData(f, pos - 10, 4096, 3);
+		f.close();
+
+		f = new MappedFile(file.getPath(), 4096, false);
+		assertEquals(pos - 10 + 4096, f.length());
+		assertData(f, pos - 10, 4096, 3);
+		f.close();
+	}
+
+	private static byte[] data(int size, int fill) {
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++)
+			data[i] = (byte) (fill * 31 + i);
+		return data;
+	}
+
+	private static void assertData(MappedFile f, long pos, int size, int fill) {
+		byte[] buf = new byte[size];
+		assertEquals(size, f.read(pos, buf));
+		for (int i = 0; i < size; i++)
+			assertEquals((byte) (fill * 31 + i), buf[i]);
+	}
+}
@@ -0,0 +1,181 @@
+package plugins.Spider.org.garret.perst;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Online backups, a full one and incremental ones, taken while a thread commits changes, restore
+ * the database as it was at one of the commits.
+ */
+public class RestoreBackupTest extends TestCase {
+	private static final int ITEMS = 2000;
+	private static final int CHANGES_BETWEEN_BACKUPS = 200;
+
+	private File dir;
+
+	public static class Item extends Persistent {
+		public String key;
+		public int value;
+
+		public Item() {
+		}
+
+		Item(String key, int value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	public static class Root extends Persistent {
+		public FieldIndex<Item> items;
+		public int commits;
+
+		public Root() {
+		}
+	}
+
+	/** Takes its time for each page, so that many commits are made while a backup is written. */
+	static class SlowOutputStream extends ByteArrayOutputStream {
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			if (len >= 4096) {
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException x) {
+				}
+			}
+			super.write(b, off, len);
+		}
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("backuptest", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	public void testIncrementalBackups() throws Throwable {
+		final Storage db = StorageFactory.getInstance().createStorage();
+		db.open(path("db"), 64 * 4096);
+		final Root root = new Root();
+		root.items = db.createFieldIndex(Item.class, "key", true);
+		db.setRoot(root);
+		for (int i = 0; i < ITEMS; i++)
+			root.items.put(new Item("k" + i, 0));
+		db.commit();
+
+		final boolean[] done = new boolean[1];
+		final Throwable[] failure = new Throwable[1];
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int n = 1;; n++) {
+						synchronized (done) {
+							if (done[0]) return;
+						}
+						change(db, root, n);
+					}
+				} catch (Throwable x) {
+					failure[0] = x;
+				}
+			}
+		};
+		writer.start();
+
+		byte[][] backups = new byte[3][];
+		long[] ids = new long[3];
+		long since = 0;
+		for (int b = 0; b < backups.length; b++) {
+			waitForCommits(root, (b + 1) * CHANGES_BETWEEN_BACKUPS);
+			ByteArrayOutputStream out = new SlowOutputStream();
+			ids[b] = db.backup(out, since);
+			backups[b] = out.toByteArray();
+			since = ids[b];
+		}
+		synchronized (done) {
+			done[0] = true;
+		}
+		writer.join();
+		if (failure[0] != null) throw failure[0];
+		db.close();
+
+		assertTrue(backups[1].length < backups[0].length);
+		long restored = 0;
+		int commits = 0;
+		for (int b = 0; b < backups.length; b++) {
+			restored = RestoreBackup.restore(new ByteArrayInputStream(backups[b]), path("restored"), restored);
+			assertEquals(ids[b], restored);
+			int c = assertRestored(path("restored"));
+			assertTrue(c > commits);
+			commits = c;
+		}
+
+		try {
+			RestoreBackup.restore(new ByteArrayInputStream(backups[2]), path("other"), ids[0]);
+			fail("incremental backup restored over an older one");
+		} catch (IOException x) {
+		}
+	}
+
+	/** Commit n updates an item and adds another. */
+	private static void change(Storage db, Root root, int n) {
+		Item item = root.items.get("k" + (n * 7 % ITEMS));
+		item.value = n;
+		item.modify();
+		root.items.put(new Item("n" + n, n));
+		root.commits = n;
+		root.modify();
+		db.commit();
+	}
+
+	private static void waitForCommits(Root root, int commits) throws InterruptedException {
+		while (true) {
+			synchronized (root.getStorage()) {
+				if (root.commits >= commits) return;
+			}
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * Checks that the restored database holds the items as they were after one of the commits.
+	 * @return the number of that commit
+	 */
+	private static int assertRestored(String path) {
+		Storage db = StorageFactory.getInstance().createStorage();
+		db.open(path, 64 * 4096);
+		Root root = (Root) db.getRoot();
+		int commits = root.commits;
+		Map<String, Integer> expected = new HashMap<String, Integer>();
+		for (int i = 0; i < ITEMS; i++)
+			expected.put("k" + i, 0);
+		for (int n = 1; n <= commits; n++) {
+			expected.put("k" + (n * 7 % ITEMS), n);
+			expected.put("n" + n, n);
+		}
+		assertEquals(expected.size(), root.items.size());
+		for (Item item : root.items)
+			assertEquals(expected.get(item.key).intValue(), item.value);
+		db.close();
+		return commits;
+	}
+
+	private String path(String name) {
+		return new File(dir, name).getPath();
+	}
+}
@@ -0,0 +1,197 @@
+package plugins.Spider.org.garret.perst.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+import plugins.Spider.org.garret.perst.FieldIndex;
+import plugins.Spider.org.garret.perst.GenericIndex;
+import plugins.Spider.org.garret.perst.IPersistent;
+import plugins.Spider.org.garret.perst.Key;
+import plugins.Spider.org.garret.perst.Persistent;
+import plugins.Spider.org.garret.perst.Storage;
+import plugins.Spider.org.garret.perst.StorageFactory;
+
+/**
+ * A prefix compressed index holds the same keys in the same order as a plain index, through page
+ * splits and removals which change the keys at the page boundaries and the prefixes they share.
+ */
+public class BtreePrefixFieldIndexTest extends TestCase {
+	private static final int KEYS = 10000;
+
+	private File file;
+
+	public static class Item extends Persistent {
+		public String key;
+		public byte[] data;
+
+		public Item() {
+		}
+
+		Item(String key) {
+			this.key = key;
+			data = key.getBytes();
+		}
+	}
+
+	public static class Root extends Persistent {
+		public FieldIndex<Item> prefix;
+		public FieldIndex<Item> plain;
+		public FieldIndex<Item> prefixBytes;
+		public FieldIndex<Item> plainBytes;
+
+		public Root() {
+		}
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		file = File.createTempFile("prefixindex", ".dbs");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() {
+		file.delete();
+	}
+
+	public void testSameAsPlainIndex() {
+		Storage db = StorageFactory.getInstance().createStorage();
+		db.open(file.getPath());
+		Root root = new Root();
+		root.prefix = db.createPrefixCompressedFieldIndex(Item.class, "key", true);
+		root.plain = db.createFieldIndex(Item.class, "key", true);
+		root.prefixBytes = db.createPrefixCompressedFieldIndex(Item.class, "data", true);
+		root.plainBytes = db.createFieldIndex(Item.class, "data", true);
+		db.setRoot(root);
+		TreeSet<String> keys = new TreeSet<String>();
+		Random random = new Random(1);
+
+		for (int i = 0; i < KEYS; i++)
+			put(root, keys, key(random));
+		assertSame(root, keys, random);
+
+		// remove runs of adjacent keys, so that pages lose their first keys or are merged
+		List<String> sorted = new ArrayList<String>(keys);
+		for (int i = 0; i < sorted.size(); i += 1 + random.nextInt(40)) {
+			int run = 1 + random.nextInt(30);
+			for (int j = i; j < i + run && j < sorted.size(); j++)
+				remove(root, keys, sorted.get(j));
+			i += run;
+		}
+		assertSame(root, keys, random);
+
+		// put keys back between the remaining ones, and some sharing their prefixes
+		for (int i = 0; i < sorted.size(); i += 3)
+			put(root, keys, sorted.get(i));
+		for (int i = 0; i < sorted.size(); i += 7)
+			put(root, keys, sorted.get(i) + (char) ('a' + random.nextInt(26)));
+		assertSame(root, keys, random);
+		db.commit();
+		db.close();
+
+		db = StorageFactory.getInstance().createStorage();
+		db.open(file.getPath());
+		root = (Root) db.getRoot();
+		assertSame(root, keys, random);
+		for (String key : sorted)
+			remove(root, keys, key);
+		assertSame(root, keys, random);
+		db.close();
+	}
+
+	/** URL like keys, mostly sharing long prefixes of various lengths. */
+	private static String key(Random random) {
+		StringBuilder sb = new StringBuilder("http://site");
+		sb.append(random.nextInt(20)).append(".example/");
+		int depth = random.nextInt(4);
+		for (int i = 0; i < depth; i++)
+			sb.append("dir").append(random.nextInt(5)).append('/');
+		if (random.nextInt(10) == 0) sb.append("\u00E9t\u00E9/\u4E00");
+		sb.append("page").append(random.nextInt(1000));
+		return sb.toString();
+	}
+
+	private static void put(Root root, TreeSet<String> keys, String key) {
+		if (!keys.add(key)) return;
+		Item item = new Item(key);
+		assertTrue(root.prefix.put(item));
+		assertTrue(root.plain.put(item));
+		if (isAscii(key)) {
+			assertTrue(root.prefixBytes.put(item));
+			assertTrue(root.plainBytes.put(item));
+		}
+	}
+
+	private static void remove(Root root, TreeSet<String> keys, String key) {
+		if (!keys.remove(key)) return;
+		Item item = root.plain.get(key);
+		root.prefix.remove(item);
+		root.plain.remove(item);
+		if (isAscii(key)) {
+			root.prefixBytes.remove(item);
+			root.plainBytes.remove(item);
+		}
+	}
+
+	/** The plain index compares bytes as signed, the prefix compressed one as unsigned. */
+	private static boolean isAscii(String key) {
+		for (int i = 0; i < key.length(); i++)
+			if (key.charAt(i) >= 0x80) return false;
+		return true;
+	}
+
+	private static void assertSame(Root root, TreeSet<String> keys, Random random) {
+		assertEquals(keys.size(), root.prefix.size());
+		assertEquals(keys.size(), root.plain.size());
+		assertEquals(keys(root.plain.iterator()), keys(root.prefix.iterator()));
+		assertEquals(new ArrayList<String>(keys), keys(root.prefix.iterator()));
+		assertEquals(keys(root.plainBytes.iterator()), keys(root.prefixBytes.iterator()));
+		assertEquals(root.plainBytes.size(), root.prefixBytes.size());
+
+		for (int i = 0; i < 100; i++) {
+			String key = key(random);
+			Item item = root.prefix.get(key);
+			assertEquals(keys.contains(key), item != null);
+			if (item != null) assertEquals(key, item.key);
+			if (isAscii(key)) {
+				item = root.prefixBytes.get(new Key(key.getBytes()));
+				assertEquals(keys.contains(key), item != null);
+			}
+
+			String till = key(random);
+			if (till.compareTo(key) < 0) {
+				String k = key;
+				key = till;
+				till = k;
+			}
+			boolean inclusive = random.nextBoolean();
+			Key from = new Key(key, inclusive);
+			Key to = new Key(till, !inclusive);
+			int order = random.nextBoolean() ? GenericIndex.ASCENT_ORDER : GenericIndex.DESCENT_ORDER;
+			assertEquals(keys(root.plain.iterator(from, to, order)), keys(root.prefix.iterator(from, to, order)));
+			assertTrue(Arrays.equals(root.plain.get(from, to), root.prefix.get(from, to)));
+
+			String prefix = key.substring(0, 1 + random.nextInt(key.length()));
+			assertTrue(Arrays.equals(root.plain.getPrefix(prefix), root.prefix.getPrefix(prefix)));
+			if (isAscii(key) && isAscii(till)) {
+				IPersistent[] plain = root.plainBytes.get(new Key(key.getBytes()), new Key(till.getBytes()));
+				IPersistent[] prefixed = root.prefixBytes.get(new Key(key.getBytes()), new Key(till.getBytes()));
+				assertTrue(Arrays.equals(plain, prefixed));
+			}
+		}
+	}
+
+	private static List<String> keys(Iterator<Item> iterator) {
+		List<String> keys = new ArrayList<String>();
+		while (iterator.hasNext())
+			keys.add(iterator.next().key);
+		return keys;
+	}
+}
@@ -0,0 +1,186 @@
+package plugins.Spider.org.garret.perst.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import plugins.Spider.org.garret.perst.FieldIndex;
+import plugins.Spider.org.garret.perst.Persistent;
+import plugins.Spider.org.garret.perst.Storage;
+import plugins.Spider.org.garret.perst.StorageFactory;
+
+/**
+ * FieldIndex.bulkLoad() gives the same index as putting the objects one by one, whatever their order,
+ * for the B-Tree, the alternative B-Tree and the prefix compressed B-Tree.
+ */
+public class BulkLoadTest extends TestCase {
+	private static final int ITEMS = 5000;
+
+	private static final int PLAIN = 0;
+	private static final int ALTERNATIVE = 1;
+	private static final int PREFIX = 2;
+
+	private File file;
+	private Storage db;
+
+	public static class Item extends Persistent {
+		public String key;
+		public int number;
+
+		public Item() {
+		}
+
+		Item(int number) {
+			this.number = number;
+			key = "http://example/site/" + number / 100 + "/page" + number % 100;
+		}
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		file = File.createTempFile("bulkload", ".dbs");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() {
+		if (db != null && db.isOpened()) db.close();
+		file.delete();
+	}
+
+	public void testSorted() {
+		for (int kind = PLAIN; kind <= PREFIX; kind++) {
+			List<Item> items = items(0, ITEMS);
+			FieldIndex<Item> index = create(kind, true);
+			assertEquals(ITEMS, index.bulkLoad(items.iterator()));
+			assertContents(index, items);
+		}
+	}
+
+	/** Objects from the first one out of order on are inserted one by one. */
+	public void testUnsortedTail() {
+		for (int kind = PLAIN; kind <= PREFIX; kind++) {
+			List<Item> items = items(0, ITEMS);
+			List<Item> input = new ArrayList<Item>(items);
+			Collections.shuffle(input.subList(ITEMS / 2, ITEMS), new Random(kind));
+			// the first object of the tail is smaller than the last one of the sorted prefix
+			Collections.swap(input, ITEMS / 2 - 1, ITEMS / 2 + 1);
+			FieldIndex<Item> index = create(kind, true);
+			assertEquals(ITEMS, index.bulkLoad(input.iterator()));
+			assertContents(index, items);
+		}
+	}
+
+	/** Duplicates are skipped by a unique index, in the sorted prefix as well as in the tail. */
+	public void testDuplicates() {
+		for (int kind = PLAIN; kind <= PREFIX; kind++) {
+			for (int unique = 0; unique < 2; unique++) {
+				List<Item> items = items(0, ITEMS);
+				List<Item> input = new ArrayList<Item>();
+				List<Item> expected = new ArrayList<Item>();
+				for (Item item : items) {
+					input.add(item);
+					expected.add(item);
+					if (item.number % 10 == 0) {
+						Item duplicate = new Item(item.number);
+						input.add(duplicate);
+						if (unique == 0) expected.add(duplicate);
+					}
+				}
+				// and a duplicate out of order
+				input.add(new Item(7));
+				if (unique == 0) expected.add(input.get(input.size() - 1));
+				sort(expected);
+				FieldIndex<Item> index = create(kind, unique != 0);
+				assertEquals(expected.size(), index.bulkLoad(input.iterator()));
+				assertContents(index, expected);
+			}
+		}
+	}
+
+	/** Objects loaded into an index which is not empty are inserted one by one. */
+	public void testNotEmpty() {
+		for (int kind = PLAIN; kind <= PREFIX; kind++) {
+			List<Item> items = items(0, ITEMS);
+			FieldIndex<Item> index = create(kind, true);
+			List<Item> input = new ArrayList<Item>();
+			for (Item item : items) {
+				if (item.number % 3 == 0) index.put(item);
+				else input.add(item);
+			}
+			assertEquals(input.size(), index.bulkLoad(input.iterator()));
+			assertContents(index, items);
+		}
+	}
+
+	private FieldIndex<Item> create(int kind, boolean unique) {
+		if (db != null) {
+			db.close();
+			file.delete();
+		}
+		db = StorageFactory.getInstance().createStorage();
+		db.setProperty("perst.alternative.btree", Boolean.valueOf(kind == ALTERNATIVE));
+		db.open(file.getPath());
+		FieldIndex<Item> index = kind == PREFIX
+			? db.<Item>createPrefixCompressedFieldIndex(Item.class, "key", unique)
+			: db.<Item>createFieldIndex(Item.class, "key", unique);
+		assertEquals(kind == ALTERNATIVE, index instanceof AltBtreeFieldIndex);
+		db.setRoot(index);
+		return index;
+	}
+
+	/** Items sorted by key, which is not the order of their numbers. */
+	private static List<Item> items(int from, int till) {
+		List<Item> items = new ArrayList<Item>();
+		for (int i = from; i < till; i++)
+			items.add(new Item(i));
+		sort(items);
+		return items;
+	}
+
+	private static void sort(List<Item> items) {
+		Collections.sort(items, new Comparator<Item>() {
+			public int compare(Item a, Item b) {
+				return a.key.compareTo(b.key);
+			}
+		});
+	}
+
+	/**
+	 * Checks the objects of the index and the order of their keys, then that the tree still works:
+	 * every object is found, and removing half of them and reopening the storage leaves the others.
+	 */
+	@SuppressWarnings("unchecked")
+	private void assertContents(FieldIndex<Item> index, List<Item> expected) {
+		assertEquals(expected.size(), index.size());
+		Iterator<Item> it = index.iterator();
+		for (Item item : expected)
+			assertEquals(item.key, it.next().key);
+		assertFalse(it.hasNext());
+		for (Item item : expected) {
+			assertTrue(index.containsObject(item));
+			if (index.isUnique()) assertSame(item, index.get(item.key));
+		}
+
+		List<Item> left = new ArrayList<Item>();
+		for (int i = 0; i < expected.size(); i++) {
+			if (i % 2 == 0) index.remove(expected.get(i));
+			else left.add(expected.get(i));
+		}
+		db.commit();
+		db.close();
+		db.open(file.getPath());
+		index = (FieldIndex<Item>) db.getRoot();
+		assertEquals(left.size(), index.size());
+		it = index.iterator();
+		for (Item item : left)
+			assertEquals(item.key, it.next().key);
+		assertFalse(it.hasNext());
+	}
+}
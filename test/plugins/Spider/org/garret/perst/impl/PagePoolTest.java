@@ -0,0 +1,309 @@
+package plugins.Spider.org.garret.perst.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import plugins.Spider.org.garret.perst.IFile;
+
+/**
+ * Several threads changing pages through a pool much smaller than the pages, so that dirty pages
+ * are evicted all the time and written while the threads go on, often while they need them again.
+ */
+public class PagePoolTest extends TestCase {
+	private static final int POOL_SIZE = 16;
+	private static final int PAGES = 256;
+	private static final int THREADS = 8;
+	private static final int CHANGES = 500;
+
+	private File file;
+
+	/**
+	 * File which writes slowly, and checks that no page is read while it is being written: the
+	 * pool should wait for the write of an evicted page before loading it again.
+	 */
+	static class SlowFile implements IFile {
+		private final OSFile file;
+		private final Set<Long> writing = new HashSet<Long>();
+		volatile String error;
+
+		SlowFile(String path) {
+			file = new OSFile(path, false, false);
+		}
+
+		public void write(long pos, byte[] buf) {
+			synchronized (writing) {
+				writing.add(pos);
+			}
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+			}
+			file.write(pos, buf);
+			synchronized (writing) {
+				writing.remove(pos);
+			}
+		}
+
+		public int read(long pos, byte[] buf) {
+			synchronized (writing) {
+				if (writing.contains(pos)) error = "page " + pos + " read while being written";
+			}
+			return file.read(pos, buf);
+		}
+
+		public void sync() {
+			file.sync();
+		}
+
+		public boolean tryLock(boolean shared) {
+			return true;
+		}
+
+		public void lock(boolean shared) {
+		}
+
+		public void unlock() {
+		}
+
+		public void close() {
+			file.close();
+		}
+
+		public long length() {
+			return file.length();
+		}
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		file = File.createTempFile("pagepool", ".dbs");
+	}
+
+	@Override
+	protected void tearDown() {
+		file.delete();
+	}
+
+	/** Each thread changes its own pages, and finds the last image of a page whenever it gets it again. */
+	public void testConcurrentChanges() throws Throwable {
+		SlowFile f = new SlowFile(file.getPath());
+		final PagePool pool = open(f);
+		create(pool);
+		final int[][] versions = new int[THREADS][PAGES + 1];
+		Thread[] threads = new Thread[THREADS];
+		final Throwable[] failure = new Throwable[1];
+		for (int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						change(pool, thread, versions[thread], new Random(thread));
+					} catch (Throwable x) {
+						synchronized (failure) {
+							failure[0] = x;
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		if (failure[0] != null) throw failure[0];
+
+		pool.flush();
+		pool.close();
+		assertNull(f.error, f.error);
+
+		PagePool reopened = open(new OSFile(file.getPath(), false, false));
+		for (int page = 1; page <= PAGES; page++)
+			assertPage(reopened, page, versions[page % THREADS][page]);
+		reopened.close();
+	}
+
+	/**
+	 * The page writer writes dirty pages while they are changed, without the storage locked, and
+	 * keeps running during the flushes of the commits, which the pool keeps it from overlapping.
+	 */
+	public void testWriterWhileFlushing() throws Throwable {
+		SlowFile f = new SlowFile(file.getPath());
+		final PagePool pool = open(f);
+		create(pool);
+		final int[][] versions = new int[THREADS][PAGES + 1];
+		final Throwable[] failure = new Throwable[1];
+		final boolean[] done = new boolean[1];
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						synchronized (done) {
+							if (done[0]) return;
+						}
+						pool.writeDirtyPages();
+					}
+				} catch (Throwable x) {
+					synchronized (failure) {
+						failure[0] = x;
+					}
+				}
+			}
+		};
+		writer.start();
+		for (int commit = 0; commit < 4; commit++) {
+			Thread[] threads = new Thread[THREADS];
+			for (int t = 0; t < THREADS; t++) {
+				final int thread = t;
+				final Random random = new Random(commit * THREADS + thread);
+				threads[t] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							change(pool, thread, versions[thread], random);
+						} catch (Throwable x) {
+							synchronized (failure) {
+								failure[0] = x;
+							}
+						}
+					}
+				};
+				threads[t].start();
+			}
+			for (Thread t : threads)
+				t.join();
+			// as a commit does, with no page being changed
+			pool.flush();
+		}
+		synchronized (done) {
+			done[0] = true;
+		}
+		writer.join();
+		if (failure[0] != null) throw failure[0];
+
+		pool.close();
+		assertNull(f.error, f.error);
+
+		PagePool reopened = open(new OSFile(file.getPath(), false, false));
+		for (int page = 1; page <= PAGES; page++)
+			assertPage(reopened, page, versions[page % THREADS][page]);
+		reopened.close();
+	}
+
+	/**
+	 * An online backup reads the pages as they were when it started, while they are changed,
+	 * evicted and written again. The pages written last are still dirty when it starts, as
+	 * committed pages are with the write-ahead log, so they are being written while it reads them.
+	 */
+	public void testBackupWhileChanging() throws Throwable {
+		SlowFile f = new SlowFile(file.getPath());
+		final PagePool pool = open(f);
+		create(pool);
+		for (int page = 1; page <= PAGES; page++) {
+			Page pg = pool.putPage(address(page));
+			fill(pg.data, 1);
+			pool.unfix(pg);
+		}
+
+		pool.startBackup(PAGES + 1, -1);
+		Thread[] threads = new Thread[THREADS];
+		final Throwable[] failure = new Throwable[1];
+		final int[][] versions = new int[THREADS][PAGES + 1];
+		for (int[] v : versions)
+			Arrays.fill(v, 1);
+		for (int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						change(pool, thread, versions[thread], new Random(thread));
+					} catch (Throwable x) {
+						synchronized (failure) {
+							failure[0] = x;
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		byte[] buf = new byte[Page.pageSize];
+		for (int page = PAGES; page >= 1; page--) {
+			pool.readBackupPage(address(page), buf);
+			assertEquals(1, version(buf));
+		}
+		for (Thread t : threads)
+			t.join();
+		pool.endBackup();
+		if (failure[0] != null) throw failure[0];
+
+		pool.flush();
+		pool.close();
+		assertNull(f.error, f.error);
+	}
+
+	/** Makes CHANGES changes to the pages of the thread, checking the image it finds each time. */
+	private static void change(PagePool pool, int thread, int[] versions, Random random) {
+		for (int i = 0; i < CHANGES; i++) {
+			int page = random.nextInt(PAGES / THREADS) * THREADS + thread;
+			if (page == 0) page = THREADS * (PAGES / THREADS);
+			long addr = address(page);
+			if (random.nextInt(4) == 0) {
+				Page pg = pool.getPage(addr);
+				assertEquals(versions[page], version(pg.data));
+				pool.unfix(pg);
+				continue;
+			}
+			Page pg = pool.putPage(addr);
+			assertEquals(versions[page], version(pg.data));
+			fill(pg.data, ++versions[page]);
+			pool.unfix(pg);
+		}
+	}
+
+	/** Writes version 0 of all the pages. */
+	private static void create(PagePool pool) {
+		for (int page = 1; page <= PAGES; page++) {
+			Page pg = pool.putPage(address(page));
+			fill(pg.data, 0);
+			pool.unfix(pg);
+		}
+		pool.flush();
+	}
+
+	private static PagePool open(IFile f) {
+		PagePool pool = new PagePool(POOL_SIZE, Long.MAX_VALUE);
+		pool.open(f);
+		return pool;
+	}
+
+	/** Page 0 is the header of a database, which the pool treats specially. */
+	private static long address(int page) {
+		return (long) page * Page.pageSize;
+	}
+
+	private static void fill(byte[] data, int version) {
+		Bytes.pack4(data, 0, version);
+		for (int i = 4; i < data.length; i++)
+			data[i] = (byte) (version * 31 + i);
+	}
+
+	/** @return the version the page was filled with, checking that the whole page has it */
+	private static int version(byte[] data) {
+		int version = Bytes.unpack4(data, 0);
+		for (int i = 4; i < data.length; i++)
+			assertEquals((byte) (version * 31 + i), data[i]);
+		return version;
+	}
+
+	private static void assertPage(PagePool pool, int page, int version) {
+		Page pg = pool.getPage(address(page));
+		assertEquals(version, version(pg.data));
+		pool.unfix(pg);
+	}
+}
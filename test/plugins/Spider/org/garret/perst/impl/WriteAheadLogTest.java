@@ -0,0 +1,258 @@
+package plugins.Spider.org.garret.perst.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+import plugins.Spider.org.garret.perst.FieldIndex;
+import plugins.Spider.org.garret.perst.Persistent;
+import plugins.Spider.org.garret.perst.Storage;
+import plugins.Spider.org.garret.perst.StorageFactory;
+
+/**
+ * Recovery from the write-ahead log. A crash is simulated by copying the database and the log
+ * while the storage is open, or by closing the log without a checkpoint; what the copies hold is
+ * what the disk would hold after the process was killed.
+ */
+public class WriteAheadLogTest extends TestCase {
+	private File dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("waltest", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/** Records appended but never synced are still replayed once the process is gone. */
+	public void testReplayUnsyncedRecords() throws IOException {
+		WriteAheadLog wal = new WriteAheadLog(path("db.wal"));
+		wal.recover(new OSFile(path("db"), false, false));
+		append(wal, 0, 1);
+		append(wal, Page.pageSize, 2);
+		append(wal, 0, 3);
+		wal.close(false);
+
+		OSFile file = new OSFile(path("db"), false, false);
+		assertEquals(3, new WriteAheadLog(path("db.wal")).recover(file));
+		assertPage(file, 0, 3);
+		assertPage(file, Page.pageSize, 2);
+		file.close();
+		assertEquals(WriteAheadLog.headerSize, new File(path("db.wal")).length());
+	}
+
+	/** A torn last record, or one with a bad CRC, and everything after it are ignored. */
+	public void testTornLastRecord() throws IOException {
+		for (int tear = 0; tear < 2; tear++) {
+			WriteAheadLog wal = new WriteAheadLog(path("db.wal"));
+			wal.recover(new OSFile(path("db"), false, false));
+			append(wal, 0, 1);
+			append(wal, 0, 2);
+			long last = wal.getSize();
+			append(wal, 0, 3);
+			wal.close(false);
+
+			RandomAccessFile log = new RandomAccessFile(path("db.wal"), "rw");
+			if (tear == 0) {
+				log.setLength(log.length() - 100);
+			} else {
+				log.seek(last + WriteAheadLog.recordHeaderSize + 8 + 100);
+				log.write(0x55);
+			}
+			log.close();
+
+			OSFile file = new OSFile(path("db"), false, false);
+			assertEquals(2, new WriteAheadLog(path("db.wal")).recover(file));
+			assertPage(file, 0, 2);
+			file.close();
+		}
+	}
+
+	/** A complete record of another log incarnation (wrong sequence number) ends recovery. */
+	public void testStaleRecord() throws IOException {
+		WriteAheadLog other = new WriteAheadLog(path("other.wal"));
+		other.recover(new OSFile(path("other"), false, false));
+		other.seq += 100;
+		append(other, 0, 9);
+		other.close(false);
+
+		WriteAheadLog wal = new WriteAheadLog(path("db.wal"));
+		wal.recover(new OSFile(path("db"), false, false));
+		append(wal, 0, 1);
+		append(wal, 0, 2);
+		wal.close(false);
+		byte[] stale = readFile(path("other.wal"));
+		OutputStream os = new FileOutputStream(path("db.wal"), true);
+		os.write(stale, WriteAheadLog.headerSize, stale.length - WriteAheadLog.headerSize);
+		os.close();
+
+		OSFile file = new OSFile(path("db"), false, false);
+		assertEquals(2, new WriteAheadLog(path("db.wal")).recover(file));
+		assertPage(file, 0, 2);
+		file.close();
+	}
+
+	/** Recovery starts at the checkpoint, and a checkpoint of everything empties the log. */
+	public void testCheckpoint() throws IOException {
+		OSFile file = new OSFile(path("db"), false, false);
+		WriteAheadLog wal = new WriteAheadLog(path("db.wal"));
+		wal.recover(file);
+		append(wal, 0, 1);
+		long lsn = wal.getEnd();
+		append(wal, Page.pageSize, 2);
+		wal.sync(wal.getEnd());
+		// the checkpoint wrote page 0 with the image of the first record, then a later one was written
+		file.write(0, image(7));
+		wal.checkpointed(lsn);
+		wal.close(false);
+
+		wal = new WriteAheadLog(path("db.wal"));
+		assertEquals(1, wal.recover(file));
+		assertPage(file, 0, 7);
+		assertPage(file, Page.pageSize, 2);
+
+		append(wal, 0, 3);
+		long end = wal.getEnd();
+		wal.sync(end);
+		wal.checkpointed(end);
+		assertEquals(WriteAheadLog.headerSize, wal.getSize());
+		assertEquals(WriteAheadLog.headerSize, new File(path("db.wal")).length());
+		assertEquals(end, wal.getEnd());
+		assertEquals(end, append(wal, 0, 4));
+		wal.close(false);
+		file.close();
+	}
+
+	public static class Item extends Persistent {
+		public String key;
+		public String text;
+
+		public Item() {
+		}
+
+		Item(int i) {
+			key = "k" + i;
+			text = "item " + i + " of the write-ahead log test, padded to take some room on its page";
+		}
+	}
+
+	/**
+	 * Dirty pages evicted from a small pool before their transaction is logged (stolen) don't
+	 * show up after a crash before the commit, and the commits are all there after one after it.
+	 * A torn last record loses only the last commit.
+	 */
+	public void testStolenPages() throws IOException {
+		Storage db = open(path("db"));
+		FieldIndex<Item> index = db.createFieldIndex(Item.class, "key", true);
+		db.setRoot(index);
+		for (int i = 0; i < 100; i++)
+			index.put(new Item(i));
+		db.commit();
+
+		for (int i = 100; i < 20000; i++)
+			index.put(new Item(i));
+		copy("db", "before");
+		db.commit();
+		copy("db", "after");
+		for (int i = 20000; i < 20010; i++)
+			index.put(new Item(i));
+		db.commit();
+		copy("db", "torn");
+		db.close();
+
+		RandomAccessFile log = new RandomAccessFile(path("torn.wal"), "rw");
+		log.setLength(log.length() - 1);
+		log.close();
+
+		assertItems(path("before"), 100);
+		assertItems(path("after"), 20000);
+		assertItems(path("torn"), 20000);
+		assertItems(path("db"), 20010);
+	}
+
+	private static Storage open(String path) {
+		Storage db = StorageFactory.getInstance().createStorage();
+		db.setProperty("perst.wal", Boolean.TRUE);
+		// no checkpoint while the files are copied
+		db.setProperty("perst.wal.checkpoint.interval", Long.valueOf(3600 * 1000));
+		db.setProperty("perst.wal.max.size", Long.valueOf(Long.MAX_VALUE));
+		db.open(path, 64 * Page.pageSize);
+		return db;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void assertItems(String path, int count) {
+		Storage db = open(path);
+		FieldIndex<Item> index = (FieldIndex<Item>) db.getRoot();
+		assertEquals(count, index.size());
+		for (int i = 0; i < count; i++) {
+			Item item = index.get("k" + i);
+			assertNotNull(item);
+			assertEquals(new Item(i).text, item.text);
+		}
+		db.close();
+	}
+
+	private String path(String name) {
+		return new File(dir, name).getPath();
+	}
+
+	/** Copies the database and its log as they are on disk now. */
+	private void copy(String from, String to) throws IOException {
+		writeFile(path(to), readFile(path(from)));
+		writeFile(path(to) + ".wal", readFile(path(from) + ".wal"));
+	}
+
+	private static long append(WriteAheadLog wal, long offs, int fill) {
+		return wal.append(new long[] { offs }, new byte[][] { image(fill) }, 1);
+	}
+
+	private static byte[] image(int fill) {
+		byte[] data = new byte[Page.pageSize];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (fill + i);
+		return data;
+	}
+
+	private static void assertPage(OSFile file, long offs, int fill) {
+		byte[] data = new byte[Page.pageSize];
+		assertEquals(Page.pageSize, file.read(offs, data));
+		for (int i = 0; i < data.length; i++)
+			assertEquals((byte) (fill + i), data[i]);
+	}
+
+	private static byte[] readFile(String path) throws IOException {
+		File f = new File(path);
+		byte[] data = new byte[(int) f.length()];
+		InputStream is = new FileInputStream(f);
+		try {
+			int n = 0;
+			while (n < data.length)
+				n += is.read(data, n, data.length - n);
+		} finally {
+			is.close();
+		}
+		return data;
+	}
+
+	private static void writeFile(String path, byte[] data) throws IOException {
+		OutputStream os = new FileOutputStream(path);
+		try {
+			os.write(data);
+		} finally {
+			os.close();
+		}
+	}
+}